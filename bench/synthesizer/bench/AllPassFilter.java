@@ -1,4 +1,4 @@
-package synthesizer.dsp.post;
+package synthesizer.bench;
 
 /**
  * This class works as an all-pass filter for processing sound buffers.
@@ -14,11 +14,12 @@ package synthesizer.dsp.post;
  *             |                          |
  *              ---------( gain )<--------
  *
- *
+ * A benchmark baseline: the reverb used to chain these filters, now it calculates its all-pass filters
+ * in one loop over a shared delay array.
  *
  * @author Marek Bobrowski
  */
-public class AllPassFilter {
+class AllPassFilter {
     /**
      * Stores the delayed samples.
      */
@@ -32,43 +33,32 @@ public class AllPassFilter {
     /**
      * The absolute gain value for the feedback and the feedforward signal.
      */
-    private double gain;
+    private final double gain;
 
     /**
      * Assigns the gain parameter and creates an array for the delayed samples.
      * @param gain The absolute gain value for the feedback and the feedforward signal.
      * @param delay Number of samples of delay.
      */
-    public AllPassFilter(double gain, int delay) {
+    AllPassFilter(double gain, int delay) {
         this.gain = gain;
         delayBuffer = new double[delay];
     }
 
     /**
-     * Creates a processed buffer according to this all-pass filter's settings.
-     * @param buffer Buffer used to create it's processed version.
-     * @return Returns the processed version of the passed buffer.
+     * Processes the passed samples (in place) according to this all-pass filter's settings.
+     * @param buffer The samples to be processed.
+     * @param bufferSize The number of samples to be processed.
      */
-    public double[][] createProcessedBuffer(double[][] buffer) {
-        double[][] output = new double[2][buffer[0].length];
+    void processBuffer(double[] buffer, int bufferSize) {
         double outputSample;
 
-        for (int i = 0; i < buffer[0].length; i++) {
-            outputSample = delayBuffer[delayPosition] - gain * buffer[0][i];
-            delayBuffer[delayPosition] = outputSample * gain + buffer[0][i];
-            output[0][i] = outputSample;
-            output[1][i] = outputSample;
+        for (int i = 0; i < bufferSize; i++) {
+            outputSample = delayBuffer[delayPosition] - gain * buffer[i];
+            delayBuffer[delayPosition] = outputSample * gain + buffer[i];
+            buffer[i] = outputSample;
             delayPosition = (delayPosition + 1) % delayBuffer.length;
         }
-        return output;
-    }
-
-    /**
-     * Sets the gain parameter.
-     * @param gain The absolute gain value for the feedback and the feedforward.
-     */
-    public void setGain(double gain) {
-        this.gain = gain;
     }
 }
 
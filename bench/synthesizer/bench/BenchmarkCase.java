@@ -0,0 +1,72 @@
+package synthesizer.bench;
+
+/**
+ * A single measured case: an operation (for example "generate one buffer of a sawtooth")
+ * and the number of frames it produces, which the results are normalized by.
+ *
+ * @author Marek Bobrowski
+ */
+public class BenchmarkCase {
+    /**
+     * The operation measured by a benchmark case.
+     */
+    @FunctionalInterface
+    public interface Operation {
+        /**
+         * Runs the operation once.
+         * @return Any value depending on the result (consumed by the runner, so the work cannot be optimized away).
+         */
+        double run();
+    }
+
+    /**
+     * The name of this case, including its parameters.
+     */
+    private final String name;
+
+    /**
+     * The number of frames produced by one run of the operation.
+     */
+    private final int framesPerOperation;
+
+    /**
+     * The measured operation.
+     */
+    private final Operation operation;
+
+    /**
+     * Creates the case.
+     * @param name The name of the case, including its parameters.
+     * @param framesPerOperation The number of frames produced by one run of the operation.
+     * @param operation The measured operation.
+     */
+    public BenchmarkCase(String name, int framesPerOperation, Operation operation) {
+        this.name = name;
+        this.framesPerOperation = framesPerOperation;
+        this.operation = operation;
+    }
+
+    /**
+     * Returns the name of this case, including its parameters.
+     * @return The name of this case.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of frames produced by one run of the operation.
+     * @return The number of frames produced by one run of the operation.
+     */
+    public int getFramesPerOperation() {
+        return framesPerOperation;
+    }
+
+    /**
+     * Returns the measured operation.
+     * @return The measured operation.
+     */
+    public Operation getOperation() {
+        return operation;
+    }
+}
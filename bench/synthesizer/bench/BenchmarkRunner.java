@@ -0,0 +1,113 @@
+package synthesizer.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+/**
+ * This class measures the {@link BenchmarkCase}s. Every case is first run for the warm-up time
+ * (so the JIT compiler can optimize it) and then for the measurement time.
+ * The results are printed as nanoseconds per frame and bytes allocated per operation
+ * (the latter is measured with the allocation counter of the current thread, if the JVM provides one).
+ *
+ * @author Marek Bobrowski
+ */
+public class BenchmarkRunner {
+    /**
+     * The number of operations run between the checks of the clock.
+     */
+    private static final int BATCH_SIZE = 16;
+
+    /**
+     * The warm-up time of every case in milliseconds.
+     */
+    private final long warmUpMillis;
+
+    /**
+     * The measurement time of every case in milliseconds.
+     */
+    private final long measurementMillis;
+
+    /**
+     * The allocation counter of the threads, or null if the JVM doesn't provide one.
+     */
+    private final com.sun.management.ThreadMXBean allocationCounter;
+
+    /**
+     * The sum of the values returned by the operations. Keeps the JIT compiler from removing their work.
+     */
+    private volatile double sink;
+
+    /**
+     * Creates the runner.
+     * @param warmUpMillis The warm-up time of every case in milliseconds.
+     * @param measurementMillis The measurement time of every case in milliseconds.
+     */
+    public BenchmarkRunner(long warmUpMillis, long measurementMillis) {
+        this.warmUpMillis = warmUpMillis;
+        this.measurementMillis = measurementMillis;
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported()) {
+            allocationCounter = (com.sun.management.ThreadMXBean) threadBean;
+            allocationCounter.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            allocationCounter = null;
+        }
+    }
+
+    /**
+     * Measures all the cases and prints the results (one line per case).
+     * @param cases The cases to be measured.
+     */
+    public void runAll(List<BenchmarkCase> cases) {
+        System.out.printf("%-48s %12s %14s %12s%n", "Benchmark", "ns/frame", "ns/op", "B/op");
+        for (BenchmarkCase benchmarkCase : cases) {
+            run(benchmarkCase);
+        }
+    }
+
+    /**
+     * Measures a single case and prints the result.
+     * @param benchmarkCase The case to be measured.
+     */
+    public void run(BenchmarkCase benchmarkCase) {
+        BenchmarkCase.Operation operation = benchmarkCase.getOperation();
+        runFor(operation, warmUpMillis);
+
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = allocationCounter == null ? 0 : allocationCounter.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        long operations = runFor(operation, measurementMillis);
+        long elapsed = System.nanoTime() - start;
+        long allocatedAfter = allocationCounter == null ? 0 : allocationCounter.getThreadAllocatedBytes(threadId);
+
+        double nanosPerOperation = (double) elapsed / operations;
+        double nanosPerFrame = nanosPerOperation / benchmarkCase.getFramesPerOperation();
+        String bytesPerOperation = allocationCounter == null
+                ? "n/a"
+                : String.format("%.1f", (double) (allocatedAfter - allocatedBefore) / operations);
+        System.out.printf("%-48s %12.3f %14.1f %12s%n",
+                benchmarkCase.getName(), nanosPerFrame, nanosPerOperation, bytesPerOperation);
+    }
+
+    /**
+     * Runs the operation repeatedly for the specified time.
+     * @param operation The operation to be run.
+     * @param millis The time in milliseconds.
+     * @return The number of runs.
+     */
+    private long runFor(BenchmarkCase.Operation operation, long millis) {
+        long end = System.nanoTime() + millis * 1000000;
+        long operations = 0;
+        double sum = 0;
+        do {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                sum += operation.run();
+            }
+            operations += BATCH_SIZE;
+        } while (System.nanoTime() < end);
+        sink += sum;
+        return operations;
+    }
+}
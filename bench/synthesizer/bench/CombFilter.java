@@ -1,6 +1,4 @@
-package synthesizer.dsp.post;
-
-import java.util.Arrays;
+package synthesizer.bench;
 
 /**
  * This class works as a feedback comb filter for processing sound buffers.
@@ -20,10 +18,12 @@ import java.util.Arrays;
  *        |                             |
  *        ----------( gain )<-----------
  *
-
+ * The {@link synthesizer.dsp.post.Reverb} no longer uses this filter (its comb filters share one delay array
+ * and are calculated in fused loops), so the filter is kept only as a baseline for the benchmarks of the reverb.
+ *
  * @author Marek Bobrowski
  */
-public class CombFilter {
+class CombFilter {
     /**
      * Stores the delayed samples.
      */
@@ -32,7 +32,7 @@ public class CombFilter {
     /**
      * The gain value for the feedback signal.
      */
-    private double feedback;
+    private final double feedback;
 
     /**
      * Position at which the delayed samples from delayBuffer will be overwritten/accessed.
@@ -44,36 +44,27 @@ public class CombFilter {
      * @param feedback The feedback signal gain value.
      * @param delay Number of samples of delay.
      */
-    public CombFilter(double feedback, int delay) {
+    CombFilter(double feedback, int delay) {
         this.feedback = feedback;
         delayBuffer = new double[delay];
     }
 
     /**
-     * Creates a processed buffer according to this comb filter's settings.
-     * @param buffer Buffer used to create it's processed version.
-     * @return Returns the processed version of the passed buffer.
+     * Processes the input samples according to this comb filter's settings and adds the result
+     * to the output samples. That way the outputs of a bank of parallel comb filters can be summed
+     * into one reusable array.
+     * @param input The samples to be processed.
+     * @param output The array that the processed samples will be added to.
+     * @param bufferSize The number of samples to be processed.
      */
-    public double[][] createProcessedBuffer(double[][] buffer) {
-        double[][] output = Arrays.stream(buffer).map(double[]::clone).toArray(double[][]::new);
+    void addProcessedBuffer(double[] input, double[] output, int bufferSize) {
         double lastValue;
-        for (int i = 0; i < buffer[0].length; i++) {
-            lastValue = output[0][i] + delayBuffer[delayPosition] * feedback;
+        for (int i = 0; i < bufferSize; i++) {
+            lastValue = input[i] + delayBuffer[delayPosition] * feedback;
             delayBuffer[delayPosition] = lastValue;
-            output[0][i] = lastValue;
-            output[1][i] = lastValue;
+            output[i] += lastValue;
             delayPosition = (delayPosition + 1) % delayBuffer.length;
         }
-        return output;
     }
-
-    /**
-     * Sets the feedback signal gain parameter.
-     * @param feedback The gain value for the feedback signal.
-     */
-    public void setFeedback(double feedback) {
-        this.feedback = feedback;
-    }
-
 }
 
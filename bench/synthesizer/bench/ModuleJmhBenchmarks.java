@@ -0,0 +1,82 @@
+package synthesizer.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cases of {@link SynthesizerBenchmarks} measuring the single modules (every waveform of every oscillator
+ * mode, every stage of the envelope, the filters, the effects, the sample conversion and the scalar kernels),
+ * measured by JMH for every buffer size. They don't depend on the number of voices, so they are kept apart
+ * from {@link SynthesizerJmhBenchmarks}. The modulation case is measured with the first of its control rates.
+ * The vector kernels are measured only with the "simd" profile, e.g. "-p benchmark=kernel_mix_vector".
+ * The results are in nanoseconds per buffer; add "-prof gc" for the allocations.
+ *
+ * @author Marek Bobrowski
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModuleJmhBenchmarks {
+    /**
+     * The number of voices the cases are created with (not used by the measured cases).
+     */
+    private static final int VOICES = 1;
+
+    /**
+     * The name of the measured case, without its parameters.
+     */
+    @Param({"oscillator_direct_sine", "oscillator_direct_triangle", "oscillator_direct_sawtooth",
+            "oscillator_direct_square", "oscillator_wavetable_sine", "oscillator_wavetable_triangle",
+            "oscillator_wavetable_sawtooth", "oscillator_wavetable_square", "oscillator_polyblep_sine",
+            "oscillator_polyblep_triangle", "oscillator_polyblep_sawtooth", "oscillator_polyblep_square",
+            "envelope_attack_linear", "envelope_attack_exponential", "envelope_decay_linear",
+            "envelope_decay_exponential", "envelope_sustain_linear", "envelope_sustain_exponential",
+            "envelope_release_linear", "envelope_release_exponential", "comb_filter", "all-pass_filter",
+            "delay_mono", "delay_ping-pong", "delay_gliding", "reverb", "convolution_reverb", "double_to_byte",
+            "kernel_sine_scalar", "kernel_triangle_scalar", "kernel_sawtooth_scalar", "kernel_square_scalar",
+            "kernel_mix_scalar", "kernel_gain_scalar", "kernel_crossfade_scalar", "block_render_modulated"})
+    public String benchmark;
+
+    /**
+     * The number of frames processed by one operation.
+     */
+    @Param({"256", "512", "1024", "2048"})
+    public int bufferSize;
+
+    /**
+     * The measured operation.
+     */
+    private BenchmarkCase.Operation operation;
+
+    /**
+     * Creates the cases for the buffer size and finds the measured one.
+     * @throws IllegalArgumentException If there is no case with the name.
+     */
+    @Setup
+    public void setUp() {
+        operation = SynthesizerJmhBenchmarks.findOperation(benchmark, bufferSize, VOICES);
+    }
+
+    /**
+     * Runs the operation of the case once.
+     * @return The value returned by the operation (consumed by JMH, so the work cannot be optimized away).
+     */
+    @Benchmark
+    public double run() {
+        return operation.run();
+    }
+}
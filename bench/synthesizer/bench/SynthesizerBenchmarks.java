@@ -0,0 +1,462 @@
+package synthesizer.bench;
+
+import synthesizer.dsp.Converter;
+import synthesizer.dsp.NoteEvent;
+import synthesizer.dsp.Part;
+import synthesizer.dsp.Synthesizer;
+import synthesizer.dsp.kernels.SampleKernels;
+import synthesizer.dsp.kernels.ScalarKernels;
+import synthesizer.dsp.output.NullSink;
+import synthesizer.dsp.post.ConvolutionReverb;
+import synthesizer.dsp.post.Delay;
+import synthesizer.dsp.post.Reverb;
+import synthesizer.dsp.voice.EnvelopeGenerator;
+import synthesizer.dsp.voice.Oscillator;
+import synthesizer.dsp.voice.Voice;
+import synthesizer.dsp.voice.VoiceBank;
+import synthesizer.models.EnvelopeSettings;
+import synthesizer.models.ModulationSettings;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The benchmarks of the synthesis modules: every waveform of the oscillator, every stage of the envelope,
+ * the comb and all-pass filters, the delay (in both modes and while its time glides), the whole reverb,
+ * the convolution reverb (with an impulse response of {@link #IMPULSE_RESPONSE_LENGTH} seconds), the sample
+ * conversion and the creation of whole buffers by the synthesizer with N voices (also with modulation at a few
+ * control rates and with the voices spread over the parts of the multi-timbral mode). Every case is run for every buffer size. The sample kernels are measured in both implementations, if the vector one is available
+ * (see {@link SampleKernels}).
+ *
+ * Usage: SynthesizerBenchmarks [name filter]
+ * The parameters are set with system properties: "bench.bufferSizes" (256,512,1024,2048 by default),
+ * "bench.voices" (1,4,16,64,128 by default), "bench.warmUp" and "bench.time" (milliseconds per case,
+ * 500 and 1000 by default).
+ *
+ * @author Marek Bobrowski
+ */
+public class SynthesizerBenchmarks {
+    /**
+     * The names of the waveforms, in the order of their numbers in the oscillator settings.
+     */
+    private static final String[] WAVEFORM_NAMES = {"sine", "triangle", "sawtooth", "square"};
+
+    /**
+     * The names of the oscillator modes, in the order of their numbers.
+     */
+    private static final String[] MODE_NAMES = {"direct", "wavetable", "polyblep"};
+
+    /**
+     * The names of the envelope stages.
+     */
+    private static final String[] ENVELOPE_STAGES = {"attack", "decay", "sustain", "release"};
+
+    /**
+     * The names of the envelope curves, in the order of their numbers in the envelope settings.
+     */
+    private static final String[] CURVE_NAMES = {"linear", "exponential"};
+
+    /**
+     * The names of the delay modes, in the order of their numbers.
+     */
+    private static final String[] DELAY_MODE_NAMES = {"mono", "ping-pong"};
+
+    /**
+     * The length (in seconds) of the measured envelope stage, long enough not to end during the measurement.
+     */
+    private static final double LONG_STAGE = 100000;
+
+    /**
+     * The control rates of the modulation cases.
+     */
+    private static final int[] CONTROL_RATES = {8, 32, 128};
+
+    /**
+     * The number of held notes in the modulation cases.
+     */
+    private static final int MODULATED_VOICES = 16;
+
+    /**
+     * The number of channels (parts) the held notes are spread over in the multi-timbral cases.
+     */
+    private static final int MULTITIMBRAL_PARTS = 4;
+
+    /**
+     * The length (in seconds) of the impulse response of the convolution reverb case.
+     */
+    private static final double IMPULSE_RESPONSE_LENGTH = 2;
+
+    /**
+     * The frequency of the generated notes.
+     */
+    private static final double FREQUENCY = 440;
+
+    /**
+     * Runs the benchmarks whose names contain the filter passed in the arguments (all of them by default).
+     *
+     * @param args command-line arguments: optional name filter.
+     */
+    public static void main(String[] args) {
+        String filter = args.length > 0 ? args[0] : "";
+        int[] bufferSizes = parseList(System.getProperty("bench.bufferSizes", "256,512,1024,2048"));
+        int[] voiceCounts = parseList(System.getProperty("bench.voices", "1,4,16,64,128"));
+        long warmUp = Long.getLong("bench.warmUp", 500);
+        long time = Long.getLong("bench.time", 1000);
+
+        List<BenchmarkCase> cases = createCases(bufferSizes, voiceCounts);
+        cases.removeIf(benchmarkCase -> !benchmarkCase.getName().contains(filter));
+        new BenchmarkRunner(warmUp, time).runAll(cases);
+    }
+
+    /**
+     * Creates all the cases for every buffer size (and every number of voices, where it applies).
+     * @param bufferSizes The numbers of frames processed by one operation.
+     * @param voiceCounts The numbers of voices of the cases creating whole buffers.
+     * @return The created cases.
+     */
+    public static List<BenchmarkCase> createCases(int[] bufferSizes, int[] voiceCounts) {
+        List<SampleKernels> kernels = new ArrayList<>();
+        kernels.add(new ScalarKernels());
+        SampleKernels vectorKernels = SampleKernels.create(true);
+        if (!(vectorKernels instanceof ScalarKernels)) {
+            kernels.add(vectorKernels);
+        }
+
+        List<BenchmarkCase> cases = new ArrayList<>();
+        for (int bufferSize : bufferSizes) {
+            cases.addAll(createModuleCases(bufferSize));
+            for (SampleKernels implementation : kernels) {
+                cases.addAll(createKernelCases(implementation, bufferSize));
+            }
+            for (int voiceCount : voiceCounts) {
+                cases.add(createBlockCase(voiceCount, bufferSize, false));
+                cases.add(createBlockCase(voiceCount, bufferSize, true));
+                cases.add(createMultitimbralCase(voiceCount, bufferSize));
+            }
+            for (int controlRate : CONTROL_RATES) {
+                cases.add(createModulationCase(controlRate, bufferSize));
+            }
+        }
+        return cases;
+    }
+
+    /**
+     * Creates the cases of the single modules.
+     * @param bufferSize The number of frames processed by one operation.
+     * @return The cases of the single modules.
+     */
+    private static List<BenchmarkCase> createModuleCases(int bufferSize) {
+        List<BenchmarkCase> cases = new ArrayList<>();
+        for (int mode = 0; mode < MODE_NAMES.length; mode++) {
+            for (int waveform = 0; waveform < WAVEFORM_NAMES.length; waveform++) {
+                cases.add(createOscillatorCase(mode, waveform, bufferSize));
+            }
+        }
+        for (String stage : ENVELOPE_STAGES) {
+            for (int curve = 0; curve < CURVE_NAMES.length; curve++) {
+                cases.add(createEnvelopeCase(stage, curve, bufferSize));
+            }
+        }
+
+        double[] input = createNoise(bufferSize);
+        double[] output = new double[bufferSize];
+        CombFilter combFilter = new CombFilter(0.9, 1309);
+        cases.add(new BenchmarkCase("comb filter, buffer=" + bufferSize, bufferSize, () -> {
+            combFilter.addProcessedBuffer(input, output, bufferSize);
+            return output[0];
+        }));
+
+        double[] allPassBuffer = createNoise(bufferSize);
+        AllPassFilter allPassFilter = new AllPassFilter(0.9, 220);
+        cases.add(new BenchmarkCase("all-pass filter, buffer=" + bufferSize, bufferSize, () -> {
+            allPassFilter.processBuffer(allPassBuffer, bufferSize);
+            return allPassBuffer[0];
+        }));
+
+        double[] reverbInput = createNoise(bufferSize);
+        double[][] delayBuffer = new double[2][bufferSize];
+        for (int mode = 0; mode < DELAY_MODE_NAMES.length; mode++) {
+            Delay delay = new Delay();
+            delay.setMix(0.5);
+            delay.setMode(mode);
+            cases.add(new BenchmarkCase("delay " + DELAY_MODE_NAMES[mode] + ", buffer=" + bufferSize, bufferSize,
+                    () -> {
+                        System.arraycopy(reverbInput, 0, delayBuffer[0], 0, bufferSize);
+                        delay.processBuffer(delayBuffer, bufferSize);
+                        return delayBuffer[1][0];
+                    }));
+        }
+        Delay glidingDelay = new Delay();
+        glidingDelay.setMix(0.5);
+        cases.add(new BenchmarkCase("delay gliding, buffer=" + bufferSize, bufferSize, () -> {
+            // The time is changed before every buffer, so the delay never stops gliding.
+            glidingDelay.setTime(glidingDelay.getTime() == 1 ? 0.5 : 1);
+            System.arraycopy(reverbInput, 0, delayBuffer[0], 0, bufferSize);
+            glidingDelay.processBuffer(delayBuffer, bufferSize);
+            return delayBuffer[1][0];
+        }));
+
+        double[][] reverbBuffer = new double[2][bufferSize];
+        Reverb reverb = new Reverb();
+        reverb.setMix(0.5);
+        cases.add(new BenchmarkCase("reverb, buffer=" + bufferSize, bufferSize, () -> {
+            // The processed buffer would be fed back into the reverb, so the noise is copied every time.
+            System.arraycopy(reverbInput, 0, reverbBuffer[0], 0, bufferSize);
+            System.arraycopy(reverbInput, 0, reverbBuffer[1], 0, bufferSize);
+            reverb.processBuffer(reverbBuffer, bufferSize);
+            return reverbBuffer[0][0];
+        }));
+
+        double[][] convolutionBuffer = new double[2][bufferSize];
+        ConvolutionReverb convolutionReverb = new ConvolutionReverb();
+        try {
+            convolutionReverb.loadImpulseResponse(createImpulseResponseFile());
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        convolutionReverb.setMix(0.5);
+        cases.add(new BenchmarkCase("convolution reverb, buffer=" + bufferSize, bufferSize, () -> {
+            System.arraycopy(reverbInput, 0, convolutionBuffer[0], 0, bufferSize);
+            System.arraycopy(reverbInput, 0, convolutionBuffer[1], 0, bufferSize);
+            convolutionReverb.processBuffer(convolutionBuffer, bufferSize);
+            return convolutionBuffer[0][0];
+        }));
+
+        double[][] samples = {createNoise(bufferSize), createNoise(bufferSize)};
+        byte[] bytes = new byte[bufferSize * 4];
+        cases.add(new BenchmarkCase("double to byte, buffer=" + bufferSize, bufferSize, () -> {
+            Converter.doubleToByte(samples, bufferSize, bytes);
+            return bytes[0];
+        }));
+        return cases;
+    }
+
+    /**
+     * Creates the cases of the sample kernels.
+     * @param kernels The implementation of the kernels.
+     * @param bufferSize The number of samples processed by one operation.
+     * @return The cases of the kernels.
+     */
+    private static List<BenchmarkCase> createKernelCases(SampleKernels kernels, int bufferSize) {
+        List<BenchmarkCase> cases = new ArrayList<>();
+        String suffix = " " + kernels.getName() + ", buffer=" + bufferSize;
+        double increment = 2 * Math.PI * FREQUENCY / Converter.SAMPLE_RATE;
+        double[] output = new double[bufferSize];
+        for (int waveform = 0; waveform < WAVEFORM_NAMES.length; waveform++) {
+            int number = waveform;
+            double[] phase = {0};
+            cases.add(new BenchmarkCase("kernel " + WAVEFORM_NAMES[waveform] + suffix, bufferSize, () -> {
+                phase[0] = kernels.generateWaveform(number, phase[0], increment, output, bufferSize);
+                return output[0];
+            }));
+        }
+        double[] input = createNoise(bufferSize);
+        double[] mixed = new double[bufferSize];
+        cases.add(new BenchmarkCase("kernel mix" + suffix, bufferSize, () -> {
+            kernels.mixInto(mixed, 0, input, 0.5, bufferSize);
+            return mixed[0];
+        }));
+        double[] scaled = createNoise(bufferSize);
+        cases.add(new BenchmarkCase("kernel gain" + suffix, bufferSize, () -> {
+            kernels.scale(scaled, -1, bufferSize);
+            return scaled[0];
+        }));
+        double[] first = createNoise(bufferSize);
+        cases.add(new BenchmarkCase("kernel crossfade" + suffix, bufferSize, () -> {
+            kernels.crossfade(first, input, 0.5, bufferSize);
+            return first[0];
+        }));
+        return cases;
+    }
+
+    /**
+     * Creates the case of an oscillator generating one waveform.
+     * @param mode The mode of the oscillator.
+     * @param waveform The number of the waveform.
+     * @param bufferSize The number of frames generated by one operation.
+     * @return The case of the oscillator.
+     */
+    private static BenchmarkCase createOscillatorCase(int mode, int waveform, int bufferSize) {
+        Oscillator oscillator = new Oscillator(() -> waveform, () -> mode);
+        double[] output = new double[bufferSize];
+        return new BenchmarkCase("oscillator " + MODE_NAMES[mode] + " " + WAVEFORM_NAMES[waveform]
+                + ", buffer=" + bufferSize,
+                bufferSize, () -> {
+                    oscillator.generateBuffer(FREQUENCY, output, bufferSize);
+                    return output[0];
+                });
+    }
+
+    /**
+     * Creates the case of an envelope generator staying in one stage.
+     * @param stage The name of the stage.
+     * @param curve The curve of the envelope.
+     * @param bufferSize The number of frames processed by one operation.
+     * @return The case of the envelope generator.
+     */
+    private static BenchmarkCase createEnvelopeCase(String stage, int curve, int bufferSize) {
+        EnvelopeSettings settings = new EnvelopeSettings();
+        settings.setSustain(0.5);
+        settings.setCurve(curve);
+        Voice voice = new Voice(new Synthesizer(new NullSink(), 1, 1, 1, false));
+        voice.start(0, 69, FREQUENCY, 1, 0);
+        switch (stage) {
+            case "attack" -> settings.setAttack(LONG_STAGE);
+            case "decay" -> settings.setDecay(LONG_STAGE);
+            case "release" -> {
+                settings.setRelease(LONG_STAGE);
+                voice.triggerRelease();
+            }
+            default -> { }
+        }
+        EnvelopeGenerator envelopeGenerator = new EnvelopeGenerator(voice, settings);
+        double[][] buffer = new double[2][bufferSize];
+        return new BenchmarkCase("envelope " + stage + " " + CURVE_NAMES[curve] + ", buffer=" + bufferSize,
+                bufferSize, () -> {
+                    buffer[0][0] = 1;
+                    envelopeGenerator.processBuffer(buffer, bufferSize);
+                    return buffer[0][0];
+                });
+    }
+
+    /**
+     * Creates the case of the synthesizer creating whole buffers (voices, mix, delay, reverb, volume)
+     * with a number of held notes (the polyphony equals the number of notes, so none is stolen).
+     * The voices are generated either by their own objects or by a {@link VoiceBank}.
+     * @param voiceCount The number of held notes.
+     * @param bufferSize The number of frames created by one operation.
+     * @param voiceBank True if the voices should be generated by a voice bank.
+     * @return The case of the synthesizer.
+     */
+    private static BenchmarkCase createBlockCase(int voiceCount, int bufferSize, boolean voiceBank) {
+        Synthesizer synthesizer = new Synthesizer(new NullSink(), voiceCount, 1, 1, voiceBank);
+        synthesizer.getOscillatorSettings().setOscillator1Shape(2);
+        synthesizer.getOscillatorSettings().setOscillator2Shape(3);
+        synthesizer.getDelay().setMix(0.3);
+        synthesizer.getReverb().setMix(0.3);
+        for (int i = 0; i < voiceCount; i++) {
+            synthesizer.noteOn(i, FREQUENCY * Math.pow(2, (i - 12) / 12.0));
+        }
+        return new BenchmarkCase("block render " + (voiceBank ? "bank" : "objects") + ", voices=" + voiceCount
+                + ", buffer=" + bufferSize,
+                bufferSize, () -> synthesizer.renderBuffer(bufferSize)[0][0]);
+    }
+
+    /**
+     * Creates the case of the multi-timbral synthesizer creating whole buffers with the held notes spread over
+     * {@link #MULTITIMBRAL_PARTS} channels: every part is rendered on its own, panned and sent to the delay
+     * and the reverb (the polyphony of a part equals the number of notes, so none is stolen).
+     * @param voiceCount The number of held notes.
+     * @param bufferSize The number of frames created by one operation.
+     * @return The case of the synthesizer.
+     */
+    private static BenchmarkCase createMultitimbralCase(int voiceCount, int bufferSize) {
+        Synthesizer synthesizer = new Synthesizer(new NullSink(), voiceCount, 1, 1, false, true);
+        synthesizer.getDelay().setMix(0.3);
+        synthesizer.getReverb().setMix(0.3);
+        for (int channel = 0; channel < MULTITIMBRAL_PARTS; channel++) {
+            Part part = synthesizer.getPart(channel);
+            part.getOscillatorSettings().setOscillator1Shape(2);
+            part.getOscillatorSettings().setOscillator2Shape(3);
+            part.setPan(2.0 * channel / (MULTITIMBRAL_PARTS - 1) - 1);
+            part.setDelaySend(0.5);
+        }
+        for (int i = 0; i < voiceCount; i++) {
+            synthesizer.noteOn(i % MULTITIMBRAL_PARTS, i, FREQUENCY * Math.pow(2, (i - 12) / 12.0), 1,
+                    NoteEvent.IMMEDIATELY);
+        }
+        return new BenchmarkCase("block render multitimbral, voices=" + voiceCount + ", parts=" + MULTITIMBRAL_PARTS
+                + ", buffer=" + bufferSize,
+                bufferSize, () -> synthesizer.renderBuffer(bufferSize)[0][0]);
+    }
+
+    /**
+     * Creates the case of the synthesizer creating whole buffers with modulated voices and effects:
+     * an LFO modulates the pitch of both oscillators (vibrato) and the reverb mix, the modulation envelope
+     * modulates the mix between the oscillators.
+     * @param controlRate The number of frames per control tick.
+     * @param bufferSize The number of frames created by one operation.
+     * @return The case of the synthesizer.
+     */
+    private static BenchmarkCase createModulationCase(int controlRate, int bufferSize) {
+        Synthesizer synthesizer = new Synthesizer(new NullSink(), MODULATED_VOICES, 1, 1, false);
+        synthesizer.getOscillatorSettings().setOscillator1Shape(2);
+        synthesizer.getOscillatorSettings().setOscillator2Shape(3);
+        synthesizer.getReverb().setMix(0.3);
+        ModulationSettings modulation = synthesizer.getModulationSettings();
+        modulation.setControlRate(controlRate);
+        modulation.setLfoRate(0, 5);
+        modulation.getEnvelopeSettings().setDecay(LONG_STAGE);
+        modulation.getEnvelopeSettings().setSustain(0);
+        modulation.setRoute(0, ModulationSettings.SOURCE_LFO1, ModulationSettings.DESTINATION_OSCILLATOR1_PITCH, 0.2);
+        modulation.setRoute(1, ModulationSettings.SOURCE_LFO1, ModulationSettings.DESTINATION_OSCILLATOR2_PITCH, 0.2);
+        modulation.setRoute(2, ModulationSettings.SOURCE_ENVELOPE, ModulationSettings.DESTINATION_OSCILLATOR_MIX, 0.5);
+        modulation.setRoute(3, ModulationSettings.SOURCE_LFO1, ModulationSettings.DESTINATION_REVERB_MIX, 0.2);
+        for (int i = 0; i < MODULATED_VOICES; i++) {
+            synthesizer.noteOn(i, FREQUENCY * Math.pow(2, (i - 12) / 12.0));
+        }
+        return new BenchmarkCase("block render modulated, voices=" + MODULATED_VOICES + ", control rate="
+                + controlRate + ", buffer=" + bufferSize,
+                bufferSize, () -> synthesizer.renderBuffer(bufferSize)[0][0]);
+    }
+
+    /**
+     * Writes a temporary WAV file with a stereo impulse response: exponentially decaying noise
+     * (16-bit PCM, {@link #IMPULSE_RESPONSE_LENGTH} seconds).
+     * @return The file (deleted when the benchmarks end).
+     * @throws IOException If the file cannot be written.
+     */
+    private static File createImpulseResponseFile() throws IOException {
+        int frames = (int) (IMPULSE_RESPONSE_LENGTH * Converter.SAMPLE_RATE);
+        double[] noise = createNoise(2 * frames);
+        int dataSize = frames * 4;
+        ByteBuffer wav = ByteBuffer.allocate(44 + dataSize).order(ByteOrder.LITTLE_ENDIAN);
+        wav.put("RIFF".getBytes()).putInt(36 + dataSize).put("WAVE".getBytes());
+        wav.put("fmt ".getBytes()).putInt(16).putShort((short) 1).putShort((short) 2).putInt(Converter.SAMPLE_RATE)
+                .putInt(Converter.SAMPLE_RATE * 4).putShort((short) 4).putShort((short) 16);
+        wav.put("data".getBytes()).putInt(dataSize);
+        for (int i = 0; i < 2 * frames; i++) {
+            double decay = Math.exp(-6.9 * (i / 2) / frames);
+            wav.putShort((short) (noise[i] * decay * Short.MAX_VALUE));
+        }
+        File file = File.createTempFile("impulse-response", ".wav");
+        file.deleteOnExit();
+        Files.write(file.toPath(), wav.array());
+        return file;
+    }
+
+    /**
+     * Creates a buffer of deterministic pseudo-random samples within [-1, 1].
+     * @param length The number of samples.
+     * @return The buffer of samples.
+     */
+    private static double[] createNoise(int length) {
+        double[] noise = new double[length];
+        long state = 12345;
+        for (int i = 0; i < length; i++) {
+            state = state * 6364136223846793005L + 1442695040888963407L;
+            noise[i] = (state >>> 11) / (double) (1L << 53) * 2 - 1;
+        }
+        return noise;
+    }
+
+    /**
+     * Parses a comma-separated list of numbers.
+     * @param list The list.
+     * @return The numbers.
+     */
+    private static int[] parseList(String list) {
+        String[] parts = list.split(",");
+        int[] numbers = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            numbers[i] = Integer.parseInt(parts[i].trim());
+        }
+        return numbers;
+    }
+}
@@ -0,0 +1,95 @@
+package synthesizer.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cases of {@link SynthesizerBenchmarks} creating whole buffers, measured by JMH (run with "gradle :jmh:jmh")
+ * for every buffer size and number of voices; the single modules are measured by {@link ModuleJmhBenchmarks}.
+ * A case is chosen by the part of its name before the parameters (for example "block render bank"); the spaces
+ * of the name are written as underscores. The lists can be narrowed with the "-p" option of JMH,
+ * e.g. "-p benchmark=block_render_bank -p voices=64".
+ * The results are in nanoseconds per buffer; add "-prof gc" for the allocations.
+ *
+ * @author Marek Bobrowski
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SynthesizerJmhBenchmarks {
+    /**
+     * The name of the measured case, without its parameters.
+     */
+    @Param({"block_render_objects", "block_render_bank", "block_render_multitimbral"})
+    public String benchmark;
+
+    /**
+     * The number of frames processed by one operation.
+     */
+    @Param({"256", "512", "1024", "2048"})
+    public int bufferSize;
+
+    /**
+     * The number of voices of the cases creating whole buffers.
+     */
+    @Param({"1", "4", "16", "64"})
+    public int voices;
+
+    /**
+     * The measured operation.
+     */
+    private BenchmarkCase.Operation operation;
+
+    /**
+     * Creates the cases for the buffer size and the number of voices and finds the measured one.
+     * @throws IllegalArgumentException If there is no case with the name.
+     */
+    @Setup
+    public void setUp() {
+        operation = findOperation(benchmark, bufferSize, voices);
+    }
+
+    /**
+     * Runs the operation of the case once.
+     * @return The value returned by the operation (consumed by JMH, so the work cannot be optimized away).
+     */
+    @Benchmark
+    public double run() {
+        return operation.run();
+    }
+
+    /**
+     * Creates the cases for a buffer size and a number of voices and finds the operation of one of them.
+     * @param benchmark The name of the case without its parameters (the spaces can be written as underscores).
+     * @param bufferSize The number of frames processed by one operation.
+     * @param voices The number of voices of the cases creating whole buffers.
+     * @return The operation of the case.
+     * @throws IllegalArgumentException If there is no case with the name.
+     */
+    static BenchmarkCase.Operation findOperation(String benchmark, int bufferSize, int voices) {
+        String name = benchmark.replace('_', ' ');
+        for (BenchmarkCase benchmarkCase : SynthesizerBenchmarks.createCases(new int[]{bufferSize},
+                new int[]{voices})) {
+            String caseName = benchmarkCase.getName();
+            // The names of the vector kernels end with the number of their lanes.
+            if (caseName.startsWith(name + ",") || caseName.startsWith(name + " (")) {
+                return benchmarkCase.getOperation();
+            }
+        }
+        throw new IllegalArgumentException("No benchmark case named '" + name + "'.");
+    }
+}
@@ -2,6 +2,9 @@ package synthesizer;
 
 import synthesizer._interface.gui.SynthesizerWindow;
 import synthesizer.dsp.Synthesizer;
+import synthesizer.dsp.metrics.RenderMetrics;
+import synthesizer.dsp.output.AudioSink;
+import synthesizer.dsp.output.RenderAheadSink;
 
 /**
  * Class used for starting the synthesizer application.
@@ -12,11 +15,23 @@ public class Main {
 
     /**
      * Runs the synthesizer and creates a window for it.
+     * The sound is streamed into the sink described by the "synthesizer.sink" system property
+     * (see {@link AudioSink#fromDescription(String)}), the sound card by default. The sinks that aren't
+     * played in real time are paced to the clock (see {@link Synthesizer#run()}).
+     * If the "synthesizer.renderAhead" system property is set to N greater than 0, the sound is created
+     * up to N buffers ahead of the sink (see {@link RenderAheadSink}).
+     * The timings of the synthesis are published over JMX (see {@link RenderMetrics}).
      *
      * @param args command-line arguments
      */
     public static void main(String[] args) {
-        Synthesizer synthesizer = new Synthesizer();
+        AudioSink sink = AudioSink.fromDescription(System.getProperty("synthesizer.sink", "line"));
+        int blocksAhead = Integer.getInteger("synthesizer.renderAhead", 0);
+        if (blocksAhead > 0) {
+            sink = new RenderAheadSink(sink, blocksAhead);
+        }
+        Synthesizer synthesizer = new Synthesizer(sink);
+        synthesizer.getRenderMetrics().register();
         Thread thread = new Thread(synthesizer);
         thread.setName("Synth");
         thread.start();
@@ -0,0 +1,94 @@
+package synthesizer;
+
+import synthesizer._interface.input.MidiHandler;
+import synthesizer.dsp.Converter;
+import synthesizer.dsp.Synthesizer;
+import synthesizer.dsp.output.WavFileSink;
+import synthesizer.sequencer.Sequencer;
+import synthesizer.sequencer.Song;
+
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Class used for rendering a Standard MIDI File into a WAV file without any audio device or window.
+ * The same synthesis chain as in the real-time application is used (voices, delay, reverb, volume),
+ * but the buffers are created as fast as the processor allows instead of being paced by the sound card.
+ * The file is played by the same {@link Sequencer} as in the real-time application.
+ *
+ * Usage: OfflineRenderer input.mid output.wav [buffer size] [tail seconds]
+ *
+ * @author Marek Bobrowski
+ */
+public class OfflineRenderer {
+    /**
+     * The default number of seconds rendered after the last MIDI event (so the release and the effects can fade).
+     */
+    private static final double DEFAULT_TAIL = 2;
+
+    /**
+     * Renders the MIDI file passed in the command-line arguments into a WAV file
+     * and prints the real-time factor of the rendering.
+     *
+     * @param args command-line arguments: input MIDI file, output WAV file, optional buffer size,
+     *             optional number of seconds rendered after the last event.
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: OfflineRenderer input.mid output.wav [buffer size] [tail seconds]");
+            System.exit(1);
+        }
+        int bufferSize = args.length > 2 ? Integer.parseInt(args[2]) : 512;
+        double tail = args.length > 3 ? Double.parseDouble(args[3]) : DEFAULT_TAIL;
+        if (bufferSize < 1 || bufferSize > Converter.MAX_BUFFER_SIZE) {
+            System.err.println("The buffer size has to be within [1-" + Converter.MAX_BUFFER_SIZE + "] range.");
+            System.exit(1);
+        }
+        try {
+            Song song = Song.load(new File(args[0]));
+            long startTime = System.nanoTime();
+            long frames = render(song, new File(args[1]), bufferSize, tail);
+            double renderSeconds = (System.nanoTime() - startTime) / 1e9;
+            double audioSeconds = frames / (double) Converter.SAMPLE_RATE;
+            System.out.printf("Rendered %.2f s of audio in %.2f s (%.1fx real time)%n",
+                    audioSeconds, renderSeconds, audioSeconds / renderSeconds);
+        } catch (InvalidMidiDataException | IOException ex) {
+            System.err.println("Rendering failed: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Renders a song into a WAV file. The song is played by a {@link Sequencer}, which hands the events
+     * to the synthesizer with their exact frame positions, so the result doesn't depend on the buffer size.
+     * @param song The song to be rendered.
+     * @param output The WAV file to be written.
+     * @param bufferSize The number of frames rendered at once.
+     * @param tail The number of seconds rendered after the last event.
+     * @return The number of rendered frames.
+     * @throws IOException If the WAV file cannot be written.
+     */
+    public static long render(Song song, File output, int bufferSize, double tail) throws IOException {
+        WavFileSink sink = new WavFileSink(output);
+        Synthesizer synthesizer = new Synthesizer(sink);
+        Converter converter = synthesizer.getConverter();
+        Sequencer sequencer = new Sequencer(synthesizer, new MidiHandler(synthesizer));
+        sequencer.setSong(song);
+        sequencer.play();
+        synthesizer.setEventSource(sequencer);
+        long totalFrames = song.getLength() + (long) (tail * Converter.SAMPLE_RATE);
+        converter.startStreaming();
+        try {
+            for (long frame = 0; frame < totalFrames; frame += bufferSize) {
+                synthesizer.streamNextBuffer((int) Math.min(bufferSize, totalFrames - frame));
+            }
+            synthesizer.finishWork();
+        } catch (UncheckedIOException ex) {
+            synthesizer.finishWork();
+            throw ex.getCause();
+        }
+        return sink.getFramesWritten();
+    }
+}
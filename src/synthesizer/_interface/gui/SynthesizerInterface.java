@@ -73,16 +73,16 @@ public class SynthesizerInterface extends JPanel {
                 new EnvelopePanel(synthesizer.getEnvelopeSettings(), 330, 60);
 
         DelayPanel delayPanel =
-                new DelayPanel(synthesizer.getDelay(), 660, 60);
+                new DelayPanel(synthesizer.getDelay(), 360, 150);
 
         ReverbPanel reverbPanel =
-                new ReverbPanel(synthesizer.getReverb(), 660, 150);
+                new ReverbPanel(synthesizer.getReverb(), 660, 60);
 
         BufferSizePanel bufferSizePanel =
                 new BufferSizePanel(synthesizer.getConverter(), 30, 210);
 
         VolumePanel volumePanel =
-                new VolumePanel(synthesizer.getVolume(), 660, 240);
+                new VolumePanel(synthesizer.getVolume(), 660, 150);
 
         DetailPanel detailPanel = new DetailPanel(30, 300, this);
 
@@ -3,9 +3,18 @@ package synthesizer._interface.gui;
 import java.awt.BorderLayout;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sound.midi.InvalidMidiDataException;
 import javax.swing.*;
+import javax.swing.filechooser.FileNameExtensionFilter;
 
 import synthesizer.dsp.Synthesizer;
+import synthesizer.dsp.tuning.Tuning;
+import synthesizer.sequencer.Sequencer;
+import synthesizer.sequencer.Song;
 
 /**
  * This class works as a window for interface of a synthesizer.
@@ -18,6 +27,21 @@ public class SynthesizerWindow extends JFrame {
      */
     private MidiSettingsWindow midiSettingsWindow;
 
+    /**
+     * The sequencer playing the MIDI files opened in this window.
+     */
+    private Sequencer sequencer;
+
+    /**
+     * The song opened in this window (null - none).
+     */
+    private Song song;
+
+    /**
+     * The menu item that loops the whole song.
+     */
+    private JCheckBoxMenuItem loop;
+
     /**
      * Sets up all basic parameters of the window, like it's dimensions, title or the method called on closing.
      * Creates an object of {@link SynthesizerInterface} and attaches it to itself (so the interface is displayed
@@ -46,11 +70,36 @@ public class SynthesizerWindow extends JFrame {
             }
         });
         settingsMenu.add(midiInput);
+        JMenuItem scalaTuning = new JMenuItem("Tuning (Scala file)...");
+        scalaTuning.addActionListener(e -> loadTuning(synthesizer));
+        settingsMenu.add(scalaTuning);
+        JMenuItem equalTemperament = new JMenuItem("Equal temperament");
+        equalTemperament.addActionListener(e -> synthesizer.setTuning(Tuning.equalTemperament()));
+        settingsMenu.add(equalTemperament);
         menuBar.add(presetMenu);
         JMenuItem load = new JMenuItem("Open...");
         JMenuItem save = new JMenuItem("Save as...");
         presetMenu.add(load);
         presetMenu.add(save);
+        sequencer = new Sequencer(synthesizer, synthesizerInterface.getMidiHandler());
+        synthesizer.setEventSource(sequencer);
+        JMenu sequencerMenu = new JMenu("Sequencer");
+        menuBar.add(sequencerMenu);
+        JMenuItem openSong = new JMenuItem("Open MIDI file...");
+        openSong.addActionListener(e -> loadSong());
+        sequencerMenu.add(openSong);
+        JMenuItem play = new JMenuItem("Play");
+        play.addActionListener(e -> sequencer.play());
+        sequencerMenu.add(play);
+        JMenuItem stop = new JMenuItem("Stop");
+        stop.addActionListener(e -> sequencer.stop());
+        sequencerMenu.add(stop);
+        JMenuItem rewind = new JMenuItem("Rewind");
+        rewind.addActionListener(e -> sequencer.seek(0));
+        sequencerMenu.add(rewind);
+        loop = new JCheckBoxMenuItem("Loop");
+        loop.addActionListener(e -> updateLoop());
+        sequencerMenu.add(loop);
         setJMenuBar(menuBar);
 
 
@@ -64,6 +113,7 @@ public class SynthesizerWindow extends JFrame {
         addWindowListener(new WindowAdapter() {
                                    @Override
                                    public void windowClosing(WindowEvent e) {
+                                       synthesizer.setEventSource(null);
                                        if (midiSettingsWindow != null) {
                                            if (midiSettingsWindow.getCurrentInputDevice() != null) {
                                                midiSettingsWindow.getCurrentInputDevice().close();
@@ -74,4 +124,55 @@ public class SynthesizerWindow extends JFrame {
                                    }
                                });
     }
+
+    /**
+     * Lets the user choose a Scala scale file (.scl) and tunes the synthesizer with it. A keyboard mapping file
+     * (.kbm) with the same name in the same directory is loaded with the scale.
+     * @param synthesizer The synthesizer to be tuned.
+     */
+    private void loadTuning(Synthesizer synthesizer) {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setFileFilter(new FileNameExtensionFilter("Scala scale (*.scl)", "scl"));
+        if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File scaleFile = fileChooser.getSelectedFile();
+        String name = scaleFile.getName();
+        int dot = name.lastIndexOf('.');
+        File mappingFile = new File(scaleFile.getParentFile(), (dot < 0 ? name : name.substring(0, dot)) + ".kbm");
+        try {
+            synthesizer.setTuning(Tuning.fromScala(scaleFile, mappingFile.isFile() ? mappingFile : null));
+        } catch (IOException ex) {
+            Logger.getLogger(SynthesizerWindow.class.getName()).log(Level.WARNING, "Cannot load the tuning", ex);
+        }
+    }
+
+    /**
+     * Lets the user choose a Standard MIDI File (.mid) and loads it into the sequencer (stopped, at its start).
+     */
+    private void loadSong() {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setFileFilter(new FileNameExtensionFilter("MIDI file (*.mid, *.midi)", "mid", "midi"));
+        if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        try {
+            song = Song.load(fileChooser.getSelectedFile());
+            sequencer.setSong(song);
+            updateLoop();
+        } catch (InvalidMidiDataException | IOException ex) {
+            Logger.getLogger(SynthesizerWindow.class.getName()).log(Level.WARNING, "Cannot load the MIDI file", ex);
+        }
+    }
+
+    /**
+     * Loops the whole song (up to its last event, included) if the loop is switched on, stops looping otherwise.
+     */
+    private void updateLoop() {
+        if (loop.isSelected() && song != null) {
+            sequencer.setLoop(0, song.getLength() + 1);
+        } else {
+            sequencer.clearLoop();
+        }
+    }
 }
@@ -2,8 +2,11 @@ package synthesizer._interface.gui.panels;
 
 import synthesizer._interface.gui.units.Knob;
 import synthesizer._interface.gui.units.Label;
+import synthesizer._interface.gui.units.RadioButtons;
 import synthesizer.utils.delegates.DoubleGetter;
 import synthesizer.utils.delegates.DoubleSetter;
+import synthesizer.utils.delegates.IntGetter;
+import synthesizer.utils.delegates.IntSetter;
 import synthesizer.dsp.post.Delay;
 
 /**
@@ -15,23 +18,39 @@ import synthesizer.dsp.post.Delay;
 public class DelayPanel extends Panel {
 
     /**
-     * Creates knobs used for controlling the settings of the assigned delay effect.
+     * Creates knobs used for controlling the settings of the assigned delay effect
+     * (time, feedback and dry/wet mix) and radio buttons for selecting its mode and the note value
+     * its time is synchronized to.
      *
      * @param delay It's parameters will be controlled by this panel.
      * @param x The X coordinate of this panel.
      * @param y The Y coordinate of this panel.
      */
     public DelayPanel(Delay delay, double x, double y) {
+        DoubleGetter getTime = delay::getTime;
+        DoubleSetter setTime = delay::setTime;
         DoubleGetter getFeedback = delay::getFeedback;
         DoubleSetter setFeedback = delay::setFeedback;
         DoubleGetter getMix = delay::getMix;
         DoubleSetter setMix = delay::setMix;
-        clickableElements.add(new Knob(x,y,30,"fdb","Delay feedback",
+        IntGetter getMode = delay::getMode;
+        IntSetter setMode = delay::setMode;
+        IntGetter getSync = delay::getSync;
+        IntSetter setSync = delay::setSync;
+        clickableElements.add(new Knob(x,y,30,"time","Delay time",
+                0.01, Delay.MAX_TIME, 0.01, getTime, setTime));
+        clickableElements.add(new Knob(x+60,y,30,"fdb","Delay feedback",
                 0,0.99, 0.01, getFeedback, setFeedback));
-        clickableElements.add(new Knob(x+60,y,30,"d/w","Delay dry/wet",
+        clickableElements.add(new Knob(x+120,y,30,"d/w","Delay dry/wet",
                 0,1, 0.01, getMix, setMix));
-        labels.add(new Label((int)x + 5, (int)y - 35, "delay fx"));
+        clickableElements.add(new RadioButtons("Delay mode", x - 15, y + 30, 15, 2, 15,
+                new String[] {"mono", "ping-pong"}, new int[] {Delay.MODE_MONO, Delay.MODE_PING_PONG},
+                getMode, setMode));
+        clickableElements.add(new RadioButtons("Delay sync", x + 90, y + 30, 15, 5, 15,
+                new String[] {"free", "1/4", "1/8", "1/8 dot", "1/16"},
+                new int[] {Delay.SYNC_OFF, Delay.SYNC_QUARTER, Delay.SYNC_EIGHTH, Delay.SYNC_DOTTED_EIGHTH,
+                        Delay.SYNC_SIXTEENTH}, getSync, setSync));
+        labels.add(new Label((int)x + 65, (int)y - 35, "delay fx"));
 
     }
 }
-
@@ -68,7 +68,7 @@ public class KeyActionHandler extends KeyAdapter {
         pressedKeys.add(ke.getKeyChar());
         ShortMessage shortMessage= new ShortMessage();
         try {
-            shortMessage.setMessage(144, 0, charactersAndTheirNumbers.get(ke.getKeyChar()), 0);
+            shortMessage.setMessage(144, 0, charactersAndTheirNumbers.get(ke.getKeyChar()), 127);
         } catch (InvalidMidiDataException e) {
             e.printStackTrace();
         }
@@ -1,23 +1,104 @@
 package synthesizer._interface.input;
 
-import synthesizer.dsp.voice.Voice;
+import synthesizer.dsp.Converter;
+import synthesizer.dsp.NoteEvent;
 import synthesizer.dsp.Synthesizer;
 
 import javax.sound.midi.MidiMessage;
 import javax.sound.midi.Receiver;
 import javax.sound.midi.ShortMessage;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class MidiHandler implements Receiver {
+    /**
+     * The default range of the pitch bend in semitones.
+     */
+    public static final double DEFAULT_PITCH_BEND_RANGE = 2;
+
+    /**
+     * The value of the pitch bend wheel in its middle position (no bend).
+     */
+    private static final int PITCH_BEND_CENTER = 8192;
+
+    /**
+     * The controller of the volume of a channel (the gain of its part).
+     */
+    private static final int CHANNEL_VOLUME = 7;
+
+    /**
+     * The controller of the pan of a channel (the pan of its part).
+     */
+    private static final int PAN = 10;
+
+    /**
+     * The controller of the sustain pedal.
+     */
+    private static final int SUSTAIN_PEDAL = 64;
+
+    /**
+     * The controller of the reverb send of a channel (effects 1 depth).
+     */
+    private static final int REVERB_SEND = 91;
+
+    /**
+     * The controller of the delay send of a channel (effects 4 depth).
+     */
+    private static final int DELAY_SEND = 94;
+
+    /**
+     * The channel mode message that silences all the voices at once.
+     */
+    private static final int ALL_SOUND_OFF = 120;
+
+    /**
+     * The channel mode message that resets the controllers.
+     */
+    private static final int RESET_ALL_CONTROLLERS = 121;
+
+    /**
+     * The channel mode message that releases all the notes.
+     */
+    private static final int ALL_NOTES_OFF = 123;
+
+    /**
+     * The channel mode message that turns the omni mode off (and all the notes).
+     */
+    private static final int OMNI_OFF = 124;
+
+    /**
+     * The channel mode message that turns the omni mode on (and all the notes off).
+     */
+    private static final int OMNI_ON = 125;
+
+    /**
+     * The channel mode message that turns the mono mode on (and all the notes off).
+     */
+    private static final int MONO_ON = 126;
+
+    /**
+     * The channel mode message that turns the poly mode on (and all the notes off).
+     */
+    private static final int POLY_ON = 127;
+
     /**
      * The synthesizer that will generate the voices.
      */
     private final Synthesizer synthesizer;
 
     /**
-     * A dictionary that stores currently played voices by their MIDI note number.
+     * The range of the pitch bend in semitones (how far the pitch is bent at the ends of the wheel).
+     */
+    private volatile double pitchBendRange = DEFAULT_PITCH_BEND_RANGE;
+
+    /**
+     * The difference between the synthesizer frame position and the time stamps of the MIDI device
+     * (converted to frames). Used only by the thread that delivers the time-stamped messages.
      */
-    private final ConcurrentHashMap<Integer, Voice> activeVoices = new ConcurrentHashMap<>();
+    private long timeStampOffset = 0;
+
+    /**
+     * Tells if the 'timeStampOffset' has been calculated.
+     */
+    private boolean timeStampOffsetKnown = false;
 
     /**
      * Constructor.
@@ -29,54 +110,160 @@ public class MidiHandler implements Receiver {
 
     /**
      * Accepts the MIDI signal sent by a {@link javax.sound.midi.Transmitter} object.
+     * If the message has a time stamp, it is scheduled with sample accuracy: the distances between
+     * the messages are kept exactly and the whole stream is delayed by one buffer (so the jitter
+     * of the buffer boundaries doesn't affect the rhythm).
      * @param message The MIDI message.
-     * @param timeStamp This argument is unimportant in this application.
+     * @param timeStamp The time stamp of the message in microseconds, -1 if it's unknown.
      */
     @Override
     public void send(MidiMessage message, long timeStamp) {
-        if (message instanceof ShortMessage) {
-            int command = ((ShortMessage) message).getCommand();
-            int noteNumber = ((ShortMessage) message).getData1();
-            if (command == 144) {
-                if (activeVoices.size() >= 16) {
-                    return;
+        sendAtFrame(message, timeStamp < 0 ? NoteEvent.IMMEDIATELY : timeStampToFrame(timeStamp));
+    }
+
+    /**
+     * Handles the MIDI message at the specified frame position of the synthesizer: the notes (with their channels
+     * and velocities), the pitch bend, the sustain pedal (controller 64), the mixer of the parts (the volume,
+     * the pan, the reverb and the delay send - controllers 7, 10, 91 and 94, only in the multi-timbral mode;
+     * the single part plays the whole mix mono through the effects, so it ignores them) and the channel mode messages
+     * (all sound off, reset all controllers, all notes off). Handling a message doesn't allocate memory
+     * or take any lock, so even a dense stream of controllers doesn't disturb the synthesis.
+     * If the event queue of the synthesizer is full, the message is dropped (and counted by the
+     * {@link synthesizer.dsp.metrics.RenderMetrics}); the messages releasing the notes have slots of the queue
+     * reserved for them, so they are dropped only if those are full too.
+     * @param message The MIDI message.
+     * @param frame The position (in frames, counted from the start of the synthesis) at which the message
+     *              should be handled or {@link NoteEvent#IMMEDIATELY}.
+     * @return False if the message has been dropped, true if it has been handled (or ignored).
+     */
+    public boolean sendAtFrame(MidiMessage message, long frame) {
+        if (!(message instanceof ShortMessage)) {
+            return true;
+        }
+        ShortMessage shortMessage = (ShortMessage) message;
+        int channel = shortMessage.getChannel();
+        int data1 = shortMessage.getData1();
+        int data2 = shortMessage.getData2();
+        return switch (shortMessage.getCommand()) {
+            case ShortMessage.NOTE_ON -> {
+                if (data2 == 0) {
+                    /* A note-on with velocity 0 is a note-off (it's commonly used in MIDI files). */
+                    yield synthesizer.noteOff(channel, data1, frame);
                 }
-                int interval = noteNumber - 69;
-                Voice newVoice = new Voice(this.synthesizer, this, calculateFrequencyByInterval(interval));
-                activeVoices.put(noteNumber, newVoice);
-                this.synthesizer.addNewVoice(newVoice);
+                // The keys left out by the keyboard mapping of the tuning don't play.
+                double frequency = synthesizer.getTuning().getFrequency(data1);
+                yield frequency <= 0 || synthesizer.noteOn(channel, data1, frequency, getGain(data2), frame);
             }
-            else if (command == 128) {
-                if (activeVoices.get(noteNumber) == null) {
-                    return;
-                }
-                activeVoices.get(noteNumber).triggerRelease();
+            case ShortMessage.NOTE_OFF -> synthesizer.noteOff(channel, data1, frame);
+            case ShortMessage.PITCH_BEND -> {
+                int value = (data2 << 7) | data1;
+                yield synthesizer.pitchBend(channel, (value - PITCH_BEND_CENTER) * pitchBendRange / PITCH_BEND_CENTER,
+                        frame);
             }
+            case ShortMessage.CONTROL_CHANGE -> handleController(channel, data1, data2, frame);
+            default -> true;
+        };
+    }
+
+    /**
+     * Returns the range of the pitch bend: how far the pitch is bent at the ends of the wheel.
+     * @return The range of the pitch bend in semitones.
+     */
+    public double getPitchBendRange() {
+        return pitchBendRange;
+    }
 
+    /**
+     * Sets the range of the pitch bend: how far the pitch is bent at the ends of the wheel.
+     * @param pitchBendRange The range of the pitch bend in semitones.
+     */
+    public void setPitchBendRange(double pitchBendRange) {
+        this.pitchBendRange = pitchBendRange;
+    }
+
+    /**
+     * Handles a control change message. The controllers that the synthesizer doesn't use are ignored.
+     * All of them are scheduled at the frame; the mixer controllers are smoothed by the part of the channel
+     * (and ignored if the synthesizer isn't multi-timbral, see {@link Synthesizer#isMultitimbral()}).
+     * @param channel The MIDI channel of the message.
+     * @param controller The number of the controller.
+     * @param value The value of the controller (0 - 127).
+     * @param frame The position (in frames) at which the message should be handled.
+     * @return False if the message has been dropped (the event queue is full), true otherwise.
+     */
+    private boolean handleController(int channel, int controller, int value, long frame) {
+        boolean mixer = controller == CHANNEL_VOLUME || controller == PAN || controller == REVERB_SEND
+                || controller == DELAY_SEND;
+        if (mixer && !synthesizer.isMultitimbral()) {
+            return true;
+        }
+        switch (controller) {
+            case CHANNEL_VOLUME -> {
+                return synthesizer.partGain(channel, getGain(value), frame);
+            }
+            case PAN -> {
+                return synthesizer.partPan(channel, (value - 64) / 63.0, frame);
+            }
+            case REVERB_SEND -> {
+                return synthesizer.reverbSend(channel, value / 127.0, frame);
+            }
+            case DELAY_SEND -> {
+                return synthesizer.delaySend(channel, value / 127.0, frame);
+            }
+            case SUSTAIN_PEDAL -> {
+                return synthesizer.sustainPedal(channel, value >= 64, frame);
+            }
+            case ALL_SOUND_OFF -> {
+                return synthesizer.allSoundOff(channel, frame);
+            }
+            case RESET_ALL_CONTROLLERS -> {
+                return synthesizer.resetControllers(channel, frame);
+            }
+            // The omni and poly mode messages (124 - 127) turn all the notes off too.
+            case ALL_NOTES_OFF, OMNI_OFF, OMNI_ON, MONO_ON, POLY_ON -> {
+                return synthesizer.allNotesOff(channel, frame);
+            }
+            default -> { }
         }
+        return true;
     }
 
     /**
-     * End the voice by removing the voice from the activeVoices list.
-     * @param voice The voice to be ended.
+     * Converts the velocity of a note (or the volume of a channel) into its gain. The gain grows with the square
+     * of the velocity, which sounds more even than a linear curve (the velocity of 64 is about 12 dB quieter
+     * than 127).
+     * @param velocity The velocity of the note or the volume of the channel (0 - 127).
+     * @return The gain (0 - 1).
      */
-    public void endVoice(Voice voice) {
-        activeVoices.values().remove(voice);
+    private static double getGain(int velocity) {
+        double value = velocity / 127.0;
+        return value * value;
     }
 
     /**
-     * Closes this MIDI receiver.
+     * Converts the time stamp of a MIDI device into a frame position of the synthesizer.
+     * The offset between the two clocks is calculated for the first message, so that it's played one buffer
+     * after the buffer that is being generated. It's calculated anew if a message would be played too late
+     * (or too far in the future) because the clocks have drifted apart.
+     * @param timeStamp The time stamp of the message in microseconds.
+     * @return The position (in frames) at which the message should be handled.
      */
-    @Override
-    public void close() {
+    private long timeStampToFrame(long timeStamp) {
+        long frame = timeStamp * Converter.SAMPLE_RATE / 1000000;
+        long nextFrame = synthesizer.getFramePosition();
+        int bufferSize = synthesizer.getConverter().getBufferSize();
+        long scheduledFrame = frame + timeStampOffset;
+        if (!timeStampOffsetKnown || scheduledFrame < nextFrame || scheduledFrame > nextFrame + 4L * bufferSize) {
+            timeStampOffset = nextFrame + bufferSize - frame;
+            timeStampOffsetKnown = true;
+        }
+        return frame + timeStampOffset;
     }
 
     /**
-     * Calculates the frequency of a note that differs from 440 Hz (A4) by the specified amount of semitones.
-     * @param interval The number of semitones of difference.
-     * @return Frequency of a note that differs from A4 by the specified interval.
+     * Closes this MIDI receiver.
      */
-    private double calculateFrequencyByInterval(int interval) {
-        return 440 * Math.pow(2, interval/12.0);
+    @Override
+    public void close() {
     }
 }
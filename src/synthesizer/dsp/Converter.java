@@ -1,16 +1,12 @@
 package synthesizer.dsp;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.LineUnavailableException;
-import javax.sound.sampled.SourceDataLine;
+import synthesizer.dsp.output.AudioSink;
+
+import java.io.IOException;
 
 /**
- * This class is responsible for converting sound buffers and streaming them into the sound card.
+ * This class is responsible for converting sound buffers and streaming them into an {@link AudioSink}
+ * (the sound card, a file etc.).
  * It accepts buffers in the format explained below:
  *
  * The initialization of buffer in such format should look like:
@@ -36,6 +32,12 @@ public class Converter {
      */
     public static final int SAMPLE_RATE = 44100;
 
+    /**
+     * The largest buffer size that can be selected.
+     * All the reusable sound buffers of the synthesizer are allocated with this number of frames.
+     */
+    public static final int MAX_BUFFER_SIZE = 2048;
+
     /**
      * The buffer size of this converter.
      * It describes how many frames (samples per channel) are there in one sound buffer.
@@ -43,57 +45,79 @@ public class Converter {
     private int bufferSize = 512;
 
     /**
-     * The object responsible for streaming ready buffers into the sound card.
+     * The sink the converted buffers are streamed into.
      */
-    private SourceDataLine line;
+    private final AudioSink sink;
 
     /**
-     * Creates a {@link AudioFormat} and a {@link SourceDataLine} objects for streaming the sound buffers
-     * into the sound card.
+     * The reusable array the sound buffers are converted into before being streamed.
+     * It holds 4 bytes (two 16-bit samples) per frame.
      */
-    public Converter() {
-        AudioFormat audioFormat = new AudioFormat(SAMPLE_RATE, 16, 2, true, false);
-        try {
-            line = AudioSystem.getSourceDataLine(audioFormat);
-            line.open(audioFormat, 4096);
-        } catch (LineUnavailableException ex) {
-            Logger.getLogger(Converter.class.getName()).log(Level.SEVERE, null, ex);
-        }
-        line.start();
+    private final byte[] convertedBuffer = new byte[MAX_BUFFER_SIZE * 4];
+
+    /**
+     * Constructor. The sink is not opened until {@link #startStreaming()} is called,
+     * so a converter can also be created on machines without any audio device.
+     * @param sink The sink the converted buffers will be streamed into.
+     */
+    public Converter(AudioSink sink) {
+        this.sink = sink;
     }
 
     /**
-     * Streams a buffer of sound into the sound card.
-     * @param buffer The sound buffer to be streamed into the sound card.
+     * Opens the sink for streaming the sound buffers.
+     * @throws IOException If the sink cannot be opened (for example there is no sound card).
      */
-    public void streamBuffer(double[][] buffer) {
-        byte[] convertedBuffer = doubleToByte(buffer);
-        this.line.write(convertedBuffer, 0, convertedBuffer.length);
+    public void startStreaming() throws IOException {
+        sink.open();
     }
 
     /**
-     * Closes the {@link SourceDataLine} that is used for streaming the sound
-     * buffers.
+     * Streams a buffer of sound into the sink.
+     * @param buffer The sound buffer to be streamed into the sink.
+     * @param bufferSize The number of frames of the buffer to be streamed.
+     */
+    public void streamBuffer(double[][] buffer, int bufferSize) {
+        int length = doubleToByte(buffer, bufferSize, convertedBuffer);
+        sink.write(convertedBuffer, 0, length);
+    }
+
+    /**
+     * Closes the sink that is used for streaming the sound buffers.
      */
     public void stopStreaming() {
-        line.close();
+        sink.close();
+    }
+
+    /**
+     * Returns the sink the converted buffers are streamed into.
+     * @return The sink the converted buffers are streamed into.
+     */
+    public AudioSink getSink() {
+        return sink;
     }
 
     /**
-     * Converts the sound buffer into the format accepted by the {@link SourceDataLine}.
-     * It converts a 2 - dimensional double array into a 1 - dimensional byte array.
+     * Converts the sound buffer into the format accepted by the {@link AudioSink}.
+     * It converts a 2 - dimensional double array into a 1 - dimensional byte array
+     * (16-bit little-endian samples, interleaved channels).
      * The sample depth is changed from 64-bit to 16-bit.
      * @param samplesDouble The sound buffer to be converted.
-     * @return The converted buffer in byte format.
+     * @param bufferSize The number of frames to be converted.
+     * @param convertedBuffer The array the converted samples will be written into (4 bytes per frame).
+     * @return The number of bytes written into the converted buffer.
      */
-    private byte[] doubleToByte(double[][] samplesDouble) {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(samplesDouble[0].length * 4);
-        byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
-        for (int i = 0; i < samplesDouble[0].length; i++) {
-            byteBuffer.putShort((short)(samplesDouble[0][i] * (double)Short.MAX_VALUE));
-            byteBuffer.putShort((short)(samplesDouble[1][i] * (double)Short.MAX_VALUE));
+    public static int doubleToByte(double[][] samplesDouble, int bufferSize, byte[] convertedBuffer) {
+        int position = 0;
+        for (int i = 0; i < bufferSize; i++) {
+            short left = (short)(samplesDouble[0][i] * (double)Short.MAX_VALUE);
+            short right = (short)(samplesDouble[1][i] * (double)Short.MAX_VALUE);
+            convertedBuffer[position++] = (byte) left;
+            convertedBuffer[position++] = (byte) (left >> 8);
+            convertedBuffer[position++] = (byte) right;
+            convertedBuffer[position++] = (byte) (right >> 8);
         }
-        return byteBuffer.array();
+        return position;
     }
 
     /**
@@ -0,0 +1,22 @@
+package synthesizer.dsp;
+
+/**
+ * A source of events that is asked for the events of every buffer right before the buffer is rendered,
+ * on the synthesis thread (for example a sequencer playing a song). The events it sends to the synthesizer
+ * (see {@link Synthesizer#noteOn(int, int, double, double, long)} etc.) with the frame positions within
+ * the buffer are handled at exactly those frames.
+ *
+ * The source is called in the real-time loop, so it must not block and should not allocate memory.
+ *
+ * @author Marek Bobrowski
+ */
+public interface EventSource {
+
+    /**
+     * Sends the events that happen within the next buffer to the synthesizer.
+     * @param frame The position (in frames, counted from the start of the synthesis) of the first frame
+     *              of the buffer.
+     * @param bufferSize The number of frames of the buffer.
+     */
+    void scheduleEvents(long frame, int bufferSize);
+}
@@ -0,0 +1,181 @@
+package synthesizer.dsp;
+
+/**
+ * This class describes a single event sent to the synthesis thread, for example "start playing this note".
+ * Every event has a position (in frames, counted from the start of the synthesis) at which it should happen,
+ * so the synthesizer can handle it at the exact sample instead of at the start of the next buffer.
+ * The events are passed through a {@link NoteEventQueue}. The synthesis thread reads them into
+ * one reusable instance of this class, so handling the events doesn't allocate any memory.
+ * The events refer to the notes by their MIDI channels and keys; the synthesis thread assigns the voices to them.
+ * Besides the notes, the events carry the controllers that affect the notes of a channel (pitch bend,
+ * sustain pedal, all notes off) and the mixer controllers of its part (volume, pan, effect sends).
+ *
+ * @author Marek Bobrowski
+ */
+public class NoteEvent {
+    /**
+     * The type of an event that starts playing a note.
+     */
+    public static final int NOTE_ON = 1;
+
+    /**
+     * The type of an event that releases a note (starts the release segment of the envelope of its voice).
+     */
+    public static final int NOTE_OFF = 2;
+
+    /**
+     * The type of an event that bends the pitch of all the notes of a channel.
+     */
+    public static final int PITCH_BEND = 3;
+
+    /**
+     * The type of an event that presses (value 1) or releases (value 0) the sustain pedal of a channel.
+     */
+    public static final int SUSTAIN = 4;
+
+    /**
+     * The type of an event that releases all the notes of a channel (the sustain pedal still holds them).
+     */
+    public static final int ALL_NOTES_OFF = 5;
+
+    /**
+     * The type of an event that fades out all the voices of a channel at once (including their release).
+     */
+    public static final int ALL_SOUND_OFF = 6;
+
+    /**
+     * The type of an event that resets the controllers of a channel (no pitch bend, the sustain pedal released).
+     */
+    public static final int RESET_CONTROLLERS = 7;
+
+    /**
+     * The type of an event that sets the gain of the part of a channel in the mix.
+     */
+    public static final int PART_GAIN = 8;
+
+    /**
+     * The type of an event that sets the pan of the part of a channel.
+     */
+    public static final int PART_PAN = 9;
+
+    /**
+     * The type of an event that sets the level of the part of a channel sent to the reverb.
+     */
+    public static final int REVERB_SEND = 10;
+
+    /**
+     * The type of an event that sets the level of the part of a channel sent to the delay.
+     */
+    public static final int DELAY_SEND = 11;
+
+    /**
+     * The frame position of an event that should happen as soon as possible (at the start of the next buffer).
+     */
+    public static final long IMMEDIATELY = -1;
+
+    /**
+     * The type of this event (one of the constants declared in this class).
+     */
+    private int type;
+
+    /**
+     * The MIDI channel (0 - 15) this event refers to.
+     */
+    private int channel;
+
+    /**
+     * The key (MIDI note number) of the note this event refers to.
+     */
+    private int key;
+
+    /**
+     * The frequency of the note (used only by the NOTE_ON events).
+     */
+    private double frequency;
+
+    /**
+     * The value of this event: the gain of the note for the NOTE_ON events (from its velocity), the ratio
+     * of the frequencies for the PITCH_BEND events, 1 (pressed) or 0 (released) for the SUSTAIN events,
+     * the new value of the part for the PART_GAIN, PART_PAN, REVERB_SEND and DELAY_SEND events.
+     */
+    private double value;
+
+    /**
+     * The position (in frames) at which this event should happen, or {@link #IMMEDIATELY}.
+     */
+    private long frame;
+
+    /**
+     * Empty constructor.
+     */
+    public NoteEvent() {
+    }
+
+    /**
+     * Sets all the fields of this event.
+     * @param type The type of this event.
+     * @param channel The MIDI channel (0 - 15) this event refers to.
+     * @param key The key (MIDI note number) of the note this event refers to.
+     * @param frequency The frequency of the note (used only by the NOTE_ON events).
+     * @param value The value of this event (depends on its type).
+     * @param frame The position (in frames) at which this event should happen, or {@link #IMMEDIATELY}.
+     */
+    public void set(int type, int channel, int key, double frequency, double value, long frame) {
+        this.type = type;
+        this.channel = channel;
+        this.key = key;
+        this.frequency = frequency;
+        this.value = value;
+        this.frame = frame;
+    }
+
+    /**
+     * Returns the type of this event (one of the constants declared in this class).
+     * @return The type of this event.
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Returns the MIDI channel (0 - 15) this event refers to.
+     * @return The channel of the event.
+     */
+    public int getChannel() {
+        return channel;
+    }
+
+    /**
+     * Returns the key (MIDI note number) of the note this event refers to.
+     * @return The key of the note.
+     */
+    public int getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the frequency of the note (used only by the NOTE_ON events).
+     * @return The frequency of the note.
+     */
+    public double getFrequency() {
+        return frequency;
+    }
+
+    /**
+     * Returns the value of this event: the gain of the note for the NOTE_ON events, the ratio of the frequencies
+     * for the PITCH_BEND events, 1 (pressed) or 0 (released) for the SUSTAIN events, the new value of the part
+     * for the PART_GAIN, PART_PAN, REVERB_SEND and DELAY_SEND events.
+     * @return The value of this event.
+     */
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the position (in frames) at which this event should happen, or {@link #IMMEDIATELY}.
+     * @return The position (in frames) at which this event should happen.
+     */
+    public long getFrame() {
+        return frame;
+    }
+}
@@ -0,0 +1,179 @@
+package synthesizer.dsp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free queue of {@link NoteEvent}s. Any number of threads (MIDI input, keyboard, GUI)
+ * can add the events and one thread (the synthesis thread) takes them.
+ *
+ * The events are stored in preallocated arrays (a ring). Every slot of the ring has a sequence number
+ * that tells whether the slot is free to be written by a producer or ready to be read by the consumer
+ * (the algorithm of Dmitry Vyukov's bounded MPMC queue, reduced to a single consumer).
+ * Neither adding nor taking an event allocates memory or blocks.
+ *
+ * The last slots of the ring can be reserved for the urgent events (the ones releasing the sound), so a flood
+ * of other events (e.g. the notes or the pitch bend of a dense MIDI stream) can't make a note get stuck:
+ * the other events are refused while only the reserved slots are free.
+ *
+ * @author Marek Bobrowski
+ */
+public class NoteEventQueue {
+    /**
+     * The number of slots of the ring minus 1. Used for wrapping the positions with a bit mask.
+     */
+    private final int mask;
+
+    /**
+     * The number of slots that only the urgent events can take.
+     */
+    private final int reserve;
+
+    /**
+     * The sequence numbers of the slots.
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * The types of the events stored in the slots.
+     */
+    private final int[] types;
+
+    /**
+     * The channels of the events stored in the slots.
+     */
+    private final int[] channels;
+
+    /**
+     * The keys of the events stored in the slots.
+     */
+    private final int[] keys;
+
+    /**
+     * The frequencies of the events stored in the slots.
+     */
+    private final double[] frequencies;
+
+    /**
+     * The values of the events stored in the slots.
+     */
+    private final double[] values;
+
+    /**
+     * The frame positions of the events stored in the slots.
+     */
+    private final long[] frames;
+
+    /**
+     * The position the next event will be added at. Claimed by the producers.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The position the next event will be taken from. Used only by the consumer.
+     */
+    private long head = 0;
+
+    /**
+     * Creates the ring for the events, without reserved slots.
+     * @param capacity The maximal number of events waiting in the queue (rounded up to a power of two).
+     */
+    public NoteEventQueue(int capacity) {
+        this(capacity, 0);
+    }
+
+    /**
+     * Creates the ring for the events.
+     * @param capacity The maximal number of events waiting in the queue (rounded up to a power of two).
+     * @param reserve The number of slots that only the urgent events can take (less than the capacity).
+     */
+    public NoteEventQueue(int capacity, int reserve) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mask = size - 1;
+        this.reserve = Math.max(0, Math.min(reserve, size - 1));
+        sequences = new AtomicLongArray(size);
+        types = new int[size];
+        channels = new int[size];
+        keys = new int[size];
+        frequencies = new double[size];
+        values = new double[size];
+        frames = new long[size];
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an event that is not urgent to the queue. Can be called by any thread.
+     * @param type The type of the event (one of the {@link NoteEvent} constants).
+     * @param channel The MIDI channel the event refers to.
+     * @param key The key (MIDI note number) of the note the event refers to.
+     * @param frequency The frequency of the note.
+     * @param value The value of the event (see {@link NoteEvent#getValue()}).
+     * @param frame The position (in frames) at which the event should happen.
+     * @return True if the event has been added, false if the queue is full (apart from the reserved slots).
+     */
+    public boolean offer(int type, int channel, int key, double frequency, double value, long frame) {
+        return offer(type, channel, key, frequency, value, frame, false);
+    }
+
+    /**
+     * Adds an event to the queue. Can be called by any thread.
+     * @param type The type of the event (one of the {@link NoteEvent} constants).
+     * @param channel The MIDI channel the event refers to.
+     * @param key The key (MIDI note number) of the note the event refers to.
+     * @param frequency The frequency of the note.
+     * @param value The value of the event (see {@link NoteEvent#getValue()}).
+     * @param frame The position (in frames) at which the event should happen.
+     * @param urgent True if the event can take the reserved slots.
+     * @return True if the event has been added, false if the queue is full (apart from the reserved slots,
+     *         if the event is not urgent).
+     */
+    public boolean offer(int type, int channel, int key, double frequency, double value, long frame,
+                         boolean urgent) {
+        long position;
+        int index;
+        while (true) {
+            position = tail.get();
+            index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                // The slots are taken in order, so the reserve is free if its last slot is.
+                long reserveEnd = position + reserve;
+                if (!urgent && reserve > 0 && sequences.get((int) reserveEnd & mask) < reserveEnd) {
+                    return false;
+                }
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+            Thread.onSpinWait();
+        }
+        types[index] = type;
+        channels[index] = channel;
+        keys[index] = key;
+        frequencies[index] = frequency;
+        values[index] = value;
+        frames[index] = frame;
+        sequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Takes the oldest event from the queue. Can be called only by the consumer thread.
+     * @param event The object the taken event will be written into.
+     * @return True if an event has been taken, false if the queue is empty.
+     */
+    public boolean poll(NoteEvent event) {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1) {
+            return false;
+        }
+        event.set(types[index], channels[index], keys[index], frequencies[index], values[index], frames[index]);
+        sequences.lazySet(index, head + mask + 1);
+        head++;
+        return true;
+    }
+}
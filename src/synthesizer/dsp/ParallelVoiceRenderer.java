@@ -0,0 +1,204 @@
+package synthesizer.dsp;
+
+import synthesizer.dsp.voice.Voice;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is responsible for generating the voice buffers on several processor cores at once.
+ * It owns a fixed pool of worker threads. For every buffer, the voices are split into contiguous partitions
+ * (as many as there are threads, including the calling synthesis thread). The threads claim the partitions
+ * one by one, and the calling thread generates all the partitions that haven't been claimed by the workers,
+ * so it never waits for a worker that is late (or has already been stopped).
+ *
+ * Every voice is generated into its own buffer, exactly like in the single-threaded mode,
+ * and the buffers are mixed afterwards in the voice order. Therefore the output does not depend
+ * on the number of threads or on the order in which the threads finish.
+ *
+ * The workers are coordinated with a generation counter and {@link LockSupport} parking,
+ * so starting and finishing a buffer does not allocate any memory.
+ *
+ * @author Marek Bobrowski
+ */
+public class ParallelVoiceRenderer {
+    /**
+     * The number of times a waiting thread checks the state before it parks.
+     * Spinning for a short while saves the cost of waking up a parked thread when the buffers are small.
+     */
+    private static final int SPIN_COUNT = 2000;
+
+    /**
+     * The worker threads.
+     */
+    private final Thread[] workers;
+
+    /**
+     * The number of the current job. It is increased for every buffer to wake the workers up.
+     * Writing it also publishes the job fields below to the workers.
+     */
+    private volatile int generation = 0;
+
+    /**
+     * The number of partitions of every job.
+     */
+    private final int partitions;
+
+    /**
+     * The number of the next partition of the current job to be claimed by a thread.
+     */
+    private final AtomicInteger nextPartition = new AtomicInteger();
+
+    /**
+     * The number of partitions of the current job that have been generated.
+     */
+    private final AtomicInteger finishedPartitions = new AtomicInteger();
+
+    /**
+     * Tells if the workers should keep waiting for new jobs.
+     */
+    private volatile boolean running = true;
+
+    /**
+     * The thread that is waiting for the current job to be finished.
+     */
+    private volatile Thread waitingThread;
+
+    /**
+     * The voices of the current job.
+     */
+    private Voice[] voices;
+
+    /**
+     * The buffers the voices of the current job are generated into.
+     */
+    private double[][][] voiceBuffers;
+
+    /**
+     * The number of voices of the current job.
+     */
+    private int voiceCount;
+
+    /**
+     * The number of frames of the current job.
+     */
+    private int bufferSize;
+
+    /**
+     * Creates and starts the worker threads.
+     * @param threadCount The total number of threads generating the voices (including the calling thread).
+     */
+    public ParallelVoiceRenderer(int threadCount) {
+        partitions = threadCount;
+        nextPartition.set(partitions);
+        workers = new Thread[threadCount - 1];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(this::work);
+            workers[i].setName("Synth worker " + (i + 1));
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Generates the buffers of the passed voices using all the threads and waits until all of them are ready.
+     * @param voices The voices to be generated.
+     * @param voiceCount The number of voices to be generated.
+     * @param voiceBuffers The buffers the voices will be generated into (one for each voice).
+     * @param bufferSize The number of frames to be generated.
+     */
+    public void render(Voice[] voices, int voiceCount, double[][][] voiceBuffers, int bufferSize) {
+        this.voices = voices;
+        this.voiceCount = voiceCount;
+        this.voiceBuffers = voiceBuffers;
+        this.bufferSize = bufferSize;
+        waitingThread = Thread.currentThread();
+        finishedPartitions.set(0);
+        nextPartition.set(0);
+        generation++;
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+        }
+
+        renderClaimedPartitions();
+
+        int spins = 0;
+        while (finishedPartitions.get() < partitions) {
+            if (spins < SPIN_COUNT) {
+                spins++;
+                Thread.onSpinWait();
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        this.voices = null;
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    public void shutdown() {
+        running = false;
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    /**
+     * Returns the total number of threads generating the voices (including the calling thread).
+     * @return The total number of threads generating the voices.
+     */
+    public int getThreadCount() {
+        return partitions;
+    }
+
+    /**
+     * The loop of a worker thread: wait for a new job, generate the partitions it manages to claim.
+     * A worker only stops between the jobs.
+     */
+    private void work() {
+        int lastGeneration = 0;
+        while (true) {
+            int spins = 0;
+            while (generation == lastGeneration) {
+                if (!running) {
+                    return;
+                }
+                if (spins < SPIN_COUNT) {
+                    spins++;
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+            lastGeneration = generation;
+            renderClaimedPartitions();
+        }
+    }
+
+    /**
+     * Claims and generates the partitions of the current job until there are none left.
+     * The thread that finishes the last partition wakes the waiting thread up.
+     */
+    private void renderClaimedPartitions() {
+        int partition;
+        while ((partition = nextPartition.getAndIncrement()) < partitions) {
+            renderPartition(partition);
+            if (finishedPartitions.incrementAndGet() == partitions) {
+                LockSupport.unpark(waitingThread);
+            }
+        }
+    }
+
+    /**
+     * Generates the voices of one partition of the current job.
+     * @param partition The number of the partition.
+     */
+    private void renderPartition(int partition) {
+        int first = voiceCount * partition / partitions;
+        int last = voiceCount * (partition + 1) / partitions;
+        for (int i = first; i < last; i++) {
+            voices[i].prepareBuffer(voiceBuffers[i], bufferSize);
+        }
+    }
+}
@@ -0,0 +1,649 @@
+package synthesizer.dsp;
+
+import synthesizer.dsp.kernels.SampleKernels;
+import synthesizer.dsp.metrics.RenderMetrics;
+import synthesizer.dsp.parameter.SmoothedParameter;
+import synthesizer.dsp.voice.Voice;
+import synthesizer.dsp.voice.VoiceBank;
+import synthesizer.models.EnvelopeSettings;
+import synthesizer.models.OscillatorSettings;
+
+import java.util.Arrays;
+
+/**
+ * This class is a part of the multi-timbral synthesizer: an instrument with its own patch (the oscillator
+ * and the envelope settings), its own pool of voices and its own table of the held notes. In the multi-timbral
+ * mode every MIDI channel is played by its own part, otherwise one part plays the notes of all the channels.
+ *
+ * The synthesis thread renders every playing part into a shared mono buffer (the voices are generated into
+ * buffers shared by all the parts too, one part at a time), and the part mixes that buffer into the main bus
+ * and the send buses of the effects with its gain, its pan and its sends ({@link #mixInto}). Those move smoothly
+ * to their new values (see {@link SmoothedParameter}), from the exact frame at which they are changed.
+ * A part without voices isn't rendered at all, so the idle channels cost nothing.
+ *
+ * All the methods changing the notes are called only by the synthesis thread, so the pool and the tables
+ * are changed without locking. The gain, the pan and the sends can be set by any thread.
+ *
+ * @author Marek Bobrowski
+ */
+public class Part {
+    /**
+     * The number of keys (MIDI note numbers).
+     */
+    private static final int KEY_COUNT = 128;
+
+    /**
+     * The length (in frames) of the fade-out of a stolen voice (5 ms).
+     */
+    private static final int STEAL_FADE_FRAMES = Converter.SAMPLE_RATE / 200;
+
+    /**
+     * The synthesizer playing this part.
+     */
+    private final Synthesizer synthesizer;
+
+    /**
+     * The number of notes that can be played at once by this part.
+     */
+    private final int polyphony;
+
+    /**
+     * The gain of every voice in the mix (1 / polyphony, so the mix doesn't clip with all the voices playing).
+     */
+    private final double voiceGain;
+
+    /**
+     * The envelope settings of the voices of this part.
+     */
+    private final EnvelopeSettings envelopeSettings = new EnvelopeSettings();
+
+    /**
+     * The settings of the oscillators of the voices of this part.
+     */
+    private final OscillatorSettings oscillatorSettings = new OscillatorSettings();
+
+    /**
+     * The voices that are currently being generated, in the order they have been started. Besides the playing
+     * notes, it holds the stolen voices that are fading out.
+     */
+    private final Voice[] voices;
+
+    /**
+     * The number of voices that are currently being generated.
+     */
+    private int voiceCount = 0;
+
+    /**
+     * The preallocated voices that aren't playing (a stack). The voices are reused for the new notes,
+     * so playing a note doesn't allocate memory.
+     */
+    private final Voice[] freeVoices;
+
+    /**
+     * The number of voices in the 'freeVoices' array.
+     */
+    private int freeVoiceCount;
+
+    /**
+     * The voices of the held notes, by their channels and keys (at channel * 128 + key, null if the key isn't held).
+     * A flat primitive-indexed table, so finding the voice of a note doesn't box, hash or allocate.
+     */
+    private final Voice[] keyVoices = new Voice[Synthesizer.CHANNEL_COUNT * KEY_COUNT];
+
+    /**
+     * Tells which held notes (by their channels and keys, like 'keyVoices') have been released on the keyboard
+     * and are only held by the sustain pedal.
+     */
+    private final boolean[] sustainedKeys = new boolean[Synthesizer.CHANNEL_COUNT * KEY_COUNT];
+
+    /**
+     * Tells if the sustain pedal of a channel is pressed.
+     */
+    private final boolean[] sustainPedals = new boolean[Synthesizer.CHANNEL_COUNT];
+
+    /**
+     * The ratios the frequencies of the notes of a channel are bent by (1 - no bend).
+     */
+    private final double[] pitchBends = new double[Synthesizer.CHANNEL_COUNT];
+
+    /**
+     * The buffers that the voices are generated into, shared by all the parts of the synthesizer.
+     * It's null when the voices are generated by a voice bank.
+     */
+    private final double[][][] voiceBuffers;
+
+    /**
+     * The object that generates the voices on multiple threads, shared by all the parts of the synthesizer.
+     * It's null in the single-threaded mode.
+     */
+    private final ParallelVoiceRenderer parallelVoiceRenderer;
+
+    /**
+     * The smallest number of voices that is generated by multiple threads.
+     */
+    private final int parallelThreshold;
+
+    /**
+     * The bank that generates the voices of this part from its parallel arrays. It's null when the voices
+     * are generated by their own objects.
+     */
+    private final VoiceBank voiceBank;
+
+    /**
+     * The loops used for mixing the voices (scalar or vector).
+     */
+    private final SampleKernels kernels = SampleKernels.getInstance();
+
+    /**
+     * The gain of this part in the mix (used in the multi-timbral mode).
+     */
+    private final SmoothedParameter gain = new SmoothedParameter(1, 0, 1);
+
+    /**
+     * The position of this part in the stereo image (-1 - left, 0 - center, 1 - right).
+     */
+    private final SmoothedParameter pan = new SmoothedParameter(0, -1, 1);
+
+    /**
+     * The level of the signal of this part sent to the delay (after the gain of the part).
+     */
+    private final SmoothedParameter delaySend = new SmoothedParameter(1, 0, 1);
+
+    /**
+     * The level of the signal of this part sent to the reverb (after the gain and the pan of the part).
+     */
+    private final SmoothedParameter reverbSend = new SmoothedParameter(1, 0, 1);
+
+    /**
+     * The gains of the destinations of this part while they don't change: the left and the right channel
+     * of the main bus, the delay bus, the left and the right channel of the reverb bus.
+     */
+    private final double[] gains = new double[5];
+
+    /**
+     * Tells if any of the gains of the destinations changes within the current part of the buffer.
+     */
+    private boolean gainsChanging = false;
+
+    /**
+     * Creates a part and allocates its voices: the polyphony plus a reserve for the stolen voices that
+     * are fading out.
+     * @param synthesizer The synthesizer playing this part.
+     * @param polyphony The number of notes that can be played at once by this part.
+     * @param voiceBuffers The buffers the voices are generated into (null - the voices are generated
+     *                     by a voice bank). They need room for {@link #getPoolSize(int)} voices.
+     * @param parallelVoiceRenderer The object generating the voices on multiple threads (null - single-threaded).
+     * @param parallelThreshold The smallest number of voices that is generated by multiple threads.
+     */
+    Part(Synthesizer synthesizer, int polyphony, double[][][] voiceBuffers,
+         ParallelVoiceRenderer parallelVoiceRenderer, int parallelThreshold) {
+        this.synthesizer = synthesizer;
+        this.polyphony = polyphony;
+        this.voiceGain = 1.0 / polyphony;
+        int poolSize = getPoolSize(polyphony);
+        voices = new Voice[poolSize];
+        freeVoices = new Voice[poolSize];
+        for (int i = 0; i < poolSize; i++) {
+            freeVoices[poolSize - 1 - i] = new Voice(synthesizer, oscillatorSettings, envelopeSettings);
+        }
+        freeVoiceCount = poolSize;
+        this.voiceBuffers = voiceBuffers;
+        this.voiceBank = voiceBuffers == null ? new VoiceBank(poolSize, oscillatorSettings, envelopeSettings) : null;
+        this.parallelVoiceRenderer = parallelVoiceRenderer;
+        this.parallelThreshold = parallelThreshold;
+        Arrays.fill(pitchBends, 1);
+        updateGains(0);
+    }
+
+    /**
+     * Returns the number of voices allocated for a polyphony: the polyphony plus a reserve for the stolen voices.
+     * @param polyphony The number of notes that can be played at once.
+     * @return The number of voices.
+     */
+    static int getPoolSize(int polyphony) {
+        return polyphony + Math.max(2, polyphony / 4);
+    }
+
+    /**
+     * Starts playing a note: releases the note held on the same key (even by the sustain pedal), steals a voice
+     * if all the notes are playing and starts a free voice with the pitch bend of the channel.
+     * @param channel The channel of the note.
+     * @param key The key of the note.
+     * @param frequency The frequency of the note.
+     * @param velocityGain The gain of the note, given by its velocity.
+     * @param frame The position (in frames) of the first frame of the note.
+     */
+    void startNote(int channel, int key, double frequency, double velocityGain, long frame) {
+        int note = channel * KEY_COUNT + key;
+        releaseVoice(note);
+        int playing = 0;
+        for (int i = 0; i < voiceCount; i++) {
+            if (!voices[i].isFading()) {
+                playing++;
+            }
+        }
+        if (playing >= polyphony) {
+            stealVoice(selectVoiceToSteal());
+        }
+        if (freeVoiceCount == 0) {
+            // All the reserve voices are still fading out: stop the oldest one at once.
+            for (int i = 0; i < voiceCount; i++) {
+                if (voices[i].isFading()) {
+                    stopVoice(i);
+                    break;
+                }
+            }
+        }
+        Voice voice = freeVoices[--freeVoiceCount];
+        freeVoices[freeVoiceCount] = null;
+        voice.start(channel, key, frequency, velocityGain, frame);
+        voice.setPitchBend(pitchBends[channel]);
+        if (voiceBank != null) {
+            voiceBank.start(voice);
+        }
+        voices[voiceCount++] = voice;
+        keyVoices[note] = voice;
+    }
+
+    /**
+     * Releases the note held on the key of the channel (if there is one). While the sustain pedal
+     * of the channel is pressed, the note keeps playing until the pedal is released.
+     * @param channel The channel of the note.
+     * @param key The key of the note.
+     */
+    void releaseNote(int channel, int key) {
+        int note = channel * KEY_COUNT + key;
+        if (keyVoices[note] == null) {
+            return;
+        }
+        if (sustainPedals[channel]) {
+            sustainedKeys[note] = true;
+        } else {
+            releaseVoice(note);
+        }
+    }
+
+    /**
+     * Releases all the notes of a channel (the ones held by the sustain pedal are released with the pedal).
+     * @param channel The channel.
+     */
+    void releaseAllNotes(int channel) {
+        for (int key = 0; key < KEY_COUNT; key++) {
+            releaseNote(channel, key);
+        }
+    }
+
+    /**
+     * Fades out all the voices of a channel, including the released ones.
+     * @param channel The channel.
+     */
+    void fadeOutChannel(int channel) {
+        for (int i = 0; i < voiceCount; i++) {
+            Voice voice = voices[i];
+            if (voice.getChannel() == channel && !voice.isFading()) {
+                stealVoice(voice);
+            }
+        }
+    }
+
+    /**
+     * Presses or releases the sustain pedal of a channel. Releasing the pedal releases the notes it holds.
+     * @param channel The channel.
+     * @param pressed True if the pedal is pressed.
+     */
+    void setSustainPedal(int channel, boolean pressed) {
+        sustainPedals[channel] = pressed;
+        if (pressed) {
+            return;
+        }
+        int first = channel * KEY_COUNT;
+        for (int note = first; note < first + KEY_COUNT; note++) {
+            if (sustainedKeys[note]) {
+                releaseVoice(note);
+            }
+        }
+    }
+
+    /**
+     * Bends the pitch of the playing notes of a channel and of the notes started later.
+     * @param channel The channel.
+     * @param ratio The ratio the frequencies are bent by (1 - no bend).
+     */
+    void setPitchBend(int channel, double ratio) {
+        pitchBends[channel] = ratio;
+        for (int i = 0; i < voiceCount; i++) {
+            Voice voice = voices[i];
+            if (voice.getChannel() == channel) {
+                voice.setPitchBend(ratio);
+                if (voiceBank != null) {
+                    voiceBank.updatePitchBend(voice);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells if this part has any voices to be generated (playing, released or fading out).
+     * @return True if this part has voices.
+     */
+    boolean isPlaying() {
+        return voiceCount > 0;
+    }
+
+    /**
+     * Removes the voices that have ended and generates the remaining ones, mixed (each one with the gain given
+     * by the velocity of its note) into a part of a mono buffer. The times are recorded in the metrics.
+     * @param output The buffer the voices are mixed into.
+     * @param offset The position in the output of the first frame to be generated.
+     * @param length The number of frames to be generated.
+     * @return The number of voices that have been generated.
+     */
+    int render(double[] output, int offset, int length) {
+        removeFinishedVoices();
+        RenderMetrics renderMetrics = synthesizer.getRenderMetrics();
+        if (voiceBank != null) {
+            long bankStart = System.nanoTime();
+            voiceBank.render(output, offset, length, voiceGain);
+            renderMetrics.addStageTime(RenderMetrics.GATHER, System.nanoTime() - bankStart);
+            return voiceBank.getActiveCount();
+        }
+        long gatherStart = System.nanoTime();
+        int gatheredVoices = gatherAllVoices(length);
+        long mixStart = System.nanoTime();
+        for (int j = 0; j < gatheredVoices; j++) {
+            kernels.mixInto(output, offset, voiceBuffers[j][0], voiceGain * voices[j].getVelocityGain(), length);
+        }
+        renderMetrics.addStageTime(RenderMetrics.GATHER, mixStart - gatherStart);
+        renderMetrics.addStageTime(RenderMetrics.MIX, System.nanoTime() - mixStart);
+        return gatheredVoices;
+    }
+
+    /**
+     * Takes the current gain, pan and sends of this part. Called by the synthesis thread before every part
+     * of a buffer (between the events), so a change starts to move the gains exactly at its frame.
+     * @param frame The position (in frames, counted from the start of the synthesis) of the next mixed frame.
+     */
+    void updateGains(long frame) {
+        gain.updateAt(frame);
+        pan.updateAt(frame);
+        delaySend.updateAt(frame);
+        reverbSend.updateAt(frame);
+        gainsChanging = gain.isSmoothingAt(frame) || pan.isSmoothingAt(frame) || delaySend.isSmoothingAt(frame)
+                || reverbSend.isSmoothingAt(frame);
+        if (!gainsChanging) {
+            calculateGains(frame, gains);
+        }
+    }
+
+    /**
+     * Mixes a part of the rendered buffer of this part into the main bus and the send buses. While the gain,
+     * the pan or the sends move, the gains are calculated for every frame.
+     * @param input The rendered mono buffer of this part.
+     * @param offset The position (in the buffer) of the first frame to be mixed.
+     * @param length The number of frames to be mixed.
+     * @param frame The position (in frames, counted from the start of the synthesis) of the first mixed frame.
+     * @param mainBus The stereo bus of the dry signal.
+     * @param delayBus The mono bus sent to the delay.
+     * @param reverbBus The stereo bus sent to the reverb.
+     */
+    void mixInto(double[] input, int offset, int length, long frame, double[][] mainBus, double[] delayBus,
+                 double[][] reverbBus) {
+        double[] mainLeft = mainBus[0];
+        double[] mainRight = mainBus[1];
+        double[] reverbLeft = reverbBus[0];
+        double[] reverbRight = reverbBus[1];
+        if (!gainsChanging) {
+            double left = gains[0];
+            double right = gains[1];
+            double delay = gains[2];
+            double reverbLeftGain = gains[3];
+            double reverbRightGain = gains[4];
+            for (int i = offset; i < offset + length; i++) {
+                double sample = input[i];
+                mainLeft[i] += sample * left;
+                mainRight[i] += sample * right;
+                delayBus[i] += sample * delay;
+                reverbLeft[i] += sample * reverbLeftGain;
+                reverbRight[i] += sample * reverbRightGain;
+            }
+            return;
+        }
+        for (int i = offset; i < offset + length; i++) {
+            calculateGains(frame + i - offset, gains);
+            double sample = input[i];
+            mainLeft[i] += sample * gains[0];
+            mainRight[i] += sample * gains[1];
+            delayBus[i] += sample * gains[2];
+            reverbLeft[i] += sample * gains[3];
+            reverbRight[i] += sample * gains[4];
+        }
+    }
+
+    /**
+     * Calculates the gains of the destinations of this part at a frame position.
+     * @param frame The position (in frames, counted from the start of the synthesis) of the frame.
+     * @param destinationGains The array the gains are written into (in the order of 'gains').
+     */
+    private void calculateGains(long frame, double[] destinationGains) {
+        double gainValue = gain.getValueAt(frame);
+        double panValue = pan.getValueAt(frame);
+        // The balance law: the center leaves both channels at the full level.
+        double left = gainValue * Math.min(1, 1 - panValue);
+        double right = gainValue * Math.min(1, 1 + panValue);
+        double reverbValue = reverbSend.getValueAt(frame);
+        destinationGains[0] = left;
+        destinationGains[1] = right;
+        destinationGains[2] = gainValue * delaySend.getValueAt(frame);
+        destinationGains[3] = left * reverbValue;
+        destinationGains[4] = right * reverbValue;
+    }
+
+    /**
+     * Releases the voice of a held note (if there is one), even if it's held by the sustain pedal.
+     * @param note The index of the note in the 'keyVoices' array.
+     */
+    private void releaseVoice(int note) {
+        Voice voice = keyVoices[note];
+        if (voice == null) {
+            return;
+        }
+        keyVoices[note] = null;
+        sustainedKeys[note] = false;
+        voice.triggerRelease();
+        if (voiceBank != null) {
+            voiceBank.release(voice);
+        }
+    }
+
+    /**
+     * Removes a voice from the table of the held notes, if it's still there.
+     * @param voice The voice.
+     */
+    private void forgetNote(Voice voice) {
+        int note = voice.getChannel() * KEY_COUNT + voice.getKey();
+        if (keyVoices[note] == voice) {
+            keyVoices[note] = null;
+            sustainedKeys[note] = false;
+        }
+    }
+
+    /**
+     * Selects the voice to be stolen for a new note, according to the voice stealing policy of the synthesizer.
+     * Only the voices that aren't already fading out are taken into account.
+     * @return The voice to be stolen.
+     */
+    private Voice selectVoiceToSteal() {
+        int policy = synthesizer.getVoiceStealing();
+        Voice oldest = null;
+        Voice selected = null;
+        double lowestLevel = Double.MAX_VALUE;
+        for (int i = 0; i < voiceCount; i++) {
+            Voice voice = voices[i];
+            if (voice.isFading()) {
+                continue;
+            }
+            if (oldest == null) {
+                oldest = voice;
+            }
+            if (policy == Synthesizer.STEAL_QUIETEST) {
+                double level = voiceBank != null ? voiceBank.getLevel(voice) : voice.getLevel();
+                if (level < lowestLevel) {
+                    lowestLevel = level;
+                    selected = voice;
+                }
+            } else if (policy == Synthesizer.STEAL_RELEASED_FIRST && voice.isReleased()) {
+                selected = voice;
+                break;
+            }
+        }
+        return selected != null ? selected : oldest;
+    }
+
+    /**
+     * Starts the fade-out of a stolen voice. Its note stops being held.
+     * @param voice The voice to be stolen.
+     */
+    private void stealVoice(Voice voice) {
+        forgetNote(voice);
+        voice.startFade(STEAL_FADE_FRAMES);
+        if (voiceBank != null) {
+            voiceBank.fadeOut(voice, STEAL_FADE_FRAMES);
+        }
+    }
+
+    /**
+     * Stops a voice at once and moves it to the free voices. The remaining voices keep their order.
+     * @param index The index of the voice in the 'voices' array.
+     */
+    private void stopVoice(int index) {
+        Voice voice = voices[index];
+        if (voiceBank != null) {
+            voiceBank.stop(voice);
+        }
+        forgetNote(voice);
+        System.arraycopy(voices, index + 1, voices, index, voiceCount - index - 1);
+        voices[--voiceCount] = null;
+        freeVoices[freeVoiceCount++] = voice;
+    }
+
+    /**
+     * Removes the voices that have ended from the 'voices' array and moves them to the free voices.
+     * The remaining voices keep their order.
+     */
+    private void removeFinishedVoices() {
+        int remaining = 0;
+        for (int i = 0; i < voiceCount; i++) {
+            Voice voice = voices[i];
+            if (!voice.hasEnded()) {
+                voices[remaining++] = voice;
+            } else {
+                forgetNote(voice);
+                freeVoices[freeVoiceCount++] = voice;
+            }
+        }
+        for (int i = remaining; i < voiceCount; i++) {
+            voices[i] = null;
+        }
+        voiceCount = remaining;
+    }
+
+    /**
+     * Gathers buffers from all the voices into the 'voiceBuffers' array.
+     * If there are enough voices and the parallel mode is on, the voices are generated by multiple threads.
+     * @param length The number of frames to be generated.
+     * @return The number of voices that have been written into 'voiceBuffers'.
+     */
+    private int gatherAllVoices(int length) {
+        if (parallelVoiceRenderer != null && voiceCount >= parallelThreshold) {
+            parallelVoiceRenderer.render(voices, voiceCount, voiceBuffers, length);
+            return voiceCount;
+        }
+        for (int i = 0; i < voiceCount; i++) {
+            voices[i].prepareBuffer(voiceBuffers[i], length);
+        }
+        return voiceCount;
+    }
+
+    /**
+     * Get the envelope settings of the voices of this part.
+     * @return The envelope settings of the voices of this part.
+     */
+    public EnvelopeSettings getEnvelopeSettings() {
+        return envelopeSettings;
+    }
+
+    /**
+     * Get the settings of the oscillators of the voices of this part.
+     * @return The settings of the oscillators of the voices of this part.
+     */
+    public OscillatorSettings getOscillatorSettings() {
+        return oscillatorSettings;
+    }
+
+    /**
+     * Returns the gain of this part in the mix.
+     * @return The gain of this part (0 - 1).
+     */
+    public double getGain() {
+        return gain.get();
+    }
+
+    /**
+     * Sets the gain of this part in the mix (used in the multi-timbral mode). Can be called by any thread.
+     * @param gain The gain of this part (0 - 1).
+     */
+    public void setGain(double gain) {
+        this.gain.set(gain);
+    }
+
+    /**
+     * Returns the position of this part in the stereo image.
+     * @return The pan of this part (-1 - left, 0 - center, 1 - right).
+     */
+    public double getPan() {
+        return pan.get();
+    }
+
+    /**
+     * Sets the position of this part in the stereo image (used in the multi-timbral mode).
+     * Can be called by any thread.
+     * @param pan The pan of this part (-1 - left, 0 - center, 1 - right).
+     */
+    public void setPan(double pan) {
+        this.pan.set(pan);
+    }
+
+    /**
+     * Returns the level of the signal of this part sent to the delay.
+     * @return The delay send of this part (0 - 1).
+     */
+    public double getDelaySend() {
+        return delaySend.get();
+    }
+
+    /**
+     * Sets the level of the signal of this part sent to the delay (used in the multi-timbral mode).
+     * Can be called by any thread.
+     * @param delaySend The delay send of this part (0 - 1).
+     */
+    public void setDelaySend(double delaySend) {
+        this.delaySend.set(delaySend);
+    }
+
+    /**
+     * Returns the level of the signal of this part sent to the reverb.
+     * @return The reverb send of this part (0 - 1).
+     */
+    public double getReverbSend() {
+        return reverbSend.get();
+    }
+
+    /**
+     * Sets the level of the signal of this part sent to the reverb (used in the multi-timbral mode).
+     * Can be called by any thread.
+     * @param reverbSend The reverb send of this part (0 - 1).
+     */
+    public void setReverbSend(double reverbSend) {
+        this.reverbSend.set(reverbSend);
+    }
+}
@@ -1,35 +1,192 @@
 package synthesizer.dsp;
 
 import synthesizer.models.EnvelopeSettings;
+import synthesizer.models.ModulationSettings;
 import synthesizer.models.OscillatorSettings;
+import synthesizer.dsp.modulation.Modulator;
+import synthesizer.dsp.post.ConvolutionReverb;
 import synthesizer.dsp.post.Delay;
 import synthesizer.dsp.post.Reverb;
-import synthesizer.dsp.voice.Voice;
+import synthesizer.dsp.post.TailTracker;
+import synthesizer.dsp.voice.VoiceBank;
 import synthesizer.dsp.post.Volume;
+import synthesizer.dsp.kernels.SampleKernels;
+import synthesizer.dsp.metrics.RenderMetrics;
+import synthesizer.dsp.output.AudioSink;
+import synthesizer.dsp.output.LineSink;
+import synthesizer.dsp.output.RenderAheadSink;
+import synthesizer.dsp.tuning.Tuning;
 
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * This class is responsible for running and managing the whole process of synthesis:
  * creating voices, mixing them, applying effects and sending to output.
  *
+ * The voices are played by the {@link Part}s. By default one part plays the notes of all the MIDI channels
+ * and its sound goes through the effects one after another (delay, reverb, convolution reverb, volume).
+ * In the multi-timbral mode every channel is played by its own part (with its own patch and voices),
+ * the parts are mixed into the main bus with their gains and pans, and into the send buses of the delay
+ * and the reverb with their sends. The delay and the reverb then return only their wet signals, which are added
+ * to the main bus before the convolution reverb and the volume.
+ *
  * @author Marek Bobrowski
  */
 public class Synthesizer implements Runnable {
     /**
-     * A list of voices that are currently being generated.
+     * The default number of notes that can be played at once.
+     */
+    public static final int DEFAULT_POLYPHONY = 16;
+
+    /**
+     * The voice stealing policy that takes the voice that has been playing the longest.
+     */
+    public static final int STEAL_OLDEST = 0;
+
+    /**
+     * The voice stealing policy that takes the voice with the lowest envelope level.
+     */
+    public static final int STEAL_QUIETEST = 1;
+
+    /**
+     * The voice stealing policy that takes the oldest released voice, or the oldest voice if none is released.
+     */
+    public static final int STEAL_RELEASED_FIRST = 2;
+
+    /**
+     * The number of notes that can be played at once (set with the "synthesizer.polyphony" system property).
+     */
+    private static final int POLYPHONY = Integer.getInteger("synthesizer.polyphony", DEFAULT_POLYPHONY);
+
+    /**
+     * The default voice stealing policy (set with the "synthesizer.voiceStealing" system property:
+     * "oldest", "quietest" or "released").
+     */
+    private static final int VOICE_STEALING =
+            parseVoiceStealing(System.getProperty("synthesizer.voiceStealing", "released"));
+
+    /**
+     * The number of MIDI channels.
+     */
+    public static final int CHANNEL_COUNT = 16;
+
+    /**
+     * The number of keys (MIDI note numbers).
+     */
+    private static final int KEY_COUNT = 128;
+
+    /**
+     * The number of threads that generate the voices (set with the "synthesizer.renderThreads" system property).
+     * With 1 thread all the voices are generated on the synthesis thread.
+     */
+    private static final int RENDER_THREADS = Integer.getInteger("synthesizer.renderThreads", 1);
+
+    /**
+     * The smallest number of voices that is generated by multiple threads
+     * (set with the "synthesizer.parallelThreshold" system property).
+     * With fewer voices coordinating the threads costs more than it saves, so they are generated
+     * on the synthesis thread.
+     */
+    private static final int PARALLEL_THRESHOLD = Integer.getInteger("synthesizer.parallelThreshold", 4);
+
+    /**
+     * Tells if the voices are generated by a {@link VoiceBank} instead of their own objects
+     * (set with the "synthesizer.voiceBank" system property).
+     */
+    private static final boolean VOICE_BANK = Boolean.getBoolean("synthesizer.voiceBank");
+
+    /**
+     * Tells if every MIDI channel is played by its own part (set with the "synthesizer.multitimbral"
+     * system property).
+     */
+    private static final boolean MULTITIMBRAL = Boolean.getBoolean("synthesizer.multitimbral");
+
+    /**
+     * The number of frames per control tick of the modulation (set with the "synthesizer.controlRate"
+     * system property, 0 - the default of the {@link ModulationSettings}).
+     */
+    private static final int CONTROL_RATE = Integer.getInteger("synthesizer.controlRate", 0);
+
+    /**
+     * The WAV file with the impulse response loaded into the {@link ConvolutionReverb}
+     * (set with the "synthesizer.impulseResponse" system property, null - none).
+     */
+    private static final String IMPULSE_RESPONSE = System.getProperty("synthesizer.impulseResponse");
+
+    /**
+     * The mix of the {@link ConvolutionReverb} when an impulse response is loaded at the start
+     * (set with the "synthesizer.convolutionMix" system property).
+     */
+    private static final double CONVOLUTION_MIX =
+            Double.parseDouble(System.getProperty("synthesizer.convolutionMix", "0.3"));
+
+    /**
+     * The Scala scale file (.scl) the keys are tuned with (set with the "synthesizer.scale" system property,
+     * null - the equal temperament).
+     */
+    private static final String SCALE = System.getProperty("synthesizer.scale");
+
+    /**
+     * The Scala keyboard mapping file (.kbm) used with the scale (set with the "synthesizer.keyboardMapping"
+     * system property, null - the default mapping).
+     */
+    private static final String KEYBOARD_MAPPING = System.getProperty("synthesizer.keyboardMapping");
+
+    /**
+     * The maximal number of events waiting to be handled by the synthesis thread.
+     */
+    private static final int EVENT_QUEUE_CAPACITY = 1024;
+
+    /**
+     * The number of slots of the event queue kept for the events releasing the sound (the note-offs,
+     * the released sustain pedal and the channel mode messages), so a flood of other events can't make
+     * a note get stuck.
+     */
+    private static final int RELEASE_EVENT_RESERVE = EVENT_QUEUE_CAPACITY / 4;
+
+    /**
+     * The number of notes that can be played at once by every part.
+     */
+    private final int polyphony;
+
+    /**
+     * The parts playing the notes: one for every MIDI channel in the multi-timbral mode, otherwise one
+     * for all the channels.
+     */
+    private final Part[] parts;
+
+    /**
+     * The voice stealing policy (one of the STEAL constants).
+     */
+    private volatile int voiceStealing = VOICE_STEALING;
+
+    /**
+     * The queue of the events (voices to be started and released) sent by other threads to the synthesis thread.
+     */
+    private final NoteEventQueue eventQueue = new NoteEventQueue(EVENT_QUEUE_CAPACITY,
+            RELEASE_EVENT_RESERVE);
+
+    /**
+     * The events taken from the queue that haven't happened yet, sorted by their frame positions
+     * (the events with the same position keep the order they were sent in). The objects are preallocated
+     * and reused, only their order in the array changes.
      */
-    private final CopyOnWriteArrayList <Voice> voices = new CopyOnWriteArrayList<>();
+    private final NoteEvent[] pendingEvents = new NoteEvent[EVENT_QUEUE_CAPACITY];
 
     /**
-     * A list of voices that are going to be removed after the current buffer.
+     * The number of events in the 'pendingEvents' array.
      */
-    private final CopyOnWriteArrayList <Voice> voicesToBeRemoved = new CopyOnWriteArrayList<>();
+    private int pendingEventCount = 0;
 
     /**
-     * A list of voices that are going to be generated within the next buffer.
+     * The position (in frames) of the first frame of the next buffer, counted from the start of the synthesis.
      */
-    private final CopyOnWriteArrayList <Voice> voicesToBeAdded = new CopyOnWriteArrayList<>();
+    private volatile long framePosition = 0;
 
     /**
      * The delay effect used to process the sound of this synthesizer.
@@ -42,151 +199,751 @@ public class Synthesizer implements Runnable {
     private final Reverb reverb = new Reverb();
 
     /**
-     * The converter that is going to stream the signal from this synthesizer to a sound card.
+     * The convolution reverberation effect (bypassed until an impulse response is loaded).
      */
-    private final Converter converter = new Converter();
+    private final ConvolutionReverb convolutionReverb = new ConvolutionReverb();
 
     /**
-     * The envelope settings of the voices generated by this synthesizer.
+     * The converter that is going to stream the signal from this synthesizer to an audio sink.
      */
-    private final EnvelopeSettings envelopeSettings = new EnvelopeSettings();
+    private final Converter converter;
 
     /**
-     * The settings of the oscillators that generate sound for this synthesizer.
+     * The settings of the modulation (LFOs, the modulation envelope and the modulation matrix).
      */
-    private final OscillatorSettings oscillatorSettings = new OscillatorSettings();
+    private final ModulationSettings modulationSettings = new ModulationSettings();
+
+    /**
+     * Calculates the modulation at the control rate.
+     */
+    private final Modulator modulator = new Modulator(modulationSettings);
+
+    /**
+     * The frequencies of the keys. Replaced as a whole, so a note never gets a frequency of a half-loaded tuning.
+     */
+    private volatile Tuning tuning = Tuning.equalTemperament();
+
+    /**
+     * The source asked for the events of every buffer before it's rendered (e.g. a sequencer), null - none.
+     */
+    private volatile EventSource eventSource;
+
+    /**
+     * The reusable array of the modulation of the delay mix (one value per frame).
+     */
+    private final double[] delayModulation = new double[Converter.MAX_BUFFER_SIZE];
+
+    /**
+     * The reusable array of the modulation of the reverb mix (one value per frame).
+     */
+    private final double[] reverbModulation = new double[Converter.MAX_BUFFER_SIZE];
 
     /**
      * The output loudness of this synthesizer.
      */
     private final Volume volume = new Volume();
 
+    /**
+     * The reusable buffer that the voices are mixed into and that is post-processed afterwards
+     * (the main bus in the multi-timbral mode).
+     */
+    private final double[][] mixBuffer = new double[2][Converter.MAX_BUFFER_SIZE];
+
+    /**
+     * The reusable buffer that every part is rendered into before it's mixed into the buses
+     * (used in the multi-timbral mode).
+     */
+    private final double[] partBuffer;
+
+    /**
+     * The reusable buffer sent to the delay (its first channel) and returning the echoes
+     * (used in the multi-timbral mode).
+     */
+    private final double[][] delayBus;
+
+    /**
+     * The reusable buffer sent to the reverb and returning the wet signal (used in the multi-timbral mode).
+     */
+    private final double[][] reverbBus;
+
+    /**
+     * The loops used for adding the returns of the effects to the main bus (scalar or vector).
+     */
+    private final SampleKernels kernels = SampleKernels.getInstance();
+
+    /**
+     * The object that generates the voices on multiple threads. It's null in the single-threaded mode.
+     */
+    private final ParallelVoiceRenderer parallelVoiceRenderer;
+
+    /**
+     * The timings of the synthesis (per stage and per buffer), the late buffers and the voice counts.
+     */
+    private final RenderMetrics renderMetrics = new RenderMetrics();
+
     /**
      * Tells if this synthesizer should keep buffering new sound.
      */
-    private boolean keepBuffering = false;
+    private volatile boolean keepBuffering = false;
 
     /**
-     * Empty constructor.
+     * Creates a synthesizer that streams the sound into the sound card.
      */
     public Synthesizer() {
+        this(new LineSink());
     }
 
     /**
-     * Add the voice to the "waiting room" - 'voicesToBeAdded' list.
-     * @param newVoice The voice to be added.
+     * Creates a synthesizer that streams the sound into the specified sink. The polyphony, the way
+     * the voices are generated and the multi-timbral mode are specified by the "synthesizer.polyphony",
+     * "synthesizer.renderThreads", "synthesizer.voiceBank" and "synthesizer.multitimbral" system properties.
+     * @param sink The sink the sound will be streamed into.
      */
-    public void addNewVoice(Voice newVoice) {
-        voicesToBeAdded.add(newVoice);
+    public Synthesizer(AudioSink sink) {
+        this(sink, POLYPHONY, RENDER_THREADS, PARALLEL_THRESHOLD, VOICE_BANK, MULTITIMBRAL);
     }
 
     /**
-     * Add the voice to the 'voicesToBeRemoved' list.
-     * @param voice The voice to be finished.
+     * Creates a synthesizer with one part for all the MIDI channels that streams the sound into the specified sink
+     * and generates the voices either with the specified number of threads or with a {@link VoiceBank}
+     * (on the synthesis thread).
+     * @param sink The sink the sound will be streamed into.
+     * @param polyphony The number of notes that can be played at once.
+     * @param renderThreads The number of threads generating the voices (1 - single-threaded mode).
+     * @param parallelThreshold The smallest number of voices that is generated by multiple threads.
+     * @param useVoiceBank True if the voices should be generated by a voice bank.
      */
-    public void finishVoice(Voice voice) {
-        voicesToBeRemoved.add(voice);
+    public Synthesizer(AudioSink sink, int polyphony, int renderThreads, int parallelThreshold,
+                       boolean useVoiceBank) {
+        this(sink, polyphony, renderThreads, parallelThreshold, useVoiceBank, false);
     }
 
     /**
-     * Remove the 'voicesToBeRemoved' list from the 'voices' list.
+     * Creates a synthesizer that streams the sound into the specified sink and generates the voices either
+     * with the specified number of threads or with a {@link VoiceBank} (on the synthesis thread).
+     * All the voices are allocated here: for every part the polyphony plus a reserve for the stolen voices
+     * that are fading out. The buffers the voices are generated into are shared by all the parts.
+     * @param sink The sink the sound will be streamed into.
+     * @param polyphony The number of notes that can be played at once by every part.
+     * @param renderThreads The number of threads generating the voices (1 - single-threaded mode).
+     * @param parallelThreshold The smallest number of voices that is generated by multiple threads.
+     * @param useVoiceBank True if the voices should be generated by voice banks.
+     * @param multitimbral True if every MIDI channel should be played by its own part.
      */
-    private void removeFinishedVoices() {
-        for(Voice n: voicesToBeRemoved) {
-            voices.remove(n);
+    public Synthesizer(AudioSink sink, int polyphony, int renderThreads, int parallelThreshold,
+                       boolean useVoiceBank, boolean multitimbral) {
+        this.converter = new Converter(sink);
+        if (CONTROL_RATE > 0) {
+            modulationSettings.setControlRate(CONTROL_RATE);
+        }
+        this.polyphony = Math.max(1, polyphony);
+        int poolSize = Part.getPoolSize(this.polyphony);
+        double[][][] voiceBuffers = useVoiceBank ? null : new double[poolSize][2][Converter.MAX_BUFFER_SIZE];
+        this.parallelVoiceRenderer = renderThreads > 1 ? new ParallelVoiceRenderer(renderThreads) : null;
+        parts = new Part[multitimbral ? CHANNEL_COUNT : 1];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = new Part(this, this.polyphony, voiceBuffers, parallelVoiceRenderer, parallelThreshold);
+        }
+        if (multitimbral) {
+            partBuffer = new double[Converter.MAX_BUFFER_SIZE];
+            delayBus = new double[2][Converter.MAX_BUFFER_SIZE];
+            reverbBus = new double[2][Converter.MAX_BUFFER_SIZE];
+            delay.setSendMode(true);
+            reverb.setSendMode(true);
+        } else {
+            partBuffer = null;
+            delayBus = null;
+            reverbBus = null;
+        }
+        if (sink instanceof RenderAheadSink) {
+            renderMetrics.setRenderAheadSink((RenderAheadSink) sink);
+        }
+        for (int i = 0; i < pendingEvents.length; i++) {
+            pendingEvents[i] = new NoteEvent();
+        }
+        if (IMPULSE_RESPONSE != null) {
+            try {
+                convolutionReverb.loadImpulseResponse(new File(IMPULSE_RESPONSE));
+                convolutionReverb.setMix(CONVOLUTION_MIX);
+            } catch (IOException ex) {
+                Logger.getLogger(Synthesizer.class.getName()).log(Level.WARNING,
+                        "Cannot load the impulse response", ex);
+            }
+        }
+        if (SCALE != null) {
+            try {
+                tuning = Tuning.fromScala(new File(SCALE),
+                        KEYBOARD_MAPPING == null ? null : new File(KEYBOARD_MAPPING));
+            } catch (IOException ex) {
+                Logger.getLogger(Synthesizer.class.getName()).log(Level.WARNING, "Cannot load the tuning", ex);
+            }
         }
-        voicesToBeRemoved.clear();
     }
 
     /**
-     * Add all voices from the 'voicesToBeAdded' list to the 'voices' list.
+     * Tells the synthesis thread to start playing a note (on the first channel, with the full velocity)
+     * at the start of the next buffer. Can be called by any thread.
+     * @param key The key (MIDI note number, 0 - 127) of the note. A note already held on that key is released.
+     * @param frequency The frequency of the note.
+     * @return True if the event has been sent, false if the event queue is full.
      */
-    private void acceptNewVoices() {
-        voices.addAll(voicesToBeAdded);
-        voicesToBeAdded.clear();
+    public boolean noteOn(int key, double frequency) {
+        return noteOn(key, frequency, NoteEvent.IMMEDIATELY);
     }
 
     /**
-     * Gathers buffers from all the voices.
-     * @param bufferSize The number of frames of a sound buffer.
-     * @return The array of sound buffers created by all the voices.
-     */
-    private double[][][] gatherAllVoices(int bufferSize) {
-        double[][][] allVoiceBuffers = new double[voices.size()][2][bufferSize];
-        int index = 0;
-        for(Voice n : voices) {
-            if (index >= allVoiceBuffers.length) {
-                break;
+     * Tells the synthesis thread to start playing a note (on the first channel, with the full velocity)
+     * exactly at the specified frame (or at the start of the next buffer, if that frame has already been generated).
+     * Can be called by any thread.
+     * @param key The key (MIDI note number, 0 - 127) of the note. A note already held on that key is released.
+     * @param frequency The frequency of the note.
+     * @param frame The position (in frames, counted from the start of the synthesis) of the first sample of the note.
+     * @return True if the event has been sent, false if the event queue is full.
+     */
+    public boolean noteOn(int key, double frequency, long frame) {
+        return noteOn(0, key, frequency, 1, frame);
+    }
+
+    /**
+     * Tells the synthesis thread to start playing a note exactly at the specified frame
+     * (or at the start of the next buffer, if that frame has already been generated).
+     * Can be called by any thread.
+     * @param channel The MIDI channel (0 - 15) of the note.
+     * @param key The key (MIDI note number, 0 - 127) of the note. A note already held on that key
+     *            of the channel is released.
+     * @param frequency The frequency of the note.
+     * @param velocityGain The gain of the note in the mix, given by its velocity (0 - 1).
+     * @param frame The position (in frames, counted from the start of the synthesis) of the first sample of the note.
+     * @return True if the event has been sent, false if the event queue is full.
+     */
+    public boolean noteOn(int channel, int key, double frequency, double velocityGain, long frame) {
+        return sendEvent(NoteEvent.NOTE_ON, channel, key, frequency, velocityGain, frame, false);
+    }
+
+    /**
+     * Tells the synthesis thread to release the note of the first channel (start the release segment
+     * of the envelope of its voice) at the start of the next buffer. Can be called by any thread.
+     * @param key The key (MIDI note number, 0 - 127) of the note.
+     * @return True if the event has been sent, false if the event queue is full.
+     */
+    public boolean noteOff(int key) {
+        return noteOff(key, NoteEvent.IMMEDIATELY);
+    }
+
+    /**
+     * Tells the synthesis thread to release the note of the first channel (start the release segment
+     * of the envelope of its voice) exactly at the specified frame. Can be called by any thread.
+     * @param key The key (MIDI note number, 0 - 127) of the note.
+     * @param frame The position (in frames, counted from the start of the synthesis) of the release.
+     * @return True if the event has been sent, false if the event queue is full.
+     */
+    public boolean noteOff(int key, long frame) {
+        return noteOff(0, key, frame);
+    }
+
+    /**
+     * Tells the synthesis thread to release the note (start the release segment of the envelope of its voice)
+     * exactly at the specified frame. If the sustain pedal of the channel is pressed, the note is released
+     * when the pedal is. Can be called by any thread.
+     * @param channel The MIDI channel (0 - 15) of the note.
+     * @param key The key (MIDI note number, 0 - 127) of the note.
+     * @param frame The position (in frames, counted from the start of the synthesis) of the release.
+     * @return True if the event has been sent, false if the event queue is full.
+     */
+    public boolean noteOff(int channel, int key, long frame) {
+        return sendEvent(NoteEvent.NOTE_OFF, channel, key, 0, 0, frame, true);
+    }
+
+    /**
+     * Tells the synthesis thread to bend the pitch of all the notes of a channel (the playing ones
+     * and the ones started later) exactly at the specified frame. Can be called by any thread.
+     * @param channel The MIDI channel (0 - 15).
+     * @param semitones The bend in semitones (0 - no bend).
+     * @param frame The position (in frames, counted from the start of the synthesis) of the change.
+     * @return True if the event has been sent, false if the event queue is full.
+     */
+    public boolean pitchBend(int channel, double semitones, long frame) {
+        // The ratio is calculated by the calling thread, so the synthesis thread only multiplies by it.
+        return sendEvent(NoteEvent.PITCH_BEND, channel, 0, 0, Math.pow(2, semitones / 12), frame, false);
+    }
+
+    /**
+     * Tells the synthesis thread to press or release the sustain pedal of a channel exactly at the specified frame.
+     * While the pedal is pressed, the released notes keep playing; they are released with the pedal.
+     * Can be called by any thread.
+     * @param channel The MIDI channel (0 - 15).
+     * @param pressed True if the pedal is pressed, false if it's released.
+     * @param frame The position (in frames, counted from the start of the synthesis) of the change.
+     * @return True if the event has been sent, false if the event queue is full.
+     */
+    public boolean sustainPedal(int channel, boolean pressed, long frame) {
+        // Releasing the pedal releases the notes, so it can't be dropped.
+        return sendEvent(NoteEvent.SUSTAIN, channel, 0, 0, pressed ? 1 : 0, frame, !pressed);
+    }
+
+    /**
+     * Tells the synthesis thread to release all the notes of a channel exactly at the specified frame
+     * (the notes held by the sustain pedal are released with the pedal). Can be called by any thread.
+     * @param channel The MIDI channel (0 - 15).
+     * @param frame The position (in frames, counted from the start of the synthesis) of the release.
+     * @return True if the event has been sent, false if the event queue is full.
+     */
+    public boolean allNotesOff(int channel, long frame) {
+        return sendEvent(NoteEvent.ALL_NOTES_OFF, channel, 0, 0, 0, frame, true);
+    }
+
+    /**
+     * Tells the synthesis thread to silence all the voices of a channel (including the released ones)
+     * exactly at the specified frame. They fade out within 5 ms, so they stop without a click.
+     * Can be called by any thread.
+     * @param channel The MIDI channel (0 - 15).
+     * @param frame The position (in frames, counted from the start of the synthesis) of the fade-out.
+     * @return True if the event has been sent, false if the event queue is full.
+     */
+    public boolean allSoundOff(int channel, long frame) {
+        return sendEvent(NoteEvent.ALL_SOUND_OFF, channel, 0, 0, 0, frame, true);
+    }
+
+    /**
+     * Tells the synthesis thread to reset the controllers of a channel (no pitch bend, the sustain pedal
+     * released) exactly at the specified frame. Can be called by any thread.
+     * @param channel The MIDI channel (0 - 15).
+     * @param frame The position (in frames, counted from the start of the synthesis) of the reset.
+     * @return True if the event has been sent, false if the event queue is full.
+     */
+    public boolean resetControllers(int channel, long frame) {
+        return sendEvent(NoteEvent.RESET_CONTROLLERS, channel, 0, 0, 0, frame, true);
+    }
+
+    /**
+     * Tells the synthesis thread to set the gain of the part of a channel in the mix at the specified frame
+     * (used in the multi-timbral mode; the part moves to it smoothly). Can be called by any thread.
+     * @param channel The MIDI channel (0 - 15).
+     * @param gain The gain of the part (0 - 1).
+     * @param frame The position (in frames, counted from the start of the synthesis) of the change.
+     * @return True if the event has been sent, false if the event queue is full.
+     */
+    public boolean partGain(int channel, double gain, long frame) {
+        return sendEvent(NoteEvent.PART_GAIN, channel, 0, 0, gain, frame, false);
+    }
+
+    /**
+     * Tells the synthesis thread to set the pan of the part of a channel at the specified frame
+     * (used in the multi-timbral mode; the part moves to it smoothly). Can be called by any thread.
+     * @param channel The MIDI channel (0 - 15).
+     * @param pan The pan of the part (-1 - left, 0 - center, 1 - right).
+     * @param frame The position (in frames, counted from the start of the synthesis) of the change.
+     * @return True if the event has been sent, false if the event queue is full.
+     */
+    public boolean partPan(int channel, double pan, long frame) {
+        return sendEvent(NoteEvent.PART_PAN, channel, 0, 0, pan, frame, false);
+    }
+
+    /**
+     * Tells the synthesis thread to set the level of the part of a channel sent to the reverb at the specified
+     * frame (used in the multi-timbral mode; the part moves to it smoothly). Can be called by any thread.
+     * @param channel The MIDI channel (0 - 15).
+     * @param level The reverb send of the part (0 - 1).
+     * @param frame The position (in frames, counted from the start of the synthesis) of the change.
+     * @return True if the event has been sent, false if the event queue is full.
+     */
+    public boolean reverbSend(int channel, double level, long frame) {
+        return sendEvent(NoteEvent.REVERB_SEND, channel, 0, 0, level, frame, false);
+    }
+
+    /**
+     * Tells the synthesis thread to set the level of the part of a channel sent to the delay at the specified
+     * frame (used in the multi-timbral mode; the part moves to it smoothly). Can be called by any thread.
+     * @param channel The MIDI channel (0 - 15).
+     * @param level The delay send of the part (0 - 1).
+     * @param frame The position (in frames, counted from the start of the synthesis) of the change.
+     * @return True if the event has been sent, false if the event queue is full.
+     */
+    public boolean delaySend(int channel, double level, long frame) {
+        return sendEvent(NoteEvent.DELAY_SEND, channel, 0, 0, level, frame, false);
+    }
+
+    /**
+     * Adds an event to the queue of the synthesis thread. The dropped events (when the queue is full)
+     * are counted by the {@link RenderMetrics}.
+     * @param type The type of the event (one of the {@link NoteEvent} constants).
+     * @param channel The MIDI channel (0 - 15) the event refers to.
+     * @param key The key (MIDI note number, 0 - 127) the event refers to.
+     * @param frequency The frequency of the note.
+     * @param value The value of the event (see {@link NoteEvent#getValue()}).
+     * @param frame The position (in frames, counted from the start of the synthesis) of the event.
+     * @param releasing True if the event releases the sound (it can take the slots reserved for such events).
+     * @return True if the event has been sent, false if the event queue is full.
+     */
+    private boolean sendEvent(int type, int channel, int key, double frequency, double value, long frame,
+                              boolean releasing) {
+        if (eventQueue.offer(type, channel & (CHANNEL_COUNT - 1), key & (KEY_COUNT - 1), frequency, value, frame,
+                releasing)) {
+            return true;
+        }
+        renderMetrics.recordDroppedEvent();
+        return false;
+    }
+
+    /**
+     * Returns the number of notes that can be played at once (by every part).
+     * @return The polyphony of this synthesizer.
+     */
+    public int getPolyphony() {
+        return polyphony;
+    }
+
+    /**
+     * Returns the part playing the notes of a MIDI channel (the only part, unless the synthesizer
+     * is multi-timbral).
+     * @param channel The MIDI channel (0 - 15).
+     * @return The part playing the channel.
+     */
+    public Part getPart(int channel) {
+        return parts[parts.length == 1 ? 0 : channel & (CHANNEL_COUNT - 1)];
+    }
+
+    /**
+     * Tells if every MIDI channel is played by its own part.
+     * @return True if the synthesizer is multi-timbral.
+     */
+    public boolean isMultitimbral() {
+        return parts.length > 1;
+    }
+
+    /**
+     * Returns the voice stealing policy: which voice is taken for a new note when all of them are playing.
+     * @return The voice stealing policy (one of the STEAL constants).
+     */
+    public int getVoiceStealing() {
+        return voiceStealing;
+    }
+
+    /**
+     * Sets the voice stealing policy: which voice is taken for a new note when all of them are playing.
+     * The taken voice fades out within 5 ms, so it stops without a click.
+     * @param voiceStealing The voice stealing policy (one of the STEAL constants).
+     */
+    public void setVoiceStealing(int voiceStealing) {
+        this.voiceStealing = voiceStealing;
+    }
+
+    /**
+     * Returns the tuning: the frequencies of the keys played through the MIDI input.
+     * @return The tuning of this synthesizer.
+     */
+    public Tuning getTuning() {
+        return tuning;
+    }
+
+    /**
+     * Sets the tuning: the frequencies of the keys played through the MIDI input. Can be called by any thread;
+     * the notes that are already playing keep their frequencies.
+     * @param tuning The tuning of this synthesizer.
+     */
+    public void setTuning(Tuning tuning) {
+        this.tuning = tuning;
+    }
+
+    /**
+     * Returns the source asked for the events of every buffer before it's rendered.
+     * @return The event source (null if there is none).
+     */
+    public EventSource getEventSource() {
+        return eventSource;
+    }
+
+    /**
+     * Sets the source asked for the events of every buffer before it's rendered (e.g. a sequencer).
+     * Can be called by any thread; the source is used from the next buffer.
+     * @param eventSource The event source (null - none).
+     */
+    public void setEventSource(EventSource eventSource) {
+        this.eventSource = eventSource;
+    }
+
+    /**
+     * Returns the position (in frames, counted from the start of the synthesis) of the first frame
+     * of the next buffer. Events scheduled before that position happen at the start of the next buffer.
+     * @return The position of the first frame of the next buffer.
+     */
+    public long getFramePosition() {
+        return framePosition;
+    }
+
+    /**
+     * Takes all the events waiting in the queue and inserts them into the 'pendingEvents' array,
+     * keeping it sorted by the frame positions.
+     */
+    private void takeEvents() {
+        while (pendingEventCount < pendingEvents.length && eventQueue.poll(pendingEvents[pendingEventCount])) {
+            NoteEvent newEvent = pendingEvents[pendingEventCount];
+            int position = pendingEventCount;
+            while (position > 0 && pendingEvents[position - 1].getFrame() > newEvent.getFrame()) {
+                pendingEvents[position] = pendingEvents[position - 1];
+                position--;
+            }
+            pendingEvents[position] = newEvent;
+            pendingEventCount++;
+        }
+    }
+
+    /**
+     * Handles the pending events that should happen before the specified frame (or at it):
+     * starts and releases the notes and applies the controllers of the channels.
+     * @param frame The position (in frames) of the current frame.
+     */
+    private void handleEvents(long frame) {
+        int handled = 0;
+        while (handled < pendingEventCount && pendingEvents[handled].getFrame() <= frame) {
+            NoteEvent event = pendingEvents[handled];
+            int channel = event.getChannel();
+            Part part = getPart(channel);
+            switch (event.getType()) {
+                case NoteEvent.NOTE_ON -> part.startNote(channel, event.getKey(), event.getFrequency(),
+                        event.getValue(), frame);
+                case NoteEvent.NOTE_OFF -> part.releaseNote(channel, event.getKey());
+                case NoteEvent.PITCH_BEND -> part.setPitchBend(channel, event.getValue());
+                case NoteEvent.SUSTAIN -> part.setSustainPedal(channel, event.getValue() != 0);
+                case NoteEvent.ALL_NOTES_OFF -> part.releaseAllNotes(channel);
+                case NoteEvent.ALL_SOUND_OFF -> part.fadeOutChannel(channel);
+                case NoteEvent.RESET_CONTROLLERS -> {
+                    part.setPitchBend(channel, 1);
+                    part.setSustainPedal(channel, false);
+                }
+                // The part takes the new targets before the frame is mixed and moves to them from there.
+                case NoteEvent.PART_GAIN -> part.setGain(event.getValue());
+                case NoteEvent.PART_PAN -> part.setPan(event.getValue());
+                case NoteEvent.REVERB_SEND -> part.setReverbSend(event.getValue());
+                case NoteEvent.DELAY_SEND -> part.setDelaySend(event.getValue());
+                default -> { }
+            }
+            event.set(0, 0, 0, 0, 0, 0);
+            handled++;
+        }
+        if (handled > 0) {
+            // Move the remaining events to the front (keeping their order)
+            // and the handled event objects behind them, so they can be reused.
+            for (int i = 0; i < pendingEventCount - handled; i++) {
+                NoteEvent handledEvent = pendingEvents[i];
+                pendingEvents[i] = pendingEvents[i + handled];
+                pendingEvents[i + handled] = handledEvent;
             }
-            allVoiceBuffers[index] = n.prepareBuffer(bufferSize);
-            index++;
+            pendingEventCount -= handled;
         }
-        return allVoiceBuffers;
     }
 
     /**
-     * Returns mixed and processed sound of all buffers.
+     * Processes the mixed sound of all the voices (in place) by applying the effects.
+     * In the multi-timbral mode the delay and the reverb process their send buses instead
+     * and their returns are added to the buffer.
+     * The mixes of the effects are modulated, if the modulation matrix connects them.
      * @param buffer The buffer to be processed.
+     * @param bufferSize The number of frames of a sound buffer.
+     * @param frame The position (in frames) of the first frame of the buffer.
      */
-    private double[][] createPostProcessedBuffer(double[][] buffer) {
-        delay.processBuffer(buffer);
-        buffer = reverb.createProcessedBuffer(buffer);
-        volume.processBuffer(buffer);
-        return buffer;
+    private void createPostProcessedBuffer(double[][] buffer, int bufferSize, long frame) {
+        long start = System.nanoTime();
+        double[] delayMixModulation = null;
+        if (modulator.isRouted(ModulationSettings.DESTINATION_DELAY_MIX)) {
+            modulator.fillValues(ModulationSettings.DESTINATION_DELAY_MIX, frame, delayModulation, bufferSize);
+            delayMixModulation = delayModulation;
+        }
+        if (delayBus != null) {
+            delay.processBuffer(delayBus, bufferSize, delayMixModulation);
+            addReturn(buffer, delayBus, bufferSize);
+        } else {
+            delay.processBuffer(buffer, bufferSize, delayMixModulation);
+        }
+        long delayEnd = System.nanoTime();
+        double[] reverbMixModulation = null;
+        if (modulator.isRouted(ModulationSettings.DESTINATION_REVERB_MIX)) {
+            modulator.fillValues(ModulationSettings.DESTINATION_REVERB_MIX, frame, reverbModulation, bufferSize);
+            reverbMixModulation = reverbModulation;
+        }
+        if (reverbBus != null) {
+            reverb.processBuffer(reverbBus, bufferSize, reverbMixModulation);
+            addReturn(buffer, reverbBus, bufferSize);
+        } else {
+            reverb.processBuffer(buffer, bufferSize, reverbMixModulation);
+        }
+        long reverbEnd = System.nanoTime();
+        convolutionReverb.processBuffer(buffer, bufferSize);
+        long convolutionEnd = System.nanoTime();
+        volume.processBuffer(buffer, bufferSize);
+        long volumeEnd = System.nanoTime();
+        renderMetrics.addStageTime(RenderMetrics.DELAY, delayEnd - start);
+        renderMetrics.addStageTime(RenderMetrics.REVERB, reverbEnd - delayEnd);
+        renderMetrics.addStageTime(RenderMetrics.CONVOLUTION, convolutionEnd - reverbEnd);
+        renderMetrics.addStageTime(RenderMetrics.VOLUME, volumeEnd - convolutionEnd);
     }
 
     /**
-     * Mixes the passed buffers. First index stands for the buffer number,
-     * second index stands for the channel number, third index stands for the frame number.
-     * @param buffers Array of buffers (made in the format specified in the method description).
+     * Adds the returned signal of an effect to the main bus (skipped when the effect has returned silence).
+     * @param buffer The main bus.
+     * @param effectReturn The buffer returned by the effect.
      * @param bufferSize The number of frames of a sound buffer.
-     * @return The buffer with the mixed signal.
      */
-    private static double[][] mixBuffers(double[][][] buffers, int bufferSize) {
-        double[][] mixedBuffers = new double[2][bufferSize];
-        for (int i = 0; i < bufferSize; i++) {
-            for (int j = 0; j < buffers.length; j++) {
-                if(i < buffers[j][0].length) {
-                    mixedBuffers[0][i] += buffers[j][0][i]/16;
-                    mixedBuffers[1][i] += buffers[j][1][i]/16;
-                }
-            }
+    private void addReturn(double[][] buffer, double[][] effectReturn, int bufferSize) {
+        if (TailTracker.isSilent(effectReturn[0], bufferSize) && TailTracker.isSilent(effectReturn[1], bufferSize)) {
+            return;
         }
-        return mixedBuffers;
+        kernels.mixInto(buffer[0], 0, effectReturn[0], 1, bufferSize);
+        kernels.mixInto(buffer[1], 0, effectReturn[1], 1, bufferSize);
     }
 
     /**
-     * Stops streaming the sound to the sound card.
+     * Stops streaming the sound to the sound card and stops the threads generating the voices.
      */
     public void finishWork() {
         keepBuffering = false;
         converter.stopStreaming();
+        if (parallelVoiceRenderer != null) {
+            parallelVoiceRenderer.shutdown();
+        }
+        convolutionReverb.shutdown();
     }
 
     /**
-     * Continuous process of buffering the sound:
-     * 1. Add voices that have been recently triggered.
-     * 2. Remove the voices that have been finished.
-     * 3. Gather the buffers from all the existing voices.
-     * 4. Mix all the voice buffers.
-     * 5. Post-process the mixed buffers (reverb, delay, volume).
-     * 5. Send the processed sound to the output.
+     * Creates the next buffer of sound:
+     * 1. Take the events sent by other threads (and by the event source, which is asked for the events
+     *    of this buffer first).
+     * 2. Split the buffer at the positions of the events. For every slice:
+     *    a. Handle the events: start and release the notes (stealing the voices if needed).
+     *    b. Remove the voices that have been finished.
+     *    c. Gather the buffers from all the existing voices.
+     *    d. Mix all the voice buffers into the slice.
+     *    (With a voice bank, the bank generates all the voices straight into the slice instead.)
+     *    In the multi-timbral mode steps b - d are done by every part with voices, into the part buffer,
+     *    which is then mixed into the main bus and the send buses.
+     * 3. Post-process the mixed buffers (delay, reverb, convolution reverb, volume).
+     * That way the voices start and get released at the exact frame, no matter how big the buffer is.
+     * All the steps work on buffers owned by this synthesizer (and its modules), so buffering
+     * does not allocate any memory once the voices are playing.
+     * The time of every step is recorded in the {@link RenderMetrics}.
+     * @param bufferSize The number of frames to be created (at most {@link Converter#MAX_BUFFER_SIZE}).
+     * @return The processed buffer. It is reused by the next call, so it has to be consumed before that.
+     */
+    public double[][] renderBuffer(int bufferSize) {
+        long start = System.nanoTime();
+        int maxVoiceCount = 0;
+        EventSource source = eventSource;
+        if (source != null) {
+            source.scheduleEvents(framePosition, bufferSize);
+        }
+        takeEvents();
+        for (int i = 0; i < bufferSize; i++) {
+            mixBuffer[0][i] = 0;
+            mixBuffer[1][i] = 0;
+        }
+        boolean multitimbral = parts.length > 1;
+        if (multitimbral) {
+            Arrays.fill(delayBus[0], 0, bufferSize, 0);
+            Arrays.fill(reverbBus[0], 0, bufferSize, 0);
+            Arrays.fill(reverbBus[1], 0, bufferSize, 0);
+        }
+        long firstFrame = framePosition;
+        modulator.update(firstFrame);
+        int offset = 0;
+        while (offset < bufferSize) {
+            handleEvents(firstFrame + offset);
+            int end = bufferSize;
+            if (pendingEventCount > 0) {
+                end = (int) Math.min(bufferSize, pendingEvents[0].getFrame() - firstFrame);
+            }
+            if (!multitimbral) {
+                // The voices are mono: the left channel is copied into the right one after the loop.
+                maxVoiceCount = Math.max(maxVoiceCount, parts[0].render(mixBuffer[0], offset, end - offset));
+                offset = end;
+                continue;
+            }
+            int voiceCount = 0;
+            for (Part part : parts) {
+                // The gains follow the mixer events handled above from their exact frames.
+                part.updateGains(firstFrame + offset);
+                if (!part.isPlaying()) {
+                    continue;
+                }
+                Arrays.fill(partBuffer, offset, end, 0);
+                voiceCount += part.render(partBuffer, offset, end - offset);
+                part.mixInto(partBuffer, offset, end - offset, firstFrame + offset, mixBuffer, delayBus[0], reverbBus);
+            }
+            maxVoiceCount = Math.max(maxVoiceCount, voiceCount);
+            offset = end;
+        }
+        if (!multitimbral) {
+            System.arraycopy(mixBuffer[0], 0, mixBuffer[1], 0, bufferSize);
+        }
+        framePosition = firstFrame + bufferSize;
+        createPostProcessedBuffer(mixBuffer, bufferSize, firstFrame);
+        renderMetrics.finishBlock(bufferSize, System.nanoTime() - start, maxVoiceCount);
+        return mixBuffer;
+    }
+
+    /**
+     * Creates the next buffer of sound and streams it into the audio sink
+     * (which has to be opened with {@link Converter#startStreaming()} first).
+     * @param bufferSize The number of frames to be created (at most {@link Converter#MAX_BUFFER_SIZE}).
+     */
+    public void streamNextBuffer(int bufferSize) {
+        double[][] buffer = renderBuffer(bufferSize);
+        long start = System.nanoTime();
+        converter.streamBuffer(buffer, bufferSize);
+        renderMetrics.recordStream(System.nanoTime() - start);
+    }
+
+    /**
+     * Continuous process of buffering the sound: creating the next buffer
+     * and sending the processed sound to the output.
+     * A sink that isn't played in real time (a file, the memory) doesn't block, so the buffers are paced
+     * to the clock instead: the played notes land where they are heard and the file grows in real time.
+     * Use the {@link synthesizer.OfflineRenderer} to render faster than real time.
+     * If the audio sink cannot be opened, the error is logged and nothing is buffered.
      */
     @Override
     public void run() {
-        double[][][] allVoiceBuffers;
+        try {
+            converter.startStreaming();
+        } catch (IOException ex) {
+            Logger.getLogger(Synthesizer.class.getName()).log(Level.SEVERE, null, ex);
+            return;
+        }
+        boolean paced = !converter.getSink().isRealTime();
+        long startTime = System.nanoTime();
+        long startFrame = framePosition;
         keepBuffering = true;
         while (keepBuffering) {
-            int bufferSize = converter.getBufferSize();
-            acceptNewVoices();
-            removeFinishedVoices();
-            allVoiceBuffers = gatherAllVoices(bufferSize);
-            double[][] mixedVoicesBuffer = mixBuffers(allVoiceBuffers, bufferSize);
-            double[][] postProcessedBuffer = createPostProcessedBuffer(mixedVoicesBuffer);
-            converter.streamBuffer(postProcessedBuffer);
+            int bufferSize = Math.min(converter.getBufferSize(), Converter.MAX_BUFFER_SIZE);
+            streamNextBuffer(bufferSize);
+            if (!paced) {
+                continue;
+            }
+            long dueTime = startTime + (framePosition - startFrame) * 1000000000L / Converter.SAMPLE_RATE;
+            long now = System.nanoTime();
+            if (now - dueTime > bufferSize * 1000000000L / Converter.SAMPLE_RATE) {
+                // More than a buffer late (e.g. a slow buffer): start counting anew instead of rushing to catch up.
+                startTime = now;
+                startFrame = framePosition;
+            }
+            while (keepBuffering && (now = System.nanoTime()) < dueTime) {
+                LockSupport.parkNanos(this, dueTime - now);
+            }
         }
     }
 
+    /**
+     * Converts the name of a voice stealing policy ("oldest", "quietest" or "released") into its constant.
+     * @param name The name of the policy.
+     * @return The voice stealing policy (one of the STEAL constants), STEAL_RELEASED_FIRST for unknown names.
+     */
+    public static int parseVoiceStealing(String name) {
+        return switch (name) {
+            case "oldest" -> STEAL_OLDEST;
+            case "quietest" -> STEAL_QUIETEST;
+            default -> STEAL_RELEASED_FIRST;
+        };
+    }
+
     /**
      * Get the delay effect used to process the signal of this synthesizer.
      * @return The delay effect used to process the signal of this synthesizer.
@@ -204,29 +961,63 @@ public class Synthesizer implements Runnable {
     }
 
     /**
-     * Get the envelope settings of the voices generated by this synthesizer.
-     * @return The envelope settings of the voices played by this synthesizer.
+     * Get the convolution reverberation effect used to process the signal of this synthesizer.
+     * @return The convolution reverberation effect used to process the signal of this synthesizer.
+     */
+    public ConvolutionReverb getConvolutionReverb() {
+        return convolutionReverb;
+    }
+
+    /**
+     * Get the envelope settings of the voices of the first part (the only one, unless the synthesizer
+     * is multi-timbral).
+     * @return The envelope settings of the voices played by the first part.
      */
     public EnvelopeSettings getEnvelopeSettings() {
-        return envelopeSettings;
+        return parts[0].getEnvelopeSettings();
+    }
+
+    /**
+     * Get the settings of the modulation (LFOs, the modulation envelope and the modulation matrix).
+     * @return The settings of the modulation of this synthesizer.
+     */
+    public ModulationSettings getModulationSettings() {
+        return modulationSettings;
     }
 
     /**
-     * Get the settings of the oscillators that generate sound for this synthesizer.
-     * @return The settings of the oscillators that generate sound for this synthesizer.
+     * Get the object that calculates the modulation of this synthesizer (used by the voices).
+     * @return The modulator of this synthesizer.
+     */
+    public Modulator getModulator() {
+        return modulator;
+    }
+
+    /**
+     * Get the settings of the oscillators of the first part (the only one, unless the synthesizer
+     * is multi-timbral).
+     * @return The settings of the oscillators that generate sound for the first part.
      */
     public OscillatorSettings getOscillatorSettings() {
-        return oscillatorSettings;
+        return parts[0].getOscillatorSettings();
     }
 
     /**
-     * Get the converter that is going to stream the signal from this synthesizer to a sound card.
-     * @return The converter that is going to stream the signal from this synthesizer to a sound card.
+     * Get the converter that is going to stream the signal from this synthesizer to an audio sink.
+     * @return The converter that is going to stream the signal from this synthesizer to an audio sink.
      */
     public Converter getConverter() {
         return converter;
     }
 
+    /**
+     * Returns the timings of the synthesis (per stage and per buffer), the late buffers and the voice counts.
+     * @return The metrics of this synthesizer.
+     */
+    public RenderMetrics getRenderMetrics() {
+        return renderMetrics;
+    }
+
     /**
      * Returns the object responsible for controlling the volume of this synthesizer.
      * @return The object responsible for controlling the volume of this synthesizer.
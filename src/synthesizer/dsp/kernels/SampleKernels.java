@@ -0,0 +1,101 @@
+package synthesizer.dsp.kernels;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class holds the per-sample loops that take most of the processor time of a voice:
+ * generating the direct waveforms, mixing buffers and changing their gain.
+ *
+ * There are two implementations: {@link ScalarKernels}, which processes one sample at a time and works
+ * on every JVM, and the vector one, which processes several samples per instruction with the incubating
+ * Vector API (jdk.incubator.vector). The vector implementation is compiled from a separate source root,
+ * because the module is only available (as an incubator) since JDK 16 and has to be added explicitly.
+ * It is used when the "synthesizer.simd" system property is true and the module is present,
+ * otherwise the scalar implementation is used.
+ *
+ * @author Marek Bobrowski
+ */
+public abstract class SampleKernels {
+    /**
+     * The name of the class of the vector implementation.
+     */
+    private static final String VECTOR_KERNELS_CLASS = "synthesizer.dsp.kernels.VectorKernels";
+
+    /**
+     * The implementation selected with the "synthesizer.simd" system property.
+     */
+    private static final SampleKernels INSTANCE = create(Boolean.getBoolean("synthesizer.simd"));
+
+    /**
+     * Returns the implementation selected with the "synthesizer.simd" system property.
+     * @return The selected implementation.
+     */
+    public static SampleKernels getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Creates an implementation of the kernels.
+     * If the vector implementation is requested but cannot be loaded (the class hasn't been compiled
+     * or the jdk.incubator.vector module hasn't been added), the reason is logged and the scalar one is returned.
+     * @param simd True for the vector implementation, false for the scalar one.
+     * @return The implementation of the kernels.
+     */
+    public static SampleKernels create(boolean simd) {
+        if (simd) {
+            try {
+                return (SampleKernels) Class.forName(VECTOR_KERNELS_CLASS).getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError ex) {
+                Logger.getLogger(SampleKernels.class.getName()).log(Level.WARNING,
+                        "The vector kernels are not available ({0}), falling back to the scalar ones", ex.toString());
+            }
+        }
+        return new ScalarKernels();
+    }
+
+    /**
+     * Returns the name of this implementation (for logging and benchmarks).
+     * @return The name of this implementation.
+     */
+    public abstract String getName();
+
+    /**
+     * Fills the output with a directly calculated waveform.
+     * @param waveform The number of the waveform (0 - sine, 1 - triangle, 2 - sawtooth, 3 - square).
+     * @param phase The phase of the first sample (in radians, within [0, 2 * PI]).
+     * @param increment The increase of the phase per sample (in radians).
+     * @param output The array the samples will be written into.
+     * @param length The number of samples.
+     * @return The phase of the sample following the last one (in radians, within [0, 2 * PI]).
+     */
+    public abstract double generateWaveform(int waveform, double phase, double increment,
+                                            double[] output, int length);
+
+    /**
+     * Adds the input multiplied by the gain to a part of the output: output[offset + i] += input[i] * gain.
+     * @param output The array the input is added to.
+     * @param offset The position in the output of the first sample.
+     * @param input The array of the samples to be added.
+     * @param gain The gain of the input.
+     * @param length The number of samples.
+     */
+    public abstract void mixInto(double[] output, int offset, double[] input, double gain, int length);
+
+    /**
+     * Multiplies the samples by the gain (in place).
+     * @param buffer The samples.
+     * @param gain The gain.
+     * @param length The number of samples.
+     */
+    public abstract void scale(double[] buffer, double gain, int length);
+
+    /**
+     * Mixes two signals into the first one: first[i] = first[i] * (1 - mix) + second[i] * mix.
+     * @param first The first signal, replaced with the mix.
+     * @param second The second signal.
+     * @param mix The balance between the signals (0 - only the first one, 1 - only the second one).
+     * @param length The number of samples.
+     */
+    public abstract void crossfade(double[] first, double[] second, double mix, int length);
+}
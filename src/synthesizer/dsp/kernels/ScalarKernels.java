@@ -0,0 +1,135 @@
+package synthesizer.dsp.kernels;
+
+/**
+ * The implementation of the {@link SampleKernels} that processes one sample at a time.
+ *
+ * @author Marek Bobrowski
+ */
+public class ScalarKernels extends SampleKernels {
+    /**
+     * Empty constructor.
+     */
+    public ScalarKernels() {
+    }
+
+    @Override
+    public String getName() {
+        return "scalar";
+    }
+
+    @Override
+    public double generateWaveform(int waveform, double phase, double increment, double[] output, int length) {
+        return switch (waveform) {
+            case 1 -> generateTriangle(phase, increment, output, length);
+            case 2 -> generateSawtooth(phase, increment, output, length);
+            case 3 -> generateSquare(phase, increment, output, length);
+            /* 0 (default) - sine wave */
+            default -> generateSine(phase, increment, output, length);
+        };
+    }
+
+    @Override
+    public void mixInto(double[] output, int offset, double[] input, double gain, int length) {
+        for (int i = 0; i < length; i++) {
+            output[offset + i] += input[i] * gain;
+        }
+    }
+
+    @Override
+    public void scale(double[] buffer, double gain, int length) {
+        for (int i = 0; i < length; i++) {
+            buffer[i] *= gain;
+        }
+    }
+
+    @Override
+    public void crossfade(double[] first, double[] second, double mix, int length) {
+        for (int i = 0; i < length; i++) {
+            first[i] = first[i] * (1 - mix) + second[i] * mix;
+        }
+    }
+
+    /**
+     * Fills the output with a sinusoidal signal.
+     * @param phase The phase of the first sample.
+     * @param increment The increase of the phase per sample.
+     * @param output The array that the samples will be written into.
+     * @param length The number of samples.
+     * @return The phase of the next sample.
+     */
+    private static double generateSine(double phase, double increment, double[] output, int length) {
+        for (int i = 0; i < length; i++) {
+            output[i] = Math.sin(phase);
+            phase += increment;
+            if (phase > 2 * Math.PI) {
+                phase = phase - (2 * Math.PI);
+            }
+        }
+        return phase;
+    }
+
+    /**
+     * Fills the output with a triangle signal.
+     * @param phase The phase of the first sample.
+     * @param increment The increase of the phase per sample.
+     * @param output The array that the samples will be written into.
+     * @param length The number of samples.
+     * @return The phase of the next sample.
+     */
+    private static double generateTriangle(double phase, double increment, double[] output, int length) {
+        for (int i = 0; i < length; i++) {
+            if (phase < Math.PI) {
+                output[i] = - 1 + (2 / Math.PI) * phase;
+            } else {
+                output[i] = 3 - (2 / Math.PI) * phase;
+            }
+            phase += increment;
+            if (phase > 2 * Math.PI) {
+                phase = phase - (2 * Math.PI);
+            }
+        }
+        return phase;
+    }
+
+    /**
+     * Fills the output with a sawtooth signal.
+     * @param phase The phase of the first sample.
+     * @param increment The increase of the phase per sample.
+     * @param output The array that the samples will be written into.
+     * @param length The number of samples.
+     * @return The phase of the next sample.
+     */
+    private static double generateSawtooth(double phase, double increment, double[] output, int length) {
+        for (int i = 0; i < length; i++) {
+            output[i] = 1 - (1 / Math.PI * phase);
+            phase += increment;
+            if (phase > 2 * Math.PI) {
+                phase = phase - (2 * Math.PI);
+            }
+        }
+        return phase;
+    }
+
+    /**
+     * Fills the output with a square signal.
+     * @param phase The phase of the first sample.
+     * @param increment The increase of the phase per sample.
+     * @param output The array that the samples will be written into.
+     * @param length The number of samples.
+     * @return The phase of the next sample.
+     */
+    private static double generateSquare(double phase, double increment, double[] output, int length) {
+        for (int i = 0; i < length; i++) {
+            if (phase < Math.PI) {
+                output[i] = 1;
+            } else {
+                output[i] = -1;
+            }
+            phase += increment;
+            if (phase > 2 * Math.PI) {
+                phase = phase - (2 * Math.PI);
+            }
+        }
+        return phase;
+    }
+}
@@ -0,0 +1,355 @@
+package synthesizer.dsp.metrics;
+
+import synthesizer.dsp.Converter;
+import synthesizer.dsp.output.RenderAheadSink;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class collects the timings of the synthesis: how long every stage (generating the voices, mixing them,
+ * the effects, streaming) takes per buffer, how many buffers are late and how many voices are playing.
+ * The synthesis thread is the only one that records the values, and recording doesn't allocate memory,
+ * so the metrics can stay on all the time. Any other thread can read them,
+ * for example through JMX after {@link #register()}.
+ *
+ * @author Marek Bobrowski
+ */
+public class RenderMetrics implements RenderMetricsMXBean {
+    /**
+     * The name this object is registered under in the platform MBean server.
+     */
+    public static final String OBJECT_NAME = "synthesizer:type=RenderMetrics";
+
+    /**
+     * The stage of generating the voice buffers.
+     */
+    public static final int GATHER = 0;
+
+    /**
+     * The stage of mixing the voice buffers.
+     */
+    public static final int MIX = 1;
+
+    /**
+     * The stage of the delay effect.
+     */
+    public static final int DELAY = 2;
+
+    /**
+     * The stage of the reverberation effect.
+     */
+    public static final int REVERB = 3;
+
+    /**
+     * The stage of the output volume.
+     */
+    public static final int VOLUME = 4;
+
+    /**
+     * The stage of converting the buffer and writing it into the audio sink.
+     */
+    public static final int STREAM = 5;
+
+    /**
+     * The stage of the convolution reverberation effect.
+     */
+    public static final int CONVOLUTION = 6;
+
+    /**
+     * The names of the stages, in the order of their constants.
+     */
+    private static final String[] STAGE_NAMES = {"gather", "mix", "delay", "reverb", "volume", "stream",
+            "convolution"};
+
+    /**
+     * How much a single buffer changes the smoothed DSP load.
+     */
+    private static final double LOAD_SMOOTHING = 0.05;
+
+    /**
+     * The histograms of the times of the stages.
+     */
+    private final TimingHistogram[] stageHistograms = new TimingHistogram[STAGE_NAMES.length];
+
+    /**
+     * The times of the stages of the current buffer (a stage can run several times per buffer).
+     */
+    private final long[] currentStageTimes = new long[STAGE_NAMES.length];
+
+    /**
+     * The histogram of the times of creating the whole buffers (without streaming).
+     */
+    private final TimingHistogram blockHistogram = new TimingHistogram();
+
+    /**
+     * The number of buffers that took longer to create than they last.
+     */
+    private volatile long lateBlockCount = 0;
+
+    /**
+     * The smoothed DSP load.
+     */
+    private volatile double dspLoad = 0;
+
+    /**
+     * The number of voices generated in the last buffer.
+     */
+    private volatile int activeVoices = 0;
+
+    /**
+     * The largest number of voices generated in one buffer.
+     */
+    private volatile int maxActiveVoices = 0;
+
+    /**
+     * The number of events that couldn't be sent to the synthesis thread, because its queue was full.
+     */
+    private final AtomicLong droppedEventCount = new AtomicLong();
+
+    /**
+     * The number of underruns of the render-ahead sink at the time of the last reset.
+     */
+    private volatile long underrunOffset = 0;
+
+    /**
+     * Tells if the values should be cleared before the next buffer.
+     */
+    private volatile boolean resetRequested = false;
+
+    /**
+     * The render-ahead sink whose underruns and fill level are reported, or null.
+     */
+    private volatile RenderAheadSink renderAheadSink;
+
+    /**
+     * Creates the histograms.
+     */
+    public RenderMetrics() {
+        for (int i = 0; i < stageHistograms.length; i++) {
+            stageHistograms[i] = new TimingHistogram();
+        }
+    }
+
+    /**
+     * Adds time to a stage of the current buffer. Called by the synthesis thread.
+     * @param stage The stage (one of the constants declared in this class).
+     * @param nanos The time in nanoseconds.
+     */
+    public void addStageTime(int stage, long nanos) {
+        currentStageTimes[stage] += nanos;
+    }
+
+    /**
+     * Records the times of the current buffer and starts the next one. Called by the synthesis thread.
+     * @param bufferSize The number of frames of the buffer.
+     * @param renderNanos The time of creating the buffer (without streaming it) in nanoseconds.
+     * @param voiceCount The number of voices generated in the buffer.
+     */
+    public void finishBlock(int bufferSize, long renderNanos, int voiceCount) {
+        if (resetRequested) {
+            clear();
+        }
+        for (int i = 0; i < currentStageTimes.length; i++) {
+            if (i == STREAM) {
+                // streaming is recorded by recordStream, after the buffer has been finished
+                continue;
+            }
+            stageHistograms[i].record(currentStageTimes[i]);
+            currentStageTimes[i] = 0;
+        }
+        blockHistogram.record(renderNanos);
+        double blockNanos = bufferSize * 1e9 / Converter.SAMPLE_RATE;
+        if (renderNanos > blockNanos) {
+            lateBlockCount++;
+        }
+        dspLoad += (renderNanos / blockNanos - dspLoad) * LOAD_SMOOTHING;
+        activeVoices = voiceCount;
+        if (voiceCount > maxActiveVoices) {
+            maxActiveVoices = voiceCount;
+        }
+    }
+
+    /**
+     * Counts an event that couldn't be sent to the synthesis thread, because its queue was full.
+     * Called by any thread.
+     */
+    public void recordDroppedEvent() {
+        droppedEventCount.incrementAndGet();
+    }
+
+    /**
+     * Records the time of streaming a buffer. Called by the synthesis thread.
+     * @param nanos The time in nanoseconds.
+     */
+    public void recordStream(long nanos) {
+        stageHistograms[STREAM].record(nanos);
+    }
+
+    /**
+     * Sets the render-ahead sink whose underruns and fill level are reported.
+     * @param renderAheadSink The render-ahead sink, or null.
+     */
+    public void setRenderAheadSink(RenderAheadSink renderAheadSink) {
+        this.renderAheadSink = renderAheadSink;
+        underrunOffset = renderAheadSink == null ? 0 : renderAheadSink.getUnderrunCount();
+    }
+
+    /**
+     * Registers this object in the platform MBean server under the name {@value #OBJECT_NAME}.
+     * If it cannot be registered (for example because another synthesizer has already been registered),
+     * the error is logged.
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException ex) {
+            Logger.getLogger(RenderMetrics.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * Removes this object from the platform MBean server, if it has been registered.
+     */
+    public void unregister() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+        } catch (JMException ex) {
+            Logger.getLogger(RenderMetrics.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * Returns the histogram of the times of a stage.
+     * @param stage The stage (one of the constants declared in this class).
+     * @return The histogram of the times of the stage.
+     */
+    public TimingHistogram getStageHistogram(int stage) {
+        return stageHistograms[stage];
+    }
+
+    /**
+     * Returns the histogram of the times of creating the whole buffers (without streaming).
+     * @return The histogram of the times of creating the buffers.
+     */
+    public TimingHistogram getBlockHistogram() {
+        return blockHistogram;
+    }
+
+    @Override
+    public long getBlockCount() {
+        return blockHistogram.getCount();
+    }
+
+    @Override
+    public long getLateBlockCount() {
+        return lateBlockCount;
+    }
+
+    @Override
+    public long getUnderrunCount() {
+        RenderAheadSink sink = renderAheadSink;
+        return sink == null ? 0 : sink.getUnderrunCount() - underrunOffset;
+    }
+
+    @Override
+    public long getXrunCount() {
+        return getLateBlockCount() + getUnderrunCount();
+    }
+
+    @Override
+    public double getXrunRate() {
+        long blockCount = getBlockCount();
+        return blockCount == 0 ? 0 : (double) getXrunCount() / blockCount;
+    }
+
+    @Override
+    public long getDroppedEventCount() {
+        return droppedEventCount.get();
+    }
+
+    @Override
+    public double getDspLoad() {
+        return dspLoad;
+    }
+
+    @Override
+    public double getMeanBlockTimeMicros() {
+        return blockHistogram.getMean() / 1000;
+    }
+
+    @Override
+    public double getP99BlockTimeMicros() {
+        return blockHistogram.getPercentile(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getMaxBlockTimeMicros() {
+        return blockHistogram.getMax() / 1000.0;
+    }
+
+    @Override
+    public int getActiveVoices() {
+        return activeVoices;
+    }
+
+    @Override
+    public int getMaxActiveVoices() {
+        return maxActiveVoices;
+    }
+
+    @Override
+    public int getRenderAheadFillLevel() {
+        RenderAheadSink sink = renderAheadSink;
+        return sink == null ? 0 : sink.getFillLevel();
+    }
+
+    @Override
+    public Map<String, Double> getStageMeanMicros() {
+        Map<String, Double> means = new LinkedHashMap<>();
+        for (int i = 0; i < STAGE_NAMES.length; i++) {
+            means.put(STAGE_NAMES[i], stageHistograms[i].getMean() / 1000);
+        }
+        return means;
+    }
+
+    @Override
+    public Map<String, Double> getStageP99Micros() {
+        Map<String, Double> percentiles = new LinkedHashMap<>();
+        for (int i = 0; i < STAGE_NAMES.length; i++) {
+            percentiles.put(STAGE_NAMES[i], stageHistograms[i].getPercentile(0.99) / 1000.0);
+        }
+        return percentiles;
+    }
+
+    @Override
+    public void reset() {
+        resetRequested = true;
+    }
+
+    /**
+     * Clears all the recorded values. Called by the synthesis thread.
+     */
+    private void clear() {
+        resetRequested = false;
+        for (TimingHistogram histogram : stageHistograms) {
+            histogram.reset();
+        }
+        blockHistogram.reset();
+        lateBlockCount = 0;
+        dspLoad = 0;
+        maxActiveVoices = 0;
+        droppedEventCount.set(0);
+        RenderAheadSink sink = renderAheadSink;
+        underrunOffset = sink == null ? 0 : sink.getUnderrunCount();
+    }
+}
@@ -0,0 +1,109 @@
+package synthesizer.dsp.metrics;
+
+import java.util.Map;
+
+/**
+ * The management interface of the {@link RenderMetrics}, registered in the platform MBean server
+ * under the name {@value RenderMetrics#OBJECT_NAME}. All the times are in microseconds.
+ *
+ * @author Marek Bobrowski
+ */
+public interface RenderMetricsMXBean {
+    /**
+     * Returns the number of buffers created since the start (or the last reset).
+     * @return The number of buffers created.
+     */
+    long getBlockCount();
+
+    /**
+     * Returns the number of buffers that took longer to create than they last when played.
+     * @return The number of late buffers.
+     */
+    long getLateBlockCount();
+
+    /**
+     * Returns the number of times the device of the render-ahead sink ran out of sound
+     * (0 if the sound isn't created ahead).
+     * @return The number of underruns.
+     */
+    long getUnderrunCount();
+
+    /**
+     * Returns the number of xruns: the late buffers and the underruns.
+     * @return The number of xruns.
+     */
+    long getXrunCount();
+
+    /**
+     * Returns the number of xruns per created buffer.
+     * @return The xrun rate (0 - no xruns, 1 - every buffer).
+     */
+    double getXrunRate();
+
+    /**
+     * Returns the number of events (notes, controllers) that were dropped, because the queue of the synthesis
+     * thread was full.
+     * @return The number of dropped events.
+     */
+    long getDroppedEventCount();
+
+    /**
+     * Returns the DSP load: the time of creating a buffer divided by the time it lasts when played,
+     * smoothed over the recent buffers.
+     * @return The DSP load (1 means the synthesizer has just kept up with the output).
+     */
+    double getDspLoad();
+
+    /**
+     * Returns the mean time of creating a buffer (without streaming it).
+     * @return The mean time of creating a buffer.
+     */
+    double getMeanBlockTimeMicros();
+
+    /**
+     * Returns the 99th percentile of the time of creating a buffer (without streaming it).
+     * @return The 99th percentile of the time of creating a buffer.
+     */
+    double getP99BlockTimeMicros();
+
+    /**
+     * Returns the longest time of creating a buffer (without streaming it).
+     * @return The longest time of creating a buffer.
+     */
+    double getMaxBlockTimeMicros();
+
+    /**
+     * Returns the number of voices generated in the last buffer.
+     * @return The number of active voices.
+     */
+    int getActiveVoices();
+
+    /**
+     * Returns the largest number of voices generated in one buffer.
+     * @return The largest number of active voices.
+     */
+    int getMaxActiveVoices();
+
+    /**
+     * Returns the number of buffers waiting in the render-ahead ring (0 if the sound isn't created ahead).
+     * @return The fill level of the render-ahead ring.
+     */
+    int getRenderAheadFillLevel();
+
+    /**
+     * Returns the mean time per buffer of every stage of the synthesis, by the stage names.
+     * @return The mean times of the stages.
+     */
+    Map<String, Double> getStageMeanMicros();
+
+    /**
+     * Returns the 99th percentile of the time per buffer of every stage of the synthesis, by the stage names.
+     * @return The 99th percentiles of the times of the stages.
+     */
+    Map<String, Double> getStageP99Micros();
+
+    /**
+     * Removes all the recorded times and counts. The synthesis thread clears them before its next buffer.
+     */
+    void reset();
+}
@@ -0,0 +1,164 @@
+package synthesizer.dsp.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations (in nanoseconds) with logarithmic buckets: every power of two is split into
+ * 8 buckets, so every recorded value is known with the precision of 12.5%.
+ *
+ * The histogram is written by one thread (the synthesis thread) and can be read by any other thread
+ * (for example the JMX thread). Recording a value doesn't allocate memory and doesn't lock.
+ *
+ * @author Marek Bobrowski
+ */
+public class TimingHistogram {
+    /**
+     * The number of buckets every power of two is split into (as a power of two).
+     */
+    private static final int SUB_BUCKET_BITS = 3;
+
+    /**
+     * The number of buckets every power of two is split into.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The total number of buckets (enough for any positive long value).
+     */
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    /**
+     * The numbers of values recorded in the buckets.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * The number of recorded values.
+     */
+    private volatile long count = 0;
+
+    /**
+     * The sum of the recorded values.
+     */
+    private volatile long sum = 0;
+
+    /**
+     * The largest recorded value.
+     */
+    private volatile long max = 0;
+
+    /**
+     * Empty constructor.
+     */
+    public TimingHistogram() {
+    }
+
+    /**
+     * Records a duration. Can be called only by the thread that writes this histogram.
+     * @param nanos The duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        int index = bucketIndex(nanos);
+        counts.lazySet(index, counts.get(index) + 1);
+        sum += nanos;
+        if (nanos > max) {
+            max = nanos;
+        }
+        count++;
+    }
+
+    /**
+     * Returns the number of recorded values.
+     * @return The number of recorded values.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the mean of the recorded values (in nanoseconds).
+     * @return The mean of the recorded values, 0 if there are none.
+     */
+    public double getMean() {
+        long currentCount = count;
+        return currentCount == 0 ? 0 : (double) sum / currentCount;
+    }
+
+    /**
+     * Returns the largest recorded value (in nanoseconds).
+     * @return The largest recorded value.
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Returns the value (in nanoseconds) that is greater than or equal to the specified fraction of the recorded values.
+     * The result is the upper bound of the bucket that contains the percentile.
+     * @param fraction The fraction of the values (for example 0.99 for the 99th percentile).
+     * @return The percentile of the recorded values, 0 if there are none.
+     */
+    public long getPercentile(double fraction) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= threshold) {
+                return Math.min(bucketUpperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Removes all the recorded values. Should be called by the thread that writes this histogram
+     * (values recorded at the same time by another thread may be partially lost).
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    /**
+     * Calculates the index of the bucket the value belongs to.
+     * @param value The value (non-negative).
+     * @return The index of the bucket.
+     */
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Calculates the largest value that belongs to the bucket.
+     * @param index The index of the bucket.
+     * @return The largest value of the bucket.
+     */
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        long lowerBound = (1L << exponent) + (subBucket << (exponent - SUB_BUCKET_BITS));
+        return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
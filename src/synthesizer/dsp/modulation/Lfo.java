@@ -0,0 +1,79 @@
+package synthesizer.dsp.modulation;
+
+import synthesizer.dsp.Converter;
+
+/**
+ * A low-frequency oscillator evaluated at the control rate. Its value is a function of the frame position
+ * (counted from the start of the synthesis), so all the voices see the same LFO no matter when they
+ * are generated (or on which thread). When the rate changes, the LFO continues from its current phase.
+ *
+ * @author Marek Bobrowski
+ */
+public class Lfo {
+    /**
+     * The phase (a fraction of the cycle) at the anchor frame.
+     */
+    private double anchorPhase = 0;
+
+    /**
+     * The frame the phase is calculated from.
+     */
+    private long anchorFrame = 0;
+
+    /**
+     * The rate (in Hz).
+     */
+    private double rate = 0;
+
+    /**
+     * The waveform (numbered like the waveforms of the oscillators).
+     */
+    private int shape = 0;
+
+    /**
+     * Empty constructor.
+     */
+    public Lfo() {
+    }
+
+    /**
+     * Applies the settings of the LFO. Called by the synthesis thread at the start of every buffer.
+     * @param rate The rate (in Hz).
+     * @param shape The waveform (0 - sine, 1 - triangle, 2 - sawtooth, 3 - pulse).
+     * @param frame The position (in frames) of the start of the buffer.
+     */
+    public void update(double rate, int shape, long frame) {
+        if (rate != this.rate) {
+            anchorPhase = getPhase(frame);
+            anchorFrame = frame;
+            this.rate = rate;
+        }
+        this.shape = shape;
+    }
+
+    /**
+     * Returns the value of the LFO at the specified frame.
+     * @param frame The position (in frames) counted from the start of the synthesis.
+     * @return The value of the LFO (-1 to 1).
+     */
+    public double getValue(long frame) {
+        double phase = getPhase(frame);
+        return switch (shape) {
+            case 1 -> 1 - 4 * Math.abs(phase - 0.5);
+            case 2 -> 2 * phase - 1;
+            case 3 -> phase < 0.5 ? 1 : -1;
+            /* 0 (default) - sine wave */
+            default -> Math.sin(2 * Math.PI * phase);
+        };
+    }
+
+    /**
+     * Returns the phase of the LFO at the specified frame.
+     * @param frame The position (in frames) counted from the start of the synthesis.
+     * @return The phase (a fraction of the cycle, 0 to 1).
+     */
+    private double getPhase(long frame) {
+        double phase = anchorPhase + (frame - anchorFrame) * rate / Converter.SAMPLE_RATE;
+        return phase - Math.floor(phase);
+    }
+}
@@ -0,0 +1,139 @@
+package synthesizer.dsp.modulation;
+
+import synthesizer.dsp.Converter;
+import synthesizer.models.EnvelopeSettings;
+
+/**
+ * The modulation envelope of a voice: a linear ADSR envelope advanced at the control rate, so it costs
+ * a few operations per control tick instead of per sample. Unlike the {@link synthesizer.dsp.voice.EnvelopeGenerator},
+ * it doesn't end the voice.
+ *
+ * @author Marek Bobrowski
+ */
+public class ModulationEnvelope {
+    /**
+     * The attack segment.
+     */
+    private static final int ATTACK = 0;
+
+    /**
+     * The decay segment.
+     */
+    private static final int DECAY = 1;
+
+    /**
+     * The sustain segment.
+     */
+    private static final int SUSTAIN = 2;
+
+    /**
+     * The release segment.
+     */
+    private static final int RELEASE = 3;
+
+    /**
+     * The silence after the release segment.
+     */
+    private static final int FINISHED = 4;
+
+    /**
+     * The settings of the envelope.
+     */
+    private final EnvelopeSettings envelopeSettings;
+
+    /**
+     * The current segment.
+     */
+    private int stage = ATTACK;
+
+    /**
+     * The number of frames that have gone through the current segment.
+     */
+    private int position = 0;
+
+    /**
+     * The level of the envelope.
+     */
+    private double level = 0;
+
+    /**
+     * The level at the start of the release segment.
+     */
+    private double releaseLevel = 0;
+
+    /**
+     * Creates the envelope.
+     * @param envelopeSettings The settings of the envelope.
+     */
+    public ModulationEnvelope(EnvelopeSettings envelopeSettings) {
+        this.envelopeSettings = envelopeSettings;
+    }
+
+    /**
+     * Resets the envelope to the start of the attack (before a new note).
+     */
+    public void reset() {
+        stage = ATTACK;
+        position = 0;
+        level = 0;
+    }
+
+    /**
+     * Returns the level of the envelope.
+     * @return The level of the envelope (0 to 1).
+     */
+    public double getLevel() {
+        return level;
+    }
+
+    /**
+     * Moves the envelope forward by a number of frames.
+     * @param frames The number of frames (usually one control tick).
+     * @param released True if the note has been released.
+     */
+    public void advance(int frames, boolean released) {
+        if (released && stage < RELEASE) {
+            stage = RELEASE;
+            position = 0;
+            releaseLevel = level;
+        }
+        while (frames > 0 && stage != SUSTAIN && stage != FINISHED) {
+            int length = timeToFrames(switch (stage) {
+                case ATTACK -> envelopeSettings.getAttack();
+                case DECAY -> envelopeSettings.getDecay();
+                default -> envelopeSettings.getRelease();
+            });
+            int step = Math.min(frames, Math.max(0, length - position));
+            position += step;
+            frames -= step;
+            if (position >= length) {
+                stage++;
+                position = 0;
+                level = switch (stage) {
+                    case DECAY -> 1;
+                    case SUSTAIN -> envelopeSettings.getSustain();
+                    default -> 0;
+                };
+            } else {
+                double progress = (double) position / length;
+                level = switch (stage) {
+                    case ATTACK -> progress;
+                    case DECAY -> 1 + (envelopeSettings.getSustain() - 1) * progress;
+                    default -> releaseLevel * (1 - progress);
+                };
+            }
+        }
+        if (stage == SUSTAIN) {
+            level = envelopeSettings.getSustain();
+        }
+    }
+
+    /**
+     * Converts time into the number of frames.
+     * @param time The time in seconds.
+     * @return The number of frames.
+     */
+    private static int timeToFrames(double time) {
+        return (int) (time * Converter.SAMPLE_RATE);
+    }
+}
@@ -0,0 +1,182 @@
+package synthesizer.dsp.modulation;
+
+import synthesizer.models.ModulationSettings;
+
+/**
+ * This class calculates the modulation of a synthesizer at the control rate. At the start of every buffer
+ * the synthesis thread takes a snapshot of the {@link ModulationSettings} (the routes of the matrix, the LFOs
+ * and the control rate), so the settings can be changed by other threads and every buffer is calculated
+ * with one consistent set of routes. The snapshot is only read while the voices are generated,
+ * so the voices can use it from multiple threads.
+ *
+ * The control ticks are aligned to the multiples of the control rate (counted in frames from the start
+ * of the synthesis). The modulated values are calculated at the tick boundaries and the audio-rate loops
+ * interpolate linearly between them.
+ *
+ * @author Marek Bobrowski
+ */
+public class Modulator {
+    /**
+     * The settings of the modulation.
+     */
+    private final ModulationSettings settings;
+
+    /**
+     * The LFOs shared by all the voices.
+     */
+    private final Lfo[] lfos = new Lfo[ModulationSettings.LFO_COUNT];
+
+    /**
+     * The sources of the connected routes.
+     */
+    private final int[] sources = new int[ModulationSettings.ROUTE_COUNT];
+
+    /**
+     * The destinations of the connected routes.
+     */
+    private final int[] destinations = new int[ModulationSettings.ROUTE_COUNT];
+
+    /**
+     * The amounts of the connected routes.
+     */
+    private final double[] amounts = new double[ModulationSettings.ROUTE_COUNT];
+
+    /**
+     * The number of the connected routes.
+     */
+    private int routeCount = 0;
+
+    /**
+     * Tells which destinations are connected to any source.
+     */
+    private final boolean[] routed = new boolean[ModulationSettings.DESTINATION_COUNT];
+
+    /**
+     * Tells if any destination of the voices (pitch or mix of the oscillators) is connected.
+     */
+    private boolean voiceRouted = false;
+
+    /**
+     * The number of frames per control tick.
+     */
+    private int controlRate;
+
+    /**
+     * Creates the LFOs.
+     * @param settings The settings of the modulation.
+     */
+    public Modulator(ModulationSettings settings) {
+        this.settings = settings;
+        for (int i = 0; i < lfos.length; i++) {
+            lfos[i] = new Lfo();
+        }
+        controlRate = settings.getControlRate();
+    }
+
+    /**
+     * Takes the snapshot of the settings. Called by the synthesis thread at the start of every buffer.
+     * @param frame The position (in frames) of the start of the buffer.
+     */
+    public void update(long frame) {
+        controlRate = settings.getControlRate();
+        for (int i = 0; i < lfos.length; i++) {
+            lfos[i].update(settings.getLfoRate(i), settings.getLfoShape(i), frame);
+        }
+        routeCount = 0;
+        for (int i = 0; i < routed.length; i++) {
+            routed[i] = false;
+        }
+        for (int i = 0; i < ModulationSettings.ROUTE_COUNT; i++) {
+            int source = settings.getRouteSource(i);
+            int destination = settings.getRouteDestination(i);
+            double amount = settings.getRouteAmount(i);
+            if (source == ModulationSettings.SOURCE_NONE || destination <= ModulationSettings.DESTINATION_NONE
+                    || destination >= ModulationSettings.DESTINATION_COUNT || amount == 0) {
+                continue;
+            }
+            sources[routeCount] = source;
+            destinations[routeCount] = destination;
+            amounts[routeCount] = amount;
+            routeCount++;
+            routed[destination] = true;
+        }
+        voiceRouted = routed[ModulationSettings.DESTINATION_OSCILLATOR1_PITCH]
+                || routed[ModulationSettings.DESTINATION_OSCILLATOR2_PITCH]
+                || routed[ModulationSettings.DESTINATION_OSCILLATOR_MIX];
+    }
+
+    /**
+     * Returns the number of frames per control tick.
+     * @return The number of frames per control tick.
+     */
+    public int getControlRate() {
+        return controlRate;
+    }
+
+    /**
+     * Tells if a destination is connected to any source.
+     * @param destination The destination (one of the DESTINATION constants of {@link ModulationSettings}).
+     * @return True if the destination is modulated.
+     */
+    public boolean isRouted(int destination) {
+        return routed[destination];
+    }
+
+    /**
+     * Tells if any destination of the voices (pitch or mix of the oscillators) is connected to a source.
+     * Without such routes the voices are generated exactly as without the modulation.
+     * @return True if the voices are modulated.
+     */
+    public boolean hasVoiceRoutes() {
+        return voiceRouted;
+    }
+
+    /**
+     * Calculates the modulation of a destination: the sum of the sources connected to it, multiplied
+     * by the amounts of their routes.
+     * @param destination The destination (one of the DESTINATION constants of {@link ModulationSettings}).
+     * @param frame The position (in frames) counted from the start of the synthesis.
+     * @param envelopeLevel The level of the modulation envelope of the voice (0 for the effects).
+     * @return The value added to the destination.
+     */
+    public double getValue(int destination, long frame, double envelopeLevel) {
+        double value = 0;
+        for (int i = 0; i < routeCount; i++) {
+            if (destinations[i] != destination) {
+                continue;
+            }
+            double source = switch (sources[i]) {
+                case ModulationSettings.SOURCE_LFO1 -> lfos[0].getValue(frame);
+                case ModulationSettings.SOURCE_LFO2 -> lfos[1].getValue(frame);
+                case ModulationSettings.SOURCE_ENVELOPE -> envelopeLevel;
+                default -> 0;
+            };
+            value += source * amounts[i];
+        }
+        return value;
+    }
+
+    /**
+     * Fills an array with the modulation of a destination of the effects for every frame of a buffer.
+     * The values are calculated at the control tick boundaries and interpolated linearly in between.
+     * @param destination The destination (one of the DESTINATION constants of {@link ModulationSettings}).
+     * @param frame The position (in frames) of the start of the buffer.
+     * @param output The array the values will be written into.
+     * @param length The number of frames of the buffer.
+     */
+    public void fillValues(int destination, long frame, double[] output, int length) {
+        int done = 0;
+        double start = getValue(destination, frame, 0);
+        while (done < length) {
+            long tickFrame = frame + done;
+            int tickLength = Math.min(length - done, controlRate - (int) (tickFrame % controlRate));
+            double end = getValue(destination, tickFrame + tickLength, 0);
+            double step = (end - start) / tickLength;
+            for (int i = 0; i < tickLength; i++) {
+                output[done + i] = start + step * i;
+            }
+            start = end;
+            done += tickLength;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package synthesizer.dsp.output;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * This interface describes a destination of the sound created by the synthesizer, for example a sound card
+ * or a file. The {@link synthesizer.dsp.Converter} streams the converted buffers into the sink:
+ * 16-bit signed little-endian samples, 2 interleaved channels, {@link synthesizer.dsp.Converter#SAMPLE_RATE}
+ * frames per second.
+ *
+ * @author Marek Bobrowski
+ */
+public interface AudioSink {
+
+    /**
+     * Prepares the sink for accepting the sound (opens the device or the file).
+     * @throws IOException If the sink cannot be opened.
+     */
+    void open() throws IOException;
+
+    /**
+     * Writes the converted sound into the sink. Sinks connected to a device block until
+     * the sound has been accepted by the device.
+     * @param buffer The converted sound.
+     * @param offset The position in the buffer of the first byte to be written.
+     * @param length The number of bytes to be written.
+     */
+    void write(byte[] buffer, int offset, int length);
+
+    /**
+     * Closes the sink (the device or the file).
+     */
+    void close();
+
+    /**
+     * Returns the number of bytes that can be written into the sink without blocking.
+     * @return The number of bytes that can be written into the sink without blocking.
+     */
+    default int available() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns the size of the buffer of the sink that is played (or read) in real time: when {@link #available()}
+     * reaches it, the sink has nothing left to play. Valid after the sink has been opened.
+     * @return The size of the buffer in bytes, 0 if the sink isn't played in real time (e.g. a file).
+     */
+    default int getBufferSize() {
+        return 0;
+    }
+
+    /**
+     * Tells if the sink is played in real time, so writing into it blocks until the device has played
+     * enough of the sound. The synthesizer paces the sinks that aren't to the clock (see
+     * {@link synthesizer.dsp.Synthesizer#run()}).
+     * @return True if the sink is played in real time.
+     */
+    default boolean isRealTime() {
+        return getBufferSize() > 0;
+    }
+
+    /**
+     * Creates a sink according to its description:
+     * "line" - the default sound card,
+     * "null" - a sink that discards the sound,
+     * "memory" - an in-memory ring buffer,
+     * "wav:path" - a WAV file at the specified path.
+     * @param description The description of the sink.
+     * @return The described sink.
+     * @throws IllegalArgumentException If the description is unknown.
+     */
+    static AudioSink fromDescription(String description) {
+        if (description.startsWith("wav:")) {
+            return new WavFileSink(new File(description.substring(4)));
+        }
+        return switch (description) {
+            case "line" -> new LineSink();
+            case "null" -> new NullSink();
+            case "memory" -> new MemorySink(MemorySink.DEFAULT_CAPACITY);
+            default -> throw new IllegalArgumentException("Unknown audio sink: " + description);
+        };
+    }
+}
@@ -0,0 +1,89 @@
+package synthesizer.dsp.output;
+
+import synthesizer.dsp.Converter;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import java.io.IOException;
+
+/**
+ * A sink that streams the sound into the sound card through a {@link SourceDataLine}.
+ *
+ * @author Marek Bobrowski
+ */
+public class LineSink implements AudioSink {
+    /**
+     * The size of the buffer of the line (in bytes).
+     */
+    private static final int LINE_BUFFER_SIZE = 4096;
+
+    /**
+     * The object responsible for streaming ready buffers into the sound card.
+     */
+    private SourceDataLine line;
+
+    /**
+     * Empty constructor. The sound card is accessed when the sink is opened.
+     */
+    public LineSink() {
+    }
+
+    /**
+     * Creates a {@link AudioFormat} and a {@link SourceDataLine} objects for streaming the sound
+     * into the sound card.
+     * @throws IOException If there is no sound card that accepts the format of the synthesizer.
+     */
+    @Override
+    public void open() throws IOException {
+        AudioFormat audioFormat = new AudioFormat(Converter.SAMPLE_RATE, 16, 2, true, false);
+        try {
+            line = AudioSystem.getSourceDataLine(audioFormat);
+            line.open(audioFormat, LINE_BUFFER_SIZE);
+        } catch (LineUnavailableException | IllegalArgumentException ex) {
+            throw new IOException("The audio line is unavailable", ex);
+        }
+        line.start();
+    }
+
+    /**
+     * Streams the sound into the sound card. Blocks until all of it is accepted by the line.
+     * @param buffer The converted sound.
+     * @param offset The position in the buffer of the first byte to be written.
+     * @param length The number of bytes to be written.
+     */
+    @Override
+    public void write(byte[] buffer, int offset, int length) {
+        line.write(buffer, offset, length);
+    }
+
+    /**
+     * Closes the {@link SourceDataLine}.
+     */
+    @Override
+    public void close() {
+        if (line != null) {
+            line.close();
+        }
+    }
+
+    /**
+     * Returns the number of bytes that can be written into the line without blocking.
+     * @return The number of bytes that can be written into the line without blocking.
+     */
+    @Override
+    public int available() {
+        return line.available();
+    }
+
+    /**
+     * Returns the size of the buffer of the line (the line may have opened a different size than
+     * {@link #LINE_BUFFER_SIZE}).
+     * @return The size of the buffer of the line in bytes.
+     */
+    @Override
+    public int getBufferSize() {
+        return line.getBufferSize();
+    }
+}
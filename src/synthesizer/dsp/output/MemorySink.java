@@ -0,0 +1,143 @@
+package synthesizer.dsp.output;
+
+/**
+ * A sink that keeps the sound in memory, in a ring buffer of bytes. The synthesis thread writes into it
+ * and another thread (for example a test) reads the sound back.
+ *
+ * The buffer is lock-free for one writer and one reader: each side only moves its own position.
+ * The writer never blocks - if the reader doesn't keep up, the frames that don't fit are dropped (and counted).
+ * The reader isn't played in real time, so a drained ring doesn't count as an underrun
+ * ({@link #getBufferSize()} returns 0).
+ *
+ * @author Marek Bobrowski
+ */
+public class MemorySink implements AudioSink {
+    /**
+     * The default capacity of the ring buffer (10 seconds of sound).
+     */
+    public static final int DEFAULT_CAPACITY = 44100 * 4 * 10;
+
+    /**
+     * The number of bytes of one frame (two 16-bit samples). Only whole frames are written.
+     */
+    private static final int FRAME_SIZE = 4;
+
+    /**
+     * The ring buffer of the sound.
+     */
+    private final byte[] ring;
+
+    /**
+     * The total number of bytes written into the ring buffer. Moved only by the writer.
+     */
+    private volatile long writePosition = 0;
+
+    /**
+     * The total number of bytes read from the ring buffer. Moved only by the reader.
+     */
+    private volatile long readPosition = 0;
+
+    /**
+     * The number of bytes that have been dropped because the ring buffer was full.
+     */
+    private volatile long droppedBytes = 0;
+
+    /**
+     * Creates the ring buffer.
+     * @param capacity The capacity of the ring buffer in bytes.
+     */
+    public MemorySink(int capacity) {
+        ring = new byte[capacity];
+    }
+
+    /**
+     * Does nothing, this sink is always open.
+     */
+    @Override
+    public void open() {
+    }
+
+    /**
+     * Copies the sound into the ring buffer. The frames that don't fit are dropped.
+     * @param buffer The converted sound.
+     * @param offset The position in the buffer of the first byte to be written.
+     * @param length The number of bytes to be written.
+     */
+    @Override
+    public void write(byte[] buffer, int offset, int length) {
+        long position = writePosition;
+        int toWrite = (int) Math.min(length, ring.length - (position - readPosition));
+        // The reader can leave part of a frame in the ring, so the free space isn't always made of whole frames.
+        toWrite -= toWrite % FRAME_SIZE;
+        copy(buffer, offset, position, toWrite, true);
+        droppedBytes += length - toWrite;
+        writePosition = position + toWrite;
+    }
+
+    /**
+     * Reads the sound from the ring buffer.
+     * @param buffer The array the sound will be copied into.
+     * @param offset The position in the array of the first copied byte.
+     * @param length The maximal number of bytes to be read.
+     * @return The number of bytes that have been read.
+     */
+    public int read(byte[] buffer, int offset, int length) {
+        long position = readPosition;
+        int toRead = (int) Math.min(length, writePosition - position);
+        copy(buffer, offset, position, toRead, false);
+        readPosition = position + toRead;
+        return toRead;
+    }
+
+    /**
+     * Does nothing, this sink is always open.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Returns the number of bytes that can be written without dropping any of them.
+     * @return The number of bytes that can be written without dropping any of them.
+     */
+    @Override
+    public int available() {
+        return (int) (ring.length - (writePosition - readPosition));
+    }
+
+    /**
+     * Returns the number of bytes waiting to be read.
+     * @return The number of bytes waiting to be read.
+     */
+    public int getBytesToRead() {
+        return (int) (writePosition - readPosition);
+    }
+
+    /**
+     * Returns the number of bytes that have been dropped because the ring buffer was full.
+     * @return The number of dropped bytes.
+     */
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    /**
+     * Copies the bytes between an array and the ring buffer, wrapping around the end of the ring buffer.
+     * @param array The array.
+     * @param offset The position in the array.
+     * @param position The total position in the ring buffer.
+     * @param length The number of bytes to be copied.
+     * @param intoRing True to copy from the array into the ring buffer, false to copy the other way.
+     */
+    private void copy(byte[] array, int offset, long position, int length, boolean intoRing) {
+        int ringIndex = (int) (position % ring.length);
+        int firstPart = Math.min(length, ring.length - ringIndex);
+        if (intoRing) {
+            System.arraycopy(array, offset, ring, ringIndex, firstPart);
+            System.arraycopy(array, offset + firstPart, ring, 0, length - firstPart);
+        } else {
+            System.arraycopy(ring, ringIndex, array, offset, firstPart);
+            System.arraycopy(ring, 0, array, offset + firstPart, length - firstPart);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package synthesizer.dsp.output;
+
+/**
+ * A sink that discards the sound. It never blocks, so the synthesizer runs as fast as the processor allows,
+ * which is useful for measuring the performance of the synthesis.
+ *
+ * @author Marek Bobrowski
+ */
+public class NullSink implements AudioSink {
+    /**
+     * The number of bytes written into this sink.
+     */
+    private volatile long bytesWritten = 0;
+
+    /**
+     * Empty constructor.
+     */
+    public NullSink() {
+    }
+
+    /**
+     * Does nothing, this sink is always open.
+     */
+    @Override
+    public void open() {
+    }
+
+    /**
+     * Discards the sound, only counts the bytes.
+     * @param buffer The converted sound.
+     * @param offset The position in the buffer of the first byte to be written.
+     * @param length The number of bytes to be written.
+     */
+    @Override
+    public void write(byte[] buffer, int offset, int length) {
+        bytesWritten += length;
+    }
+
+    /**
+     * Does nothing, this sink is always open.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Returns the number of bytes written into this sink.
+     * @return The number of bytes written into this sink.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+}
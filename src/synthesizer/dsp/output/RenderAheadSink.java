@@ -0,0 +1,228 @@
+package synthesizer.dsp.output;
+
+import synthesizer.dsp.Converter;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A sink that lets the synthesizer create the sound a few buffers ahead of the device.
+ * The synthesis thread writes the converted buffers into a ring of preallocated blocks and a separate output thread
+ * moves them into the target sink (usually the {@link LineSink}), only as much as the target can accept without
+ * blocking. A buffer that takes unusually long to create (for example because of the garbage collector)
+ * is then covered by the blocks that are already waiting in the ring, instead of causing an underrun.
+ *
+ * The ring is lock-free: the synthesis thread only moves the write position and the output thread only moves
+ * the read position. The synthesis thread waits (parks) when the ring is full, which paces it to the device.
+ * The number of waiting blocks (the fill level) and the number of underruns can be read as metrics:
+ * more blocks ahead means more safety, but also more latency. An underrun is counted when the target has played
+ * everything written into it (all of its buffer, see {@link AudioSink#getBufferSize()}, is available),
+ * so the device is playing silence; a target that isn't played in real time never underruns.
+ *
+ * @author Marek Bobrowski
+ */
+public class RenderAheadSink implements AudioSink {
+    /**
+     * How long (in nanoseconds) a thread parks while waiting for the other one.
+     */
+    private static final long PARK_TIME = 200000;
+
+    /**
+     * The number of bytes of one frame (two 16-bit samples). The target accepts only whole frames.
+     */
+    private static final int FRAME_SIZE = 4;
+
+    /**
+     * The sink the sound is moved into by the output thread.
+     */
+    private final AudioSink target;
+
+    /**
+     * The blocks of the converted sound.
+     */
+    private final byte[][] blocks;
+
+    /**
+     * The numbers of bytes stored in the blocks.
+     */
+    private final int[] blockLengths;
+
+    /**
+     * The total number of blocks written into the ring. Moved only by the synthesis thread.
+     */
+    private volatile long writePosition = 0;
+
+    /**
+     * The total number of blocks moved from the ring into the target. Moved only by the output thread.
+     */
+    private volatile long readPosition = 0;
+
+    /**
+     * The number of times the target has run out of sound.
+     */
+    private volatile long underrunCount = 0;
+
+    /**
+     * Tells if the output thread should keep moving the sound.
+     */
+    private volatile boolean running = false;
+
+    /**
+     * The thread that moves the blocks from the ring into the target.
+     */
+    private Thread outputThread;
+
+    /**
+     * The thread that writes the blocks (the synthesis thread). Woken up when a block has been moved.
+     */
+    private volatile Thread writingThread;
+
+    /**
+     * Creates the ring of blocks.
+     * @param target The sink the sound will be moved into.
+     * @param blocksAhead The number of blocks that can be created ahead of the target.
+     */
+    public RenderAheadSink(AudioSink target, int blocksAhead) {
+        this.target = target;
+        blocks = new byte[blocksAhead][Converter.MAX_BUFFER_SIZE * 4];
+        blockLengths = new int[blocksAhead];
+    }
+
+    /**
+     * Opens the target and starts the output thread.
+     * @throws IOException If the target cannot be opened.
+     */
+    @Override
+    public void open() throws IOException {
+        target.open();
+        running = true;
+        outputThread = new Thread(this::moveBlocks);
+        outputThread.setName("Synth output");
+        outputThread.setPriority(Thread.MAX_PRIORITY);
+        outputThread.setDaemon(true);
+        outputThread.start();
+    }
+
+    /**
+     * Copies the sound into the next block of the ring. Waits if the ring is full.
+     * @param buffer The converted sound.
+     * @param offset The position in the buffer of the first byte to be written.
+     * @param length The number of bytes to be written (at most one buffer of {@link Converter#MAX_BUFFER_SIZE}).
+     */
+    @Override
+    public void write(byte[] buffer, int offset, int length) {
+        writingThread = Thread.currentThread();
+        long position = writePosition;
+        while (position - readPosition >= blocks.length) {
+            if (!running) {
+                return;
+            }
+            LockSupport.parkNanos(this, PARK_TIME);
+        }
+        int index = (int) (position % blocks.length);
+        System.arraycopy(buffer, offset, blocks[index], 0, length);
+        blockLengths[index] = length;
+        writePosition = position + 1;
+        LockSupport.unpark(outputThread);
+    }
+
+    /**
+     * Stops the output thread and closes the target. The blocks that are still in the ring are dropped.
+     */
+    @Override
+    public void close() {
+        running = false;
+        if (outputThread != null) {
+            LockSupport.unpark(outputThread);
+            try {
+                outputThread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        target.close();
+    }
+
+    /**
+     * Returns the number of bytes that can be written without waiting (the free blocks of the ring).
+     * @return The number of bytes that can be written without waiting.
+     */
+    @Override
+    public int available() {
+        return (int) (blocks.length - (writePosition - readPosition)) * Converter.MAX_BUFFER_SIZE * 4;
+    }
+
+    /**
+     * Tells if the target is played in real time (the writing is paced by the target once the ring is full).
+     * @return True if the target is played in real time.
+     */
+    @Override
+    public boolean isRealTime() {
+        return target.isRealTime();
+    }
+
+    /**
+     * Returns the number of blocks waiting in the ring.
+     * @return The number of blocks waiting in the ring.
+     */
+    public int getFillLevel() {
+        return (int) (writePosition - readPosition);
+    }
+
+    /**
+     * Returns the number of blocks that can be created ahead of the target.
+     * @return The capacity of the ring in blocks.
+     */
+    public int getCapacity() {
+        return blocks.length;
+    }
+
+    /**
+     * Returns the number of times the target has played everything written into it (the synthesis thread
+     * or the output thread hasn't kept up with the device).
+     * @return The number of underruns.
+     */
+    public long getUnderrunCount() {
+        return underrunCount;
+    }
+
+    /**
+     * The loop of the output thread: moves the blocks from the ring into the target, writing only as much
+     * as the target accepts without blocking.
+     */
+    private void moveBlocks() {
+        int targetBufferSize = target.getBufferSize();
+        boolean started = false;
+        boolean starving = false;
+        int blockOffset = 0;
+        while (running) {
+            int available = target.available();
+            // The target being empty before the first write is not an underrun.
+            if (started && !starving && targetBufferSize > 0 && available >= targetBufferSize) {
+                underrunCount++;
+                starving = true;
+            }
+            long position = readPosition;
+            if (position == writePosition) {
+                LockSupport.parkNanos(this, PARK_TIME);
+                continue;
+            }
+            int index = (int) (position % blocks.length);
+            int length = Math.min(blockLengths[index] - blockOffset, available);
+            length -= length % FRAME_SIZE;
+            if (length <= 0) {
+                LockSupport.parkNanos(this, PARK_TIME);
+                continue;
+            }
+            target.write(blocks[index], blockOffset, length);
+            started = true;
+            starving = false;
+            blockOffset += length;
+            if (blockOffset == blockLengths[index]) {
+                blockOffset = 0;
+                readPosition = position + 1;
+                LockSupport.unpark(writingThread);
+            }
+        }
+    }
+}
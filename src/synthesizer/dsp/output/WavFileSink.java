@@ -0,0 +1,169 @@
+package synthesizer.dsp.output;
+
+import synthesizer.dsp.Converter;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+
+/**
+ * A sink that writes the sound into a WAV file (16-bit stereo PCM with the sample rate of the {@link Converter}).
+ *
+ * The sound is streamed into the file as it comes, so the whole recording never has to be kept in memory.
+ * The sizes in the WAV header are filled in when the sink is closed.
+ * The sink never waits for a device, so the synthesizer runs as fast as the processor allows.
+ *
+ * @author Marek Bobrowski
+ */
+public class WavFileSink implements AudioSink {
+    /**
+     * The size of the WAV header (RIFF chunk descriptor, "fmt " sub-chunk and "data" sub-chunk header) in bytes.
+     */
+    private static final int HEADER_SIZE = 44;
+
+    /**
+     * The file the sound is written into.
+     */
+    private final File file;
+
+    /**
+     * The stream the sound is written into.
+     */
+    private OutputStream outputStream;
+
+    /**
+     * The number of bytes of samples written so far.
+     */
+    private long dataSize = 0;
+
+    /**
+     * Constructor. The file is created when the sink is opened.
+     * @param file The file the sound will be written into.
+     */
+    public WavFileSink(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Creates the file and writes a placeholder header into it.
+     * @throws IOException If the file cannot be created.
+     */
+    @Override
+    public void open() throws IOException {
+        outputStream = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+        outputStream.write(createHeader(0));
+        dataSize = 0;
+    }
+
+    /**
+     * Writes the sound into the file.
+     * @param buffer The converted sound.
+     * @param offset The position in the buffer of the first byte to be written.
+     * @param length The number of bytes to be written.
+     * @throws UncheckedIOException If the sound cannot be written.
+     */
+    @Override
+    public void write(byte[] buffer, int offset, int length) {
+        try {
+            outputStream.write(buffer, offset, length);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        dataSize += length;
+    }
+
+    /**
+     * Returns the number of frames written so far.
+     * @return The number of frames written so far.
+     */
+    public long getFramesWritten() {
+        return dataSize / 4;
+    }
+
+    /**
+     * Closes the file and fills the sizes in the WAV header.
+     * @throws UncheckedIOException If the file cannot be written.
+     */
+    @Override
+    public void close() {
+        if (outputStream == null) {
+            return;
+        }
+        try {
+            outputStream.close();
+            outputStream = null;
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                randomAccessFile.seek(0);
+                randomAccessFile.write(createHeader(dataSize));
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Creates a header of a 16-bit stereo PCM WAV file.
+     * @param dataSize The number of bytes of samples stored in the file.
+     * @return The header of the file.
+     */
+    private static byte[] createHeader(long dataSize) {
+        int channels = 2;
+        int bytesPerSample = 2;
+        int blockAlign = channels * bytesPerSample;
+        byte[] header = new byte[HEADER_SIZE];
+        writeAscii(header, 0, "RIFF");
+        writeInt(header, 4, (int) (dataSize + HEADER_SIZE - 8));
+        writeAscii(header, 8, "WAVE");
+        writeAscii(header, 12, "fmt ");
+        writeInt(header, 16, 16);
+        writeShort(header, 20, 1);
+        writeShort(header, 22, channels);
+        writeInt(header, 24, Converter.SAMPLE_RATE);
+        writeInt(header, 28, Converter.SAMPLE_RATE * blockAlign);
+        writeShort(header, 32, blockAlign);
+        writeShort(header, 34, bytesPerSample * 8);
+        writeAscii(header, 36, "data");
+        writeInt(header, 40, (int) dataSize);
+        return header;
+    }
+
+    /**
+     * Writes the characters of the text as single bytes.
+     * @param array The array to be written into.
+     * @param position The position of the first character.
+     * @param text The text to be written.
+     */
+    private static void writeAscii(byte[] array, int position, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            array[position + i] = (byte) text.charAt(i);
+        }
+    }
+
+    /**
+     * Writes a 32-bit little-endian integer.
+     * @param array The array to be written into.
+     * @param position The position of the lowest byte.
+     * @param value The value to be written.
+     */
+    private static void writeInt(byte[] array, int position, int value) {
+        array[position] = (byte) value;
+        array[position + 1] = (byte) (value >> 8);
+        array[position + 2] = (byte) (value >> 16);
+        array[position + 3] = (byte) (value >> 24);
+    }
+
+    /**
+     * Writes a 16-bit little-endian integer.
+     * @param array The array to be written into.
+     * @param position The position of the lower byte.
+     * @param value The value to be written.
+     */
+    private static void writeShort(byte[] array, int position, int value) {
+        array[position] = (byte) value;
+        array[position + 1] = (byte) (value >> 8);
+    }
+}
@@ -0,0 +1,282 @@
+package synthesizer.dsp.parameter;
+
+import synthesizer.dsp.Converter;
+
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * A continuous parameter of an effect, set by any thread (a knob of the GUI, the MIDI input) and used
+ * by the synthesis thread.
+ *
+ * The set value (the target) is published through a volatile field, so the synthesis thread sees every change
+ * at once and never reads half of a value. The synthesis thread takes the target once per buffer
+ * ({@link #update(int)}), so a buffer is never processed with two different targets. The target can be converted
+ * into the value used by the processing (for example decibels into a gain); the conversion is calculated only
+ * when the target changes, not for every buffer.
+ *
+ * The value used by the processing doesn't jump to a new target, but moves to it linearly within
+ * {@link #SMOOTHING_TIME}, so turning a knob doesn't click or make zipper noise. The gains applied to the signal
+ * (the mixes, the volume) follow the ramp for every frame ({@link #fillValues(double[], int, double[])}),
+ * the coefficients of the recursive filters (feedback, decay, damping) change once per buffer
+ * ({@link #getValue()}), which is inaudible for them and keeps their loops unchanged.
+ *
+ * A parameter changed by timed events (e.g. the mixer controllers of a part) is instead taken at a frame position
+ * ({@link #updateAt(long)}) and read for single frames ({@link #getValueAt(long)}): its ramp starts exactly
+ * at the frame the target was taken at and depends only on the frame positions, not on the buffer size.
+ *
+ * @author Marek Bobrowski
+ */
+public class SmoothedParameter {
+    /**
+     * The time (in seconds) in which the value moves to a new target.
+     */
+    public static final double SMOOTHING_TIME = 0.02;
+
+    /**
+     * The number of frames in which the value moves to a new target.
+     */
+    private static final int SMOOTHING_FRAMES = (int) (SMOOTHING_TIME * Converter.SAMPLE_RATE);
+
+    /**
+     * The smallest target.
+     */
+    private final double minimum;
+
+    /**
+     * The largest target.
+     */
+    private final double maximum;
+
+    /**
+     * Converts the target into the value used by the processing (null - the target is used as it is).
+     */
+    private final DoubleUnaryOperator conversion;
+
+    /**
+     * The set value. Writing it publishes the change to the synthesis thread.
+     */
+    private volatile double target;
+
+    /**
+     * The target the converted target has been calculated for (used only by the synthesis thread).
+     */
+    private double convertedFrom;
+
+    /**
+     * The converted target: the value the ramp ends with.
+     */
+    private double convertedTarget;
+
+    /**
+     * The value at the end of the last updated buffer.
+     */
+    private double value;
+
+    /**
+     * The value at the end of the buffer before the last updated one.
+     */
+    private double startValue;
+
+    /**
+     * The change of the value per frame during the ramp.
+     */
+    private double step = 0;
+
+    /**
+     * The number of frames left until the end of the ramp.
+     */
+    private int remainingFrames = 0;
+
+    /**
+     * The number of frames of the last updated buffer in which the value moves (the rest keep the target).
+     */
+    private int rampFrames = 0;
+
+    /**
+     * The value the ramp started from (used by {@link #getValueAt(long)}).
+     */
+    private double rampFrom;
+
+    /**
+     * The position (in frames) of the first frame of the ramp (used by {@link #getValueAt(long)}).
+     */
+    private long rampStart = Long.MIN_VALUE / 2;
+
+    /**
+     * Creates a parameter used as it is set.
+     * @param value The initial value.
+     * @param minimum The smallest value (the set values are clamped).
+     * @param maximum The largest value (the set values are clamped).
+     */
+    public SmoothedParameter(double value, double minimum, double maximum) {
+        this(value, minimum, maximum, null);
+    }
+
+    /**
+     * Creates a parameter whose set value is converted before it is used.
+     * @param value The initial value (before the conversion).
+     * @param minimum The smallest value (the set values are clamped before the conversion).
+     * @param maximum The largest value (the set values are clamped before the conversion).
+     * @param conversion Converts the set value into the value used by the processing (null - no conversion).
+     */
+    public SmoothedParameter(double value, double minimum, double maximum, DoubleUnaryOperator conversion) {
+        this.minimum = minimum;
+        this.maximum = maximum;
+        this.conversion = conversion;
+        target = clamp(value);
+        convertedFrom = target;
+        convertedTarget = convert(target);
+        this.value = convertedTarget;
+        startValue = convertedTarget;
+    }
+
+    /**
+     * Sets the target of the parameter. Called by any thread; the value moves to the new target from
+     * the next buffer.
+     * @param value The new target (clamped to the range of the parameter).
+     */
+    public void set(double value) {
+        target = clamp(value);
+    }
+
+    /**
+     * Returns the target of the parameter (the value that has been set, before the conversion).
+     * @return The target of the parameter.
+     */
+    public double get() {
+        return target;
+    }
+
+    /**
+     * Takes the current target and moves the value along the ramp by the frames of a buffer.
+     * Called by the synthesis thread once before a buffer is processed.
+     * @param frames The number of frames of the buffer.
+     */
+    public void update(int frames) {
+        double newTarget = target;
+        if (newTarget != convertedFrom) {
+            convertedFrom = newTarget;
+            convertedTarget = convert(newTarget);
+            step = (convertedTarget - value) / SMOOTHING_FRAMES;
+            remainingFrames = SMOOTHING_FRAMES;
+        }
+        startValue = value;
+        rampFrames = Math.min(frames, remainingFrames);
+        remainingFrames -= rampFrames;
+        value = remainingFrames == 0 ? convertedTarget : value + step * rampFrames;
+    }
+
+    /**
+     * Takes the current target at a frame position: a new target starts a ramp at that frame.
+     * Called by the synthesis thread before the frames from the position on are processed.
+     * @param frame The position (in frames, counted from the start of the synthesis) of the next processed frame.
+     */
+    public void updateAt(long frame) {
+        double newTarget = target;
+        if (newTarget != convertedFrom) {
+            rampFrom = getValueAt(frame - 1);
+            rampStart = frame;
+            convertedFrom = newTarget;
+            convertedTarget = convert(newTarget);
+        }
+    }
+
+    /**
+     * Returns the value at a frame position (used with {@link #updateAt(long)}).
+     * @param frame The position (in frames, counted from the start of the synthesis) of the frame.
+     * @return The converted value of the parameter at the frame.
+     */
+    public double getValueAt(long frame) {
+        long rampFrame = frame - rampStart + 1;
+        if (rampFrame >= SMOOTHING_FRAMES) {
+            return convertedTarget;
+        }
+        return rampFrom + (convertedTarget - rampFrom) * rampFrame / SMOOTHING_FRAMES;
+    }
+
+    /**
+     * Tells if the value still moves at a frame position (used with {@link #updateAt(long)}).
+     * @param frame The position (in frames, counted from the start of the synthesis) of the frame.
+     * @return True if the ramp hasn't reached the target at the frame.
+     */
+    public boolean isSmoothingAt(long frame) {
+        return frame - rampStart + 1 < SMOOTHING_FRAMES;
+    }
+
+    /**
+     * Returns the value at the end of the last updated buffer (used for the parameters changed once per buffer).
+     * @return The converted value of the parameter.
+     */
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * Tells if the value changes within the last updated buffer.
+     * @return True if the value moves along the ramp within the buffer.
+     */
+    public boolean isSmoothing() {
+        return rampFrames > 0;
+    }
+
+    /**
+     * Fills the values of every frame of the last updated buffer, with the modulation added
+     * (and clamped to the range of the parameter).
+     * @param values The array the values will be written into.
+     * @param frames The number of frames of the buffer.
+     * @param modulation The values added to the value for every frame (null - no modulation).
+     * @return The filled array, or null if the value is the same for every frame (no ramp and no modulation).
+     */
+    public double[] fillValues(double[] values, int frames, double[] modulation) {
+        if (rampFrames == 0 && modulation == null) {
+            return null;
+        }
+        for (int i = 0; i < rampFrames; i++) {
+            values[i] = startValue + step * (i + 1);
+        }
+        for (int i = rampFrames; i < frames; i++) {
+            values[i] = value;
+        }
+        if (modulation != null) {
+            for (int i = 0; i < frames; i++) {
+                values[i] = clamp(values[i] + modulation[i]);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Moves a value of the range from 0 to 1 (for example a mix) towards its target at the speed of
+     * the smoothing: the whole range within {@link #SMOOTHING_TIME}. Used where a parameter shared by many
+     * consumers (e.g. the voices) is smoothed by each of them.
+     * @param value The current value.
+     * @param target The target.
+     * @param frames The number of frames the value moves for.
+     * @return The moved value (the target, if it is reached).
+     */
+    public static double approach(double value, double target, int frames) {
+        double change = (double) frames / SMOOTHING_FRAMES;
+        if (Math.abs(target - value) <= change) {
+            return target;
+        }
+        return target > value ? value + change : value - change;
+    }
+
+    /**
+     * Limits a value to the range of the parameter.
+     * @param value The value.
+     * @return The value within the range.
+     */
+    private double clamp(double value) {
+        return Math.min(maximum, Math.max(minimum, value));
+    }
+
+    /**
+     * Converts a target into the value used by the processing.
+     * @param target The target.
+     * @return The converted target.
+     */
+    private double convert(double target) {
+        return conversion == null ? target : conversion.applyAsDouble(target);
+    }
+}
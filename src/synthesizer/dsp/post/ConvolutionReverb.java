@@ -0,0 +1,342 @@
+package synthesizer.dsp.post;
+
+import synthesizer.dsp.Converter;
+import synthesizer.dsp.parameter.SmoothedParameter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class creates a reverberation effect by convolving the sound with an impulse response of a real room
+ * (see {@link ImpulseResponse}). The convolution is calculated with FFTs in blocks of a fixed size
+ * (see {@link PartitionedConvolver}), so even an impulse response of several seconds costs a few complex
+ * multiplications per sample. The wet signal is delayed by one block (the latency), independently of the
+ * size of the processed buffers.
+ *
+ * Both channels are summed into the input and the impulse response gives the wet signal of every channel.
+ * The tail of the impulse response (all the blocks but the first one) is calculated by a background thread
+ * while the synthesizer creates the next buffer. The synthesis thread calculates the tail itself if the
+ * background thread hasn't started it in time, so the output is the same in both cases.
+ *
+ * An impulse response is loaded (and its spectra calculated) by the thread calling
+ * {@link #loadImpulseResponse(File)}, and the synthesis thread starts using it with the next buffer.
+ * The mix moves smoothly to its new value (see {@link SmoothedParameter}).
+ * The reverb is bypassed when no impulse response is loaded, when its mix is 0 and when its input is silent
+ * and its tail has decayed (see {@link TailTracker}).
+ *
+ * @author Marek Bobrowski
+ */
+public class ConvolutionReverb {
+    /**
+     * The default number of frames of a block (and the latency of the wet signal).
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 256;
+
+    /**
+     * The number of times the background thread checks for a new job before it parks.
+     */
+    private static final int SPIN_COUNT = 2000;
+
+    /**
+     * The number of frames of a block.
+     */
+    private final int blockSize;
+
+    /**
+     * The mix between the dry (0) and the wet (1) signal.
+     */
+    private final SmoothedParameter mix = new SmoothedParameter(0, 0, 1);
+
+    /**
+     * The reusable array of the mix of every frame (while the mix is changing).
+     */
+    private final double[] mixes = new double[Converter.MAX_BUFFER_SIZE];
+
+    /**
+     * The convolver loaded by another thread and not yet used by the synthesis thread.
+     */
+    private volatile PartitionedConvolver loadedConvolver;
+
+    /**
+     * The convolver used by the synthesis thread.
+     */
+    private PartitionedConvolver convolver;
+
+    /**
+     * The input of the block that is being collected.
+     */
+    private final double[] inputBlock;
+
+    /**
+     * The wet signal of the left channel of the last block.
+     */
+    private final double[] outputLeft;
+
+    /**
+     * The wet signal of the right channel of the last block.
+     */
+    private final double[] outputRight;
+
+    /**
+     * The number of frames of the current block that have been collected.
+     */
+    private int blockPosition = 0;
+
+    /**
+     * Tracks the tail of the reverb: the convolver is cleared and skipped once it has decayed.
+     */
+    private final TailTracker tailTracker = new TailTracker(0);
+
+    /**
+     * Tells if the convolver is cleared and skipped.
+     */
+    private boolean bypassed = true;
+
+    /**
+     * The thread calculating the tails, created with the first impulse response that needs it.
+     */
+    private Thread worker;
+
+    /**
+     * The convolver whose tail the background thread should calculate.
+     */
+    private volatile PartitionedConvolver workerConvolver;
+
+    /**
+     * The number of the current job. It is increased for every block to wake the background thread up.
+     */
+    private volatile int generation = 0;
+
+    /**
+     * Tells if the background thread should keep waiting for new jobs.
+     */
+    private volatile boolean running = true;
+
+    /**
+     * Creates a convolution reverb with the default block size.
+     */
+    public ConvolutionReverb() {
+        this(DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a convolution reverb.
+     * @param blockSize The number of frames of a block (a power of two). A smaller block gives a lower latency
+     *                  and costs more processor time.
+     * @throws IllegalArgumentException If the block size is not a power of two.
+     */
+    public ConvolutionReverb(int blockSize) {
+        if (blockSize < 1 || Integer.bitCount(blockSize) != 1) {
+            throw new IllegalArgumentException("The block size has to be a power of two: " + blockSize);
+        }
+        this.blockSize = blockSize;
+        inputBlock = new double[blockSize];
+        outputLeft = new double[blockSize];
+        outputRight = new double[blockSize];
+    }
+
+    /**
+     * Loads an impulse response from a WAV file and calculates its spectra. Called by any thread but
+     * the synthesis one; the synthesis thread starts using the impulse response with the next buffer.
+     * @param file The WAV file with the impulse response.
+     * @throws IOException If the file cannot be read or its format is not supported.
+     */
+    public void loadImpulseResponse(File file) throws IOException {
+        setImpulseResponse(new ImpulseResponse(file));
+    }
+
+    /**
+     * Calculates the spectra of an impulse response. Called by any thread but the synthesis one;
+     * the synthesis thread starts using the impulse response with the next buffer.
+     * @param impulseResponse The impulse response.
+     */
+    public synchronized void setImpulseResponse(ImpulseResponse impulseResponse) {
+        PartitionedConvolver newConvolver = new PartitionedConvolver(impulseResponse, blockSize);
+        if (newConvolver.hasTail() && worker == null && running) {
+            worker = new Thread(this::work);
+            worker.setName("Convolution worker");
+            worker.setDaemon(true);
+            worker.start();
+        }
+        loadedConvolver = newConvolver;
+    }
+
+    /**
+     * Processes the passed sound buffer by adding the convolved signal to it.
+     * @param buffer The buffer to be processed.
+     * @param bufferSize The number of frames to be processed.
+     */
+    public void processBuffer(double[][] buffer, int bufferSize) {
+        PartitionedConvolver loaded = loadedConvolver;
+        if (loaded != null) {
+            loadedConvolver = null;
+            if (convolver != null) {
+                convolver.clear();
+            }
+            convolver = loaded;
+            tailTracker.setTailLength(convolver.getLength() + 2 * blockSize);
+            reset();
+        }
+        mix.update(bufferSize);
+        if (convolver == null || (mix.getValue() == 0 && !mix.isSmoothing())) {
+            // The wet signal isn't heard, so its tail is dropped.
+            if (!bypassed) {
+                clear();
+            }
+            return;
+        }
+        boolean inputSilent = TailTracker.isSilent(buffer[0], bufferSize)
+                && TailTracker.isSilent(buffer[1], bufferSize);
+        if (bypassed && inputSilent) {
+            return;
+        }
+        bypassed = false;
+
+        double[] left = buffer[0];
+        double[] right = buffer[1];
+        double mixValue = mix.getValue();
+        double[] frameMixes = mix.fillValues(mixes, bufferSize, null);
+        double tailPeak = 0;
+        int done = 0;
+        while (done < bufferSize) {
+            int run = Math.min(bufferSize - done, blockSize - blockPosition);
+            for (int i = 0; i < run; i++) {
+                int frame = done + i;
+                int position = blockPosition + i;
+                inputBlock[position] = (left[frame] + right[frame]) * 0.5;
+                double wetLeft = outputLeft[position];
+                double wetRight = outputRight[position];
+                double wetMix = frameMixes == null ? mixValue : frameMixes[frame];
+                left[frame] = (1 - wetMix) * left[frame] + wetMix * wetLeft;
+                right[frame] = (1 - wetMix) * right[frame] + wetMix * wetRight;
+                tailPeak = Math.max(tailPeak, Math.max(Math.abs(wetLeft), Math.abs(wetRight)));
+            }
+            done += run;
+            blockPosition += run;
+            if (blockPosition == blockSize) {
+                convolver.process(inputBlock, outputLeft, outputRight);
+                blockPosition = 0;
+                if (convolver.hasTail()) {
+                    wakeWorker();
+                }
+            }
+        }
+        tailTracker.update(inputSilent, tailPeak, bufferSize);
+        if (tailTracker.hasDecayed()) {
+            clear();
+        }
+    }
+
+    /**
+     * Stops the background thread. The tails are calculated by the synthesis thread from then on.
+     */
+    public synchronized void shutdown() {
+        running = false;
+        if (worker != null) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    /**
+     * Returns the number of frames the wet signal is delayed by.
+     * @return The number of frames the wet signal is delayed by.
+     */
+    public int getLatency() {
+        return blockSize;
+    }
+
+    /**
+     * Tells if an impulse response has been loaded.
+     * @return True if an impulse response has been loaded.
+     */
+    public boolean hasImpulseResponse() {
+        return convolver != null || loadedConvolver != null;
+    }
+
+    /**
+     * Tells if the reverb is bypassed (no impulse response is loaded, its mix is 0, or its input is silent
+     * and its tail has decayed).
+     * @return True if the reverb is bypassed.
+     */
+    public boolean isBypassed() {
+        return bypassed;
+    }
+
+    /**
+     * Returns the mix between the dry (0) and the wet (1) signal.
+     * @return The mix between the dry (0) and the wet (1) signal.
+     */
+    public double getMix() {
+        return mix.get();
+    }
+
+    /**
+     * Sets the mix between the dry (0) and the wet (1) signal.
+     * @param mix The mix between the dry (0) and the wet (1) signal.
+     */
+    public void setMix(double mix) {
+        this.mix.set(mix);
+    }
+
+    /**
+     * Clears the convolver and bypasses it until a sound comes in.
+     */
+    private void clear() {
+        convolver.clear();
+        reset();
+    }
+
+    /**
+     * Clears the collected block and the wet signal and bypasses the convolver.
+     */
+    private void reset() {
+        Arrays.fill(inputBlock, 0);
+        Arrays.fill(outputLeft, 0);
+        Arrays.fill(outputRight, 0);
+        blockPosition = 0;
+        tailTracker.reset();
+        bypassed = true;
+    }
+
+    /**
+     * Wakes the background thread up to calculate the tail of the current convolver.
+     */
+    private void wakeWorker() {
+        Thread thread = worker;
+        if (thread == null) {
+            return;
+        }
+        workerConvolver = convolver;
+        generation++;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * The loop of the background thread: wait for a new job, calculate the tail if the synthesis thread
+     * hasn't claimed it.
+     */
+    private void work() {
+        int lastGeneration = 0;
+        while (true) {
+            int spins = 0;
+            while (generation == lastGeneration) {
+                if (!running) {
+                    return;
+                }
+                if (spins < SPIN_COUNT) {
+                    spins++;
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+            lastGeneration = generation;
+            PartitionedConvolver jobConvolver = workerConvolver;
+            if (jobConvolver != null) {
+                jobConvolver.calculateTailIfUnclaimed();
+            }
+        }
+    }
+}
@@ -1,49 +1,203 @@
 package synthesizer.dsp.post;
 
 import synthesizer.dsp.Converter;
+import synthesizer.dsp.parameter.SmoothedParameter;
+
+import java.util.Arrays;
 
 /**
  * This class is responsible for creating a delay (echo) effect on a passed sound buffer.
- * It is basically a {@link CombFilter} with much longer delay times and ability to adjust
+ * It is basically a feedback comb filter with much longer delay times and ability to adjust
  * the mix between the dry and wet signal.
  *
+ * The delay lines are allocated once for the longest delay time ({@link #MAX_TIME}). Their length is a power
+ * of two, so the positions wrap around with a bit mask instead of a modulo operation. The delay time is
+ * a fractional number of frames (the delayed signal is interpolated linearly between two samples),
+ * and a change of the time glides smoothly to the new value (through two one-pole smoothers), so turning
+ * the time knob bends the pitch of the echoes like a tape delay instead of clicking.
+ *
+ * The time can be set in seconds or synchronized to the tempo (a note value, see {@link #setSync(int)}).
+ * In the ping-pong mode the echoes bounce between the left and the right channel. The mix and the feedback
+ * move smoothly to their new values (see {@link SmoothedParameter}).
+ *
+ * The delay is bypassed when its mix is 0 and when its input is silent and its echoes have decayed
+ * (see {@link TailTracker}).
+ *
  * @author Marek Bobrowski
- * @see CombFilter
  */
 public class Delay {
+    /**
+     * The mode in which the echoes are the same in both channels.
+     */
+    public static final int MODE_MONO = 0;
+
+    /**
+     * The mode in which the echoes alternate between the left and the right channel.
+     */
+    public static final int MODE_PING_PONG = 1;
+
+    /**
+     * The delay time is set in seconds (not synchronized to the tempo).
+     */
+    public static final int SYNC_OFF = 0;
+
+    /**
+     * The delay time is a quarter note.
+     */
+    public static final int SYNC_QUARTER = 1;
+
+    /**
+     * The delay time is an eighth note.
+     */
+    public static final int SYNC_EIGHTH = 2;
+
+    /**
+     * The delay time is a dotted eighth note.
+     */
+    public static final int SYNC_DOTTED_EIGHTH = 3;
+
+    /**
+     * The delay time is a sixteenth note.
+     */
+    public static final int SYNC_SIXTEENTH = 4;
+
+    /**
+     * The longest delay time (in seconds).
+     */
+    public static final double MAX_TIME = 2;
+
+    /**
+     * The shortest delay time (in seconds).
+     */
+    public static final double MIN_TIME = 0.001;
+
+    /**
+     * The lengths of the synchronized delay times in beats (quarter notes), in the order of their numbers.
+     */
+    private static final double[] SYNC_BEATS = {0, 1, 0.5, 0.75, 0.25};
+
+    /**
+     * The time constant (in seconds) of each of the two smoothers of the delay time.
+     */
+    private static final double TIME_SMOOTHING = 0.05;
+
+    /**
+     * The difference (in frames) between the smoothed and the set delay time below which the glide ends.
+     */
+    private static final double GLIDE_END = 1e-6;
+
+    /**
+     * The longest delay in frames.
+     */
+    private static final int MAX_DELAY = (int) Math.ceil(MAX_TIME * Converter.SAMPLE_RATE);
+
+    /**
+     * The length of the delay lines: the smallest power of two longer than the longest delay
+     * (and the sample after it, which is needed by the interpolation).
+     */
+    private static final int LINE_LENGTH = Integer.highestOneBit(MAX_DELAY + 1) << 1;
+
+    /**
+     * The mask wrapping a position around the delay lines.
+     */
+    private static final int LINE_MASK = LINE_LENGTH - 1;
+
     /**
      * The feedback gain of the comb filter.
      * It describes how quickly will the echoes fade. It also describes the relative amplitude
      * of the first echo (relative to the original signal amplitude).
      */
-    private double feedback = 0.5;
+    private final SmoothedParameter feedback = new SmoothedParameter(0.5, 0, 1);
 
     /**
-     * The delay time in seconds.
+     * The delay time in seconds (used when the delay is not synchronized to the tempo).
      * It describes the time between the echoes.
      */
-    private double time = 1;
+    private volatile double time = 1;
+
+    /**
+     * The tempo (in beats per minute) the synchronized delay time is calculated from.
+     */
+    private volatile double tempo = 120;
+
+    /**
+     * The note value the delay time is synchronized to (SYNC_OFF - the time in seconds is used).
+     */
+    private volatile int sync = SYNC_OFF;
+
+    /**
+     * The mode of the echoes (MODE_MONO or MODE_PING_PONG).
+     */
+    private volatile int mode = MODE_MONO;
 
     /**
-     * Stores the delayed samples.
+     * The mode of the echoes in the last processed buffer.
      */
-    private final double[] delayBuffer;
+    private int processedMode = MODE_MONO;
 
     /**
-     * Position at which the delayed samples from delayBuffer will be overwritten/accessed.
+     * Stores the delayed samples of the left channel (of both channels in the mono mode).
      */
-    private int delayPosition = 0;
+    private final double[] leftLine = new double[LINE_LENGTH];
+
+    /**
+     * Stores the delayed samples of the right channel (used only in the ping-pong mode).
+     */
+    private final double[] rightLine = new double[LINE_LENGTH];
+
+    /**
+     * Position at which the next samples will be written into the delay lines.
+     */
+    private int writePosition = 0;
+
+    /**
+     * The delay (in frames) the echoes are read with, gliding towards the set delay time.
+     */
+    private double currentDelay;
+
+    /**
+     * The output of the first smoother of the delay (the input of the second one).
+     */
+    private double smoothedDelay;
+
+    /**
+     * The multiplier of the smoothers of the delay: the part of the distance to the target
+     * that is covered in one frame.
+     */
+    private final double smoothing = 1 - Math.exp(-1 / (TIME_SMOOTHING * Converter.SAMPLE_RATE));
 
     /**
      * Mix between the dry and the wet signal of this effect.
      */
-    private double mix = 0;
+    private final SmoothedParameter mix = new SmoothedParameter(0, 0, 1);
+
+    /**
+     * The reusable array of the mix of every frame (while the mix is changing or modulated).
+     */
+    private final double[] mixes = new double[Converter.MAX_BUFFER_SIZE];
+
+    /**
+     * Tracks the echoes: the delay lines are cleared and skipped once they have decayed.
+     */
+    private final TailTracker tailTracker = new TailTracker(MAX_DELAY + 1);
+
+    /**
+     * Tells if the delay lines are cleared and skipped.
+     */
+    private boolean bypassed = true;
+
+    /**
+     * The gain of the dry signal in the output: 1 for an insert effect, 0 for a send effect
+     * (the output is only the echoes, see {@link #setSendMode(boolean)}).
+     */
+    private double dryLevel = 1;
 
     /**
-     * Creates an array for storing the delayed samples.
+     * Creates the delay with the default time.
      */
     public Delay() {
-        delayBuffer = new double[(int)(time* Converter.SAMPLE_RATE)];
+        currentDelay = getTargetDelay();
+        smoothedDelay = currentDelay;
     }
 
 
@@ -51,16 +205,253 @@ public class Delay {
      * Processes the passed buffer by adding echo effect to it.
      *
      * @param buffer The buffer to be processed.
+     * @param bufferSize The number of frames to be processed.
      */
-    public void processBuffer(double[][] buffer) {
-        double lastValue;
-        for (int i = 0; i < buffer[0].length; i++) {
-            lastValue = buffer[0][i] + delayBuffer[delayPosition] * feedback;
-            buffer[0][i] = (1 - mix) * buffer[0][i] + mix * delayBuffer[delayPosition] * feedback;
-            buffer[1][i] = buffer[0][i];
-            delayBuffer[delayPosition] = lastValue;
-            delayPosition = (delayPosition + 1) % delayBuffer.length;
+    public void processBuffer(double[][] buffer, int bufferSize) {
+        processBuffer(buffer, bufferSize, null);
+    }
+
+    /**
+     * Processes the passed buffer by adding echo effect to it.
+     * The mix can be modulated for every frame (see {@link synthesizer.dsp.modulation.Modulator}).
+     *
+     * @param buffer The buffer to be processed.
+     * @param bufferSize The number of frames to be processed.
+     * @param mixModulation The values added to the mix for every frame (null - no modulation).
+     */
+    public void processBuffer(double[][] buffer, int bufferSize, double[] mixModulation) {
+        double targetDelay = getTargetDelay();
+        mix.update(bufferSize);
+        feedback.update(bufferSize);
+        if (mix.getValue() == 0 && !mix.isSmoothing() && mixModulation == null) {
+            // The echoes aren't heard, so they are dropped.
+            if (!bypassed) {
+                clear();
+            }
+            passDry(buffer, bufferSize);
+            return;
+        }
+        boolean inputSilent = TailTracker.isSilent(buffer[0], bufferSize);
+        if (bypassed) {
+            if (inputSilent) {
+                passDry(buffer, bufferSize);
+                return;
+            }
+            // The delay lines are empty, so there are no echoes to glide: the set time is used at once.
+            jumpToDelay(targetDelay);
+            bypassed = false;
+        }
+
+        if (mode != processedMode) {
+            // The right delay line isn't written in the mono mode, so its old echoes are dropped.
+            Arrays.fill(rightLine, 0);
+            processedMode = mode;
+        }
+        double[] frameMixes = mix.fillValues(mixes, bufferSize, mixModulation);
+        double tailPeak;
+        if (processedMode == MODE_PING_PONG) {
+            tailPeak = processPingPong(buffer, bufferSize, frameMixes, targetDelay);
+        } else {
+            tailPeak = processMono(buffer, bufferSize, frameMixes, targetDelay);
         }
+        if (Math.abs(targetDelay - currentDelay) < GLIDE_END && Math.abs(targetDelay - smoothedDelay) < GLIDE_END) {
+            jumpToDelay(targetDelay);
+        }
+        tailTracker.update(inputSilent, tailPeak, bufferSize);
+        if (tailTracker.hasDecayed()) {
+            clear();
+        }
+    }
+
+    /**
+     * Adds the echoes of the left channel to both channels.
+     * @param buffer The buffer to be processed.
+     * @param bufferSize The number of frames to be processed.
+     * @param frameMixes The mix of every frame (null - the same mix for every frame).
+     * @param targetDelay The delay (in frames) the current delay glides towards.
+     * @return The highest absolute value written into the delay line.
+     */
+    private double processMono(double[][] buffer, int bufferSize, double[] frameMixes, double targetDelay) {
+        double[] left = buffer[0];
+        double[] right = buffer[1];
+        double mix = this.mix.getValue();
+        double feedback = this.feedback.getValue();
+        double dry = dryLevel;
+        double[] line = leftLine;
+        double delay = currentDelay;
+        double smoothed = smoothedDelay;
+        boolean gliding = delay != targetDelay || smoothed != targetDelay;
+        int whole = (int) delay;
+        double fraction = delay - whole;
+        int position = writePosition;
+        double tailPeak = 0;
+        for (int i = 0; i < bufferSize; i++) {
+            double delayed;
+            if (gliding) {
+                smoothed += (targetDelay - smoothed) * smoothing;
+                delay += (smoothed - delay) * smoothing;
+                delayed = read(line, position, delay);
+            } else {
+                delayed = read(line, position, whole, fraction);
+            }
+            double wetMix = frameMixes == null ? mix : frameMixes[i];
+            double lastValue = left[i] + delayed * feedback;
+            left[i] = (1 - wetMix) * dry * left[i] + wetMix * delayed * feedback;
+            right[i] = left[i];
+            line[position] = lastValue;
+            position = (position + 1) & LINE_MASK;
+            tailPeak = Math.max(tailPeak, Math.abs(lastValue));
+        }
+        currentDelay = delay;
+        smoothedDelay = smoothed;
+        writePosition = position;
+        return tailPeak;
+    }
+
+    /**
+     * Adds the echoes bouncing between the channels: the input goes into the left delay line, every echo
+     * of the left channel goes into the right delay line and every echo of the right channel back into
+     * the left one.
+     * @param buffer The buffer to be processed.
+     * @param bufferSize The number of frames to be processed.
+     * @param frameMixes The mix of every frame (null - the same mix for every frame).
+     * @param targetDelay The delay (in frames) the current delay glides towards.
+     * @return The highest absolute value written into the delay lines.
+     */
+    private double processPingPong(double[][] buffer, int bufferSize, double[] frameMixes, double targetDelay) {
+        double[] left = buffer[0];
+        double[] right = buffer[1];
+        double mix = this.mix.getValue();
+        double feedback = this.feedback.getValue();
+        double dry = dryLevel;
+        double delay = currentDelay;
+        double smoothed = smoothedDelay;
+        boolean gliding = delay != targetDelay || smoothed != targetDelay;
+        int whole = (int) delay;
+        double fraction = delay - whole;
+        int position = writePosition;
+        double tailPeak = 0;
+        for (int i = 0; i < bufferSize; i++) {
+            double delayedLeft;
+            double delayedRight;
+            if (gliding) {
+                smoothed += (targetDelay - smoothed) * smoothing;
+                delay += (smoothed - delay) * smoothing;
+                delayedLeft = read(leftLine, position, delay);
+                delayedRight = read(rightLine, position, delay);
+            } else {
+                delayedLeft = read(leftLine, position, whole, fraction);
+                delayedRight = read(rightLine, position, whole, fraction);
+            }
+            double wetMix = frameMixes == null ? mix : frameMixes[i];
+            double input = left[i];
+            double leftValue = input + delayedRight * feedback;
+            double rightValue = delayedLeft * feedback;
+            left[i] = (1 - wetMix) * dry * input + wetMix * delayedLeft * feedback;
+            right[i] = (1 - wetMix) * dry * input + wetMix * delayedRight * feedback;
+            leftLine[position] = leftValue;
+            rightLine[position] = rightValue;
+            position = (position + 1) & LINE_MASK;
+            tailPeak = Math.max(tailPeak, Math.max(Math.abs(leftValue), Math.abs(rightValue)));
+        }
+        currentDelay = delay;
+        smoothedDelay = smoothed;
+        writePosition = position;
+        return tailPeak;
+    }
+
+    /**
+     * Reads a delayed sample, interpolated linearly between the two closest samples.
+     * @param line The delay line.
+     * @param position The position at which the current sample will be written.
+     * @param delay The delay in frames (at least 1).
+     * @return The delayed sample.
+     */
+    private static double read(double[] line, int position, double delay) {
+        int whole = (int) delay;
+        return read(line, position, whole, delay - whole);
+    }
+
+    /**
+     * Reads a delayed sample, interpolated linearly between the two closest samples.
+     * @param line The delay line.
+     * @param position The position at which the current sample will be written.
+     * @param whole The whole number of frames of the delay (at least 1).
+     * @param fraction The fractional part of the delay.
+     * @return The delayed sample.
+     */
+    private static double read(double[] line, int position, int whole, double fraction) {
+        double newer = line[(position - whole) & LINE_MASK];
+        return newer + fraction * (line[(position - whole - 1) & LINE_MASK] - newer);
+    }
+
+    /**
+     * Calculates the delay (in frames) of the set time or of the synchronized note value.
+     * @return The delay in frames.
+     */
+    private double getTargetDelay() {
+        double seconds = sync == SYNC_OFF ? time : SYNC_BEATS[sync] * 60 / tempo;
+        return Math.min(MAX_TIME, Math.max(MIN_TIME, seconds)) * Converter.SAMPLE_RATE;
+    }
+
+    /**
+     * Sets the delay at once (without gliding).
+     * @param delay The delay in frames.
+     */
+    private void jumpToDelay(double delay) {
+        currentDelay = delay;
+        smoothedDelay = delay;
+    }
+
+    /**
+     * Writes the output of the bypassed delay: the dry signal of the left channel in both channels,
+     * or silence in the send mode.
+     * @param buffer The buffer to be processed.
+     * @param bufferSize The number of frames to be processed.
+     */
+    private void passDry(double[][] buffer, int bufferSize) {
+        if (dryLevel == 0) {
+            Arrays.fill(buffer[0], 0, bufferSize, 0);
+            Arrays.fill(buffer[1], 0, bufferSize, 0);
+        } else {
+            System.arraycopy(buffer[0], 0, buffer[1], 0, bufferSize);
+        }
+    }
+
+    /**
+     * Clears the delay lines and bypasses them until a sound comes in.
+     */
+    private void clear() {
+        Arrays.fill(leftLine, 0);
+        Arrays.fill(rightLine, 0);
+        tailTracker.reset();
+        bypassed = true;
+    }
+
+    /**
+     * Turns the send mode on or off. In the send mode the delay is fed by a send bus and its output is only
+     * the echoes (the dry signal is left out), which are added to the main bus by the caller; the mix sets
+     * the level of the returned echoes. Called before the synthesis starts.
+     * @param sendMode True if the delay should only return the echoes.
+     */
+    public void setSendMode(boolean sendMode) {
+        dryLevel = sendMode ? 0 : 1;
+    }
+
+    /**
+     * Tells if the delay is in the send mode (its output is only the echoes).
+     * @return True if the delay is in the send mode.
+     */
+    public boolean isSendMode() {
+        return dryLevel == 0;
+    }
+
+    /**
+     * Tells if the delay is bypassed (its mix is 0, or its input is silent and its echoes have decayed).
+     * @return True if the delay is bypassed.
+     */
+    public boolean isBypassed() {
+        return bypassed;
     }
 
     /**
@@ -71,13 +462,7 @@ public class Delay {
      * @param feedback The feedback gain of the comb filter.
      */
     public void setFeedback(double feedback) {
-        if (feedback >= 1) {
-            this.feedback = 1;
-        } else if (feedback <= 0) {
-            this.feedback = 0;
-        } else {
-            this.feedback = feedback;
-        }
+        this.feedback.set(feedback);
     }
 
     /**
@@ -88,7 +473,7 @@ public class Delay {
      * @return The feedback gain of the comb filter.
      */
     public double getFeedback() {
-        return this.feedback;
+        return this.feedback.get();
     }
 
     /**
@@ -96,7 +481,7 @@ public class Delay {
      * @return The mix between the dry and the wet signal of this effect.
      */
     public double getMix() {
-        return mix;
+        return mix.get();
     }
 
     /**
@@ -104,11 +489,11 @@ public class Delay {
      * @param mix The mix between the dry and the wet signal of this effect.
      */
     public void setMix(double mix) {
-        this.mix = mix;
+        this.mix.set(mix);
     }
 
     /**
-     * Returns the delay time (in seconds).
+     * Returns the delay time (in seconds) used when the delay is not synchronized to the tempo.
      * The delay time describes the time between the echoes.
      * @return The delay time (in seconds).
      */
@@ -117,13 +502,68 @@ public class Delay {
     }
 
     /**
-     * Sets the delay time (in seconds).
-     * The delay time describes the time between the echoes.
-     * @param time The delay time (in seconds).
+     * Sets the delay time (in seconds) used when the delay is not synchronized to the tempo.
+     * The delay time describes the time between the echoes. The echoes glide smoothly to the new time.
+     * @param time The delay time (in seconds, from MIN_TIME to MAX_TIME).
      */
     public void setTime(double time) {
-        this.time = time;
+        this.time = Math.min(MAX_TIME, Math.max(MIN_TIME, time));
     }
 
-}
+    /**
+     * Returns the tempo (in beats per minute) the synchronized delay time is calculated from.
+     * @return The tempo in beats per minute.
+     */
+    public double getTempo() {
+        return tempo;
+    }
 
+    /**
+     * Sets the tempo (in beats per minute) the synchronized delay time is calculated from.
+     * The synchronized delay time can't be longer than MAX_TIME.
+     * @param tempo The tempo in beats per minute.
+     */
+    public void setTempo(double tempo) {
+        if (tempo > 0) {
+            this.tempo = tempo;
+        }
+    }
+
+    /**
+     * Returns the note value the delay time is synchronized to.
+     * @return SYNC_OFF, SYNC_QUARTER, SYNC_EIGHTH, SYNC_DOTTED_EIGHTH or SYNC_SIXTEENTH.
+     */
+    public int getSync() {
+        return sync;
+    }
+
+    /**
+     * Synchronizes the delay time to a note value at the current tempo (or sets it back to the time
+     * in seconds). Other values are ignored.
+     * @param sync SYNC_OFF, SYNC_QUARTER, SYNC_EIGHTH, SYNC_DOTTED_EIGHTH or SYNC_SIXTEENTH.
+     */
+    public void setSync(int sync) {
+        if (sync >= SYNC_OFF && sync < SYNC_BEATS.length) {
+            this.sync = sync;
+        }
+    }
+
+    /**
+     * Returns the mode of the echoes.
+     * @return MODE_MONO or MODE_PING_PONG.
+     */
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * Sets the mode of the echoes. Other values are ignored.
+     * @param mode MODE_MONO or MODE_PING_PONG.
+     */
+    public void setMode(int mode) {
+        if (mode == MODE_MONO || mode == MODE_PING_PONG) {
+            this.mode = mode;
+        }
+    }
+
+}
@@ -0,0 +1,110 @@
+package synthesizer.dsp.post;
+
+/**
+ * This class calculates the discrete Fourier transform of complex signals with the iterative radix-2
+ * fast Fourier transform (FFT). The size has to be a power of two. The twiddle factors and the bit-reversed
+ * order are calculated once in the constructor, so a transform doesn't allocate any memory.
+ *
+ * The inverse transform is calculated with the same method by swapping the real and the imaginary parts
+ * (the result has to be divided by the size, see {@link #inverseTransform(double[], double[])}).
+ *
+ * @author Marek Bobrowski
+ */
+public class Fft {
+    /**
+     * The number of the points of the transform.
+     */
+    private final int size;
+
+    /**
+     * The position of every point in the bit-reversed order.
+     */
+    private final int[] bitReversal;
+
+    /**
+     * The cosines of the twiddle factors (for the angles 2 * PI * k / size).
+     */
+    private final double[] cosines;
+
+    /**
+     * The sines of the twiddle factors (for the angles 2 * PI * k / size).
+     */
+    private final double[] sines;
+
+    /**
+     * Calculates the twiddle factors and the bit-reversed order.
+     * @param size The number of the points of the transform (a power of two).
+     * @throws IllegalArgumentException If the size is not a power of two.
+     */
+    public Fft(int size) {
+        if (size < 2 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("The size of the FFT has to be a power of two: " + size);
+        }
+        this.size = size;
+        bitReversal = new int[size];
+        int bits = Integer.numberOfTrailingZeros(size);
+        for (int i = 0; i < size; i++) {
+            bitReversal[i] = Integer.reverse(i) >>> (Integer.SIZE - bits);
+        }
+        cosines = new double[size / 2];
+        sines = new double[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            cosines[i] = Math.cos(2 * Math.PI * i / size);
+            sines[i] = Math.sin(2 * Math.PI * i / size);
+        }
+    }
+
+    /**
+     * Calculates the forward transform of a signal in place.
+     * @param real The real parts of the signal (replaced with the real parts of the spectrum).
+     * @param imag The imaginary parts of the signal (replaced with the imaginary parts of the spectrum).
+     */
+    public void transform(double[] real, double[] imag) {
+        for (int i = 0; i < size; i++) {
+            int j = bitReversal[i];
+            if (j > i) {
+                double swap = real[i];
+                real[i] = real[j];
+                real[j] = swap;
+                swap = imag[i];
+                imag[i] = imag[j];
+                imag[j] = swap;
+            }
+        }
+        for (int length = 2; length <= size; length <<= 1) {
+            int half = length >> 1;
+            int step = size / length;
+            for (int k = 0; k < half; k++) {
+                double cosine = cosines[k * step];
+                double sine = sines[k * step];
+                for (int a = k; a < size; a += length) {
+                    int b = a + half;
+                    double productReal = real[b] * cosine + imag[b] * sine;
+                    double productImag = imag[b] * cosine - real[b] * sine;
+                    real[b] = real[a] - productReal;
+                    imag[b] = imag[a] - productImag;
+                    real[a] += productReal;
+                    imag[a] += productImag;
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates the inverse transform of a spectrum in place, without dividing it by the size.
+     * @param real The real parts of the spectrum (replaced with the real parts of the signal multiplied by the size).
+     * @param imag The imaginary parts of the spectrum (replaced with the imaginary parts of the signal
+     *             multiplied by the size).
+     */
+    public void inverseTransform(double[] real, double[] imag) {
+        transform(imag, real);
+    }
+
+    /**
+     * Returns the number of the points of the transform.
+     * @return The number of the points of the transform.
+     */
+    public int getSize() {
+        return size;
+    }
+}
@@ -0,0 +1,206 @@
+package synthesizer.dsp.post;
+
+import synthesizer.dsp.Converter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An impulse response of a room stored in a WAV file, used by the {@link ConvolutionReverb}.
+ *
+ * The file is memory-mapped instead of being read into an array: the samples are read straight from the mapping
+ * (which the operating system pages in when needed), so loading doesn't need a temporary copy of the whole file
+ * on the heap. The mapping is only read while the {@link PartitionedConvolver} calculates the spectra
+ * of the impulse response; the spectra are kept outside of the heap (16 bytes per frame), and the spectra
+ * of the input take about 16 bytes per frame of the heap.
+ *
+ * Supported are the PCM files with 16, 24 or 32-bit integer samples and the files with 32 or 64-bit
+ * floating-point samples (also in the extensible format). A mono file is used for both channels,
+ * the channels after the second one are ignored.
+ *
+ * @author Marek Bobrowski
+ */
+public class ImpulseResponse {
+    /**
+     * The format tag of the integer PCM samples.
+     */
+    private static final int FORMAT_PCM = 1;
+
+    /**
+     * The format tag of the floating-point samples.
+     */
+    private static final int FORMAT_FLOAT = 3;
+
+    /**
+     * The format tag of the extensible format (the actual format is stored in its sub-format).
+     */
+    private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+
+    /**
+     * The mapped content of the file.
+     */
+    private final MappedByteBuffer data;
+
+    /**
+     * The position in the file of the first sample.
+     */
+    private final int dataOffset;
+
+    /**
+     * The number of frames (samples per channel).
+     */
+    private final int frameCount;
+
+    /**
+     * The number of channels stored in the file.
+     */
+    private final int channelCount;
+
+    /**
+     * The number of bytes of one frame.
+     */
+    private final int blockAlign;
+
+    /**
+     * The number of bytes of one sample.
+     */
+    private final int bytesPerSample;
+
+    /**
+     * True if the samples are floating-point numbers, false if they are integers.
+     */
+    private final boolean floatingPoint;
+
+    /**
+     * The sample rate of the file.
+     */
+    private final int sampleRate;
+
+    /**
+     * Maps the file and reads its header.
+     * @param file The WAV file.
+     * @throws IOException If the file cannot be read or its format is not supported.
+     */
+    public ImpulseResponse(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("The impulse response is too long: " + file);
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        if (data.limit() < 12 || !readAscii(0).equals("RIFF") || !readAscii(8).equals("WAVE")) {
+            throw new IOException("Not a WAV file: " + file);
+        }
+        int format = -1;
+        int channels = 0;
+        int rate = 0;
+        int align = 0;
+        int bits = 0;
+        int offset = -1;
+        int size = 0;
+        int position = 12;
+        while (position + 8 <= data.limit()) {
+            String chunkId = readAscii(position);
+            int chunkSize = data.getInt(position + 4);
+            int chunkStart = position + 8;
+            if (chunkSize < 0) {
+                break;
+            }
+            if (chunkId.equals("fmt ")) {
+                format = data.getShort(chunkStart) & 0xFFFF;
+                channels = data.getShort(chunkStart + 2);
+                rate = data.getInt(chunkStart + 4);
+                align = data.getShort(chunkStart + 12);
+                bits = data.getShort(chunkStart + 14);
+                if (format == FORMAT_EXTENSIBLE && chunkSize >= 26) {
+                    format = data.getShort(chunkStart + 24) & 0xFFFF;
+                }
+            } else if (chunkId.equals("data")) {
+                offset = chunkStart;
+                size = (int) Math.min(chunkSize & 0xFFFFFFFFL, data.limit() - chunkStart);
+                break;
+            }
+            position = chunkStart + chunkSize + (chunkSize & 1);
+        }
+        boolean supported = (format == FORMAT_PCM && (bits == 16 || bits == 24 || bits == 32))
+                || (format == FORMAT_FLOAT && (bits == 32 || bits == 64));
+        if (!supported || offset < 0 || channels < 1 || align < channels * bits / 8) {
+            throw new IOException("Unsupported format of the impulse response: " + file);
+        }
+        dataOffset = offset;
+        channelCount = channels;
+        blockAlign = align;
+        bytesPerSample = bits / 8;
+        floatingPoint = format == FORMAT_FLOAT;
+        sampleRate = rate;
+        frameCount = size / align;
+        if (sampleRate != Converter.SAMPLE_RATE) {
+            Logger.getLogger(ImpulseResponse.class.getName()).log(Level.WARNING,
+                    "The sample rate of the impulse response (" + sampleRate + " Hz) differs from the sample rate "
+                            + "of the synthesizer, so the reverb will be shorter or longer: " + file);
+        }
+    }
+
+    /**
+     * Reads a sample of the impulse response.
+     * @param channel The channel (0 - left, 1 - right; a mono file returns the same sample for both).
+     * @param frame The number of the frame.
+     * @return The sample (-1 to 1).
+     */
+    public double getSample(int channel, int frame) {
+        int position = dataOffset + frame * blockAlign + Math.min(channel, channelCount - 1) * bytesPerSample;
+        if (floatingPoint) {
+            return bytesPerSample == 4 ? data.getFloat(position) : data.getDouble(position);
+        }
+        return switch (bytesPerSample) {
+            case 2 -> data.getShort(position) / 32768.0;
+            case 3 -> ((data.get(position) & 0xFF) | ((data.get(position + 1) & 0xFF) << 8)
+                    | (data.get(position + 2) << 16)) / 8388608.0;
+            default -> data.getInt(position) / 2147483648.0;
+        };
+    }
+
+    /**
+     * Returns the number of frames (samples per channel) of the impulse response.
+     * @return The number of frames of the impulse response.
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Returns the number of channels stored in the file.
+     * @return The number of channels stored in the file.
+     */
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    /**
+     * Returns the sample rate of the file.
+     * @return The sample rate of the file.
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Reads 4 ASCII characters of the file.
+     * @param position The position of the first character.
+     * @return The characters.
+     */
+    private String readAscii(int position) {
+        char[] characters = new char[4];
+        for (int i = 0; i < characters.length; i++) {
+            characters[i] = (char) (data.get(position + i) & 0xFF);
+        }
+        return new String(characters);
+    }
+}
@@ -0,0 +1,377 @@
+package synthesizer.dsp.post;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class convolves a signal with a stereo impulse response using the uniformly partitioned overlap-save
+ * method. The impulse response is split into partitions of the block size and the spectra of the partitions
+ * (FFTs of twice the block size) are calculated once. The spectra of the last input blocks are kept in
+ * a frequency-domain delay line, so every block costs one forward FFT, one inverse FFT and one complex
+ * multiply-add of a spectrum per partition, instead of a multiply-add of every sample of the impulse response.
+ *
+ * Both channels are calculated with the same transforms: the left channel of every partition is stored as
+ * the real part and the right channel as the imaginary part of the signal, so the real part of the result
+ * is the left output and its imaginary part the right output.
+ *
+ * The spectra of the partitions are stored as floats outside of the heap (in a direct buffer), so a long impulse
+ * response takes 16 bytes per frame of native memory and none of the heap. The input blocks are real signals,
+ * so only the first half of their spectra (the rest are the complex conjugates) is kept in the delay line:
+ * about 16 bytes per frame of the impulse response on the heap.
+ *
+ * The first partition (the head) is calculated by the calling thread. The sum of the other partitions
+ * (the tail) for the next block only depends on the blocks that have already come in, so it is
+ * submitted as a job right after a block: another thread can calculate it while the next block is being
+ * created. The job is claimed atomically, so if no other thread has started it when the next block comes,
+ * the calling thread calculates it itself (and otherwise waits for it). The result never depends on which
+ * thread has calculated the tail.
+ *
+ * @author Marek Bobrowski
+ */
+class PartitionedConvolver {
+    /**
+     * The number of times a waiting thread checks the state before it parks.
+     */
+    private static final int SPIN_COUNT = 2000;
+
+    /**
+     * The number of frames of a block (and of a partition of the impulse response).
+     */
+    private final int blockSize;
+
+    /**
+     * The number of points of the spectra (twice the block size).
+     */
+    private final int spectrumSize;
+
+    /**
+     * The number of partitions of the impulse response.
+     */
+    private final int partitionCount;
+
+    /**
+     * The number of frames of the impulse response.
+     */
+    private final int length;
+
+    /**
+     * The transform of the spectrum size.
+     */
+    private final Fft fft;
+
+    /**
+     * The number of points of the first half of a spectrum (up to the Nyquist frequency, included).
+     */
+    private final int halfSpectrumSize;
+
+    /**
+     * The spectra of the partitions, one after another: the real parts (left channel) of a partition
+     * followed by its imaginary parts (right channel).
+     */
+    private final FloatBuffer kernel;
+
+    /**
+     * The real parts of the first halves of the spectra of the last input blocks (the frequency-domain delay line).
+     */
+    private final double[] inputReal;
+
+    /**
+     * The imaginary parts of the first halves of the spectra of the last input blocks.
+     */
+    private final double[] inputImag;
+
+    /**
+     * The real parts of the spectrum of the first partition (used by every block, so it's kept on the heap).
+     */
+    private final double[] headReal;
+
+    /**
+     * The imaginary parts of the spectrum of the first partition.
+     */
+    private final double[] headImag;
+
+    /**
+     * The position in the delay line of the spectrum of the newest block.
+     */
+    private int newestBlock = 0;
+
+    /**
+     * The last two blocks of the input signal.
+     */
+    private final double[] window;
+
+    /**
+     * The real parts of the sum of the spectra of the current block.
+     */
+    private final double[] sumReal;
+
+    /**
+     * The imaginary parts of the sum of the spectra of the current block.
+     */
+    private final double[] sumImag;
+
+    /**
+     * The real parts of the tail calculated for the next block.
+     */
+    private final double[] tailReal;
+
+    /**
+     * The imaginary parts of the tail calculated for the next block.
+     */
+    private final double[] tailImag;
+
+    /**
+     * The position in the delay line of the newest block the submitted tail is calculated from.
+     */
+    private int tailNewestBlock = 0;
+
+    /**
+     * The number of the last submitted tail job. Writing it also publishes the job to other threads.
+     */
+    private volatile int submittedJob = 0;
+
+    /**
+     * The number of the last claimed tail job.
+     */
+    private final AtomicInteger claimedJob = new AtomicInteger();
+
+    /**
+     * The number of the last finished tail job. Writing it also publishes the tail.
+     */
+    private volatile int finishedJob = 0;
+
+    /**
+     * Tells if a tail job has been submitted and not taken by a block yet (used only by the calling thread).
+     */
+    private boolean tailPending = false;
+
+    /**
+     * The thread that waits for the tail job.
+     */
+    private volatile Thread waitingThread;
+
+    /**
+     * Calculates the spectra of the partitions of the impulse response.
+     * @param impulseResponse The impulse response.
+     * @param blockSize The number of frames of a block (a power of two).
+     */
+    PartitionedConvolver(ImpulseResponse impulseResponse, int blockSize) {
+        this.blockSize = blockSize;
+        spectrumSize = 2 * blockSize;
+        fft = new Fft(spectrumSize);
+        length = impulseResponse.getFrameCount();
+        partitionCount = Math.max(1, (length + blockSize - 1) / blockSize);
+        halfSpectrumSize = blockSize + 1;
+        kernel = ByteBuffer.allocateDirect(partitionCount * 2 * spectrumSize * Float.BYTES)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        inputReal = new double[partitionCount * halfSpectrumSize];
+        inputImag = new double[partitionCount * halfSpectrumSize];
+        headReal = new double[spectrumSize];
+        headImag = new double[spectrumSize];
+        window = new double[spectrumSize];
+        sumReal = new double[spectrumSize];
+        sumImag = new double[spectrumSize];
+        tailReal = new double[spectrumSize];
+        tailImag = new double[spectrumSize];
+
+        // The impulse response is normalized to the energy of 1 (in the louder channel), so the wet signal
+        // is about as loud as the dry one. The division of the inverse transform is included too.
+        double scale = 1.0 / (spectrumSize * Math.sqrt(Math.max(getEnergy(impulseResponse, 0),
+                getEnergy(impulseResponse, 1))));
+        if (Double.isInfinite(scale)) {
+            scale = 0;
+        }
+        for (int partition = 0; partition < partitionCount; partition++) {
+            Arrays.fill(sumReal, 0);
+            Arrays.fill(sumImag, 0);
+            int first = partition * blockSize;
+            int frames = Math.min(blockSize, length - first);
+            for (int i = 0; i < frames; i++) {
+                sumReal[i] = impulseResponse.getSample(0, first + i) * scale;
+                sumImag[i] = impulseResponse.getSample(1, first + i) * scale;
+            }
+            fft.transform(sumReal, sumImag);
+            int start = partition * 2 * spectrumSize;
+            for (int i = 0; i < spectrumSize; i++) {
+                kernel.put(start + i, (float) sumReal[i]);
+                kernel.put(start + spectrumSize + i, (float) sumImag[i]);
+            }
+        }
+        for (int i = 0; i < spectrumSize; i++) {
+            headReal[i] = kernel.get(i);
+            headImag[i] = kernel.get(spectrumSize + i);
+        }
+    }
+
+    /**
+     * Convolves the next block of the input signal.
+     * @param input The block of the input signal.
+     * @param outputLeft The array the block of the left channel of the output will be written into.
+     * @param outputRight The array the block of the right channel of the output will be written into.
+     */
+    void process(double[] input, double[] outputLeft, double[] outputRight) {
+        // The spectrum of the last two blocks becomes the newest entry of the delay line.
+        System.arraycopy(window, blockSize, window, 0, blockSize);
+        System.arraycopy(input, 0, window, blockSize, blockSize);
+        System.arraycopy(window, 0, sumReal, 0, spectrumSize);
+        Arrays.fill(sumImag, 0);
+        fft.transform(sumReal, sumImag);
+        newestBlock = newestBlock + 1 == partitionCount ? 0 : newestBlock + 1;
+        int newest = newestBlock * halfSpectrumSize;
+        System.arraycopy(sumReal, 0, inputReal, newest, halfSpectrumSize);
+        System.arraycopy(sumImag, 0, inputImag, newest, halfSpectrumSize);
+
+        if (tailPending) {
+            awaitTail();
+            tailPending = false;
+            for (int i = 0; i < spectrumSize; i++) {
+                double real = sumReal[i];
+                double imag = sumImag[i];
+                sumReal[i] = real * headReal[i] - imag * headImag[i] + tailReal[i];
+                sumImag[i] = real * headImag[i] + imag * headReal[i] + tailImag[i];
+            }
+        } else {
+            for (int i = 0; i < spectrumSize; i++) {
+                double real = sumReal[i];
+                double imag = sumImag[i];
+                sumReal[i] = real * headReal[i] - imag * headImag[i];
+                sumImag[i] = real * headImag[i] + imag * headReal[i];
+            }
+        }
+        if (partitionCount > 1) {
+            tailNewestBlock = newestBlock;
+            tailPending = true;
+            submittedJob = submittedJob + 1;
+        }
+
+        // Only the second half of the result is free of the circular wrap-around (overlap-save).
+        fft.inverseTransform(sumReal, sumImag);
+        System.arraycopy(sumReal, blockSize, outputLeft, 0, blockSize);
+        System.arraycopy(sumImag, blockSize, outputRight, 0, blockSize);
+    }
+
+    /**
+     * Calculates the submitted tail job, unless another thread has already claimed it.
+     * Called by the background thread.
+     */
+    void calculateTailIfUnclaimed() {
+        int job = submittedJob;
+        if (job > 0 && claimedJob.compareAndSet(job - 1, job)) {
+            calculateTail();
+            finishedJob = job;
+            LockSupport.unpark(waitingThread);
+        }
+    }
+
+    /**
+     * Clears the signal stored in the convolver (waits for the submitted tail job first).
+     */
+    void clear() {
+        if (tailPending) {
+            awaitTail();
+            tailPending = false;
+        }
+        Arrays.fill(inputReal, 0);
+        Arrays.fill(inputImag, 0);
+        Arrays.fill(window, 0);
+    }
+
+    /**
+     * Tells if the convolver has a tail (more than one partition) to be calculated by a background thread.
+     * @return True if the convolver has a tail.
+     */
+    boolean hasTail() {
+        return partitionCount > 1;
+    }
+
+    /**
+     * Returns the number of frames of the impulse response.
+     * @return The number of frames of the impulse response.
+     */
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the number of frames of a block.
+     * @return The number of frames of a block.
+     */
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Makes sure the submitted tail job is finished: calculates it if no other thread has claimed it,
+     * otherwise waits for the thread that has.
+     */
+    private void awaitTail() {
+        int job = submittedJob;
+        if (claimedJob.compareAndSet(job - 1, job)) {
+            calculateTail();
+            finishedJob = job;
+            return;
+        }
+        waitingThread = Thread.currentThread();
+        int spins = 0;
+        while (finishedJob != job) {
+            if (spins < SPIN_COUNT) {
+                spins++;
+                Thread.onSpinWait();
+            } else {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    /**
+     * Calculates the energy (the sum of the squared samples) of a channel of an impulse response.
+     * @param impulseResponse The impulse response.
+     * @param channel The channel.
+     * @return The energy of the channel.
+     */
+    private static double getEnergy(ImpulseResponse impulseResponse, int channel) {
+        double energy = 0;
+        for (int i = 0; i < impulseResponse.getFrameCount(); i++) {
+            double sample = impulseResponse.getSample(channel, i);
+            energy += sample * sample;
+        }
+        return energy;
+    }
+
+    /**
+     * Calculates the sum of the products of the spectra of the partitions (except the first one)
+     * and the spectra of the input blocks they are applied to. The second half of an input spectrum
+     * is the complex conjugate of the first one, mirrored.
+     */
+    private void calculateTail() {
+        Arrays.fill(tailReal, 0);
+        Arrays.fill(tailImag, 0);
+        int block = tailNewestBlock;
+        for (int partition = 1; partition < partitionCount; partition++) {
+            int kernelReal = partition * 2 * spectrumSize;
+            int kernelImag = kernelReal + spectrumSize;
+            int spectrum = block * halfSpectrumSize;
+            for (int i = 0; i < halfSpectrumSize; i++) {
+                double real = inputReal[spectrum + i];
+                double imag = inputImag[spectrum + i];
+                double kernelRe = kernel.get(kernelReal + i);
+                double kernelIm = kernel.get(kernelImag + i);
+                tailReal[i] += real * kernelRe - imag * kernelIm;
+                tailImag[i] += real * kernelIm + imag * kernelRe;
+            }
+            for (int i = halfSpectrumSize; i < spectrumSize; i++) {
+                double real = inputReal[spectrum + spectrumSize - i];
+                double imag = -inputImag[spectrum + spectrumSize - i];
+                double kernelRe = kernel.get(kernelReal + i);
+                double kernelIm = kernel.get(kernelImag + i);
+                tailReal[i] += real * kernelRe - imag * kernelIm;
+                tailImag[i] += real * kernelIm + imag * kernelRe;
+            }
+            block = block == 0 ? partitionCount - 1 : block - 1;
+        }
+    }
+}
@@ -1,88 +1,507 @@
 package synthesizer.dsp.post;
 
+import synthesizer.dsp.Converter;
+import synthesizer.dsp.parameter.SmoothedParameter;
+
+import java.util.Arrays;
+
 /**
- * This class is responsible for creating a reverberation effect on a passed sound buffer.
- * The reverberation algorithm is based on Manfred Schroeder's idea for first reverberators because
- * it consists of a parallel bank of feedback comb filters (8) and a series of all-pass filters (6).
- * Each of the filters have different delay times and the same decay value (feedback/feedforward gain value).
+ * This class is responsible for creating a stereo reverberation effect on a passed sound buffer.
+ * The reverberation algorithm follows Jezar's Freeverb (itself based on Manfred Schroeder's first reverberators):
+ * every channel has a parallel bank of 8 feedback comb filters with a low-pass filter in their feedback loops
+ * (damping) and a series of 4 all-pass filters. The delays of the right channel are longer by a few samples
+ * (the stereo spread), so the channels are decorrelated and the reverb sounds wide even for a mono input.
+ *
+ * The filters are processed without copying the buffer and without any modulo operations:
+ * - the delay lines of all the comb filters are stored in one array (and the ones of the all-pass filters
+ *   in another one),
+ * - the buffer is split into runs in which no delay line wraps around, so the positions inside a run
+ *   are just incremented and wrapped (by a comparison) only between the runs,
+ * - the comb filters of both channels are calculated in fused loops, eight filters per sample,
+ * - the four all-pass filters of a channel process the wet signal in place, all in one step per sample.
+ *
+ * The mix, the decay and the damping move smoothly to their new values (see {@link SmoothedParameter}).
+ * The reverb is bypassed when its mix is 0 and when its input is silent and its tail has decayed
+ * (see {@link TailTracker}), so an idle synthesizer doesn't run the filters.
  *
  * @author Marek Bobrowski
  */
 public class Reverb {
     /**
-     * The feedback and the feedforward gain values for all the filters.
+     * The delays (in samples) of the comb filters of the left channel.
+     */
+    private static final int[] COMB_DELAYS = {1116, 1188, 1277, 1356, 1422, 1491, 1557, 1617};
+
+    /**
+     * The delays (in samples) of the all-pass filters of the left channel.
+     */
+    private static final int[] ALL_PASS_DELAYS = {556, 441, 341, 225};
+
+    /**
+     * The number of samples the delays of the right channel are longer by.
      */
-    private double decay = 0.9;
+    private static final int STEREO_SPREAD = 23;
+
+    /**
+     * The number of the comb filters of one channel.
+     */
+    private static final int COMB_COUNT = COMB_DELAYS.length;
+
+    /**
+     * The number of the all-pass filters of one channel.
+     */
+    private static final int ALL_PASS_COUNT = ALL_PASS_DELAYS.length;
+
+    /**
+     * The feedback and the feedforward gain value of the all-pass filters.
+     */
+    private static final double ALL_PASS_GAIN = 0.5;
+
+    /**
+     * The gain of the signal fed into the comb filters (the comb filters of one channel are summed).
+     */
+    private static final double INPUT_GAIN = 0.015;
+
+    /**
+     * The gain of the wet signal.
+     */
+    private static final double WET_GAIN = 3;
+
+    /**
+     * The largest coefficient of the low-pass filters of the comb filters (for the damping 1).
+     */
+    private static final double MAX_DAMPING = 0.4;
+
+    /**
+     * The feedback gain value of the comb filters.
+     */
+    private final SmoothedParameter decay = new SmoothedParameter(0.9, 0, 1);
+
+    /**
+     * How much the high frequencies are damped in the comb filters (0 to 1).
+     */
+    private final SmoothedParameter damping = new SmoothedParameter(0.5, 0, 1);
 
     /**
      * The mix between the dry (0) and the wet (1) signal.
      */
-    private double mix = 0;
+    private final SmoothedParameter mix = new SmoothedParameter(0, 0, 1);
 
-    // Initialization of all comb filters.
-    private final CombFilter cf1 = new CombFilter(decay, 1309);
-    private final CombFilter cf2 = new CombFilter(decay, 1636);
-    private final CombFilter cf3 = new CombFilter(decay, 1812);
-    private final CombFilter cf4 = new CombFilter(decay, 604);
-    private final CombFilter cf5 = new CombFilter(decay, 1045);
-    private final CombFilter cf6 = new CombFilter(decay, 1653);
-    private final CombFilter cf7 = new CombFilter(decay, 1468);
-    private final CombFilter cf8 = new CombFilter(decay, 1561);
+    /**
+     * The reusable array of the mix of every frame (while the mix is changing or modulated).
+     */
+    private final double[] mixes = new double[Converter.MAX_BUFFER_SIZE];
+
+    /**
+     * The delay lines of all the comb filters (the left channel first), one after another.
+     */
+    private final double[] combLines;
 
-    // Initialization of all all-pass filters.
-    private final AllPassFilter apf1 = new AllPassFilter(decay, 220);
-    private final AllPassFilter apf2 = new AllPassFilter(decay, 515);
-    private final AllPassFilter apf3 = new AllPassFilter(decay, 956);
-    private final AllPassFilter apf4 = new AllPassFilter(decay, 714);
-    private final AllPassFilter apf5 = new AllPassFilter(decay, 939);
-    private final AllPassFilter apf6 = new AllPassFilter(decay, 696);
+    /**
+     * The positions in 'combLines' where the delay lines of the comb filters start.
+     */
+    private final int[] combStarts = new int[2 * COMB_COUNT];
+
+    /**
+     * The positions in 'combLines' where the delay lines of the comb filters end (exclusive).
+     */
+    private final int[] combEnds = new int[2 * COMB_COUNT];
+
+    /**
+     * The positions in 'combLines' at which the comb filters read and write their delayed samples.
+     */
+    private final int[] combPositions = new int[2 * COMB_COUNT];
+
+    /**
+     * The last outputs of the low-pass filters of the comb filters.
+     */
+    private final double[] combFilterStores = new double[2 * COMB_COUNT];
+
+    /**
+     * The delay lines of all the all-pass filters (the left channel first), one after another.
+     */
+    private final double[] allPassLines;
+
+    /**
+     * The positions in 'allPassLines' where the delay lines of the all-pass filters start.
+     */
+    private final int[] allPassStarts = new int[2 * ALL_PASS_COUNT];
+
+    /**
+     * The positions in 'allPassLines' where the delay lines of the all-pass filters end (exclusive).
+     */
+    private final int[] allPassEnds = new int[2 * ALL_PASS_COUNT];
+
+    /**
+     * The positions in 'allPassLines' at which the all-pass filters read and write their delayed samples.
+     */
+    private final int[] allPassPositions = new int[2 * ALL_PASS_COUNT];
+
+    /**
+     * The reusable arrays that the wet (reverberated) signal of both channels is created in.
+     */
+    private final double[][] wetBuffer = new double[2][Converter.MAX_BUFFER_SIZE];
+
+    /**
+     * The reusable array that the input of the comb filters (the sum of the channels) is created in.
+     */
+    private final double[] combInput = new double[Converter.MAX_BUFFER_SIZE];
+
+    /**
+     * Tracks the tail of the reverb: the filters are cleared and skipped once it has decayed.
+     */
+    private final TailTracker tailTracker;
+
+    /**
+     * Tells if the filters are cleared and skipped.
+     */
+    private boolean bypassed = true;
+
+    /**
+     * The gain of the dry signal in the output: 1 for an insert effect, 0 for a send effect
+     * (the output is only the wet signal, see {@link #setSendMode(boolean)}).
+     */
+    private double dryLevel = 1;
 
     /**
-     * Empty constructor.
+     * Lays out the delay lines of the filters and creates the tracker of the tail. The longest path
+     * through the reverb goes through the longest comb filter and all the all-pass filters of the right channel.
      */
     public Reverb() {
+        combLines = new double[layOut(COMB_DELAYS, combStarts, combEnds, combPositions)];
+        allPassLines = new double[layOut(ALL_PASS_DELAYS, allPassStarts, allPassEnds, allPassPositions)];
+        int tailLength = 0;
+        for (int i = 0; i < COMB_COUNT; i++) {
+            tailLength = Math.max(tailLength, COMB_DELAYS[i] + STEREO_SPREAD);
+        }
+        for (int i = 0; i < ALL_PASS_COUNT; i++) {
+            tailLength += ALL_PASS_DELAYS[i] + STEREO_SPREAD;
+        }
+        tailTracker = new TailTracker(tailLength);
+    }
+
+    /**
+     * Places the delay lines of both channels one after another.
+     * @param delays The delays of the left channel (the right channel adds the stereo spread).
+     * @param starts The array the starts of the delay lines will be written into.
+     * @param ends The array the ends of the delay lines will be written into.
+     * @param positions The array the positions of the filters will be written into.
+     * @return The total length of the delay lines.
+     */
+    private static int layOut(int[] delays, int[] starts, int[] ends, int[] positions) {
+        int length = 0;
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = length;
+            positions[i] = length;
+            length += i < delays.length ? delays[i] : delays[i - delays.length] + STEREO_SPREAD;
+            ends[i] = length;
+        }
+        return length;
     }
 
     /**
-     * Creates a processed sound buffer by applying reverberation to the passed sound buffer.
+     * Processes the passed sound buffer by applying reverberation to it.
      *
      * @param buffer The buffer that will be used for creating reverberation.
-     * @return The processed sound buffer with added reverberation.
-     */
-    public double[][] createProcessedBuffer(double[][] buffer) {
-        double[][] output = new double[2][buffer[0].length];
-
-        double[][] cf1Samples = cf1.createProcessedBuffer(buffer);
-        double[][] cf2Samples = cf2.createProcessedBuffer(buffer);
-        double[][] cf3Samples = cf3.createProcessedBuffer(buffer);
-        double[][] cf4Samples = cf4.createProcessedBuffer(buffer);
-        double[][] cf5Samples = cf5.createProcessedBuffer(buffer);
-        double[][] cf6Samples = cf6.createProcessedBuffer(buffer);
-        double[][] cf7Samples = cf7.createProcessedBuffer(buffer);
-        double[][] cf8Samples = cf8.createProcessedBuffer(buffer);
-
-        for (int i = 0; i < buffer[0].length; i++) {
-            output[0][i] = cf1Samples[0][i] + cf2Samples[0][i] +
-                    cf3Samples[0][i] + cf4Samples[0][i] +
-                    cf5Samples[0][i] + cf6Samples[0][i] +
-                    cf7Samples[0][i] + cf8Samples[0][i];
-            output[0][i] /= 8;
-            output[1][i] = output[0][i];
+     * @param bufferSize The number of frames to be processed.
+     */
+    public void processBuffer(double[][] buffer, int bufferSize) {
+        processBuffer(buffer, bufferSize, null);
+    }
+
+    /**
+     * Processes the passed sound buffer by applying reverberation to it. Both channels are summed into
+     * the input of the reverb and the wet signal of every channel is mixed into that channel.
+     * The mix can be modulated for every frame (see {@link synthesizer.dsp.modulation.Modulator}).
+     *
+     * @param buffer The buffer that will be used for creating reverberation.
+     * @param bufferSize The number of frames to be processed.
+     * @param mixModulation The values added to the mix for every frame (null - no modulation).
+     */
+    public void processBuffer(double[][] buffer, int bufferSize, double[] mixModulation) {
+        mix.update(bufferSize);
+        decay.update(bufferSize);
+        damping.update(bufferSize);
+        if (mix.getValue() == 0 && !mix.isSmoothing() && mixModulation == null) {
+            // The wet signal isn't heard, so its tail is dropped.
+            if (!bypassed) {
+                clear();
+            }
+            passDry(buffer, bufferSize);
+            return;
+        }
+        boolean inputSilent = TailTracker.isSilent(buffer[0], bufferSize)
+                && TailTracker.isSilent(buffer[1], bufferSize);
+        if (bypassed && inputSilent) {
+            passDry(buffer, bufferSize);
+            return;
+        }
+        bypassed = false;
+
+        processFilters(buffer, bufferSize);
+
+        double tailPeak = 0;
+        double[] left = buffer[0];
+        double[] right = buffer[1];
+        double[] wetLeft = wetBuffer[0];
+        double[] wetRight = wetBuffer[1];
+        double mixValue = mix.getValue();
+        double dry = dryLevel;
+        double[] frameMixes = mix.fillValues(mixes, bufferSize, mixModulation);
+        for (int i = 0; i < bufferSize; i++) {
+            double wetMix = frameMixes == null ? mixValue : frameMixes[i];
+            double wetGain = wetMix * WET_GAIN;
+            left[i] = (1 - wetMix) * dry * left[i] + wetGain * wetLeft[i];
+            right[i] = (1 - wetMix) * dry * right[i] + wetGain * wetRight[i];
+            tailPeak = Math.max(tailPeak, Math.max(Math.abs(wetLeft[i]), Math.abs(wetRight[i])));
+        }
+        tailTracker.update(inputSilent, tailPeak * WET_GAIN, bufferSize);
+        if (tailTracker.hasDecayed()) {
+            clear();
+        }
+    }
+
+    /**
+     * Processes the filters of both channels and writes the wet signal into the wet buffer.
+     * The buffer is split into runs in which no delay line wraps around. In every run the comb filters are
+     * processed in two groups of eight (four of each channel) fused into one loop, so the states of their
+     * low-pass filters stay in local variables and their recurrences are calculated in parallel by
+     * the processor. Then the sums of the comb filters go through the all-pass filters in place.
+     * @param buffer The buffer whose channels are summed into the input of the comb filters.
+     * @param bufferSize The number of frames to be processed.
+     */
+    private void processFilters(double[][] buffer, int bufferSize) {
+        double[] inputLeft = buffer[0];
+        double[] inputRight = buffer[1];
+        double[] input = combInput;
+        double inputGain = INPUT_GAIN / 2;
+        for (int i = 0; i < bufferSize; i++) {
+            input[i] = (inputLeft[i] + inputRight[i]) * inputGain;
+        }
+        int done = 0;
+        while (done < bufferSize) {
+            int run = getRunLength(combPositions, combEnds, bufferSize - done);
+            for (int c = 0; c < COMB_COUNT; c += 4) {
+                processCombGroup(c, done, run);
+            }
+            advance(combPositions, combStarts, combEnds, run);
+            done += run;
+        }
+        done = 0;
+        while (done < bufferSize) {
+            int run = getRunLength(allPassPositions, allPassEnds, bufferSize - done);
+            processAllPasses(done, run);
+            advance(allPassPositions, allPassStarts, allPassEnds, run);
+            done += run;
+        }
+    }
+
+    /**
+     * Processes a run of a group of eight comb filters: four neighbouring comb filters of both channels.
+     * The first group writes the wet buffer, the second one adds to it.
+     * @param first The number of the first comb filter of the group (in the left channel).
+     * @param offset The position of the first frame of the run.
+     * @param run The number of frames of the run (no delay line wraps around inside it).
+     */
+    private void processCombGroup(int first, int offset, int run) {
+        double[] lines = combLines;
+        double[] input = combInput;
+        double[] wetLeft = wetBuffer[0];
+        double[] wetRight = wetBuffer[1];
+        double feedback = decay.getValue();
+        double damp = damping.getValue() * MAX_DAMPING;
+        double undamped = 1 - damp;
+        int[] positions = combPositions;
+        double[] stores = combFilterStores;
+        int right = COMB_COUNT + first;
+        int left1 = positions[first];
+        int left2 = positions[first + 1];
+        int left3 = positions[first + 2];
+        int left4 = positions[first + 3];
+        int right1 = positions[right];
+        int right2 = positions[right + 1];
+        int right3 = positions[right + 2];
+        int right4 = positions[right + 3];
+        double storeLeft1 = stores[first];
+        double storeLeft2 = stores[first + 1];
+        double storeLeft3 = stores[first + 2];
+        double storeLeft4 = stores[first + 3];
+        double storeRight1 = stores[right];
+        double storeRight2 = stores[right + 1];
+        double storeRight3 = stores[right + 2];
+        double storeRight4 = stores[right + 3];
+        boolean add = first > 0;
+        for (int j = 0; j < run; j++) {
+            int i = offset + j;
+            double in = input[i];
+            double outputLeft1 = lines[left1 + j];
+            double outputLeft2 = lines[left2 + j];
+            double outputLeft3 = lines[left3 + j];
+            double outputLeft4 = lines[left4 + j];
+            double outputRight1 = lines[right1 + j];
+            double outputRight2 = lines[right2 + j];
+            double outputRight3 = lines[right3 + j];
+            double outputRight4 = lines[right4 + j];
+            storeLeft1 = outputLeft1 * undamped + storeLeft1 * damp;
+            storeLeft2 = outputLeft2 * undamped + storeLeft2 * damp;
+            storeLeft3 = outputLeft3 * undamped + storeLeft3 * damp;
+            storeLeft4 = outputLeft4 * undamped + storeLeft4 * damp;
+            storeRight1 = outputRight1 * undamped + storeRight1 * damp;
+            storeRight2 = outputRight2 * undamped + storeRight2 * damp;
+            storeRight3 = outputRight3 * undamped + storeRight3 * damp;
+            storeRight4 = outputRight4 * undamped + storeRight4 * damp;
+            lines[left1 + j] = in + storeLeft1 * feedback;
+            lines[left2 + j] = in + storeLeft2 * feedback;
+            lines[left3 + j] = in + storeLeft3 * feedback;
+            lines[left4 + j] = in + storeLeft4 * feedback;
+            lines[right1 + j] = in + storeRight1 * feedback;
+            lines[right2 + j] = in + storeRight2 * feedback;
+            lines[right3 + j] = in + storeRight3 * feedback;
+            lines[right4 + j] = in + storeRight4 * feedback;
+            double sumLeft = (outputLeft1 + outputLeft2) + (outputLeft3 + outputLeft4);
+            double sumRight = (outputRight1 + outputRight2) + (outputRight3 + outputRight4);
+            wetLeft[i] = add ? wetLeft[i] + sumLeft : sumLeft;
+            wetRight[i] = add ? wetRight[i] + sumRight : sumRight;
+        }
+        stores[first] = storeLeft1;
+        stores[first + 1] = storeLeft2;
+        stores[first + 2] = storeLeft3;
+        stores[first + 3] = storeLeft4;
+        stores[right] = storeRight1;
+        stores[right + 1] = storeRight2;
+        stores[right + 2] = storeRight3;
+        stores[right + 3] = storeRight4;
+    }
+
+    /**
+     * Processes a run of the wet buffer (in place) by the all-pass filters of both channels. Every sample goes
+     * through the four all-pass filters of its channel in one step, so it is read and written only once.
+     * @param offset The position of the first frame of the run.
+     * @param run The number of frames of the run (no delay line wraps around inside it).
+     */
+    private void processAllPasses(int offset, int run) {
+        double[] lines = allPassLines;
+        double[] wetLeft = wetBuffer[0];
+        double[] wetRight = wetBuffer[1];
+        int[] positions = allPassPositions;
+        int left1 = positions[0];
+        int left2 = positions[1];
+        int left3 = positions[2];
+        int left4 = positions[3];
+        int right1 = positions[ALL_PASS_COUNT];
+        int right2 = positions[ALL_PASS_COUNT + 1];
+        int right3 = positions[ALL_PASS_COUNT + 2];
+        int right4 = positions[ALL_PASS_COUNT + 3];
+        for (int j = 0; j < run; j++) {
+            int i = offset + j;
+            double left = wetLeft[i];
+            double delayed = lines[left1 + j];
+            lines[left1 + j] = left + delayed * ALL_PASS_GAIN;
+            left = delayed - left;
+            delayed = lines[left2 + j];
+            lines[left2 + j] = left + delayed * ALL_PASS_GAIN;
+            left = delayed - left;
+            delayed = lines[left3 + j];
+            lines[left3 + j] = left + delayed * ALL_PASS_GAIN;
+            left = delayed - left;
+            delayed = lines[left4 + j];
+            lines[left4 + j] = left + delayed * ALL_PASS_GAIN;
+            wetLeft[i] = delayed - left;
+
+            double right = wetRight[i];
+            delayed = lines[right1 + j];
+            lines[right1 + j] = right + delayed * ALL_PASS_GAIN;
+            right = delayed - right;
+            delayed = lines[right2 + j];
+            lines[right2 + j] = right + delayed * ALL_PASS_GAIN;
+            right = delayed - right;
+            delayed = lines[right3 + j];
+            lines[right3 + j] = right + delayed * ALL_PASS_GAIN;
+            right = delayed - right;
+            delayed = lines[right4 + j];
+            lines[right4 + j] = right + delayed * ALL_PASS_GAIN;
+            wetRight[i] = delayed - right;
+        }
+    }
+
+    /**
+     * Moves the positions of the filters forward by a run and wraps them around the ends of their delay lines.
+     * @param positions The positions of the filters.
+     * @param starts The starts of the delay lines of the filters.
+     * @param ends The ends of the delay lines of the filters.
+     * @param run The number of frames of the run.
+     */
+    private static void advance(int[] positions, int[] starts, int[] ends, int run) {
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] += run;
+            if (positions[i] == ends[i]) {
+                positions[i] = starts[i];
+            }
         }
+    }
 
-        output = apf1.createProcessedBuffer(output);
-        output = apf2.createProcessedBuffer(output);
-        output = apf3.createProcessedBuffer(output);
-        output = apf4.createProcessedBuffer(output);
-        output = apf5.createProcessedBuffer(output);
-        output = apf6.createProcessedBuffer(output);
+    /**
+     * Returns the length of the longest run (up to the limit) in which none of the delay lines wraps around.
+     * @param positions The positions of the filters.
+     * @param ends The ends of the delay lines of the filters.
+     * @param limit The largest length of the run.
+     * @return The length of the run.
+     */
+    private static int getRunLength(int[] positions, int[] ends, int limit) {
+        int run = limit;
+        for (int i = 0; i < positions.length; i++) {
+            run = Math.min(run, ends[i] - positions[i]);
+        }
+        return run;
+    }
 
-        for (int i = 0; i < buffer[0].length; i++) {
-            output[0][i] = (1 - mix) * buffer[0][i] + mix * output[0][i];
-            output[1][i] = output[0][i];
+    /**
+     * Writes the output of the bypassed reverb: the buffer is left as it is, or silenced in the send mode.
+     * @param buffer The buffer to be processed.
+     * @param bufferSize The number of frames to be processed.
+     */
+    private void passDry(double[][] buffer, int bufferSize) {
+        if (dryLevel == 0) {
+            Arrays.fill(buffer[0], 0, bufferSize, 0);
+            Arrays.fill(buffer[1], 0, bufferSize, 0);
         }
+    }
+
+    /**
+     * Clears all the filters and bypasses them until a sound comes in.
+     */
+    private void clear() {
+        Arrays.fill(combLines, 0);
+        Arrays.fill(combFilterStores, 0);
+        Arrays.fill(allPassLines, 0);
+        tailTracker.reset();
+        bypassed = true;
+    }
+
+    /**
+     * Turns the send mode on or off. In the send mode the reverb is fed by a send bus and its output is only
+     * the wet signal (the dry signal is left out), which is added to the main bus by the caller; the mix sets
+     * the level of the returned reverberation. Called before the synthesis starts.
+     * @param sendMode True if the reverb should only return the wet signal.
+     */
+    public void setSendMode(boolean sendMode) {
+        dryLevel = sendMode ? 0 : 1;
+    }
+
+    /**
+     * Tells if the reverb is in the send mode (its output is only the wet signal).
+     * @return True if the reverb is in the send mode.
+     */
+    public boolean isSendMode() {
+        return dryLevel == 0;
+    }
 
-        return output;
+    /**
+     * Tells if the reverb is bypassed (its mix is 0, or its input is silent and its tail has decayed).
+     * @return True if the reverb is bypassed.
+     */
+    public boolean isBypassed() {
+        return bypassed;
     }
 
     /**
@@ -90,7 +509,7 @@ public class Reverb {
      * @return The mix between the dry (0) and the wet (1) signal.
      */
     public double getMix() {
-        return mix;
+        return mix.get();
     }
 
     /**
@@ -98,43 +517,38 @@ public class Reverb {
      * @param mix The mix between the dry (0) and the wet (1) signal.
      */
     public void setMix(double mix) {
-        this.mix = mix;
+        this.mix.set(mix);
     }
 
     /**
-     * Sets the feedback and the feedforward gain values for all the filters.
-     * @param decay The feedback and the feedforward gain values for all the filters.
+     * Sets the feedback gain value of the comb filters (how long the reverb rings).
+     * @param decay The feedback gain value of the comb filters (0 to 1).
      */
     public void setDecay(double decay) {
-        if (decay >= 1) {
-            this.decay = 1;
-        } else if (decay <= 0) {
-            this.decay = 0;
-        } else {
-            this.decay = decay;
-        }
-        this.decay = decay;
-        cf1.setFeedback(this.decay);
-        cf2.setFeedback(this.decay);
-        cf3.setFeedback(this.decay);
-        cf4.setFeedback(this.decay);
-        cf5.setFeedback(this.decay);
-        cf6.setFeedback(this.decay);
-        cf7.setFeedback(this.decay);
-        cf8.setFeedback(this.decay);
-        apf1.setGain(this.decay);
-        apf2.setGain(this.decay);
-        apf3.setGain(this.decay);
-        apf4.setGain(this.decay);
-        apf5.setGain(this.decay);
-        apf6.setGain(this.decay);
-    }
-
-    /**
-     * Returns the feedback and the feedforward gain values for all the filters.
-     * @return The feedback and the feedforward gain values for all the filters.
+        this.decay.set(decay);
+    }
+
+    /**
+     * Returns the feedback gain value of the comb filters.
+     * @return The feedback gain value of the comb filters.
      */
     public double getDecay() {
-        return decay;
+        return decay.get();
+    }
+
+    /**
+     * Sets how much the high frequencies are damped in the comb filters.
+     * @param damping The damping (0 - none, 1 - the most).
+     */
+    public void setDamping(double damping) {
+        this.damping.set(damping);
+    }
+
+    /**
+     * Returns how much the high frequencies are damped in the comb filters.
+     * @return The damping (0 - none, 1 - the most).
+     */
+    public double getDamping() {
+        return damping.get();
     }
 }
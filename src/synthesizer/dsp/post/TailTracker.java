@@ -0,0 +1,90 @@
+package synthesizer.dsp.post;
+
+/**
+ * This class tells when an effect with a memory (a delay line, a bank of filters) can be bypassed
+ * without cutting its tail. It counts the frames since the input of the effect became silent and the
+ * tail (the wet signal the effect produces on its own) fell below the threshold of silence.
+ * Once the count reaches the length of the longest path through the effect, all the samples stored
+ * in it are below the threshold too, so the effect has decayed: it can be cleared and skipped
+ * until a sound comes in again.
+ *
+ * @author Marek Bobrowski
+ */
+public class TailTracker {
+    /**
+     * The level below which a sample is considered silent (-120 dB, far below the 16-bit resolution).
+     */
+    public static final double SILENCE_THRESHOLD = 1e-6;
+
+    /**
+     * The number of silent frames after which the effect has decayed.
+     */
+    private int tailLength;
+
+    /**
+     * The number of frames since the input became silent and the tail fell below the threshold.
+     */
+    private int silentFrames = 0;
+
+    /**
+     * Creates the tracker of an effect.
+     * @param tailLength The length (in frames) of the longest path through the effect.
+     */
+    public TailTracker(int tailLength) {
+        this.tailLength = tailLength;
+    }
+
+    /**
+     * Changes the length of the longest path through the effect (when the effect has been changed)
+     * and starts counting anew.
+     * @param tailLength The length (in frames) of the longest path through the effect.
+     */
+    public void setTailLength(int tailLength) {
+        this.tailLength = tailLength;
+        silentFrames = 0;
+    }
+
+    /**
+     * Updates the count of the silent frames after a buffer has been processed.
+     * @param inputSilent True if the input of the buffer was silent.
+     * @param tailPeak The highest absolute value of the wet signal in the buffer.
+     * @param bufferSize The number of frames of the buffer.
+     */
+    public void update(boolean inputSilent, double tailPeak, int bufferSize) {
+        if (inputSilent && tailPeak < SILENCE_THRESHOLD) {
+            silentFrames = (int) Math.min((long) silentFrames + bufferSize, Integer.MAX_VALUE);
+        } else {
+            silentFrames = 0;
+        }
+    }
+
+    /**
+     * Tells if the tail of the effect has decayed below the threshold of silence.
+     * @return True if the effect has decayed.
+     */
+    public boolean hasDecayed() {
+        return silentFrames >= tailLength;
+    }
+
+    /**
+     * Starts counting anew (after the effect has been cleared or its input has changed).
+     */
+    public void reset() {
+        silentFrames = 0;
+    }
+
+    /**
+     * Tells if a buffer holds only zeros (the voices produce exact zeros when none of them is playing).
+     * @param buffer The buffer to be checked.
+     * @param bufferSize The number of samples to be checked.
+     * @return True if all the samples are zeros.
+     */
+    public static boolean isSilent(double[] buffer, int bufferSize) {
+        for (int i = 0; i < bufferSize; i++) {
+            if (buffer[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
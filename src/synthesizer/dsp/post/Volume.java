@@ -1,15 +1,27 @@
 package synthesizer.dsp.post;
 
+import synthesizer.dsp.Converter;
+import synthesizer.dsp.kernels.SampleKernels;
+import synthesizer.dsp.parameter.SmoothedParameter;
+
 /**
  * This class is responsible for changing the volume (the output loudness) of the signal.
+ * The volume is converted into a gain only when it changes, and a change of the gain is smoothed
+ * over a few milliseconds (see {@link SmoothedParameter}).
  *
  * @author Marek Bobrowski
  */
 public class Volume {
     /**
-     * The volume of the signal (in dB).
+     * The volume of the signal (in dB), converted into the gain.
+     */
+    private final SmoothedParameter gain = new SmoothedParameter(0, Double.NEGATIVE_INFINITY,
+            Double.POSITIVE_INFINITY, volume -> Math.pow(10, volume/20));
+
+    /**
+     * The reusable array of the gain of every frame (while the gain is changing).
      */
-    private double volume = 0;
+    private final double[] gains = new double[Converter.MAX_BUFFER_SIZE];
 
     public Volume() {
     }
@@ -19,7 +31,7 @@ public class Volume {
      * @return The signal volume (in dB).
      */
     public double getVolume() {
-        return volume;
+        return gain.get();
     }
 
     /**
@@ -27,17 +39,28 @@ public class Volume {
      * @param volume The signal volume (in dB).
      */
     public void setVolume(double volume) {
-        this.volume = volume;
+        gain.set(volume);
     }
 
     /**
      * Processes the passed buffer by changing the volume of the signal.
      * @param buffer The buffer to be processed.
+     * @param bufferSize The number of frames to be processed.
      */
-    public void processBuffer(double[][] buffer) {
-        for (int i = 0; i < buffer[0].length; i++) {
-            buffer[0][i] *= Math.pow(10, volume/20);
-            buffer[1][i] *= Math.pow(10, volume/20);
+    public void processBuffer(double[][] buffer, int bufferSize) {
+        gain.update(bufferSize);
+        double[] frameGains = gain.fillValues(gains, bufferSize, null);
+        if (frameGains != null) {
+            double[] left = buffer[0];
+            double[] right = buffer[1];
+            for (int i = 0; i < bufferSize; i++) {
+                left[i] *= frameGains[i];
+                right[i] *= frameGains[i];
+            }
+            return;
         }
+        SampleKernels kernels = SampleKernels.getInstance();
+        kernels.scale(buffer[0], gain.getValue(), bufferSize);
+        kernels.scale(buffer[1], gain.getValue(), bufferSize);
     }
 }
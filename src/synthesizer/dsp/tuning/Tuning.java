@@ -0,0 +1,308 @@
+package synthesizer.dsp.tuning;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The frequencies of all the keys (MIDI note numbers), calculated once when the tuning is created, so a note-on
+ * costs a lookup in a table instead of a power calculation.
+ *
+ * Besides the equal temperament (A4 = 440 Hz), a tuning can be loaded from the files of the Scala program:
+ * a scale (.scl - the pitches of the degrees of the scale in cents or as ratios, the last one being the period,
+ * usually the octave) and optionally a keyboard mapping (.kbm - which keys are tuned, which key plays the first
+ * degree of the scale, which key has which frequency and which degree every key of the pattern plays).
+ * Without a keyboard mapping the degrees of the scale are laid on the consecutive keys starting with the middle C
+ * (60) and the key 69 (A4) has the frequency of 440 Hz, like in Scala.
+ *
+ * A tuning never changes after it has been created, so it can be replaced by any thread at any time.
+ * The keys that a keyboard mapping leaves out have no frequency and don't play.
+ *
+ * @author Marek Bobrowski
+ */
+public class Tuning {
+    /**
+     * The number of keys (MIDI note numbers).
+     */
+    public static final int KEY_COUNT = 128;
+
+    /**
+     * The key of A4 (tuned to 440 Hz by default).
+     */
+    private static final int A4_KEY = 69;
+
+    /**
+     * The frequency of A4 by default.
+     */
+    private static final double A4_FREQUENCY = 440;
+
+    /**
+     * The key of the first degree of the scale by default (the middle C).
+     */
+    private static final int MIDDLE_KEY = 60;
+
+    /**
+     * The equal temperament, shared by all the synthesizers that don't load another tuning.
+     */
+    private static final Tuning EQUAL_TEMPERAMENT = createEqualTemperament();
+
+    /**
+     * The frequencies of the keys (0 - the key is not mapped).
+     */
+    private final double[] frequencies;
+
+    /**
+     * The description of the tuning (the description of the scale for the Scala files).
+     */
+    private final String description;
+
+    /**
+     * Creates a tuning.
+     * @param frequencies The frequencies of the keys (0 - the key is not mapped).
+     * @param description The description of the tuning.
+     */
+    private Tuning(double[] frequencies, String description) {
+        this.frequencies = frequencies;
+        this.description = description;
+    }
+
+    /**
+     * Returns the twelve-tone equal temperament with A4 (the key 69) tuned to 440 Hz.
+     * @return The equal temperament.
+     */
+    public static Tuning equalTemperament() {
+        return EQUAL_TEMPERAMENT;
+    }
+
+    /**
+     * Loads a tuning from a Scala scale file, with the default keyboard mapping.
+     * @param scaleFile The scale file (.scl).
+     * @return The loaded tuning.
+     * @throws IOException If the file cannot be read or its content is not valid.
+     */
+    public static Tuning fromScala(File scaleFile) throws IOException {
+        return fromScala(scaleFile, null);
+    }
+
+    /**
+     * Loads a tuning from a Scala scale file and a keyboard mapping file.
+     * @param scaleFile The scale file (.scl).
+     * @param mappingFile The keyboard mapping file (.kbm, null - the default mapping).
+     * @return The loaded tuning.
+     * @throws IOException If a file cannot be read or its content is not valid.
+     */
+    public static Tuning fromScala(File scaleFile, File mappingFile) throws IOException {
+        List<String> scaleLines = readLines(scaleFile);
+        if (scaleLines.size() < 2) {
+            throw new IOException("The scale has no number of notes: " + scaleFile);
+        }
+        String description = scaleLines.get(0).trim();
+        int noteCount = parseInteger(scaleLines.get(1), scaleFile);
+        if (noteCount < 1 || scaleLines.size() < 2 + noteCount) {
+            throw new IOException("The scale doesn't have " + noteCount + " notes: " + scaleFile);
+        }
+        // The pitches of the degrees within one period (the first degree is 0 cents) and the period itself.
+        double[] degreeCents = new double[noteCount + 1];
+        for (int i = 0; i < noteCount; i++) {
+            degreeCents[i + 1] = parsePitch(scaleLines.get(2 + i), scaleFile);
+        }
+
+        int[] mapping = null;
+        int firstKey = 0;
+        int lastKey = KEY_COUNT - 1;
+        int middleKey = MIDDLE_KEY;
+        int referenceKey = A4_KEY;
+        double referenceFrequency = A4_FREQUENCY;
+        int octaveDegree = noteCount;
+        if (mappingFile != null) {
+            List<String> mappingLines = readLines(mappingFile);
+            if (mappingLines.size() < 7) {
+                throw new IOException("The keyboard mapping is incomplete: " + mappingFile);
+            }
+            int mapSize = parseInteger(mappingLines.get(0), mappingFile);
+            firstKey = Math.max(0, parseInteger(mappingLines.get(1), mappingFile));
+            lastKey = Math.min(KEY_COUNT - 1, parseInteger(mappingLines.get(2), mappingFile));
+            middleKey = parseInteger(mappingLines.get(3), mappingFile);
+            referenceKey = parseInteger(mappingLines.get(4), mappingFile);
+            referenceFrequency = parseNumber(mappingLines.get(5), mappingFile);
+            octaveDegree = parseInteger(mappingLines.get(6), mappingFile);
+            if (mapSize < 0 || referenceFrequency <= 0 || octaveDegree < 0) {
+                throw new IOException("The keyboard mapping is not valid: " + mappingFile);
+            }
+            if (mapSize > 0) {
+                mapping = new int[mapSize];
+                for (int i = 0; i < mapSize; i++) {
+                    // The missing entries at the end of the pattern are not mapped.
+                    String entry = 7 + i < mappingLines.size() ? firstToken(mappingLines.get(7 + i)) : "x";
+                    mapping[i] = entry.equalsIgnoreCase("x") ? -1 : parseInteger(entry, mappingFile);
+                }
+            }
+        }
+
+        double octaveCents = getDegreeCents(degreeCents, octaveDegree);
+        double referenceCents = getKeyCents(degreeCents, mapping, octaveCents, referenceKey - middleKey);
+        if (Double.isNaN(referenceCents)) {
+            throw new IOException("The reference key " + referenceKey + " is not mapped: " + mappingFile);
+        }
+        double[] frequencies = new double[KEY_COUNT];
+        for (int key = firstKey; key <= lastKey; key++) {
+            double cents = getKeyCents(degreeCents, mapping, octaveCents, key - middleKey);
+            if (!Double.isNaN(cents)) {
+                frequencies[key] = referenceFrequency * Math.pow(2, (cents - referenceCents) / 1200);
+            }
+        }
+        return new Tuning(frequencies, description);
+    }
+
+    /**
+     * Returns the frequency of a key.
+     * @param key The key (MIDI note number, 0 - 127).
+     * @return The frequency of the key (0 if the key is not mapped).
+     */
+    public double getFrequency(int key) {
+        return frequencies[key & (KEY_COUNT - 1)];
+    }
+
+    /**
+     * Tells if a key has a frequency (a keyboard mapping can leave some keys out).
+     * @param key The key (MIDI note number, 0 - 127).
+     * @return True if the key has a frequency.
+     */
+    public boolean isMapped(int key) {
+        return getFrequency(key) > 0;
+    }
+
+    /**
+     * Returns the description of the tuning.
+     * @return The description of the tuning.
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Calculates the frequencies of the equal temperament.
+     * @return The equal temperament.
+     */
+    private static Tuning createEqualTemperament() {
+        double[] frequencies = new double[KEY_COUNT];
+        for (int key = 0; key < KEY_COUNT; key++) {
+            frequencies[key] = A4_FREQUENCY * Math.pow(2, (key - A4_KEY) / 12.0);
+        }
+        return new Tuning(frequencies, "12-tone equal temperament");
+    }
+
+    /**
+     * Calculates the pitch of a degree of the scale, which can lie in another period than the first one.
+     * @param degreeCents The pitches of the degrees within the first period, followed by the period.
+     * @param degree The degree.
+     * @return The pitch of the degree in cents (relative to the first degree).
+     */
+    private static double getDegreeCents(double[] degreeCents, int degree) {
+        int noteCount = degreeCents.length - 1;
+        return Math.floorDiv(degree, noteCount) * degreeCents[noteCount]
+                + degreeCents[Math.floorMod(degree, noteCount)];
+    }
+
+    /**
+     * Calculates the pitch of a key.
+     * @param degreeCents The pitches of the degrees within the first period, followed by the period.
+     * @param mapping The degrees played by the keys of the pattern (-1 - not mapped, null - the consecutive keys
+     *                play the consecutive degrees).
+     * @param octaveCents The interval by which the pattern of the mapping repeats, in cents.
+     * @param offset The distance of the key from the key of the first degree.
+     * @return The pitch of the key in cents (relative to the first degree), NaN if the key is not mapped.
+     */
+    private static double getKeyCents(double[] degreeCents, int[] mapping, double octaveCents, int offset) {
+        if (mapping == null) {
+            return getDegreeCents(degreeCents, offset);
+        }
+        int degree = mapping[Math.floorMod(offset, mapping.length)];
+        if (degree < 0) {
+            return Double.NaN;
+        }
+        return Math.floorDiv(offset, mapping.length) * octaveCents + getDegreeCents(degreeCents, degree);
+    }
+
+    /**
+     * Parses the pitch of a degree: a number with a period is in cents, otherwise it's a ratio
+     * ("3/2") or a whole number ("2").
+     * @param line The line with the pitch (the text after the pitch is ignored).
+     * @param file The file the line comes from.
+     * @return The pitch in cents.
+     * @throws IOException If the pitch is not valid.
+     */
+    private static double parsePitch(String line, File file) throws IOException {
+        String token = firstToken(line);
+        if (token.contains(".")) {
+            return parseNumber(token, file);
+        }
+        int slash = token.indexOf('/');
+        double numerator = parseNumber(slash < 0 ? token : token.substring(0, slash), file);
+        double denominator = slash < 0 ? 1 : parseNumber(token.substring(slash + 1), file);
+        if (numerator <= 0 || denominator <= 0) {
+            throw new IOException("The ratio of the pitch is not positive: '" + line.trim() + "' in " + file);
+        }
+        return 1200 * Math.log(numerator / denominator) / Math.log(2);
+    }
+
+    /**
+     * Parses the whole number at the start of a line.
+     * @param line The line.
+     * @param file The file the line comes from.
+     * @return The number.
+     * @throws IOException If the line doesn't start with a whole number.
+     */
+    private static int parseInteger(String line, File file) throws IOException {
+        try {
+            return Integer.parseInt(firstToken(line));
+        } catch (NumberFormatException ex) {
+            throw new IOException("A whole number expected: '" + line.trim() + "' in " + file, ex);
+        }
+    }
+
+    /**
+     * Parses the number at the start of a line.
+     * @param line The line.
+     * @param file The file the line comes from.
+     * @return The number.
+     * @throws IOException If the line doesn't start with a number.
+     */
+    private static double parseNumber(String line, File file) throws IOException {
+        try {
+            return Double.parseDouble(firstToken(line));
+        } catch (NumberFormatException ex) {
+            throw new IOException("A number expected: '" + line.trim() + "' in " + file, ex);
+        }
+    }
+
+    /**
+     * Returns the first word of a line.
+     * @param line The line.
+     * @return The text before the first white space.
+     */
+    private static String firstToken(String line) {
+        String trimmed = line.trim();
+        int end = 0;
+        while (end < trimmed.length() && !Character.isWhitespace(trimmed.charAt(end))) {
+            end++;
+        }
+        return trimmed.substring(0, end);
+    }
+
+    /**
+     * Reads the lines of a Scala file, without the comments (the lines starting with '!').
+     * @param file The file.
+     * @return The lines that aren't comments.
+     * @throws IOException If the file cannot be read.
+     */
+    private static List<String> readLines(File file) throws IOException {
+        // The Scala files are plain ASCII, often with descriptions in Latin-1.
+        List<String> lines = new ArrayList<>(Files.readAllLines(file.toPath(), StandardCharsets.ISO_8859_1));
+        lines.removeIf(line -> line.startsWith("!"));
+        return lines;
+    }
+}
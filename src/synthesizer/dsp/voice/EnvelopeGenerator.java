@@ -2,46 +2,87 @@ package synthesizer.dsp.voice;
 
 import synthesizer.models.EnvelopeSettings;
 import synthesizer.dsp.Converter;
+import synthesizer.dsp.parameter.SmoothedParameter;
+
+import java.util.Arrays;
 
 /**
  * This class processes the sound by applying an amplitude envelope to sound buffers.
  * The processing is applied according to the settings of an {@link EnvelopeSettings} object.
  * An instance of such processor should be created for every new voice.
  *
+ * The envelope is made of segments (attack, decay, sustain, release). When a segment starts, its length
+ * and the coefficients of the recurrence level = level * multiplier + addend are calculated once, so
+ * a whole run of a segment is generated by a loop without branches or divisions. A linear segment has
+ * the multiplier 1, an exponential one approaches a point slightly beyond its target, so it reaches
+ * the target exactly at its end. The settings are compared once per buffer and the current segment
+ * is recalculated only when they have changed.
+ *
  * @author Marek Bobrowski
  * @see EnvelopeSettings
  */
 public class EnvelopeGenerator {
     /**
-     * The envelope settings that describe how the sound should be processed by this envelope generator.
+     * How far beyond its target (relative to its range) an exponential attack aims. A bigger value
+     * gives a less curved segment.
      */
-    private final EnvelopeSettings envelopeSettings;
+    static final double ATTACK_OVERSHOOT = 0.3;
 
     /**
-     * The number of the samples that have gone through the attack segment.
+     * How far beyond its target (relative to its range) an exponential decay or release aims.
      */
-    private int attackSampleCount = 0;
+    static final double DECAY_OVERSHOOT = 0.001;
 
     /**
-     * The number of the samples that have gone through the decay segment.
+     * The attack segment.
      */
-    private int decaySampleCount = 0;
+    private static final int ATTACK = 0;
 
     /**
-     * The number of the samples that have gone through the release segment.
+     * The decay segment.
      */
-    private int releaseSampleCount = 0;
+    private static final int DECAY = 1;
 
     /**
-     * The number of the samples that have gone through the before-release segments.
+     * The sustain segment.
      */
-    private int beforeReleaseSampleCount = 0;
+    private static final int SUSTAIN = 2;
+
+    /**
+     * The release segment.
+     */
+    private static final int RELEASE = 3;
+
+    /**
+     * The silence after the release segment.
+     */
+    private static final int FINISHED = 4;
+
+    /**
+     * The envelope settings that describe how the sound should be processed by this envelope generator.
+     */
+    private final EnvelopeSettings envelopeSettings;
 
     /**
      * The instance of the voice that is being processed.
      */
     private final Voice voice;
 
+    /**
+     * The current segment (one of the segment constants).
+     */
+    private int stage;
+
+    /**
+     * The length (in samples) of the current segment.
+     */
+    private int segmentLength;
+
+    /**
+     * The number of the samples that have gone through the current segment.
+     */
+    private int segmentPosition;
+
     /**
      * Last value of the envelope. Envelope's value is a value that describes how
      * the volume of the passing sound is being changed. With every envelope "tick", this value is calculated anew.
@@ -50,6 +91,40 @@ public class EnvelopeGenerator {
      */
     private double lastValue = 0;
 
+    /**
+     * The value the envelope is multiplied by with every tick of the current segment.
+     */
+    private double multiplier = 1;
+
+    /**
+     * The value added to the envelope (after the multiplication) with every tick of the current segment.
+     */
+    private double addend = 0;
+
+    /**
+     * The attack time the segments have been calculated for.
+     */
+    private double attack;
+
+    /**
+     * The decay time the segments have been calculated for.
+     */
+    private double decay;
+
+    /**
+     * The sustain level the segments have been calculated for.
+     */
+    private double sustain;
+
+    /**
+     * The release time the segments have been calculated for.
+     */
+    private double release;
+
+    /**
+     * The curve the segments have been calculated for.
+     */
+    private int curve;
 
     /**
      * Assigns the passed arguments to the class fields.
@@ -60,56 +135,249 @@ public class EnvelopeGenerator {
     public EnvelopeGenerator(Voice voice, EnvelopeSettings envelopeSettings) {
         this.voice = voice;
         this.envelopeSettings = envelopeSettings;
+        reset();
+    }
+
+    /**
+     * Resets this envelope generator to the start of the attack (before a new note).
+     */
+    public void reset() {
+        readSettings();
+        lastValue = 0;
+        enterStage(ATTACK);
+    }
+
+    /**
+     * Returns the current level of the envelope.
+     * @return The level of the envelope.
+     */
+    public double getLevel() {
+        return lastValue;
+    }
+
+    /**
+     * Tells if the envelope is silent and stays silent until the next change of the settings: it's 0 and
+     * it's either finished, in the sustain segment or released (a release from 0 stays at 0).
+     * The voice doesn't have to generate the oscillators then.
+     * @return True if the envelope is silent.
+     */
+    public boolean isSilent() {
+        return lastValue == 0 && (stage == SUSTAIN || stage == FINISHED || stage == RELEASE
+                || voice.isReleased());
     }
 
     /**
      * Processes the buffer according to the passed {@link EnvelopeSettings} instance.
+     * The buffer is processed in runs, each within one segment of the envelope.
      * @param buffer The buffer to be processed.
+     * @param bufferSize The number of frames to be processed.
      */
-    public void processBuffer(double[][] buffer) {
-        for (int i = 0; i < buffer[0].length; i++) {
-            int numberOfAttackSamples = timeToSamples(envelopeSettings.getAttack());
-            int numberOfDecaySamples = timeToSamples(envelopeSettings.getDecay());
-            double sustainLevel = envelopeSettings.getSustain();
-            int numberOfReleaseSamples = timeToSamples(envelopeSettings.getRelease());
-            if (!voice.isReleased()) {
-                if (beforeReleaseSampleCount < numberOfAttackSamples) {
-                    lastValue = (1 - lastValue) / (numberOfAttackSamples - attackSampleCount)
-                            + lastValue;
-                    attackSampleCount++;
-                } else if(beforeReleaseSampleCount < numberOfDecaySamples + numberOfAttackSamples) {
-                    if (decaySampleCount == 0) {
-                        lastValue = 1;
-                    }
-                    lastValue  = (sustainLevel - lastValue) /
-                            (numberOfDecaySamples - decaySampleCount)
-                            + lastValue;
-                    decaySampleCount++;
-                } else if (beforeReleaseSampleCount >= numberOfAttackSamples + numberOfDecaySamples) {
-                    lastValue = sustainLevel;
+    public void processBuffer(double[][] buffer, int bufferSize) {
+        if (settingsChanged()) {
+            readSettings();
+            recalculateStage();
+        }
+        if (voice.isReleased() && stage < RELEASE) {
+            enterStage(RELEASE);
+        }
+        double[] samples = buffer[0];
+        int done = 0;
+        while (done < bufferSize) {
+            if (stage == SUSTAIN) {
+                applyLevel(samples, done, bufferSize - done);
+                break;
+            }
+            if (stage == FINISHED) {
+                Arrays.fill(samples, done, bufferSize, 0);
+                break;
+            }
+            int run = Math.min(bufferSize - done, segmentLength - segmentPosition);
+            applySegment(samples, done, run);
+            done += run;
+            segmentPosition += run;
+            if (segmentPosition == segmentLength) {
+                finishStage();
+            }
+        }
+        System.arraycopy(samples, 0, buffer[1], 0, bufferSize);
+    }
+
+    /**
+     * Applies a run of the current segment to the samples.
+     * @param samples The samples to be processed.
+     * @param offset The position of the first sample of the run.
+     * @param length The number of samples of the run.
+     */
+    private void applySegment(double[] samples, int offset, int length) {
+        double level = lastValue;
+        double segmentMultiplier = multiplier;
+        double segmentAddend = addend;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            level = level * segmentMultiplier + segmentAddend;
+            samples[i] *= level;
+        }
+        lastValue = level;
+    }
+
+    /**
+     * Applies the constant level of the envelope (the sustain) to the samples. If the sustain level has been
+     * changed, the level moves to it at the speed of the parameter smoothing (see {@link SmoothedParameter}).
+     * @param samples The samples to be processed.
+     * @param offset The position of the first sample.
+     * @param length The number of samples.
+     */
+    private void applyLevel(double[] samples, int offset, int length) {
+        double level = lastValue;
+        int end = offset + length;
+        if (level != sustain) {
+            for (int i = offset; i < end; i++) {
+                level = SmoothedParameter.approach(level, sustain, 1);
+                samples[i] *= level;
+            }
+            lastValue = level;
+            return;
+        }
+        for (int i = offset; i < end; i++) {
+            samples[i] *= level;
+        }
+    }
+
+    /**
+     * Moves to the segment following the finished one. The level is set exactly to the target of the
+     * finished segment, so the rounding errors of the recurrence don't add up.
+     */
+    private void finishStage() {
+        switch (stage) {
+            case ATTACK -> {
+                lastValue = 1;
+                enterStage(DECAY);
+            }
+            case DECAY -> enterStage(SUSTAIN);
+            default -> {
+                lastValue = 0;
+                stage = FINISHED;
+                if (!voice.hasEnded()) {
+                    voice.handleEnvelopeEnd();
                 }
-                beforeReleaseSampleCount++;
+            }
+        }
+    }
+
+    /**
+     * Starts a segment: calculates its length and coefficients. The segments of zero length are skipped.
+     * @param nextStage The segment to be started.
+     */
+    private void enterStage(int nextStage) {
+        stage = nextStage;
+        segmentPosition = 0;
+        segmentLength = getStageLength(nextStage);
+        if (nextStage == SUSTAIN) {
+            lastValue = sustain;
+        } else if (nextStage != FINISHED) {
+            if (segmentLength == 0) {
+                finishStage();
             } else {
-                if (releaseSampleCount < numberOfReleaseSamples) {
-                    lastValue = lastValue / (releaseSampleCount
-                            - numberOfReleaseSamples)
-                            + lastValue;
-                } else {
-                    if (!voice.hasEnded()) {
-                        voice.handleEnvelopeEnd();
-                    }
-                    lastValue = 0;
-                }
-                releaseSampleCount++;
+                calculateCoefficients();
             }
+        }
+    }
 
-            if (lastValue < 0) {
-                lastValue *= -1;
+    /**
+     * Recalculates the current segment after the settings have changed. The segment continues from
+     * the current level and the number of samples that have gone through it. In the sustain the level
+     * moves smoothly to the new sustain level (see {@link #applyLevel(double[], int, int)}).
+     */
+    private void recalculateStage() {
+        if (stage != SUSTAIN && stage != FINISHED) {
+            segmentLength = getStageLength(stage);
+            if (segmentPosition >= segmentLength) {
+                finishStage();
+            } else {
+                calculateCoefficients();
             }
+        }
+    }
+
+    /**
+     * Calculates the coefficients of the current segment for the rest of its length.
+     */
+    private void calculateCoefficients() {
+        boolean exponential = curve == 1;
+        double overshoot = stage == ATTACK ? ATTACK_OVERSHOOT : DECAY_OVERSHOOT;
+        double target = switch (stage) {
+            case ATTACK -> 1;
+            case DECAY -> sustain;
+            default -> 0;
+        };
+        int frames = segmentLength - segmentPosition;
+        multiplier = getMultiplier(exponential, overshoot, frames);
+        addend = getAddend(exponential, overshoot, multiplier, lastValue, target, frames);
+    }
+
+    /**
+     * Returns the length (in samples) of a segment according to the current settings.
+     * @param segment The segment.
+     * @return The length of the segment.
+     */
+    private int getStageLength(int segment) {
+        return switch (segment) {
+            case ATTACK -> timeToSamples(attack);
+            case DECAY -> timeToSamples(decay);
+            case RELEASE -> timeToSamples(release);
+            default -> 0;
+        };
+    }
 
-            buffer[0][i] *= lastValue;
-            buffer[1][i] = buffer[0][i];
+    /**
+     * Tells if the settings have changed since the segments have been calculated.
+     * @return True if the settings have changed.
+     */
+    private boolean settingsChanged() {
+        return attack != envelopeSettings.getAttack() || decay != envelopeSettings.getDecay()
+                || sustain != envelopeSettings.getSustain() || release != envelopeSettings.getRelease()
+                || curve != envelopeSettings.getCurve();
+    }
+
+    /**
+     * Copies the settings the segments are calculated for.
+     */
+    private void readSettings() {
+        attack = envelopeSettings.getAttack();
+        decay = envelopeSettings.getDecay();
+        sustain = envelopeSettings.getSustain();
+        release = envelopeSettings.getRelease();
+        curve = envelopeSettings.getCurve();
+    }
+
+    /**
+     * Calculates the multiplier of a segment.
+     * @param exponential True for an exponential segment, false for a linear one.
+     * @param overshoot How far beyond its target (relative to its range) an exponential segment aims.
+     * @param frames The length of the segment.
+     * @return The value the level is multiplied by with every tick.
+     */
+    static double getMultiplier(boolean exponential, double overshoot, int frames) {
+        return exponential ? Math.pow(overshoot / (1 + overshoot), 1.0 / frames) : 1;
+    }
+
+    /**
+     * Calculates the addend of a segment, so that the level goes from the start to the target
+     * within the length of the segment.
+     * @param exponential True for an exponential segment, false for a linear one.
+     * @param overshoot How far beyond its target (relative to its range) an exponential segment aims.
+     * @param multiplier The multiplier of the segment.
+     * @param start The level at the start of the segment.
+     * @param target The level at the end of the segment.
+     * @param frames The length of the segment.
+     * @return The value added to the level (after the multiplication) with every tick.
+     */
+    static double getAddend(boolean exponential, double overshoot, double multiplier,
+                            double start, double target, int frames) {
+        if (!exponential) {
+            return (target - start) / frames;
         }
+        return (target + overshoot * (target - start)) * (1 - multiplier);
     }
 
     /**
@@ -2,133 +2,241 @@ package synthesizer.dsp.voice;
 
 import synthesizer.utils.delegates.IntGetter;
 import synthesizer.dsp.Converter;
+import synthesizer.dsp.kernels.SampleKernels;
 
 /**
  * This class is responsible for generating a periodic signal according to the specified parameters.
+ * The signal can be calculated directly (one formula per sample) or read from the band-limited tables
+ * of the {@link WavetableBank}, which is cheaper and doesn't alias at high notes. The third option corrects
+ * the directly calculated sawtooth and square with PolyBLEP (and the triangle with PolyBLAMP): only the samples
+ * next to a discontinuity (or a corner) are changed, which removes most of the aliasing for a few extra operations.
  *
  * @author Marek Bobrowski
  */
 public class Oscillator {
+    /**
+     * The mode in which the waveform is calculated directly for every sample.
+     */
+    public static final int MODE_DIRECT = 0;
+
+    /**
+     * The mode in which the waveform is read from the band-limited tables.
+     */
+    public static final int MODE_WAVETABLE = 1;
+
+    /**
+     * The mode in which the waveform is calculated directly and corrected with PolyBLEP / PolyBLAMP.
+     */
+    public static final int MODE_POLYBLEP = 2;
+
     /**
      * An integer getter delegate for getting the waveform number.
      */
     private final IntGetter waveformGetter;
 
+    /**
+     * An integer getter delegate for getting the mode (one of the MODE constants).
+     */
+    private final IntGetter modeGetter;
+
+    /**
+     * The loops that calculate the waveforms directly (scalar or vector).
+     */
+    private final SampleKernels kernels = SampleKernels.getInstance();
+
     /**
      * The phase of this oscillator.
      */
     private double phase;
 
     /**
-     * Oscillator constructor.
+     * Creates an oscillator that calculates the waveforms directly.
      * @param waveformGetter An integer getter delegate for getting the wave type number.
      */
     public Oscillator(IntGetter waveformGetter) {
+        this(waveformGetter, () -> MODE_DIRECT);
+    }
+
+    /**
+     * Oscillator constructor.
+     * @param waveformGetter An integer getter delegate for getting the wave type number.
+     * @param modeGetter An integer getter delegate for getting the mode (one of the MODE constants).
+     */
+    public Oscillator(IntGetter waveformGetter, IntGetter modeGetter) {
         this.waveformGetter = waveformGetter;
+        this.modeGetter = modeGetter;
         phase = 0;
     }
 
+    /**
+     * Resets the phase of this oscillator (before a new note).
+     */
+    public void reset() {
+        phase = 0;
+    }
+
+    /**
+     * Moves the phase of this oscillator forward as if a buffer had been generated, without generating it
+     * (used while the voice is silent).
+     * @param frequency The frequency of the periodic signal.
+     * @param bufferSize The number of frames of the skipped buffer.
+     */
+    public void skip(double frequency, int bufferSize) {
+        phase = (phase + 2 * Math.PI * frequency / Converter.SAMPLE_RATE * bufferSize) % (2 * Math.PI);
+    }
+
     /**
      * Generates a sound buffer according to the passed method arguments and this oscillator's class fields.
+     * The generated samples are written into the passed array, which is reused between the buffers.
      * @param frequency The frequency of the periodic signal to be generated.
+     * @param output The array that the generated samples will be written into.
      * @param bufferSize The number of frames of the buffer.
-     * @return The buffer generated by this oscillator.
      */
-    public double[][] generateBuffer(double frequency, int bufferSize) {
+    public void generateBuffer(double frequency, double[] output, int bufferSize) {
         int waveformNumber = waveformGetter.get();
-        return switch (waveformNumber) {
-            case 1 -> generateTriangle(frequency, bufferSize);
-            case 2 -> generateSawtooth(frequency, bufferSize);
-            case 3 -> generateSquare(frequency, bufferSize);
-            /* 0 (default) - sine wave */
-            default -> generateSine(frequency, bufferSize);
-        };
+        int mode = modeGetter.get();
+        if (mode == MODE_WAVETABLE) {
+            generateFromTable(WavetableBank.getTable(waveformNumber & 3, frequency), frequency, output, bufferSize);
+            return;
+        }
+        if (mode == MODE_POLYBLEP) {
+            switch (waveformNumber) {
+                case 1 -> generateBlampTriangle(frequency, output, bufferSize);
+                case 2 -> generateBlepSawtooth(frequency, output, bufferSize);
+                case 3 -> generateBlepSquare(frequency, output, bufferSize);
+                /* The sine has no discontinuities, the table is just the cheaper way to generate it. */
+                default -> generateFromTable(WavetableBank.getTable(0, frequency), frequency, output, bufferSize);
+            }
+            return;
+        }
+        phase = kernels.generateWaveform(waveformNumber, phase, (2 * Math.PI * frequency) / Converter.SAMPLE_RATE,
+                output, bufferSize);
     }
 
     /**
-     * Creates a buffer of a sinusoidal signal.
-     * @param frequency The frequency of the sinusoidal signal.
+     * Fills the output with a signal read from a table, interpolating linearly between its samples.
+     * @param table The table of the waveform ({@link WavetableBank#TABLE_SIZE} + 1 samples).
+     * @param frequency The frequency of the signal.
+     * @param output The array that the samples will be written into.
      * @param bufferSize The number of frames of the sound buffer.
-     * @return The generated buffer of a sinusoidal signal.
      */
-    private double[][] generateSine(double frequency, int bufferSize) {
-        double[][] buffer = new double[2][bufferSize];
+    private void generateFromTable(double[] table, double frequency, double[] output, int bufferSize) {
+        // The phase is a 32-bit fixed-point fraction of the cycle, so it wraps around by the integer overflow.
+        // The highest bits are the table index, the rest is the position between two samples.
+        int indexShift = 32 - WavetableBank.TABLE_BITS;
+        int fractionMask = (1 << indexShift) - 1;
+        double fractionScale = 1.0 / (1 << indexShift);
+        int position = (int) (long) (phase / (2 * Math.PI) * 0x1p32);
+        int increment = (int) (long) (frequency / Converter.SAMPLE_RATE * 0x1p32);
         for (int i = 0; i < bufferSize; i++) {
-            buffer[0][i] = Math.sin(phase);
-            buffer[1][i] = buffer[0][i];
-            phase += (2 * Math.PI * frequency) / Converter.SAMPLE_RATE;
-            if (phase > 2 * Math.PI) {
-                phase = phase - (2 * Math.PI);
-            }
+            int index = position >>> indexShift;
+            double fraction = (position & fractionMask) * fractionScale;
+            output[i] = table[index] + (table[index + 1] - table[index]) * fraction;
+            position += increment;
         }
-        return buffer;
+        phase = (position & 0xFFFFFFFFL) * (2 * Math.PI / 0x1p32);
     }
 
     /**
-     * Creates a buffer of a triangular signal.
-     * @param frequency The frequency of the triangular signal.
+     * Fills the output with a sawtooth signal whose discontinuity is smoothed with PolyBLEP.
+     * @param frequency The frequency of the sawtooth signal.
+     * @param output The array that the samples will be written into.
      * @param bufferSize The number of frames of the sound buffer.
-     * @return The generated buffer of a triangular signal.
      */
-    private double[][] generateTriangle(double frequency, int bufferSize) {
-        double[][] buffer = new double[2][bufferSize];
+    private void generateBlepSawtooth(double frequency, double[] output, int bufferSize) {
+        double t = phase / (2 * Math.PI);
+        double dt = frequency / Converter.SAMPLE_RATE;
         for (int i = 0; i < bufferSize; i++) {
-            if (phase < Math.PI) {
-                buffer[0][i] = - 1 + (2 / Math.PI) * phase;
-            } else {
-                buffer[0][i] = 3 - (2 / Math.PI) * phase;
-            }
-            buffer[1][i] = buffer[0][i];
-
-            phase += (2 * Math.PI * frequency) / Converter.SAMPLE_RATE;
-
-            if (phase > 2 * Math.PI) {
-                phase = phase - (2 * Math.PI);
+            // The sawtooth falls from 1 to -1 and jumps up by 2 at the start of the cycle.
+            output[i] = 1 - 2 * t + polyBlep(t, dt);
+            t += dt;
+            if (t >= 1) {
+                t -= 1;
             }
         }
-        return buffer;
+        phase = t * (2 * Math.PI);
     }
 
     /**
-     * Creates a buffer of a sawtooth signal.
-     * @param frequency The frequency of the sawtooth signal.
+     * Fills the output with a square signal whose discontinuities are smoothed with PolyBLEP.
+     * @param frequency The frequency of the square signal.
+     * @param output The array that the samples will be written into.
      * @param bufferSize The number of frames of the sound buffer.
-     * @return The generated buffer of a sawtooth signal.
      */
-    private double[][] generateSawtooth(double frequency, int bufferSize) {
-        double[][] buffer = new double[2][bufferSize];
+    private void generateBlepSquare(double frequency, double[] output, int bufferSize) {
+        double t = phase / (2 * Math.PI);
+        double dt = frequency / Converter.SAMPLE_RATE;
         for (int i = 0; i < bufferSize; i++) {
-            buffer[0][i] = 1 - (1 / Math.PI * phase);
-            buffer[1][i] = buffer[0][i];
-            phase += (2 * Math.PI * frequency) / Converter.SAMPLE_RATE;
-            if (phase > 2 * Math.PI) {
-                phase = phase - (2 * Math.PI);
+            // The square jumps up by 2 at the start of the cycle and down by 2 in the middle of it.
+            double halfCycleLater = t < 0.5 ? t + 0.5 : t - 0.5;
+            output[i] = (t < 0.5 ? 1 : -1) + polyBlep(t, dt) - polyBlep(halfCycleLater, dt);
+            t += dt;
+            if (t >= 1) {
+                t -= 1;
             }
         }
-        return buffer;
+        phase = t * (2 * Math.PI);
     }
 
     /**
-     * Creates a buffer of a square signal.
-     * @param frequency The frequency of the square signal.
+     * Fills the output with a triangle signal whose corners are rounded with PolyBLAMP.
+     * @param frequency The frequency of the triangle signal.
+     * @param output The array that the samples will be written into.
      * @param bufferSize The number of frames of the sound buffer.
-     * @return The generated buffer of a square signal.
      */
-    private double[][] generateSquare(double frequency, int bufferSize) {
-        double[][] buffer = new double[2][bufferSize];
+    private void generateBlampTriangle(double frequency, double[] output, int bufferSize) {
+        double t = phase / (2 * Math.PI);
+        double dt = frequency / Converter.SAMPLE_RATE;
+        // The slope changes by 8 per cycle at every corner (from -4 to 4 and back), that is 8 * dt per sample.
+        double cornerScale = 8 * dt;
         for (int i = 0; i < bufferSize; i++) {
-            if (phase < Math.PI) {
-                buffer[0][i] = 1;
-            } else {
-                buffer[0][i] = -1;
-            }
-            buffer[1][i] = buffer[0][i];
-            phase += (2 * Math.PI * frequency) / Converter.SAMPLE_RATE;
-            if (phase > 2 * Math.PI) {
-                phase = phase - (2 * Math.PI);
+            double halfCycleLater = t < 0.5 ? t + 0.5 : t - 0.5;
+            double naive = t < 0.5 ? -1 + 4 * t : 3 - 4 * t;
+            output[i] = naive + cornerScale * (polyBlamp(t, dt) - polyBlamp(halfCycleLater, dt));
+            t += dt;
+            if (t >= 1) {
+                t -= 1;
             }
         }
-        return buffer;
+        phase = t * (2 * Math.PI);
     }
-}
 
+    /**
+     * Calculates the PolyBLEP correction of an upward step of 2 at the start of the cycle:
+     * the difference between a band-limited step (approximated with a polynomial) and the naive one.
+     * It is non-zero only within one sample from the step.
+     * @param t The position in the cycle [0, 1).
+     * @param dt The increase of the position per sample.
+     * @return The correction to be added to the naive signal.
+     */
+    private static double polyBlep(double t, double dt) {
+        if (t < dt) {
+            double x = t / dt;
+            return x + x - x * x - 1;
+        }
+        if (t > 1 - dt) {
+            double x = (t - 1) / dt;
+            return x * x + x + x + 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Calculates the PolyBLAMP correction of a corner at the start of the cycle where the slope increases by 1
+     * per sample: the integral of the PolyBLEP correction. It is non-zero only within one sample from the corner.
+     * @param t The position in the cycle [0, 1).
+     * @param dt The increase of the position per sample.
+     * @return The correction to be added to the naive signal.
+     */
+    private static double polyBlamp(double t, double dt) {
+        double distance;
+        if (t < dt) {
+            distance = 1 - t / dt;
+        } else if (t > 1 - dt) {
+            distance = 1 - (1 - t) / dt;
+        } else {
+            return 0;
+        }
+        return distance * distance * distance / 6;
+    }
+}
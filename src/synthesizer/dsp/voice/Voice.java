@@ -1,13 +1,22 @@
 package synthesizer.dsp.voice;
 
-import synthesizer._interface.input.MidiHandler;
 import synthesizer.utils.delegates.IntGetter;
+import synthesizer.models.EnvelopeSettings;
 import synthesizer.models.OscillatorSettings;
 import synthesizer.dsp.Synthesizer;
+import synthesizer.dsp.kernels.SampleKernels;
+import synthesizer.dsp.modulation.ModulationEnvelope;
+import synthesizer.dsp.modulation.Modulator;
+import synthesizer.dsp.parameter.SmoothedParameter;
+import synthesizer.models.ModulationSettings;
+
+import java.util.Arrays;
 
 /**
  * This class works as a single voice of a sound synthesizer.
  * It generates signal using the available oscillators and runs them through an envelope.
+ * The voices are preallocated by the synthesizer and reused: {@link #start(int, int, double, double, long)}
+ * prepares a voice for a new note.
  *
  * @author Marek Bobrowski
  */
@@ -23,19 +32,29 @@ public class Voice {
     private final OscillatorSettings oscillatorSettings;
 
     /**
-     * The synthesizer that created this voice.
+     * The frequency of this voice.
      */
-    private final Synthesizer synthesizer;
+    private double frequency;
 
     /**
-     * The midi handler that triggered this voice.
+     * The ratio the frequency of this voice is bent by (the pitch bend of its channel, 1 - no bend).
      */
-    private final MidiHandler midiHandler;
+    private double pitchBend = 1;
 
     /**
-     * The frequency of this voice.
+     * The gain of this voice in the mix, given by the velocity of its note.
+     */
+    private double velocityGain = 1;
+
+    /**
+     * The MIDI channel of the note played by this voice.
+     */
+    private int channel;
+
+    /**
+     * The key (MIDI note number) of the note played by this voice.
      */
-    private final double frequency;
+    private int key;
 
     /**
      * The first oscillator that generates the signal for this voice.
@@ -49,6 +68,7 @@ public class Voice {
 
     /**
      * Tells if this voice has been released on the keyboard.
+     * It's set by the synthesis thread, when it handles the release event of this voice.
      */
     private boolean released = false;
 
@@ -57,58 +77,255 @@ public class Voice {
      */
     private boolean ended = false;
 
+    /**
+     * The slot of the {@link VoiceBank} this voice is played in, or -1 if it isn't played by a bank.
+     */
+    private int bankSlot = -1;
+
+    /**
+     * The modulation of the synthesizer (LFOs and the modulation matrix).
+     */
+    private final Modulator modulator;
+
+    /**
+     * The modulation envelope of this voice.
+     */
+    private final ModulationEnvelope modulationEnvelope;
+
+    /**
+     * The reusable array that the first oscillator generates a control tick into, while this voice is modulated.
+     */
+    private final double[] tickBuffer1 = new double[ModulationSettings.MAX_CONTROL_RATE];
+
+    /**
+     * The reusable array that the second oscillator generates a control tick into, while this voice is modulated.
+     */
+    private final double[] tickBuffer2 = new double[ModulationSettings.MAX_CONTROL_RATE];
+
+    /**
+     * The position (in frames, counted from the start of the synthesis) of the next frame of this voice.
+     */
+    private long frame = 0;
+
+    /**
+     * The length (in frames) of the fade-out of a stolen voice.
+     */
+    private int fadeFrames = 0;
+
+    /**
+     * The number of frames left until the end of the fade-out, or -1 if this voice isn't fading out.
+     */
+    private int fadeRemaining = -1;
+
+    /**
+     * The mix between the oscillators, moving smoothly to the one set in the oscillator settings.
+     */
+    private double mixValue;
+
     /**
      * Voice constructor.
      * @param synthesizer The synthesizer that is playing this voice.
-     * @param midiHandler The midi handler that triggered this voice.
-     * @param frequency The frequency of this voice.
-     */
-    public Voice(Synthesizer synthesizer, MidiHandler midiHandler, double frequency) {
-        this.synthesizer = synthesizer;
-        this.midiHandler = midiHandler;
-        envelopeGenerator = new EnvelopeGenerator(this, synthesizer.getEnvelopeSettings());
-        oscillatorSettings = synthesizer.getOscillatorSettings();
-        this.frequency = frequency;
+     */
+    public Voice(Synthesizer synthesizer) {
+        this(synthesizer, synthesizer.getOscillatorSettings(), synthesizer.getEnvelopeSettings());
+    }
+
+    /**
+     * Creates a voice with the sound of a part (the oscillator and the envelope settings of its patch).
+     * @param synthesizer The synthesizer that is playing this voice.
+     * @param oscillatorSettings The settings of the oscillators of this voice.
+     * @param envelopeSettings The settings of the envelope of this voice.
+     */
+    public Voice(Synthesizer synthesizer, OscillatorSettings oscillatorSettings, EnvelopeSettings envelopeSettings) {
+        envelopeGenerator = new EnvelopeGenerator(this, envelopeSettings);
+        this.oscillatorSettings = oscillatorSettings;
         IntGetter wave1 = oscillatorSettings::getOscillator1Shape;
         IntGetter wave2 = oscillatorSettings::getOscillator2Shape;
-        oscillator1 = new Oscillator(wave1);
-        oscillator2 = new Oscillator(wave2);
+        oscillator1 = new Oscillator(wave1, oscillatorSettings::getOscillator1Mode);
+        oscillator2 = new Oscillator(wave2, oscillatorSettings::getOscillator2Mode);
+        modulator = synthesizer.getModulator();
+        modulationEnvelope = new ModulationEnvelope(synthesizer.getModulationSettings().getEnvelopeSettings());
+    }
+
+    /**
+     * Prepares this voice for playing a new note: resets the oscillators, the envelopes and the state.
+     * The pitch of the voice isn't bent until {@link #setPitchBend(double)} is called.
+     * @param channel The MIDI channel of the note.
+     * @param key The key (MIDI note number) of the note.
+     * @param frequency The frequency of the note.
+     * @param velocityGain The gain of the voice in the mix, given by the velocity of the note (1 - full).
+     * @param frame The position (in frames, counted from the start of the synthesis) of the first frame of the note.
+     */
+    public void start(int channel, int key, double frequency, double velocityGain, long frame) {
+        this.channel = channel;
+        this.key = key;
+        this.frequency = frequency;
+        this.velocityGain = velocityGain;
+        pitchBend = 1;
+        this.frame = frame;
+        released = false;
+        ended = false;
+        fadeRemaining = -1;
+        mixValue = oscillatorSettings.getMixValue();
+        oscillator1.reset();
+        oscillator2.reset();
+        envelopeGenerator.reset();
+        modulationEnvelope.reset();
     }
 
     /**
      * Generates a sound buffer for this voice.
      * It gathers buffers from the available oscillators and applies an envelope to the signal.
-     * @param bufferSize The size of the buffer to be generated.
-     * @return The generated sound buffer for this voice.
+     * The first oscillator is generated into the left channel and the second one into the right channel,
+     * then both are mixed so no additional arrays are needed. While the envelope is silent
+     * (for example a sustain level of 0), the oscillators aren't generated at all.
+     * @param output The buffer (owned by the caller) that the sound of this voice will be written into.
+     * @param bufferSize The number of frames to be generated.
+     */
+    public void prepareBuffer(double[][] output, int bufferSize) {
+        double bentFrequency = frequency * pitchBend;
+        double frequency1 = bentFrequency * oscillatorSettings.getOscillator1Ratio();
+        double frequency2 = bentFrequency * oscillatorSettings.getOscillator2Ratio();
+        if (envelopeGenerator.isSilent()) {
+            // The envelope would multiply the oscillators by 0, so they only keep their phases.
+            oscillator1.skip(frequency1, bufferSize);
+            oscillator2.skip(frequency2, bufferSize);
+            mixValue = SmoothedParameter.approach(mixValue, oscillatorSettings.getMixValue(), bufferSize);
+            Arrays.fill(output[0], 0, bufferSize, 0);
+            modulationEnvelope.advance(bufferSize, released);
+        } else if (modulator.hasVoiceRoutes()) {
+            generateModulated(output[0], frequency1, frequency2, bufferSize);
+        } else {
+            oscillator1.generateBuffer(frequency1, output[0], bufferSize);
+            oscillator2.generateBuffer(frequency2, output[1], bufferSize);
+            mixOscillators(output, bufferSize);
+            modulationEnvelope.advance(bufferSize, released);
+        }
+        frame += bufferSize;
+        envelopeGenerator.processBuffer(output, bufferSize);
+        if (fadeRemaining >= 0) {
+            applyFade(output, bufferSize);
+        }
+    }
+
+    /**
+     * Generates the mixed oscillators with the modulation, one control tick at a time. The pitch is
+     * modulated once per tick (the phases stay continuous) and the mix between the oscillators
+     * is interpolated linearly within the tick.
+     * @param output The array the mixed signal will be written into.
+     * @param frequency1 The frequency of the first oscillator without the modulation.
+     * @param frequency2 The frequency of the second oscillator without the modulation.
+     * @param bufferSize The number of frames to be generated.
+     */
+    private void generateModulated(double[] output, double frequency1, double frequency2, int bufferSize) {
+        int controlRate = modulator.getControlRate();
+        double targetMix = oscillatorSettings.getMixValue();
+        int done = 0;
+        while (done < bufferSize) {
+            long tickFrame = frame + done;
+            int length = Math.min(bufferSize - done, controlRate - (int) (tickFrame % controlRate));
+            double envelopeStart = modulationEnvelope.getLevel();
+            modulationEnvelope.advance(length, released);
+            double envelopeEnd = modulationEnvelope.getLevel();
+
+            double shift1 = modulator.getValue(ModulationSettings.DESTINATION_OSCILLATOR1_PITCH,
+                    tickFrame, envelopeStart);
+            double shift2 = modulator.getValue(ModulationSettings.DESTINATION_OSCILLATOR2_PITCH,
+                    tickFrame, envelopeStart);
+            oscillator1.generateBuffer(shift1 == 0 ? frequency1 : frequency1 * Math.pow(2, shift1 / 12),
+                    tickBuffer1, length);
+            oscillator2.generateBuffer(shift2 == 0 ? frequency2 : frequency2 * Math.pow(2, shift2 / 12),
+                    tickBuffer2, length);
+
+            double mixValueStart = mixValue;
+            mixValue = SmoothedParameter.approach(mixValue, targetMix, length);
+            double mixStart = clampMix(mixValueStart + modulator.getValue(
+                    ModulationSettings.DESTINATION_OSCILLATOR_MIX, tickFrame, envelopeStart));
+            double mixEnd = clampMix(mixValue + modulator.getValue(
+                    ModulationSettings.DESTINATION_OSCILLATOR_MIX, tickFrame + length, envelopeEnd));
+            double mixStep = (mixEnd - mixStart) / length;
+            for (int i = 0; i < length; i++) {
+                double mix = mixStart + mixStep * i;
+                output[done + i] = tickBuffer1[i] * (1 - mix) + tickBuffer2[i] * mix;
+            }
+            done += length;
+        }
+    }
+
+    /**
+     * Limits a mix value to the range from 0 to 1.
+     * @param mix The mix value.
+     * @return The mix value within the range.
+     */
+    private static double clampMix(double mix) {
+        return Math.min(1, Math.max(0, mix));
+    }
+
+    /**
+     * Fades this voice out linearly within the specified number of frames and then ends it.
+     * Used when the voice is stolen for a new note, so it stops without a click.
+     * @param frames The length of the fade-out in frames.
+     */
+    public void startFade(int frames) {
+        fadeFrames = Math.max(1, frames);
+        fadeRemaining = fadeFrames;
+    }
+
+    /**
+     * Tells if this voice is fading out (it has been stolen).
+     * @return True if this voice is fading out.
+     */
+    public boolean isFading() {
+        return fadeRemaining >= 0;
+    }
+
+    /**
+     * Returns the current level of the envelope of this voice.
+     * @return The level of the envelope (0 - silence, 1 - the peak of the attack).
+     */
+    public double getLevel() {
+        return envelopeGenerator.getLevel();
+    }
+
+    /**
+     * Applies the fade-out to a buffer of this voice. The voice ends when the fade-out ends.
+     * @param buffer The buffer of this voice.
+     * @param bufferSize The number of frames of the buffer.
      */
-    public double[][] prepareBuffer(int bufferSize) {
-        double[][] oscillator1Buffer = oscillator1.generateBuffer(frequency *
-                Math.pow(2,(oscillatorSettings.getOscillator1SemitonesShift()*100
-                        + oscillatorSettings.getOscillator1CentsShift())/1200.0),
-                bufferSize);
-        double[][] oscillator2Buffer = oscillator2.generateBuffer(frequency *
-                Math.pow(2,(oscillatorSettings.getOscillator2SemitonesShift()*100
-                        + oscillatorSettings.getOscillator2CentsShift())/1200.0),
-                bufferSize);
-        double[][] mixedBuffer = mixOscillators(oscillator1Buffer, oscillator2Buffer);
-        envelopeGenerator.processBuffer(mixedBuffer);
-        return mixedBuffer;
+    private void applyFade(double[][] buffer, int bufferSize) {
+        for (int i = 0; i < bufferSize; i++) {
+            double gain = (double) fadeRemaining / fadeFrames;
+            buffer[0][i] *= gain;
+            buffer[1][i] *= gain;
+            if (fadeRemaining > 0) {
+                fadeRemaining--;
+            }
+        }
+        if (fadeRemaining == 0) {
+            ended = true;
+        }
     }
 
     /**
      * It mixes the buffers from 2 oscillators.
-     * @param buffer1 The buffer from the first oscillator.
-     * @param buffer2 The buffer from the second oscillator.
-     * @return The mixed buffer.
-     */
-    public double[][] mixOscillators(double[][] buffer1, double[][] buffer2) {
-        double[][] mixedBuffer = new double[buffer1.length][buffer1[0].length];
-        for (int i = 0; i < mixedBuffer[0].length; i++) {
-            mixedBuffer[0][i] = buffer1[0][i] * (1 - oscillatorSettings.getMixValue())
-                    + buffer2[0][i] * oscillatorSettings.getMixValue();
-            mixedBuffer[1][i] = mixedBuffer[0][i];
+     * The first channel holds the signal of the first oscillator and the second channel holds
+     * the signal of the second oscillator. After mixing, both channels hold the mixed signal.
+     * @param buffer The buffer with the signals of both oscillators.
+     * @param bufferSize The number of frames to be mixed.
+     */
+    public void mixOscillators(double[][] buffer, int bufferSize) {
+        double targetMix = oscillatorSettings.getMixValue();
+        if (mixValue == targetMix) {
+            SampleKernels.getInstance().crossfade(buffer[0], buffer[1], mixValue, bufferSize);
+        } else {
+            double[] first = buffer[0];
+            double[] second = buffer[1];
+            for (int i = 0; i < bufferSize; i++) {
+                mixValue = SmoothedParameter.approach(mixValue, targetMix, 1);
+                first[i] = first[i] * (1 - mixValue) + second[i] * mixValue;
+            }
         }
-        return mixedBuffer;
+        System.arraycopy(buffer[0], 0, buffer[1], 0, bufferSize);
     }
 
     /**
@@ -119,11 +336,9 @@ public class Voice {
     }
 
     /**
-     * Handles the end of the envelope.
+     * Handles the end of the envelope. The voice will be removed by the synthesizer before the next buffer.
      */
     public void handleEnvelopeEnd() {
-        synthesizer.finishVoice(this);
-        midiHandler.endVoice(this);
         ended = true;
     }
 
@@ -143,5 +358,68 @@ public class Voice {
         return ended;
     }
 
-}
+    /**
+     * Returns the MIDI channel of the note played by this voice.
+     * @return The channel of the note.
+     */
+    public int getChannel() {
+        return channel;
+    }
 
+    /**
+     * Returns the key (MIDI note number) of the note played by this voice.
+     * @return The key of the note.
+     */
+    public int getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the frequency of this voice.
+     * @return The frequency of this voice.
+     */
+    public double getFrequency() {
+        return frequency;
+    }
+
+    /**
+     * Returns the gain of this voice in the mix, given by the velocity of its note.
+     * @return The gain of this voice (1 - full).
+     */
+    public double getVelocityGain() {
+        return velocityGain;
+    }
+
+    /**
+     * Returns the ratio the frequency of this voice is bent by.
+     * @return The ratio of the pitch bend (1 - no bend).
+     */
+    public double getPitchBend() {
+        return pitchBend;
+    }
+
+    /**
+     * Sets the ratio the frequency of this voice is bent by (from the next generated frame).
+     * The phases of the oscillators stay continuous, so the pitch changes without a click.
+     * @param pitchBend The ratio of the pitch bend (1 - no bend).
+     */
+    public void setPitchBend(double pitchBend) {
+        this.pitchBend = pitchBend;
+    }
+
+    /**
+     * Returns the slot of the {@link VoiceBank} this voice is played in.
+     * @return The slot of the voice bank, or -1 if this voice isn't played by a bank.
+     */
+    int getBankSlot() {
+        return bankSlot;
+    }
+
+    /**
+     * Sets the slot of the {@link VoiceBank} this voice is played in.
+     * @param bankSlot The slot of the voice bank, or -1 if this voice isn't played by a bank.
+     */
+    void setBankSlot(int bankSlot) {
+        this.bankSlot = bankSlot;
+    }
+}
@@ -0,0 +1,632 @@
+package synthesizer.dsp.voice;
+
+import synthesizer.dsp.Converter;
+import synthesizer.dsp.parameter.SmoothedParameter;
+import synthesizer.models.EnvelopeSettings;
+import synthesizer.models.OscillatorSettings;
+
+/**
+ * An alternative way of generating the voices: instead of every {@link Voice} owning its oscillators
+ * and its envelope generator, the state of all the voices is kept in parallel primitive arrays
+ * (phases, phase increments, envelope stages, levels and increments), indexed by the slot of the voice.
+ * All the voices share the waveforms of the oscillator settings, so the bank generates them in one loop
+ * over the voices and the frames, straight into the output buffer: there are no virtual calls, no delegates
+ * and no per-voice buffers, which keeps the whole state of a hundred voices in a few kilobytes.
+ *
+ * The oscillators always read the band-limited tables of the {@link WavetableBank} and the envelope segments
+ * are calculated like the ones of the {@link EnvelopeGenerator} (linear or exponential). The envelope settings
+ * are compared once per render and, when they have changed, the current stages of all the voices are recalculated:
+ * a stage continues from the current level and the number of frames that have gone through it, and the level
+ * of a sustained voice moves to the new sustain level at the speed of the parameter smoothing.
+ * The {@link Voice} objects only identify the notes: the bank marks them as ended when their release ends.
+ * Only the synthesis thread may use the bank.
+ *
+ * @author Marek Bobrowski
+ */
+public class VoiceBank {
+    /**
+     * The default number of slots of a bank.
+     */
+    public static final int DEFAULT_CAPACITY = 128;
+
+    /**
+     * The envelope stage in which the level rises to 1.
+     */
+    private static final int ATTACK = 0;
+
+    /**
+     * The envelope stage in which the level falls to the sustain level.
+     */
+    private static final int DECAY = 1;
+
+    /**
+     * The envelope stage in which the level stays at the sustain level until the voice is released.
+     */
+    private static final int SUSTAIN = 2;
+
+    /**
+     * The envelope stage in which the level falls to 0.
+     */
+    private static final int RELEASE = 3;
+
+    /**
+     * The envelope stage in which the level of a stolen voice falls linearly to 0 (not changed by the settings).
+     */
+    private static final int FADE_OUT = 4;
+
+    /**
+     * The number of bits of the fixed-point phase that don't belong to the table index.
+     */
+    private static final int FRACTION_BITS = 32 - WavetableBank.TABLE_BITS;
+
+    /**
+     * The mask of the fractional bits of the fixed-point phase.
+     */
+    private static final int FRACTION_MASK = (1 << FRACTION_BITS) - 1;
+
+    /**
+     * The value of the least significant bit of the fractional part of the phase.
+     */
+    private static final double FRACTION_SCALE = 1.0 / (1 << FRACTION_BITS);
+
+    /**
+     * The number of frames generated with the same gains of the oscillators while the mix is changing.
+     */
+    private static final int MIX_PART_LENGTH = 32;
+
+    /**
+     * The number of frames generated with the same change of the level while the level of a sustained voice
+     * moves to a new sustain level.
+     */
+    private static final int SUSTAIN_PART_LENGTH = 32;
+
+    /**
+     * The settings of the oscillators (shared by all the voices).
+     */
+    private final OscillatorSettings oscillatorSettings;
+
+    /**
+     * The settings of the envelopes (shared by all the voices).
+     */
+    private final EnvelopeSettings envelopeSettings;
+
+    /**
+     * The mix between the oscillators, moving smoothly to the one set in the oscillator settings.
+     */
+    private double mixValue;
+
+    /**
+     * The attack time the envelope stages have been calculated for.
+     */
+    private double attack;
+
+    /**
+     * The decay time the envelope stages have been calculated for.
+     */
+    private double decay;
+
+    /**
+     * The sustain level the envelope stages have been calculated for.
+     */
+    private double sustain;
+
+    /**
+     * The release time the envelope stages have been calculated for.
+     */
+    private double release;
+
+    /**
+     * The envelope curve the envelope stages have been calculated for.
+     */
+    private int curve;
+
+    /**
+     * The voices playing in the slots.
+     */
+    private final Voice[] voices;
+
+    /**
+     * The base frequencies of the voices.
+     */
+    private final double[] frequencies;
+
+    /**
+     * The ratios the frequencies of the voices are bent by (the pitch bends of their channels).
+     */
+    private final double[] pitchBends;
+
+    /**
+     * The gains of the voices, given by the velocities of their notes.
+     */
+    private final double[] velocityGains;
+
+    /**
+     * The phases of the first oscillators (32-bit fixed-point fractions of the cycle).
+     */
+    private final int[] phases1;
+
+    /**
+     * The phases of the second oscillators (32-bit fixed-point fractions of the cycle).
+     */
+    private final int[] phases2;
+
+    /**
+     * The envelope stages of the voices.
+     */
+    private final int[] stages;
+
+    /**
+     * The envelope levels of the voices.
+     */
+    private final double[] levels;
+
+    /**
+     * The values the envelope levels are multiplied by every frame in the current stages
+     * (1 for the linear stages, see {@link EnvelopeGenerator}).
+     */
+    private final double[] levelMultipliers;
+
+    /**
+     * The values added to the envelope levels (after the multiplication) every frame in the current stages.
+     */
+    private final double[] levelIncrements;
+
+    /**
+     * The numbers of frames left in the current envelope stages (not used in the sustain stage).
+     */
+    private final int[] remainingFrames;
+
+    /**
+     * The slots of the playing voices, in the order the voices have been started.
+     */
+    private final int[] activeSlots;
+
+    /**
+     * The number of playing voices.
+     */
+    private int activeCount = 0;
+
+    /**
+     * The slots that are free (a stack).
+     */
+    private final int[] freeSlots;
+
+    /**
+     * The number of free slots.
+     */
+    private int freeCount;
+
+    /**
+     * Creates the arrays of the bank.
+     * @param capacity The maximal number of voices playing at once.
+     * @param oscillatorSettings The settings of the oscillators.
+     * @param envelopeSettings The settings of the envelopes.
+     */
+    public VoiceBank(int capacity, OscillatorSettings oscillatorSettings, EnvelopeSettings envelopeSettings) {
+        this.oscillatorSettings = oscillatorSettings;
+        mixValue = oscillatorSettings.getMixValue();
+        this.envelopeSettings = envelopeSettings;
+        readEnvelopeSettings();
+        voices = new Voice[capacity];
+        frequencies = new double[capacity];
+        pitchBends = new double[capacity];
+        velocityGains = new double[capacity];
+        phases1 = new int[capacity];
+        phases2 = new int[capacity];
+        stages = new int[capacity];
+        levels = new double[capacity];
+        levelMultipliers = new double[capacity];
+        levelIncrements = new double[capacity];
+        remainingFrames = new int[capacity];
+        activeSlots = new int[capacity];
+        freeSlots = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            freeSlots[i] = capacity - 1 - i;
+        }
+        freeCount = capacity;
+    }
+
+    /**
+     * Starts playing a voice in a free slot.
+     * @param voice The voice to be played.
+     * @return True if the voice has been started, false if all the slots are taken.
+     */
+    public boolean start(Voice voice) {
+        if (freeCount == 0) {
+            return false;
+        }
+        int slot = freeSlots[--freeCount];
+        voices[slot] = voice;
+        voice.setBankSlot(slot);
+        frequencies[slot] = voice.getFrequency();
+        pitchBends[slot] = voice.getPitchBend();
+        velocityGains[slot] = voice.getVelocityGain();
+        phases1[slot] = 0;
+        phases2[slot] = 0;
+        levels[slot] = 0;
+        enterStage(slot, ATTACK);
+        activeSlots[activeCount++] = slot;
+        return true;
+    }
+
+    /**
+     * Takes the new pitch bend of a voice (if it's played by this bank).
+     * @param voice The voice whose pitch bend has changed.
+     */
+    public void updatePitchBend(Voice voice) {
+        int slot = voice.getBankSlot();
+        if (slot >= 0 && voices[slot] == voice) {
+            pitchBends[slot] = voice.getPitchBend();
+        }
+    }
+
+    /**
+     * Starts the release stage of a voice (if it's played by this bank and hasn't been released yet).
+     * @param voice The voice to be released.
+     */
+    public void release(Voice voice) {
+        int slot = voice.getBankSlot();
+        if (slot >= 0 && voices[slot] == voice && stages[slot] < RELEASE) {
+            enterStage(slot, RELEASE);
+        }
+    }
+
+    /**
+     * Fades a voice out linearly within the specified number of frames (used when the voice is stolen).
+     * @param voice The voice to be faded out.
+     * @param frames The length of the fade-out in frames.
+     */
+    public void fadeOut(Voice voice, int frames) {
+        int slot = voice.getBankSlot();
+        if (slot >= 0 && voices[slot] == voice) {
+            stages[slot] = FADE_OUT;
+            remainingFrames[slot] = Math.max(1, frames);
+            levelMultipliers[slot] = 1;
+            levelIncrements[slot] = -levels[slot] / remainingFrames[slot];
+        }
+    }
+
+    /**
+     * Stops a voice at once and frees its slot. The remaining voices keep their order.
+     * @param voice The voice to be stopped.
+     */
+    public void stop(Voice voice) {
+        int slot = voice.getBankSlot();
+        if (slot < 0 || voices[slot] != voice) {
+            return;
+        }
+        int remaining = 0;
+        for (int i = 0; i < activeCount; i++) {
+            if (activeSlots[i] != slot) {
+                activeSlots[remaining++] = activeSlots[i];
+            }
+        }
+        activeCount = remaining;
+        voice.handleEnvelopeEnd();
+        voice.setBankSlot(-1);
+        voices[slot] = null;
+        freeSlots[freeCount++] = slot;
+    }
+
+    /**
+     * Returns the current envelope level of a voice.
+     * @param voice The voice.
+     * @return The envelope level of the voice, 0 if it isn't played by this bank.
+     */
+    public double getLevel(Voice voice) {
+        int slot = voice.getBankSlot();
+        return slot >= 0 && voices[slot] == voice ? levels[slot] : 0;
+    }
+
+    /**
+     * Returns the number of voices playing.
+     * @return The number of voices playing.
+     */
+    public int getActiveCount() {
+        return activeCount;
+    }
+
+    /**
+     * Returns the maximal number of voices playing at once.
+     * @return The number of slots.
+     */
+    public int getCapacity() {
+        return voices.length;
+    }
+
+    /**
+     * Generates all the playing voices and adds them to a part of the output. The voices whose release
+     * has ended are marked as ended and their slots are freed.
+     * @param output The buffer the voices are added to.
+     * @param offset The position in the output of the first frame.
+     * @param length The number of frames to be generated.
+     * @param gain The gain of every voice (multiplied by the gains given by the velocities of the notes).
+     */
+    public void render(double[] output, int offset, int length, double gain) {
+        if (envelopeSettingsChanged()) {
+            recalculateStages();
+        }
+        double targetMix = oscillatorSettings.getMixValue();
+        if (mixValue == targetMix) {
+            renderPart(output, offset, length, gain);
+            return;
+        }
+        // The gains of the oscillators change in short parts while the mix moves to the new value.
+        int done = 0;
+        while (done < length) {
+            int part = Math.min(length - done, MIX_PART_LENGTH);
+            mixValue = SmoothedParameter.approach(mixValue, targetMix, part);
+            renderPart(output, offset + done, part, gain);
+            done += part;
+        }
+    }
+
+    /**
+     * Generates all the playing voices with the current mix between the oscillators and adds them to a part
+     * of the output.
+     * @param output The buffer the voices are added to.
+     * @param offset The position in the output of the first frame.
+     * @param length The number of frames to be generated.
+     * @param gain The gain of every voice (multiplied by the gains given by the velocities of the notes).
+     */
+    private void renderPart(double[] output, int offset, int length, double gain) {
+        int waveform1 = oscillatorSettings.getOscillator1Shape() & 3;
+        int waveform2 = oscillatorSettings.getOscillator2Shape() & 3;
+        double ratio1 = oscillatorSettings.getOscillator1Ratio();
+        double ratio2 = oscillatorSettings.getOscillator2Ratio();
+        double mix = mixValue;
+        double gain1 = (1 - mix) * gain;
+        double gain2 = mix * gain;
+
+        int remaining = 0;
+        for (int i = 0; i < activeCount; i++) {
+            int slot = activeSlots[i];
+            double frequency = frequencies[slot] * pitchBends[slot];
+            double frequency1 = frequency * ratio1;
+            double frequency2 = frequency * ratio2;
+            double voiceGain1 = gain1 * velocityGains[slot];
+            double voiceGain2 = gain2 * velocityGains[slot];
+            double[] table1 = WavetableBank.getTable(waveform1, frequency1);
+            double[] table2 = WavetableBank.getTable(waveform2, frequency2);
+            int increment1 = (int) (long) (frequency1 / Converter.SAMPLE_RATE * 0x1p32);
+            int increment2 = (int) (long) (frequency2 / Converter.SAMPLE_RATE * 0x1p32);
+            int done = 0;
+            while (done < length) {
+                int run;
+                boolean gliding = false;
+                double glideTarget = 0;
+                if (stages[slot] != SUSTAIN) {
+                    run = Math.min(length - done, remainingFrames[slot]);
+                } else if (levels[slot] == sustain) {
+                    run = length - done;
+                } else {
+                    // The sustain level has changed: the level moves to it like a smoothed parameter.
+                    run = Math.min(length - done, SUSTAIN_PART_LENGTH);
+                    gliding = true;
+                    glideTarget = SmoothedParameter.approach(levels[slot], sustain, run);
+                    levelIncrements[slot] = (glideTarget - levels[slot]) / run;
+                }
+                if (levels[slot] == 0 && levelIncrements[slot] == 0) {
+                    // A silent run (for example a sustain level of 0) only moves the phases.
+                    phases1[slot] += increment1 * run;
+                    phases2[slot] += increment2 * run;
+                } else {
+                    renderRun(slot, table1, table2, increment1, increment2, voiceGain1, voiceGain2, output,
+                            offset + done, run);
+                }
+                done += run;
+                if (gliding) {
+                    levels[slot] = glideTarget;
+                    levelIncrements[slot] = 0;
+                } else if (stages[slot] != SUSTAIN) {
+                    remainingFrames[slot] -= run;
+                    if (remainingFrames[slot] == 0 && !finishStage(slot)) {
+                        break;
+                    }
+                }
+            }
+            if (voices[slot] != null) {
+                activeSlots[remaining++] = slot;
+            }
+        }
+        activeCount = remaining;
+    }
+
+    /**
+     * Generates a run of frames of one voice, within one envelope stage, and adds it to the output.
+     * @param slot The slot of the voice.
+     * @param table1 The table of the first oscillator.
+     * @param table2 The table of the second oscillator.
+     * @param increment1 The phase increment of the first oscillator.
+     * @param increment2 The phase increment of the second oscillator.
+     * @param gain1 The gain of the first oscillator.
+     * @param gain2 The gain of the second oscillator.
+     * @param output The buffer the voice is added to.
+     * @param offset The position in the output of the first frame.
+     * @param length The number of frames.
+     */
+    private void renderRun(int slot, double[] table1, double[] table2, int increment1, int increment2,
+                           double gain1, double gain2, double[] output, int offset, int length) {
+        int phase1 = phases1[slot];
+        int phase2 = phases2[slot];
+        double level = levels[slot];
+        double levelMultiplier = levelMultipliers[slot];
+        double levelIncrement = levelIncrements[slot];
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            int index1 = phase1 >>> FRACTION_BITS;
+            int index2 = phase2 >>> FRACTION_BITS;
+            double sample1 = table1[index1] + (table1[index1 + 1] - table1[index1]) * ((phase1 & FRACTION_MASK) * FRACTION_SCALE);
+            double sample2 = table2[index2] + (table2[index2 + 1] - table2[index2]) * ((phase2 & FRACTION_MASK) * FRACTION_SCALE);
+            level = level * levelMultiplier + levelIncrement;
+            output[i] += (sample1 * gain1 + sample2 * gain2) * level;
+            phase1 += increment1;
+            phase2 += increment2;
+        }
+        phases1[slot] = phase1;
+        phases2[slot] = phase2;
+        levels[slot] = level;
+    }
+
+    /**
+     * Moves a voice to the envelope stage following the finished one.
+     * @param slot The slot of the voice.
+     * @return True if the voice keeps playing, false if its release has ended (the slot is freed).
+     */
+    private boolean finishStage(int slot) {
+        switch (stages[slot]) {
+            case ATTACK -> {
+                levels[slot] = 1;
+                enterStage(slot, DECAY);
+            }
+            case DECAY -> enterStage(slot, SUSTAIN);
+            default -> {
+                voices[slot].handleEnvelopeEnd();
+                voices[slot].setBankSlot(-1);
+                voices[slot] = null;
+                freeSlots[freeCount++] = slot;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts an envelope stage of a voice: calculates its length and the change of the level per frame.
+     * The stages of zero length are skipped.
+     * @param slot The slot of the voice.
+     * @param stage The stage to be started.
+     */
+    private void enterStage(int slot, int stage) {
+        stages[slot] = stage;
+        int frames = getStageLength(stage);
+        switch (stage) {
+            case ATTACK -> {
+                if (frames == 0) {
+                    levels[slot] = 1;
+                    enterStage(slot, DECAY);
+                    return;
+                }
+                setSegment(slot, frames, 1, EnvelopeGenerator.ATTACK_OVERSHOOT);
+            }
+            case DECAY -> {
+                if (frames == 0) {
+                    enterStage(slot, SUSTAIN);
+                    return;
+                }
+                setSegment(slot, frames, sustain, EnvelopeGenerator.DECAY_OVERSHOOT);
+            }
+            case SUSTAIN -> {
+                levels[slot] = sustain;
+                levelMultipliers[slot] = 1;
+                levelIncrements[slot] = 0;
+            }
+            default -> setSegment(slot, frames, 0, EnvelopeGenerator.DECAY_OVERSHOOT);
+        }
+    }
+
+    /**
+     * Recalculates the current envelope stages of all the voices after the envelope settings have changed
+     * (like {@link EnvelopeGenerator}): a stage continues from the current level of the voice and the number of frames
+     * that have gone through it, and the stages that are already longer than their new length are finished.
+     * The fade-outs of the stolen voices are not changed and the sustained voices move to the new sustain level
+     * while they are generated.
+     */
+    private void recalculateStages() {
+        // The numbers of the frames that have gone through the stages are found with the old lengths.
+        int oldAttack = getStageLength(ATTACK);
+        int oldDecay = getStageLength(DECAY);
+        int oldRelease = getStageLength(RELEASE);
+        readEnvelopeSettings();
+        int remaining = 0;
+        for (int i = 0; i < activeCount; i++) {
+            int slot = activeSlots[i];
+            int stage = stages[slot];
+            boolean playing = true;
+            if (stage != SUSTAIN && stage != FADE_OUT) {
+                int oldLength = switch (stage) {
+                    case ATTACK -> oldAttack;
+                    case DECAY -> oldDecay;
+                    default -> oldRelease;
+                };
+                int position = oldLength - remainingFrames[slot];
+                int length = getStageLength(stage);
+                if (position >= length) {
+                    playing = finishStage(slot);
+                } else {
+                    double target = switch (stage) {
+                        case ATTACK -> 1;
+                        case DECAY -> sustain;
+                        default -> 0;
+                    };
+                    setSegment(slot, length - position, target, stage == ATTACK
+                            ? EnvelopeGenerator.ATTACK_OVERSHOOT : EnvelopeGenerator.DECAY_OVERSHOOT);
+                }
+            }
+            if (playing) {
+                activeSlots[remaining++] = slot;
+            }
+        }
+        activeCount = remaining;
+    }
+
+    /**
+     * Returns the length of an envelope stage according to the settings the stages are calculated for.
+     * @param stage The stage.
+     * @return The length of the stage in frames (the release lasts at least one frame).
+     */
+    private int getStageLength(int stage) {
+        return switch (stage) {
+            case ATTACK -> timeToFrames(attack);
+            case DECAY -> timeToFrames(decay);
+            case RELEASE -> Math.max(1, timeToFrames(release));
+            default -> 0;
+        };
+    }
+
+    /**
+     * Tells if the envelope settings have changed since the envelope stages have been calculated.
+     * @return True if the envelope settings have changed.
+     */
+    private boolean envelopeSettingsChanged() {
+        return attack != envelopeSettings.getAttack() || decay != envelopeSettings.getDecay()
+                || sustain != envelopeSettings.getSustain() || release != envelopeSettings.getRelease()
+                || curve != envelopeSettings.getCurve();
+    }
+
+    /**
+     * Copies the envelope settings the envelope stages are calculated for.
+     */
+    private void readEnvelopeSettings() {
+        attack = envelopeSettings.getAttack();
+        decay = envelopeSettings.getDecay();
+        sustain = envelopeSettings.getSustain();
+        release = envelopeSettings.getRelease();
+        curve = envelopeSettings.getCurve();
+    }
+
+    /**
+     * Sets the length and the coefficients of an envelope stage of a voice, according to the envelope curve.
+     * @param slot The slot of the voice.
+     * @param frames The length of the stage.
+     * @param target The level at the end of the stage.
+     * @param overshoot How far beyond its target (relative to its range) an exponential stage aims.
+     */
+    private void setSegment(int slot, int frames, double target, double overshoot) {
+        boolean exponential = curve == 1;
+        double multiplier = EnvelopeGenerator.getMultiplier(exponential, overshoot, frames);
+        remainingFrames[slot] = frames;
+        levelMultipliers[slot] = multiplier;
+        levelIncrements[slot] = EnvelopeGenerator.getAddend(exponential, overshoot, multiplier,
+                levels[slot], target, frames);
+    }
+
+    /**
+     * Converts time into the number of frames.
+     * @param time The time in seconds.
+     * @return The number of frames.
+     */
+    private static int timeToFrames(double time) {
+        return (int) (time * Converter.SAMPLE_RATE);
+    }
+}
@@ -0,0 +1,158 @@
+package synthesizer.dsp.voice;
+
+import synthesizer.dsp.Converter;
+
+/**
+ * This class holds the precomputed, band-limited tables of the waveforms, shared by all the oscillators.
+ *
+ * Every waveform (except the sine) has a mip-map of tables: the table of level L contains only the first
+ * {@code MAX_HARMONICS >> L} harmonics of the waveform (calculated with additive synthesis). An oscillator picks
+ * the table with the most harmonics that still fit below the Nyquist frequency at its pitch, so high notes
+ * don't alias, and reads it with linear interpolation instead of calculating the waveform for every sample.
+ *
+ * @author Marek Bobrowski
+ */
+public class WavetableBank {
+    /**
+     * The number of bits of an index of a table.
+     */
+    public static final int TABLE_BITS = 11;
+
+    /**
+     * The number of samples of one table (one cycle of the waveform).
+     */
+    public static final int TABLE_SIZE = 1 << TABLE_BITS;
+
+    /**
+     * The number of harmonics of the richest table (the lowest notes). Half of the table size,
+     * so the table itself doesn't alias.
+     */
+    private static final int MAX_HARMONICS = TABLE_SIZE / 2;
+
+    /**
+     * The number of levels of a mip-map (from {@code MAX_HARMONICS} harmonics down to 1).
+     */
+    public static final int LEVELS = Integer.numberOfTrailingZeros(MAX_HARMONICS) + 1;
+
+    /**
+     * The tables: first index stands for the waveform number (as in the oscillator settings), second index stands
+     * for the level, third index stands for the sample. Every table has one extra sample (a copy of the first one),
+     * so the interpolation never has to wrap around.
+     */
+    private static final double[][][] TABLES = createTables();
+
+    /**
+     * This class has only static members.
+     */
+    private WavetableBank() {
+    }
+
+    /**
+     * Returns the table of the waveform with the most harmonics that don't exceed the Nyquist frequency.
+     * @param waveform The number of the waveform (0 - sine, 1 - triangle, 2 - sawtooth, 3 - square).
+     * @param frequency The frequency the table will be played at.
+     * @return The table ({@link #TABLE_SIZE} + 1 samples).
+     */
+    public static double[] getTable(int waveform, double frequency) {
+        return TABLES[waveform][selectLevel(frequency)];
+    }
+
+    /**
+     * Selects the level of a mip-map for the frequency.
+     * @param frequency The frequency the table will be played at.
+     * @return The level of the mip-map.
+     */
+    private static int selectLevel(double frequency) {
+        double allowedHarmonics = Converter.SAMPLE_RATE / 2.0 / Math.abs(frequency);
+        if (allowedHarmonics >= MAX_HARMONICS) {
+            return 0;
+        }
+        if (allowedHarmonics < 1) {
+            return LEVELS - 1;
+        }
+        // The level whose number of harmonics is the largest power of two not greater than the allowed number.
+        int powerOfTwo = 31 - Integer.numberOfLeadingZeros((int) allowedHarmonics);
+        return LEVELS - 1 - powerOfTwo;
+    }
+
+    /**
+     * Calculates the tables of all the waveforms.
+     * @return The tables.
+     */
+    private static double[][][] createTables() {
+        double[] sine = new double[TABLE_SIZE + 1];
+        for (int i = 0; i <= TABLE_SIZE; i++) {
+            sine[i] = Math.sin(2 * Math.PI * i / TABLE_SIZE);
+        }
+        double[][] sineLevels = new double[LEVELS][];
+        for (int level = 0; level < LEVELS; level++) {
+            sineLevels[level] = sine;
+        }
+        return new double[][][] {
+                sineLevels,
+                createMipMap(1, sine),
+                createMipMap(2, sine),
+                createMipMap(3, sine)
+        };
+    }
+
+    /**
+     * Calculates the mip-map of a waveform with additive synthesis. The levels are created from the poorest one,
+     * every next level adds the missing harmonics to a copy of the previous one.
+     * The sines of the harmonics are read from the sine table (the sample i of the harmonic k
+     * is the sample k * i of the sine), so no trigonometric functions are calculated.
+     * @param waveform The number of the waveform (1 - triangle, 2 - sawtooth, 3 - square).
+     * @param sine The table of the sine (one cycle).
+     * @return The mip-map of the waveform.
+     */
+    private static double[][] createMipMap(int waveform, double[] sine) {
+        double[][] levels = new double[LEVELS][];
+        double[] table = new double[TABLE_SIZE + 1];
+        int harmonics = 0;
+        for (int level = LEVELS - 1; level >= 0; level--) {
+            int levelHarmonics = MAX_HARMONICS >> level;
+            for (int harmonic = harmonics + 1; harmonic <= levelHarmonics; harmonic++) {
+                addHarmonic(waveform, harmonic, sine, table);
+            }
+            harmonics = levelHarmonics;
+            table[TABLE_SIZE] = table[0];
+            levels[level] = table.clone();
+        }
+        return levels;
+    }
+
+    /**
+     * Adds one harmonic of the waveform (with its Fourier series amplitude) to the table.
+     * The series match the waveforms of the direct oscillator: the sawtooth falls from 1 to -1,
+     * the square is 1 in the first half of the cycle, the triangle starts at -1.
+     * @param waveform The number of the waveform (1 - triangle, 2 - sawtooth, 3 - square).
+     * @param harmonic The number of the harmonic (1 - the fundamental).
+     * @param sine The table of the sine (one cycle).
+     * @param table The table the harmonic is added to.
+     */
+    private static void addHarmonic(int waveform, int harmonic, double[] sine, double[] table) {
+        double amplitude;
+        int phaseShift = 0;
+        switch (waveform) {
+            case 1 -> {
+                if (harmonic % 2 == 0) {
+                    return;
+                }
+                // -cos(x) = sin(x - PI / 2), a quarter of the table.
+                amplitude = 8 / (Math.PI * Math.PI * harmonic * harmonic);
+                phaseShift = TABLE_SIZE - TABLE_SIZE / 4;
+            }
+            case 2 -> amplitude = 2 / (Math.PI * harmonic);
+            default -> {
+                if (harmonic % 2 == 0) {
+                    return;
+                }
+                amplitude = 4 / (Math.PI * harmonic);
+            }
+        }
+        int mask = TABLE_SIZE - 1;
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            table[i] += amplitude * sine[(int) (((long) harmonic * i + phaseShift) & mask)];
+        }
+    }
+}
@@ -3,6 +3,7 @@ package synthesizer.models;
 /**
  * This class stores settings of an envelope:
  * attack time, decay time, sustain level, release time. All are stored in universal values (0 to 1).
+ * It also stores the curve of the segments (linear or exponential).
  *
  * A signal envelope describes how the signal's amplitude changes over time.
  * Typical segments of such envelope are attack, decay, sustain and release.
@@ -15,28 +16,39 @@ package synthesizer.models;
  * - Release segment is responsible for decaying the amplitude of the signal after the voice has been released.
  *   The amplitude goes from the sustain level to 0.
  *
+ * The settings are changed by the GUI and read by the synthesis thread, so every setting is published
+ * through a volatile field. The envelopes continue from their current level when a setting changes,
+ * so the settings need no smoothing of their own.
+ *
  * @author Marek Bobrowski
  */
 public class EnvelopeSettings {
     /**
      * The attack time (0 to 1).
      */
-    private double attack = 0;
+    private volatile double attack = 0;
 
     /**
      * The decay time (0 to 1).
      */
-    private double decay = 0;
+    private volatile double decay = 0;
 
     /**
      * The sustain level (0 to 1).
      */
-    private double sustain = 1;
+    private volatile double sustain = 1;
 
     /**
      * The release time (0 to 1).
      */
-    private double release = 0.01;
+    private volatile double release = 0.01;
+
+    /**
+     * The curve of the attack, decay and release segments:
+     * 0 - linear,
+     * 1 - exponential (a fast start that slows down towards the target, like an analog envelope).
+     */
+    private volatile int curve = 0;
 
     /**
      * An empty constructor.
@@ -107,5 +119,20 @@ public class EnvelopeSettings {
     public double getRelease() {
         return release;
     }
-}
 
+    /**
+     * Sets the curve of the attack, decay and release segments (0 - linear, 1 - exponential).
+     * @param value The curve of the segments.
+     */
+    public void setCurve(int value) {
+        curve = value;
+    }
+
+    /**
+     * Gets the curve of the attack, decay and release segments (0 - linear, 1 - exponential).
+     * @return The curve of the segments.
+     */
+    public int getCurve() {
+        return curve;
+    }
+}
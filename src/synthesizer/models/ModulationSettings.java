@@ -0,0 +1,241 @@
+package synthesizer.models;
+
+/**
+ * This class stores the settings of the modulation: the low-frequency oscillators (LFOs), the modulation envelope,
+ * the routes of the modulation matrix and the control rate.
+ *
+ * Every route of the matrix connects a source (an LFO or the modulation envelope) with a destination
+ * (the pitch of an oscillator, the mix between the oscillators or the mix of an effect) with an amount.
+ * The amounts of the pitch destinations are in semitones, the amounts of the mix destinations are added
+ * to the mix values (0 to 1). The LFOs are bipolar (-1 to 1), the envelope is unipolar (0 to 1).
+ * The modulation envelope belongs to the notes, so it only modulates the oscillators.
+ *
+ * The modulation is calculated at the control rate: once per the specified number of frames,
+ * with the values interpolated in between.
+ *
+ * @author Marek Bobrowski
+ */
+public class ModulationSettings {
+    /**
+     * The number of the LFOs.
+     */
+    public static final int LFO_COUNT = 2;
+
+    /**
+     * The number of the routes of the modulation matrix.
+     */
+    public static final int ROUTE_COUNT = 8;
+
+    /**
+     * The largest number of frames per control tick.
+     */
+    public static final int MAX_CONTROL_RATE = 256;
+
+    /**
+     * The source of an unused route.
+     */
+    public static final int SOURCE_NONE = 0;
+
+    /**
+     * The first LFO as a source.
+     */
+    public static final int SOURCE_LFO1 = 1;
+
+    /**
+     * The second LFO as a source.
+     */
+    public static final int SOURCE_LFO2 = 2;
+
+    /**
+     * The modulation envelope as a source.
+     */
+    public static final int SOURCE_ENVELOPE = 3;
+
+    /**
+     * The destination of an unused route.
+     */
+    public static final int DESTINATION_NONE = 0;
+
+    /**
+     * The pitch of the first oscillator (in semitones) as a destination.
+     */
+    public static final int DESTINATION_OSCILLATOR1_PITCH = 1;
+
+    /**
+     * The pitch of the second oscillator (in semitones) as a destination.
+     */
+    public static final int DESTINATION_OSCILLATOR2_PITCH = 2;
+
+    /**
+     * The mix between the oscillators as a destination.
+     */
+    public static final int DESTINATION_OSCILLATOR_MIX = 3;
+
+    /**
+     * The mix of the delay effect as a destination.
+     */
+    public static final int DESTINATION_DELAY_MIX = 4;
+
+    /**
+     * The mix of the reverb effect as a destination.
+     */
+    public static final int DESTINATION_REVERB_MIX = 5;
+
+    /**
+     * The number of the destinations (including the unused one).
+     */
+    public static final int DESTINATION_COUNT = 6;
+
+    /**
+     * The rates of the LFOs (in Hz).
+     */
+    private final double[] lfoRates = {1, 1};
+
+    /**
+     * The waveforms of the LFOs (numbered like the waveforms of the oscillators).
+     * 0 - sine wave
+     * 1 - triangle wave
+     * 2 - sawtooth wave
+     * 3 - pulse wave
+     */
+    private final int[] lfoShapes = new int[LFO_COUNT];
+
+    /**
+     * The settings of the modulation envelope.
+     */
+    private final EnvelopeSettings envelopeSettings = new EnvelopeSettings();
+
+    /**
+     * The sources of the routes.
+     */
+    private final int[] routeSources = new int[ROUTE_COUNT];
+
+    /**
+     * The destinations of the routes.
+     */
+    private final int[] routeDestinations = new int[ROUTE_COUNT];
+
+    /**
+     * The amounts of the routes.
+     */
+    private final double[] routeAmounts = new double[ROUTE_COUNT];
+
+    /**
+     * The number of frames per control tick (1 to {@link #MAX_CONTROL_RATE}).
+     */
+    private int controlRate = 32;
+
+    /**
+     * An empty constructor.
+     */
+    public ModulationSettings() {
+    }
+
+    /**
+     * Sets the rate of an LFO.
+     * @param lfo The number of the LFO (0 to {@link #LFO_COUNT} - 1).
+     * @param rate The rate of the LFO (in Hz).
+     */
+    public void setLfoRate(int lfo, double rate) {
+        lfoRates[lfo] = Math.max(0, rate);
+    }
+
+    /**
+     * Gets the rate of an LFO.
+     * @param lfo The number of the LFO (0 to {@link #LFO_COUNT} - 1).
+     * @return The rate of the LFO (in Hz).
+     */
+    public double getLfoRate(int lfo) {
+        return lfoRates[lfo];
+    }
+
+    /**
+     * Sets the waveform of an LFO (0 - sine, 1 - triangle, 2 - sawtooth, 3 - pulse).
+     * @param lfo The number of the LFO (0 to {@link #LFO_COUNT} - 1).
+     * @param shape The waveform of the LFO.
+     */
+    public void setLfoShape(int lfo, int shape) {
+        lfoShapes[lfo] = shape;
+    }
+
+    /**
+     * Gets the waveform of an LFO (0 - sine, 1 - triangle, 2 - sawtooth, 3 - pulse).
+     * @param lfo The number of the LFO (0 to {@link #LFO_COUNT} - 1).
+     * @return The waveform of the LFO.
+     */
+    public int getLfoShape(int lfo) {
+        return lfoShapes[lfo];
+    }
+
+    /**
+     * Gets the settings of the modulation envelope.
+     * @return The settings of the modulation envelope.
+     */
+    public EnvelopeSettings getEnvelopeSettings() {
+        return envelopeSettings;
+    }
+
+    /**
+     * Sets a route of the modulation matrix.
+     * @param route The number of the route (0 to {@link #ROUTE_COUNT} - 1).
+     * @param source The source (one of the SOURCE constants).
+     * @param destination The destination (one of the DESTINATION constants).
+     * @param amount The amount (semitones for the pitch, a change of the mix value for the mix).
+     */
+    public void setRoute(int route, int source, int destination, double amount) {
+        routeSources[route] = source;
+        routeDestinations[route] = destination;
+        routeAmounts[route] = amount;
+    }
+
+    /**
+     * Disconnects a route of the modulation matrix.
+     * @param route The number of the route (0 to {@link #ROUTE_COUNT} - 1).
+     */
+    public void clearRoute(int route) {
+        setRoute(route, SOURCE_NONE, DESTINATION_NONE, 0);
+    }
+
+    /**
+     * Gets the source of a route.
+     * @param route The number of the route (0 to {@link #ROUTE_COUNT} - 1).
+     * @return The source (one of the SOURCE constants).
+     */
+    public int getRouteSource(int route) {
+        return routeSources[route];
+    }
+
+    /**
+     * Gets the destination of a route.
+     * @param route The number of the route (0 to {@link #ROUTE_COUNT} - 1).
+     * @return The destination (one of the DESTINATION constants).
+     */
+    public int getRouteDestination(int route) {
+        return routeDestinations[route];
+    }
+
+    /**
+     * Gets the amount of a route.
+     * @param route The number of the route (0 to {@link #ROUTE_COUNT} - 1).
+     * @return The amount of the route.
+     */
+    public double getRouteAmount(int route) {
+        return routeAmounts[route];
+    }
+
+    /**
+     * Sets the number of frames per control tick. A higher value makes the modulation cheaper and coarser.
+     * @param controlRate The number of frames per control tick (1 to {@link #MAX_CONTROL_RATE}).
+     */
+    public void setControlRate(int controlRate) {
+        this.controlRate = Math.min(MAX_CONTROL_RATE, Math.max(1, controlRate));
+    }
+
+    /**
+     * Gets the number of frames per control tick.
+     * @return The number of frames per control tick.
+     */
+    public int getControlRate() {
+        return controlRate;
+    }
+}
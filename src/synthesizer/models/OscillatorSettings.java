@@ -3,6 +3,9 @@ package synthesizer.models;
 /**
  * This class is responsible for storing oscillator settings of a synthesizer:
  * Waveforms, frequency shifts, mix between the oscillators.
+ * The settings are changed by the GUI and read by the synthesis thread, so every setting is published
+ * through a volatile field. The frequency ratios of the oscillators are calculated when their shifts change,
+ * so the voices don't calculate a power for every buffer.
  *
  * @author Marek Bobrowski
  */
@@ -14,7 +17,7 @@ public class OscillatorSettings {
      * 2 - sawtooth wave
      * 3 - pulse wave
      */
-    private int oscillator1Shape = 0;
+    private volatile int oscillator1Shape = 0;
 
     /**
      * The waveform of the second oscillator.
@@ -23,34 +26,60 @@ public class OscillatorSettings {
      * 2 - sawtooth wave
      * 3 - pulse wave
      */
-    private int oscillator2Shape = 0;
+    private volatile int oscillator2Shape = 0;
+
+    /**
+     * The way the first oscillator generates its waveform.
+     * 0 - calculated directly for every sample
+     * 1 - read from the band-limited tables
+     * 2 - calculated directly and corrected with PolyBLEP (PolyBLAMP for the triangle)
+     */
+    private volatile int oscillator1Mode = 0;
+
+    /**
+     * The way the second oscillator generates its waveform.
+     * 0 - calculated directly for every sample
+     * 1 - read from the band-limited tables
+     * 2 - calculated directly and corrected with PolyBLEP (PolyBLAMP for the triangle)
+     */
+    private volatile int oscillator2Mode = 0;
 
     /**
      * The semitone shift of the first oscillator.
      */
-    private double oscillator1SemitonesShift = 0;
+    private volatile double oscillator1SemitonesShift = 0;
 
     /**
      * The cent shift of the first oscillator.
      * 100 cents = 1 semitone.
      */
-    private double oscillator1CentsShift = 0;
+    private volatile double oscillator1CentsShift = 0;
 
     /**
      * The semitone shift of the second oscillator.
      */
-    private double oscillator2SemitonesShift = 0;
+    private volatile double oscillator2SemitonesShift = 0;
 
     /**
      * The cent shift of the second oscillator.
      * 100 cents = 1 semitone.
      */
-    private double oscillator2CentsShift = 0;
+    private volatile double oscillator2CentsShift = 0;
 
     /**
      * The mix balance between the two oscillators.
      */
-    private double mixValue = 0.5;
+    private volatile double mixValue = 0.5;
+
+    /**
+     * The frequency ratio of the first oscillator (calculated from its semitone and cent shifts when they change).
+     */
+    private volatile double oscillator1Ratio = 1;
+
+    /**
+     * The frequency ratio of the second oscillator (calculated from its semitone and cent shifts when they change).
+     */
+    private volatile double oscillator2Ratio = 1;
 
     /**
      * Empty constructor.
@@ -107,6 +136,50 @@ public class OscillatorSettings {
         this.oscillator2Shape = oscillator2Shape;
     }
 
+    /**
+     * Get the way the first oscillator generates its waveform.
+     * 0 - calculated directly for every sample
+     * 1 - read from the band-limited tables
+     * 2 - calculated directly and corrected with PolyBLEP (PolyBLAMP for the triangle)
+     * @return The mode of the first oscillator.
+     */
+    public int getOscillator1Mode() {
+        return oscillator1Mode;
+    }
+
+    /**
+     * Set the way the first oscillator generates its waveform.
+     * 0 - calculated directly for every sample
+     * 1 - read from the band-limited tables
+     * 2 - calculated directly and corrected with PolyBLEP (PolyBLAMP for the triangle)
+     * @param oscillator1Mode The mode of the first oscillator.
+     */
+    public void setOscillator1Mode(int oscillator1Mode) {
+        this.oscillator1Mode = oscillator1Mode;
+    }
+
+    /**
+     * Get the way the second oscillator generates its waveform.
+     * 0 - calculated directly for every sample
+     * 1 - read from the band-limited tables
+     * 2 - calculated directly and corrected with PolyBLEP (PolyBLAMP for the triangle)
+     * @return The mode of the second oscillator.
+     */
+    public int getOscillator2Mode() {
+        return oscillator2Mode;
+    }
+
+    /**
+     * Set the way the second oscillator generates its waveform.
+     * 0 - calculated directly for every sample
+     * 1 - read from the band-limited tables
+     * 2 - calculated directly and corrected with PolyBLEP (PolyBLAMP for the triangle)
+     * @param oscillator2Mode The mode of the second oscillator.
+     */
+    public void setOscillator2Mode(int oscillator2Mode) {
+        this.oscillator2Mode = oscillator2Mode;
+    }
+
     /**
      * Get the semitone shift of the first oscillator.
      * @return The semitone shift of the first oscillator.
@@ -119,8 +192,9 @@ public class OscillatorSettings {
      * Set the semitone shift of the first oscillator.
      * @param oscillator1SemitonesShift The semitone shift of the first oscillator.
      */
-    public void setOscillator1SemitonesShift(double oscillator1SemitonesShift) {
+    public synchronized void setOscillator1SemitonesShift(double oscillator1SemitonesShift) {
         this.oscillator1SemitonesShift = oscillator1SemitonesShift;
+        oscillator1Ratio = getRatio(oscillator1SemitonesShift, oscillator1CentsShift);
     }
 
     /**
@@ -137,8 +211,9 @@ public class OscillatorSettings {
      * 100 cents = 1 semitone.
      * @param oscillator1CentsShift The cent shift of the first oscillator.
      */
-    public void setOscillator1CentsShift(double oscillator1CentsShift) {
+    public synchronized void setOscillator1CentsShift(double oscillator1CentsShift) {
         this.oscillator1CentsShift = oscillator1CentsShift;
+        oscillator1Ratio = getRatio(oscillator1SemitonesShift, oscillator1CentsShift);
     }
 
     /**
@@ -153,8 +228,9 @@ public class OscillatorSettings {
      * Set the semitone shift of the second oscillator.
      * @param oscillator2SemitonesShift The semitone shift of the second oscillator.
      */
-    public void setOscillator2SemitonesShift(double oscillator2SemitonesShift) {
+    public synchronized void setOscillator2SemitonesShift(double oscillator2SemitonesShift) {
         this.oscillator2SemitonesShift = oscillator2SemitonesShift;
+        oscillator2Ratio = getRatio(oscillator2SemitonesShift, oscillator2CentsShift);
     }
 
     /**
@@ -171,8 +247,25 @@ public class OscillatorSettings {
      * 100 cents = 1 semitone.
      * @param oscillator2CentsShift The cent shift of the second oscillator.
      */
-    public void setOscillator2CentsShift(double oscillator2CentsShift) {
+    public synchronized void setOscillator2CentsShift(double oscillator2CentsShift) {
         this.oscillator2CentsShift = oscillator2CentsShift;
+        oscillator2Ratio = getRatio(oscillator2SemitonesShift, oscillator2CentsShift);
+    }
+
+    /**
+     * Get the frequency ratio of the first oscillator (the note frequency is multiplied by it).
+     * @return The frequency ratio of the first oscillator.
+     */
+    public double getOscillator1Ratio() {
+        return oscillator1Ratio;
+    }
+
+    /**
+     * Get the frequency ratio of the second oscillator (the note frequency is multiplied by it).
+     * @return The frequency ratio of the second oscillator.
+     */
+    public double getOscillator2Ratio() {
+        return oscillator2Ratio;
     }
 
     /**
@@ -191,5 +284,13 @@ public class OscillatorSettings {
         this.mixValue = mixValue;
     }
 
+    /**
+     * Calculates the frequency ratio of a shift.
+     * @param semitones The semitone shift.
+     * @param cents The cent shift.
+     * @return The frequency ratio.
+     */
+    private static double getRatio(double semitones, double cents) {
+        return Math.pow(2, (semitones * 100 + cents) / 1200.0);
+    }
 }
-
@@ -0,0 +1,408 @@
+package synthesizer.sequencer;
+
+import synthesizer._interface.input.MidiHandler;
+import synthesizer.dsp.EventSource;
+import synthesizer.dsp.Synthesizer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The transport of the synthesizer: plays a {@link Song} (play, stop, loop and seek) by sending its events
+ * to the synthesizer with their exact frame positions, so the rhythm doesn't depend on the buffer size.
+ *
+ * The sequencer is the {@link EventSource} of the synthesizer: before every buffer the synthesis thread asks it
+ * for the events of that buffer, the same way in the real-time application (the {@link synthesizer.dsp.Converter}
+ * paces the buffers) and in the offline rendering. The events of the song are sorted once when it's loaded,
+ * so playing only walks the arrays of the song forward and a seek finds the next event with a binary search,
+ * however long the song is. Playing doesn't allocate memory or take any lock.
+ *
+ * The commands (play, stop, seek, loop, a new song) can be given by any thread; they are published through
+ * volatile and atomic fields and applied by the synthesis thread at the start of the next buffer. The synthesis
+ * thread never writes the commands: when the song ends, it only records which press of play has ended,
+ * so a press that comes at the same time as the end is never lost.
+ * Stopping, seeking and changing the song release all the notes and reset the controllers of all the channels
+ * (the controllers set before the new position are not chased). When the last event has been played
+ * (and there is no loop to go back to), the sequencer stops by itself.
+ *
+ * No event of the song is lost when the event queue of the synthesizer is full: the event that couldn't be sent
+ * and the ones after it are sent again in the next buffer (late, at its first frame), and so is the silencing
+ * of the channels. The playing doesn't go back to the start of the loop until all the events before its end
+ * have been sent.
+ *
+ * @author Marek Bobrowski
+ */
+public class Sequencer implements EventSource {
+    /**
+     * The number of MIDI channels.
+     */
+    private static final int CHANNEL_COUNT = 16;
+
+    /**
+     * The value of 'seekRequest' meaning that no seek is waiting.
+     */
+    private static final long NO_SEEK = -1;
+
+    /**
+     * The value of 'endedPlayCount' meaning that the song hasn't ended.
+     */
+    private static final long NOT_ENDED = -1;
+
+    /**
+     * The synthesizer the song is played on.
+     */
+    private final Synthesizer synthesizer;
+
+    /**
+     * Handles the MIDI messages of the song, the same way as the messages of the MIDI input.
+     */
+    private final MidiHandler midiHandler;
+
+    /**
+     * The song waiting to be taken by the synthesis thread (null - none).
+     */
+    private final AtomicReference<Song> newSong = new AtomicReference<>();
+
+    /**
+     * The position (in frames, from the start of the song) waiting to be located by the synthesis thread,
+     * {@link #NO_SEEK} if there is none.
+     */
+    private final AtomicLong seekRequest = new AtomicLong(NO_SEEK);
+
+    /**
+     * The number of times {@link #play()} has been called.
+     */
+    private final AtomicLong playCount = new AtomicLong();
+
+    /**
+     * The value of 'playCount' when the song ended ({@link #NOT_ENDED} if it hasn't). Written only by the synthesis
+     * thread; the song plays again once play has been pressed after the end.
+     */
+    private volatile long endedPlayCount = NOT_ENDED;
+
+    /**
+     * Tells if the song should be playing (set only by the commands).
+     */
+    private volatile boolean playing = false;
+
+    /**
+     * The looped range of the song (null - no loop).
+     */
+    private volatile Loop loop;
+
+    /**
+     * The song being played (used by the synthesis thread).
+     */
+    private volatile Song song;
+
+    /**
+     * The position (in frames, from the start of the song) of the first frame of the next buffer.
+     */
+    private volatile long position = 0;
+
+    /**
+     * Tells if the song was playing in the last buffer (used only by the synthesis thread).
+     */
+    private boolean running = false;
+
+    /**
+     * The index of the next event of the song to be sent.
+     */
+    private int nextEvent = 0;
+
+    /**
+     * The index of the tempo change of the song in effect at the position (-1 - none).
+     */
+    private int tempoIndex = -1;
+
+    /**
+     * Tells if the last silencing of the channels couldn't be sent completely, so it has to be sent again.
+     */
+    private boolean silencePending = false;
+
+    /**
+     * Tells if the playing has reached the end of the loop, but has to send the events before it
+     * before going back to its start.
+     */
+    private boolean wrapPending = false;
+
+    /**
+     * Constructor.
+     * @param synthesizer The synthesizer the songs will be played on.
+     * @param midiHandler The handler that sends the MIDI messages of the songs to the synthesizer.
+     */
+    public Sequencer(Synthesizer synthesizer, MidiHandler midiHandler) {
+        this.synthesizer = synthesizer;
+        this.midiHandler = midiHandler;
+    }
+
+    /**
+     * Loads a song. It's located at its start and doesn't play until {@link #play()} is called.
+     * Can be called by any thread.
+     * @param song The song to be played.
+     */
+    public void setSong(Song song) {
+        playing = false;
+        newSong.set(song);
+    }
+
+    /**
+     * Returns the song being played.
+     * @return The song taken by the synthesis thread (null if no song has been taken yet).
+     */
+    public Song getSong() {
+        return song;
+    }
+
+    /**
+     * Starts playing the song from the current position (from the start, if the song has ended).
+     * Can be called by any thread.
+     */
+    public void play() {
+        playing = true;
+        playCount.incrementAndGet();
+    }
+
+    /**
+     * Stops playing the song (the position is kept). Can be called by any thread.
+     */
+    public void stop() {
+        playing = false;
+    }
+
+    /**
+     * Tells if the song is playing (or is going to be played from the next buffer).
+     * @return True if the song is playing.
+     */
+    public boolean isPlaying() {
+        return playing && playCount.get() != endedPlayCount;
+    }
+
+    /**
+     * Moves the song to a position (playing or not). Can be called by any thread.
+     * @param frame The position in frames, from the start of the song.
+     */
+    public void seek(long frame) {
+        seekRequest.set(Math.max(0, frame));
+    }
+
+    /**
+     * Returns the position of the song.
+     * @return The position (in frames, from the start of the song) of the first frame of the next buffer.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Loops a range of the song: whenever the playing reaches the end of the range, it continues from its start.
+     * The playing that starts after the range goes on to the end of the song. Can be called by any thread.
+     * @param start The start of the range in frames, from the start of the song.
+     * @param end The end of the range (excluded) in frames, from the start of the song.
+     * @throws IllegalArgumentException If the range is empty.
+     */
+    public void setLoop(long start, long end) {
+        if (start < 0 || end <= start) {
+            throw new IllegalArgumentException("The loop has to end after it starts.");
+        }
+        loop = new Loop(start, end);
+    }
+
+    /**
+     * Stops looping. Can be called by any thread.
+     */
+    public void clearLoop() {
+        loop = null;
+    }
+
+    /**
+     * Tells if a range of the song is looped.
+     * @return True if there is a loop.
+     */
+    public boolean isLooping() {
+        return loop != null;
+    }
+
+    /**
+     * Applies the commands given since the last buffer and sends the events of the song that fall within
+     * the buffer to the synthesizer. Called by the synthesis thread before every buffer.
+     * @param frame The position (in frames, counted from the start of the synthesis) of the first frame
+     *              of the buffer.
+     * @param bufferSize The number of frames of the buffer.
+     */
+    @Override
+    public void scheduleEvents(long frame, int bufferSize) {
+        if (silencePending) {
+            silence(frame);
+        }
+        Song loaded = newSong.getAndSet(null);
+        if (loaded != null) {
+            if (running) {
+                silence(frame);
+                running = false;
+            }
+            song = loaded;
+            endedPlayCount = NOT_ENDED;
+            locate(0);
+        }
+        long seek = seekRequest.getAndSet(NO_SEEK);
+        if (seek != NO_SEEK && song != null) {
+            if (running) {
+                silence(frame);
+            }
+            locate(seek);
+        }
+        boolean play = isPlaying() && song != null;
+        if (play != running) {
+            if (!play) {
+                silence(frame);
+            } else if (hasEnded(loop)) {
+                locate(0);
+            }
+            running = play;
+        }
+        if (!running) {
+            return;
+        }
+        Loop currentLoop = loop;
+        if (wrapPending) {
+            wrapPending = false;
+            if (currentLoop != null && position == currentLoop.end) {
+                sendEvents(frame, 0);
+                if (!wrapLoop(currentLoop, frame)) {
+                    return;
+                }
+            }
+        }
+        int offset = 0;
+        while (offset < bufferSize) {
+            int length = bufferSize - offset;
+            boolean wrap = false;
+            if (currentLoop != null && position < currentLoop.end && position + length >= currentLoop.end) {
+                length = (int) (currentLoop.end - position);
+                wrap = true;
+            }
+            sendEvents(frame + offset, length);
+            offset += length;
+            position += length;
+            if (wrap && !wrapLoop(currentLoop, frame + offset)) {
+                break;
+            }
+        }
+        if (hasEnded(currentLoop)) {
+            // The song has released its notes itself, so they are left to fade out. A press of play
+            // that comes after the count has been read starts the song again.
+            endedPlayCount = playCount.get();
+            running = false;
+        }
+    }
+
+    /**
+     * Sends the events of the song from the position to the synthesizer and follows the tempo map of the song
+     * (the delay synchronized to the tempo changes its time with it).
+     * @param frame The position (in frames, counted from the start of the synthesis) at which the position
+     *              of the song is played.
+     * @param length The number of frames whose events are sent.
+     */
+    private void sendEvents(long frame, int length) {
+        Song current = song;
+        long end = position + length;
+        int eventCount = current.getEventCount();
+        while (nextEvent < eventCount && current.getFrame(nextEvent) < end) {
+            if (!midiHandler.sendAtFrame(current.getMessage(nextEvent),
+                    frame + current.getFrame(nextEvent) - position)) {
+                // The queue is full: this event and the following ones are sent again in the next buffer.
+                break;
+            }
+            nextEvent++;
+        }
+        int tempoCount = current.getTempoCount();
+        if (tempoIndex + 1 < tempoCount && current.getTempoFrame(tempoIndex + 1) < end) {
+            while (tempoIndex + 1 < tempoCount && current.getTempoFrame(tempoIndex + 1) < end) {
+                tempoIndex++;
+            }
+            synthesizer.getDelay().setTempo(current.getTempoValue(tempoIndex));
+        }
+    }
+
+    /**
+     * Goes back to the start of the loop, if all the events before its end have been sent. Otherwise the playing
+     * stays at the end of the loop until the next buffer, which sends the rest of the events first.
+     * @param currentLoop The looped range of the song.
+     * @param frame The position (in frames, counted from the start of the synthesis) at which the notes
+     *              are released.
+     * @return True if the playing has gone back to the start of the loop.
+     */
+    private boolean wrapLoop(Loop currentLoop, long frame) {
+        if (nextEvent < song.getEventCount() && song.getFrame(nextEvent) < currentLoop.end) {
+            wrapPending = true;
+            return false;
+        }
+        silence(frame);
+        locate(currentLoop.start);
+        return true;
+    }
+
+    /**
+     * Moves the song to a position: finds the next event to be sent and the tempo in effect there.
+     * @param frame The position in frames, from the start of the song.
+     */
+    private void locate(long frame) {
+        position = frame;
+        wrapPending = false;
+        nextEvent = song.findEvent(frame);
+        tempoIndex = song.findTempo(frame);
+        if (tempoIndex >= 0) {
+            synthesizer.getDelay().setTempo(song.getTempoValue(tempoIndex));
+        }
+    }
+
+    /**
+     * Tells if the song has nothing more to play: all its events have been sent and there is no loop ahead.
+     * @param currentLoop The looped range of the song (null - no loop).
+     * @return True if the song has ended.
+     */
+    private boolean hasEnded(Loop currentLoop) {
+        return song != null && nextEvent >= song.getEventCount()
+                && (currentLoop == null || position >= currentLoop.end);
+    }
+
+    /**
+     * Releases all the notes and resets the controllers of all the channels. If the event queue is full,
+     * the silencing is sent again before the next buffer.
+     * @param frame The position (in frames, counted from the start of the synthesis) at which the notes are released.
+     */
+    private void silence(long frame) {
+        silencePending = false;
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            if (!synthesizer.allNotesOff(channel, frame) | !synthesizer.resetControllers(channel, frame)) {
+                silencePending = true;
+            }
+        }
+    }
+
+    /**
+     * A looped range of a song. Never changes, so it can be replaced as a whole by any thread.
+     */
+    private static class Loop {
+        /**
+         * The start of the range in frames, from the start of the song.
+         */
+        private final long start;
+
+        /**
+         * The end of the range (excluded) in frames, from the start of the song.
+         */
+        private final long end;
+
+        /**
+         * Constructor.
+         * @param start The start of the range in frames, from the start of the song.
+         * @param end The end of the range (excluded) in frames, from the start of the song.
+         */
+        private Loop(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
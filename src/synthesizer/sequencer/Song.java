@@ -0,0 +1,283 @@
+package synthesizer.sequencer;
+
+import synthesizer.dsp.Converter;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The events of a Standard MIDI File prepared for playing: the short messages (notes, controllers etc.)
+ * of all the tracks merged, sorted and converted into frame positions (through the tempo map of the file)
+ * once, when the song is loaded. The positions and the messages are kept in parallel arrays, so the first
+ * event at or after a position is found by a binary search ({@link #findEvent(long)}), and the tempo changes
+ * are kept the same way ({@link #getTempo(long)}).
+ *
+ * A song never changes after it has been created, so it can be passed between threads at any time.
+ *
+ * @author Marek Bobrowski
+ */
+public class Song {
+    /**
+     * The default tempo of a MIDI file (in microseconds per quarter note) used until a tempo event occurs.
+     */
+    private static final int DEFAULT_TEMPO = 500000;
+
+    /**
+     * The type of the MIDI meta message that sets the tempo.
+     */
+    private static final int TEMPO_META_TYPE = 0x51;
+
+    /**
+     * The positions (in frames, from the start of the song) of the events, in ascending order.
+     */
+    private final long[] frames;
+
+    /**
+     * The messages of the events (in the order of 'frames').
+     */
+    private final ShortMessage[] messages;
+
+    /**
+     * The positions (in frames) at which the tempo changes, in ascending order.
+     */
+    private final long[] tempoFrames;
+
+    /**
+     * The tempos (in beats per minute) set at the positions of 'tempoFrames'.
+     */
+    private final double[] tempos;
+
+    /**
+     * Creates a song from events that have already been timed.
+     * @param frames The positions (in frames, from the start of the song) of the events, in ascending order.
+     * @param messages The messages of the events.
+     * @param tempoFrames The positions (in frames) at which the tempo changes, in ascending order.
+     * @param tempos The tempos (in beats per minute) set at those positions.
+     * @throws IllegalArgumentException If the lengths of the arrays don't match or the positions aren't sorted.
+     */
+    public Song(long[] frames, ShortMessage[] messages, long[] tempoFrames, double[] tempos) {
+        if (frames.length != messages.length || tempoFrames.length != tempos.length
+                || !isSorted(frames) || !isSorted(tempoFrames)) {
+            throw new IllegalArgumentException("The events of a song have to be sorted by their positions.");
+        }
+        this.frames = frames.clone();
+        this.messages = messages.clone();
+        this.tempoFrames = tempoFrames.clone();
+        this.tempos = tempos.clone();
+    }
+
+    /**
+     * Loads a Standard MIDI File: merges its tracks and calculates the positions of the events in frames,
+     * according to the tempo map of the file.
+     * @param file The MIDI file to be read.
+     * @return The loaded song.
+     * @throws InvalidMidiDataException If the file is not a valid MIDI file or contains a malformed tempo event.
+     * @throws IOException If the file cannot be read.
+     */
+    public static Song load(File file) throws InvalidMidiDataException, IOException {
+        Sequence sequence = MidiSystem.getSequence(file);
+        List<MidiEvent> events = new ArrayList<>();
+        for (Track track : sequence.getTracks()) {
+            for (int i = 0; i < track.size(); i++) {
+                events.add(track.get(i));
+            }
+        }
+        // The sort is stable, so the events with the same tick keep their order within the tracks.
+        events.sort(Comparator.comparingLong(MidiEvent::getTick));
+
+        int shortCount = 0;
+        int tempoCount = 1;
+        for (MidiEvent event : events) {
+            if (event.getMessage() instanceof ShortMessage) {
+                shortCount++;
+            } else if (isTempoChange(event)) {
+                tempoCount++;
+            }
+        }
+        long[] frames = new long[shortCount];
+        ShortMessage[] messages = new ShortMessage[shortCount];
+        long[] tempoFrames = new long[tempoCount];
+        double[] tempos = new double[tempoCount];
+        tempos[0] = 60e6 / DEFAULT_TEMPO;
+
+        double tempo = DEFAULT_TEMPO;
+        double lastTick = 0;
+        double lastSeconds = 0;
+        int shortIndex = 0;
+        int tempoIndex = 1;
+        for (MidiEvent event : events) {
+            double seconds;
+            if (sequence.getDivisionType() == Sequence.PPQ) {
+                seconds = lastSeconds + (event.getTick() - lastTick) * tempo
+                        / (sequence.getResolution() * 1e6);
+            } else {
+                seconds = event.getTick() / ((double) sequence.getDivisionType() * sequence.getResolution());
+            }
+            lastTick = event.getTick();
+            lastSeconds = seconds;
+            long frame = Math.round(seconds * Converter.SAMPLE_RATE);
+            if (event.getMessage() instanceof ShortMessage) {
+                frames[shortIndex] = frame;
+                messages[shortIndex] = (ShortMessage) event.getMessage();
+                shortIndex++;
+            } else if (isTempoChange(event)) {
+                byte[] data = ((MetaMessage) event.getMessage()).getData();
+                if (data.length < 3) {
+                    throw new InvalidMidiDataException("The tempo event at tick " + event.getTick()
+                            + " is too short.");
+                }
+                tempo = ((data[0] & 0xFF) << 16) | ((data[1] & 0xFF) << 8) | (data[2] & 0xFF);
+                if (tempo <= 0) {
+                    throw new InvalidMidiDataException("The tempo event at tick " + event.getTick()
+                            + " sets a tempo of 0.");
+                }
+                tempoFrames[tempoIndex] = frame;
+                tempos[tempoIndex] = 60e6 / tempo;
+                tempoIndex++;
+            }
+        }
+        return new Song(frames, messages, tempoFrames, tempos);
+    }
+
+    /**
+     * Returns the number of events of this song.
+     * @return The number of events.
+     */
+    public int getEventCount() {
+        return frames.length;
+    }
+
+    /**
+     * Returns the position of an event.
+     * @param index The index of the event (the events are sorted by their positions).
+     * @return The position of the event in frames, from the start of the song.
+     */
+    public long getFrame(int index) {
+        return frames[index];
+    }
+
+    /**
+     * Returns the message of an event.
+     * @param index The index of the event (the events are sorted by their positions).
+     * @return The MIDI message of the event.
+     */
+    public ShortMessage getMessage(int index) {
+        return messages[index];
+    }
+
+    /**
+     * Returns the length of this song: the position of its last event.
+     * @return The length of this song in frames.
+     */
+    public long getLength() {
+        return frames.length == 0 ? 0 : frames[frames.length - 1];
+    }
+
+    /**
+     * Finds the first event at or after a position (a binary search).
+     * @param frame The position in frames, from the start of the song.
+     * @return The index of the first event at or after the position ({@link #getEventCount()} if there is none).
+     */
+    public int findEvent(long frame) {
+        int low = 0;
+        int high = frames.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (frames[middle] < frame) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the number of tempo changes of this song (including the initial tempo, if it has a tempo map).
+     * @return The number of tempo changes.
+     */
+    public int getTempoCount() {
+        return tempoFrames.length;
+    }
+
+    /**
+     * Returns the position of a tempo change.
+     * @param index The index of the tempo change (the changes are sorted by their positions).
+     * @return The position of the tempo change in frames, from the start of the song.
+     */
+    public long getTempoFrame(int index) {
+        return tempoFrames[index];
+    }
+
+    /**
+     * Returns the tempo set by a tempo change.
+     * @param index The index of the tempo change (the changes are sorted by their positions).
+     * @return The tempo in beats per minute.
+     */
+    public double getTempoValue(int index) {
+        return tempos[index];
+    }
+
+    /**
+     * Finds the index of the tempo in effect at a position (a binary search).
+     * @param frame The position in frames, from the start of the song.
+     * @return The index of the last tempo change at or before the position (-1 if there is none).
+     */
+    public int findTempo(long frame) {
+        int low = 0;
+        int high = tempoFrames.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (tempoFrames[middle] <= frame) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low - 1;
+    }
+
+    /**
+     * Returns the tempo in effect at a position.
+     * @param frame The position in frames, from the start of the song.
+     * @return The tempo in beats per minute (0 if the song has no tempo map).
+     */
+    public double getTempo(long frame) {
+        int index = findTempo(frame);
+        return index < 0 ? 0 : tempos[index];
+    }
+
+    /**
+     * Tells if an event sets the tempo.
+     * @param event The MIDI event.
+     * @return True if the event is a tempo meta message.
+     */
+    private static boolean isTempoChange(MidiEvent event) {
+        return event.getMessage() instanceof MetaMessage
+                && ((MetaMessage) event.getMessage()).getType() == TEMPO_META_TYPE;
+    }
+
+    /**
+     * Tells if the positions are in ascending order.
+     * @param positions The positions.
+     * @return True if no position is smaller than the one before it.
+     */
+    private static boolean isSorted(long[] positions) {
+        for (int i = 1; i < positions.length; i++) {
+            if (positions[i] < positions[i - 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,137 @@
+package synthesizer.dsp;
+
+import org.junit.jupiter.api.Test;
+import synthesizer.dsp.output.NullSink;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that the sound doesn't depend on the buffer size: the same timed events (notes, pitch bends,
+ * the sustain pedal and, in the multi-timbral mode, the mixer controllers of the parts) are played
+ * with small and with large buffers, and the sound has to be identical, sample by sample.
+ * Every event is sent just before the buffer it falls into, as the sequencer does.
+ *
+ * @author Marek Bobrowski
+ */
+class BufferSizeIndependenceTest {
+    /**
+     * The small buffer size.
+     */
+    private static final int SMALL_BUFFER = 64;
+
+    /**
+     * The large buffer size.
+     */
+    private static final int LARGE_BUFFER = 2048;
+
+    /**
+     * The number of rendered frames (a multiple of both buffer sizes).
+     */
+    private static final int FRAMES = 100 * LARGE_BUFFER;
+
+    /**
+     * The distance (in frames) between the starts of the notes (not a divisor of the buffer sizes).
+     */
+    private static final int NOTE_DISTANCE = 997;
+
+    /**
+     * The number of notes started before a note is released.
+     */
+    private static final int HELD_NOTES = 12;
+
+    /**
+     * The distance (in frames) between the controller events.
+     */
+    private static final int CONTROLLER_DISTANCE = 3001;
+
+    /**
+     * The number of channels the events are spread over.
+     */
+    private static final int CHANNELS = 4;
+
+    @Test
+    void singlePartDoesntDependOnBufferSize() {
+        assertSameSound(false);
+    }
+
+    @Test
+    void multitimbralPartsDontDependOnBufferSize() {
+        assertSameSound(true);
+    }
+
+    /**
+     * Renders the same events with both buffer sizes and checks that the sound is the same.
+     * @param multitimbral True if every MIDI channel should be played by its own part.
+     */
+    private static void assertSameSound(boolean multitimbral) {
+        double[] small = render(new Synthesizer(new NullSink(), 16, 1, 1, false, multitimbral), SMALL_BUFFER);
+        double[] large = render(new Synthesizer(new NullSink(), 16, 1, 1, false, multitimbral), LARGE_BUFFER);
+        assertEquals(-1, Arrays.mismatch(small, large), "The first sample that differs");
+    }
+
+    /**
+     * Plays the events with a buffer size and collects the sound.
+     * @param synthesizer The synthesizer.
+     * @param bufferSize The number of frames of a buffer.
+     * @return The samples of the left channel followed by the samples of the right channel.
+     */
+    private static double[] render(Synthesizer synthesizer, int bufferSize) {
+        double[] sound = new double[2 * FRAMES];
+        int note = 0;
+        int controller = 0;
+        try {
+            for (int frame = 0; frame < FRAMES; frame += bufferSize) {
+                for (; (long) note * NOTE_DISTANCE < frame + bufferSize; note++) {
+                    sendNote(synthesizer, note);
+                }
+                for (; (long) controller * CONTROLLER_DISTANCE < frame + bufferSize; controller++) {
+                    sendController(synthesizer, controller);
+                }
+                double[][] output = synthesizer.renderBuffer(bufferSize);
+                System.arraycopy(output[0], 0, sound, frame, bufferSize);
+                System.arraycopy(output[1], 0, sound, FRAMES + frame, bufferSize);
+            }
+        } finally {
+            synthesizer.finishWork();
+        }
+        return sound;
+    }
+
+    /**
+     * Starts a note and releases the one started {@link #HELD_NOTES} notes before it, at the frame of the note.
+     * @param synthesizer The synthesizer.
+     * @param note The number of the note.
+     */
+    private static void sendNote(Synthesizer synthesizer, int note) {
+        long frame = (long) note * NOTE_DISTANCE;
+        if (note >= HELD_NOTES) {
+            int released = note - HELD_NOTES;
+            synthesizer.noteOff(released % CHANNELS, 40 + released % 48, frame);
+        }
+        int key = 40 + note % 48;
+        synthesizer.noteOn(note % CHANNELS, key, 440 * Math.pow(2, (key - 69) / 12.0), 0.5 + note % 4 * 0.125,
+                frame);
+    }
+
+    /**
+     * Sends a controller event: a pitch bend, the sustain pedal or (taking turns) the gain, the pan, the delay send
+     * and the reverb send of a part.
+     * @param synthesizer The synthesizer.
+     * @param controller The number of the controller event.
+     */
+    private static void sendController(Synthesizer synthesizer, int controller) {
+        long frame = (long) controller * CONTROLLER_DISTANCE;
+        int channel = controller % CHANNELS;
+        double value = (controller * 7 % 11) / 10.0;
+        switch (controller % 6) {
+            case 0 -> synthesizer.pitchBend(channel, value - 0.5, frame);
+            case 1 -> synthesizer.sustainPedal(channel, controller % 4 == 1, frame);
+            case 2 -> synthesizer.partGain(channel, value, frame);
+            case 3 -> synthesizer.partPan(channel, 2 * value - 1, frame);
+            case 4 -> synthesizer.delaySend(channel, value, frame);
+            default -> synthesizer.reverbSend(channel, value, frame);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package synthesizer.dsp;
+
+import org.junit.jupiter.api.Test;
+import synthesizer.dsp.output.NullSink;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that generating the voices with multiple threads gives exactly the same sound as generating them
+ * on the synthesis thread: the same notes are played by a single-threaded synthesizer and by one that generates
+ * every buffer with four threads, and the buffers have to be identical, sample by sample.
+ *
+ * @author Marek Bobrowski
+ */
+class ParallelRenderingTest {
+    /**
+     * The number of frames of a buffer.
+     */
+    private static final int BUFFER_SIZE = 256;
+
+    /**
+     * The number of compared buffers.
+     */
+    private static final int BUFFERS = 3000;
+
+    /**
+     * The number of notes held at once (some of them are always being released and stolen).
+     */
+    private static final int HELD_NOTES = 12;
+
+    /**
+     * The number of channels the notes are spread over.
+     */
+    private static final int CHANNELS = 4;
+
+    /**
+     * The number of threads generating the voices in the parallel mode.
+     */
+    private static final int RENDER_THREADS = 4;
+
+    @Test
+    void parallelVoicesMatchSerialOnes() {
+        assertSameSound(false);
+    }
+
+    @Test
+    void parallelPartsMatchSerialOnes() {
+        assertSameSound(true);
+    }
+
+    /**
+     * Renders the same notes serially and in parallel and checks that the sound is the same.
+     * @param multitimbral True if every MIDI channel should be played by its own part.
+     */
+    private static void assertSameSound(boolean multitimbral) {
+        double[] serial = render(new Synthesizer(new NullSink(), 16, 1, 1, false, multitimbral));
+        double[] parallel = render(new Synthesizer(new NullSink(), 16, RENDER_THREADS, 1, false, multitimbral));
+        assertEquals(-1, Arrays.mismatch(serial, parallel), "The first sample that differs");
+    }
+
+    /**
+     * Plays the notes (a note is started and the oldest held one released before every buffer)
+     * and collects the created buffers.
+     * @param synthesizer The synthesizer.
+     * @return The samples of all the buffers (the left and the right channel of every buffer one after another).
+     */
+    private static double[] render(Synthesizer synthesizer) {
+        double[] sound = new double[BUFFERS * 2 * BUFFER_SIZE];
+        try {
+            for (int buffer = 0; buffer < BUFFERS; buffer++) {
+                int key = 40 + buffer % 48;
+                int releasedKey = 40 + Math.floorMod(buffer - HELD_NOTES, 48);
+                synthesizer.noteOff(Math.floorMod(buffer - HELD_NOTES, CHANNELS), releasedKey,
+                        NoteEvent.IMMEDIATELY);
+                synthesizer.noteOn(buffer % CHANNELS, key, 440 * Math.pow(2, (key - 69) / 12.0), 0.8,
+                        synthesizer.getFramePosition() + buffer % BUFFER_SIZE);
+                double[][] output = synthesizer.renderBuffer(BUFFER_SIZE);
+                System.arraycopy(output[0], 0, sound, 2 * buffer * BUFFER_SIZE, BUFFER_SIZE);
+                System.arraycopy(output[1], 0, sound, (2 * buffer + 1) * BUFFER_SIZE, BUFFER_SIZE);
+            }
+        } finally {
+            synthesizer.finishWork();
+        }
+        return sound;
+    }
+}
@@ -0,0 +1,153 @@
+package synthesizer.dsp;
+
+import org.junit.jupiter.api.Test;
+import synthesizer.dsp.output.NullSink;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that creating and streaming a buffer doesn't allocate memory once the synthesizer has warmed up,
+ * in every way the voices can be generated. The notes are started and released on every buffer, so the events,
+ * the voice pool and the voice stealing are exercised as well. The allocations are counted by the allocation
+ * counter of the synthesis thread (and of the threads generating the voices, if there are any).
+ *
+ * @author Marek Bobrowski
+ */
+class SteadyStateAllocationTest {
+    /**
+     * The number of frames of a buffer.
+     */
+    private static final int BUFFER_SIZE = 256;
+
+    /**
+     * The number of buffers created before measuring, so the JIT compiler can compile the synthesis.
+     */
+    private static final int WARM_UP_BUFFERS = 20000;
+
+    /**
+     * The number of measured buffers.
+     */
+    private static final int MEASURED_BUFFERS = 2000;
+
+    /**
+     * The number of measurements: the first ones can be disturbed by the JIT compiler recompiling the code
+     * (the tests share the JVM, so one test can compile the code with the profile of another), but a buffer
+     * that allocates memory does it in every measurement.
+     */
+    private static final int MEASUREMENTS = 10;
+
+    /**
+     * The number of notes held during the measurement (some of them are always being released and stolen).
+     */
+    private static final int HELD_NOTES = 12;
+
+    /**
+     * The number of channels the notes are spread over.
+     */
+    private static final int CHANNELS = 4;
+
+    @Test
+    void voiceObjectsDontAllocate() throws IOException {
+        assertNoAllocation(new Synthesizer(new NullSink(), 16, 1, 4, false, false));
+    }
+
+    @Test
+    void voiceBankDoesntAllocate() throws IOException {
+        assertNoAllocation(new Synthesizer(new NullSink(), 16, 1, 4, true, false));
+    }
+
+    @Test
+    void parallelVoicesDontAllocate() throws IOException {
+        assertNoAllocation(new Synthesizer(new NullSink(), 16, 2, 1, false, false));
+    }
+
+    @Test
+    void multitimbralPartsDontAllocate() throws IOException {
+        assertNoAllocation(new Synthesizer(new NullSink(), 16, 1, 4, false, true));
+    }
+
+    /**
+     * Warms the synthesizer up and checks that streaming the next buffers allocates nothing
+     * (in at least one of the measurements).
+     * @param synthesizer The synthesizer to be checked.
+     * @throws IOException If the sink cannot be opened.
+     */
+    private static void assertNoAllocation(Synthesizer synthesizer) throws IOException {
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assertTrue(threadBean.isThreadAllocatedMemorySupported(), "The JVM doesn't count the allocated memory");
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        synthesizer.getConverter().startStreaming();
+        try {
+            int buffer = 0;
+            for (; buffer < WARM_UP_BUFFERS; buffer++) {
+                playBuffer(synthesizer, buffer);
+            }
+            long[] threadIds = getSynthesisThreadIds();
+            long allocated = -1;
+            for (int measurement = 0; measurement < MEASUREMENTS && allocated != 0; measurement++) {
+                long before = getAllocatedBytes(threadBean, threadIds);
+                for (int end = buffer + MEASURED_BUFFERS; buffer < end; buffer++) {
+                    playBuffer(synthesizer, buffer);
+                }
+                allocated = getAllocatedBytes(threadBean, threadIds) - before;
+            }
+            assertEquals(0, allocated, "Bytes allocated by " + MEASURED_BUFFERS + " buffers");
+        } finally {
+            synthesizer.finishWork();
+        }
+    }
+
+    /**
+     * Starts a note and releases the oldest held one, then creates a buffer and streams it into the sink.
+     * @param synthesizer The synthesizer.
+     * @param buffer The number of the buffer.
+     */
+    private static void playBuffer(Synthesizer synthesizer, int buffer) {
+        int key = 40 + buffer % 48;
+        int releasedKey = 40 + Math.floorMod(buffer - HELD_NOTES, 48);
+        synthesizer.noteOff(Math.floorMod(buffer - HELD_NOTES, CHANNELS), releasedKey, NoteEvent.IMMEDIATELY);
+        synthesizer.noteOn(buffer % CHANNELS, key, 440 * Math.pow(2, (key - 69) / 12.0), 0.8,
+                synthesizer.getFramePosition() + buffer % BUFFER_SIZE);
+        synthesizer.streamNextBuffer(BUFFER_SIZE);
+    }
+
+    /**
+     * Finds the threads that take part in the synthesis: the current one and the ones generating the voices.
+     * @return The identifiers of the threads.
+     */
+    private static long[] getSynthesisThreadIds() {
+        List<Long> ids = new ArrayList<>();
+        ids.add(Thread.currentThread().getId());
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("Synth worker")) {
+                ids.add(thread.getId());
+            }
+        }
+        long[] result = new long[ids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ids.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Adds up the bytes allocated by the threads (one thread at a time, so counting doesn't allocate an array).
+     * @param threadBean The allocation counter of the threads.
+     * @param threadIds The identifiers of the threads.
+     * @return The number of bytes allocated by the threads since they started.
+     */
+    private static long getAllocatedBytes(com.sun.management.ThreadMXBean threadBean, long[] threadIds) {
+        long sum = 0;
+        for (long threadId : threadIds) {
+            sum += threadBean.getThreadAllocatedBytes(threadId);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,157 @@
+package synthesizer.dsp.post;
+
+import org.junit.jupiter.api.Test;
+import synthesizer.dsp.Converter;
+import synthesizer.dsp.parameter.SmoothedParameter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that the convolution reverb gives the direct convolution of its input with the impulse response,
+ * delayed by one block, for random block sizes (1 - 512 frames), lengths of the impulse response and sizes
+ * of the processed buffers. The tails are calculated by the background thread or by the processing thread,
+ * whichever comes first, so the handoff between them is exercised too. The spectra of the impulse response
+ * are stored as floats, so the result is compared with a tolerance.
+ *
+ * @author Marek Bobrowski
+ */
+class ConvolutionReverbTest {
+    /**
+     * The number of random cases.
+     */
+    private static final int CASES = 12;
+
+    /**
+     * The longest impulse response (in frames).
+     */
+    private static final int MAX_IMPULSE_RESPONSE_LENGTH = 3000;
+
+    /**
+     * The number of processed frames.
+     */
+    private static final int FRAMES = 12000;
+
+    /**
+     * The largest allowed difference from the direct convolution.
+     */
+    private static final double TOLERANCE = 1e-5;
+
+    @Test
+    void matchesDirectConvolution() throws IOException {
+        Random random = new Random(42);
+        for (int testCase = 0; testCase < CASES; testCase++) {
+            int blockSize = 1 << random.nextInt(10);
+            int length = 1 + random.nextInt(MAX_IMPULSE_RESPONSE_LENGTH);
+            float[][] impulseResponse = createNoise(random, length);
+            assertMatchesDirectConvolution(random, blockSize, impulseResponse);
+        }
+    }
+
+    /**
+     * Processes noise with a convolution reverb (the whole wet signal) and compares it with the direct convolution.
+     * @param random The source of the noise and of the buffer sizes.
+     * @param blockSize The block size of the reverb.
+     * @param impulseResponse The left and the right channel of the impulse response.
+     * @throws IOException If the impulse response cannot be written or read.
+     */
+    private static void assertMatchesDirectConvolution(Random random, int blockSize, float[][] impulseResponse)
+            throws IOException {
+        float[][] input = createNoise(random, FRAMES);
+        double[][] output = new double[2][FRAMES];
+        ConvolutionReverb reverb = new ConvolutionReverb(blockSize);
+        try {
+            reverb.loadImpulseResponse(writeImpulseResponse(impulseResponse));
+            reverb.setMix(1);
+            double[][] buffer = new double[2][Converter.MAX_BUFFER_SIZE];
+            int done = 0;
+            while (done < FRAMES) {
+                int bufferSize = Math.min(FRAMES - done, 1 + random.nextInt(Converter.MAX_BUFFER_SIZE));
+                for (int i = 0; i < bufferSize; i++) {
+                    buffer[0][i] = input[0][done + i];
+                    buffer[1][i] = input[1][done + i];
+                }
+                reverb.processBuffer(buffer, bufferSize);
+                System.arraycopy(buffer[0], 0, output[0], done, bufferSize);
+                System.arraycopy(buffer[1], 0, output[1], done, bufferSize);
+                done += bufferSize;
+            }
+        } finally {
+            reverb.shutdown();
+        }
+
+        double scale = 1 / Math.sqrt(Math.max(getEnergy(impulseResponse[0]), getEnergy(impulseResponse[1])));
+        // The mix moves from the dry to the wet signal first.
+        int firstWetFrame = (int) (SmoothedParameter.SMOOTHING_TIME * Converter.SAMPLE_RATE);
+        for (int channel = 0; channel < 2; channel++) {
+            for (int frame = firstWetFrame; frame < FRAMES; frame++) {
+                double expected = 0;
+                for (int k = 0; k < impulseResponse[channel].length && k <= frame - blockSize; k++) {
+                    int inputFrame = frame - blockSize - k;
+                    expected += impulseResponse[channel][k] * scale
+                            * (input[0][inputFrame] + input[1][inputFrame]) * 0.5;
+                }
+                assertEquals(expected, output[channel][frame], TOLERANCE, "Block size " + blockSize
+                        + ", impulse response of " + impulseResponse[0].length + " frames, channel " + channel
+                        + ", frame " + frame);
+            }
+        }
+    }
+
+    /**
+     * Writes a temporary WAV file with a stereo impulse response (32-bit floating-point samples).
+     * @param impulseResponse The left and the right channel of the impulse response.
+     * @return The file (deleted when the tests end).
+     * @throws IOException If the file cannot be written.
+     */
+    private static File writeImpulseResponse(float[][] impulseResponse) throws IOException {
+        int frames = impulseResponse[0].length;
+        int dataSize = frames * 8;
+        ByteBuffer wav = ByteBuffer.allocate(44 + dataSize).order(ByteOrder.LITTLE_ENDIAN);
+        wav.put("RIFF".getBytes()).putInt(36 + dataSize).put("WAVE".getBytes());
+        wav.put("fmt ".getBytes()).putInt(16).putShort((short) 3).putShort((short) 2).putInt(Converter.SAMPLE_RATE)
+                .putInt(Converter.SAMPLE_RATE * 8).putShort((short) 8).putShort((short) 32);
+        wav.put("data".getBytes()).putInt(dataSize);
+        for (int i = 0; i < frames; i++) {
+            wav.putFloat(impulseResponse[0][i]).putFloat(impulseResponse[1][i]);
+        }
+        File file = File.createTempFile("impulse-response", ".wav");
+        file.deleteOnExit();
+        Files.write(file.toPath(), wav.array());
+        return file;
+    }
+
+    /**
+     * Creates stereo noise within [-1, 1].
+     * @param random The source of the noise.
+     * @param frames The number of frames.
+     * @return The left and the right channel of the noise.
+     */
+    private static float[][] createNoise(Random random, int frames) {
+        float[][] noise = new float[2][frames];
+        for (int i = 0; i < frames; i++) {
+            noise[0][i] = random.nextFloat() * 2 - 1;
+            noise[1][i] = random.nextFloat() * 2 - 1;
+        }
+        return noise;
+    }
+
+    /**
+     * Calculates the energy (the sum of the squared samples) of a signal.
+     * @param signal The signal.
+     * @return The energy of the signal.
+     */
+    private static double getEnergy(float[] signal) {
+        double energy = 0;
+        for (float sample : signal) {
+            energy += (double) sample * sample;
+        }
+        return energy;
+    }
+}
@@ -0,0 +1,290 @@
+package synthesizer.sequencer;
+
+import org.junit.jupiter.api.Test;
+import synthesizer._interface.input.MidiHandler;
+import synthesizer.dsp.Synthesizer;
+import synthesizer.dsp.output.NullSink;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the sequencer sends every event of a song exactly once at its exact frame: across the wraps
+ * of a loop, after a seek, when the event queue is full (the events are sent late, but none is lost or sent
+ * twice, and the loop doesn't wrap before the events before its end have been sent), and when the song
+ * is played again after it has ended. The messages are caught by a MIDI handler that records them
+ * (and rejects them while the queue should be full) instead of sending them to the synthesizer.
+ *
+ * @author Marek Bobrowski
+ */
+class SequencerTest {
+    /**
+     * The number of frames of a buffer.
+     */
+    private static final int BUFFER_SIZE = 256;
+
+    /**
+     * The distance (in frames) between the events of the song.
+     */
+    private static final int EVENT_DISTANCE = 100;
+
+    /**
+     * The number of events of the song (a note-on whose key is the index of the event).
+     */
+    private static final int EVENT_COUNT = 36;
+
+    /**
+     * The end of the loop (in frames): between two events and in the middle of a buffer.
+     */
+    private static final long LOOP_END = 1850;
+
+    @Test
+    void sendsEveryEventOnceAcrossLoopWraps() throws InvalidMidiDataException {
+        Fixture fixture = new Fixture();
+        try {
+            fixture.sequencer.setLoop(0, LOOP_END);
+            fixture.sequencer.play();
+            int passes = 3;
+            fixture.render((int) (passes * LOOP_END / BUFFER_SIZE));
+
+            List<long[]> expected = new ArrayList<>();
+            for (int pass = 0; pass < passes; pass++) {
+                for (int event = 0; event < EVENT_COUNT && (long) event * EVENT_DISTANCE < LOOP_END; event++) {
+                    long frame = pass * LOOP_END + (long) event * EVENT_DISTANCE;
+                    if (frame < fixture.framePosition()) {
+                        expected.add(new long[]{event, frame});
+                    }
+                }
+            }
+            assertEvents(expected, fixture.handler.received);
+        } finally {
+            fixture.synthesizer.finishWork();
+        }
+    }
+
+    @Test
+    void seekLandsOnTheNextEvent() throws InvalidMidiDataException {
+        Fixture fixture = new Fixture();
+        try {
+            fixture.sequencer.play();
+            fixture.render(2);
+            long seekFrame = fixture.framePosition();
+            fixture.sequencer.seek(1234);
+            fixture.render(4);
+
+            List<long[]> expected = new ArrayList<>();
+            for (int event = 0; (long) event * EVENT_DISTANCE < seekFrame; event++) {
+                expected.add(new long[]{event, (long) event * EVENT_DISTANCE});
+            }
+            // The first event at or after the position (1300) comes 66 frames after the seek.
+            for (int event = 13; seekFrame + event * EVENT_DISTANCE - 1234 < fixture.framePosition(); event++) {
+                expected.add(new long[]{event, seekFrame + event * EVENT_DISTANCE - 1234});
+            }
+            assertEvents(expected, fixture.handler.received);
+            assertEquals(1234 + 4 * BUFFER_SIZE, fixture.sequencer.getPosition());
+        } finally {
+            fixture.synthesizer.finishWork();
+        }
+    }
+
+    @Test
+    void fullQueueDelaysEventsWithoutLosingThem() throws InvalidMidiDataException {
+        Fixture fixture = new Fixture();
+        try {
+            fixture.sequencer.play();
+            fixture.render(2);
+            fixture.handler.full = true;
+            fixture.render(2);
+            fixture.handler.full = false;
+            long resumeFrame = fixture.framePosition();
+            fixture.render(3);
+
+            // The delayed events keep their frames (which have passed, so the synthesizer plays them at once).
+            List<long[]> expected = new ArrayList<>();
+            for (int event = 0; (long) event * EVENT_DISTANCE < fixture.framePosition(); event++) {
+                expected.add(new long[]{event, (long) event * EVENT_DISTANCE});
+            }
+            assertEvents(expected, fixture.handler.received);
+            for (int i = 0; i < fixture.handler.received.size(); i++) {
+                long frame = fixture.handler.received.get(i)[1];
+                if (frame >= 2 * BUFFER_SIZE && frame < resumeFrame) {
+                    assertEquals(resumeFrame, fixture.handler.bufferFrames.get(i), "The buffer of a delayed event");
+                }
+            }
+        } finally {
+            fixture.synthesizer.finishWork();
+        }
+    }
+
+    @Test
+    void loopWaitsForTheEventsBeforeItsEnd() throws InvalidMidiDataException {
+        Fixture fixture = new Fixture();
+        try {
+            fixture.sequencer.setLoop(0, LOOP_END);
+            fixture.sequencer.play();
+            // The queue is full in the buffer before the end of the loop and in the buffer containing it.
+            int endBuffer = (int) (LOOP_END / BUFFER_SIZE);
+            fixture.render(endBuffer - 1);
+            fixture.handler.full = true;
+            fixture.render(2);
+            fixture.handler.full = false;
+            long wrapFrame = fixture.framePosition();
+            fixture.render(4);
+
+            List<long[]> received = fixture.handler.received;
+            int firstPassCount = (int) ((LOOP_END + EVENT_DISTANCE - 1) / EVENT_DISTANCE);
+            for (int i = 0; i < received.size(); i++) {
+                assertEquals(i % firstPassCount, received.get(i)[0], "The event number " + i);
+            }
+            assertTrue(received.size() > firstPassCount, "The loop hasn't wrapped");
+            assertEquals(wrapFrame, fixture.handler.bufferFrames.get(firstPassCount - 1),
+                    "The buffer of the last delayed event");
+            // The second pass starts after the delayed events have been sent.
+            assertEquals(wrapFrame, received.get(firstPassCount)[1], "The frame of the first event of the second pass");
+            for (int i = firstPassCount; i < received.size(); i++) {
+                assertEquals(wrapFrame + received.get(i)[0] * EVENT_DISTANCE, received.get(i)[1],
+                        "The frame of the event number " + i);
+            }
+        } finally {
+            fixture.synthesizer.finishWork();
+        }
+    }
+
+    @Test
+    void playAfterTheEndStartsAgain() throws InvalidMidiDataException {
+        Fixture fixture = new Fixture();
+        try {
+            fixture.sequencer.play();
+            fixture.render((int) (EVENT_COUNT * EVENT_DISTANCE / BUFFER_SIZE) + 2);
+            assertFalse(fixture.sequencer.isPlaying(), "The song hasn't stopped at its end");
+            assertEquals(EVENT_COUNT, fixture.handler.received.size());
+
+            fixture.sequencer.play();
+            long restartFrame = fixture.framePosition();
+            fixture.render(1);
+            assertEquals(EVENT_COUNT + 3, fixture.handler.received.size());
+            assertEquals(0, fixture.handler.received.get(EVENT_COUNT)[0]);
+            assertEquals(restartFrame, fixture.handler.received.get(EVENT_COUNT)[1]);
+        } finally {
+            fixture.synthesizer.finishWork();
+        }
+    }
+
+    /**
+     * Checks that the received events are the expected ones, in the same order.
+     * @param expected The numbers and the frames of the expected events.
+     * @param received The numbers and the frames of the received events.
+     */
+    private static void assertEvents(List<long[]> expected, List<long[]> received) {
+        assertEquals(expected.size(), received.size(), "The number of the received events");
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i)[0], received.get(i)[0], "The event number " + i);
+            assertEquals(expected.get(i)[1], received.get(i)[1], "The frame of the event number " + i);
+        }
+    }
+
+    /**
+     * A synthesizer playing a song of {@link #EVENT_COUNT} events, {@link #EVENT_DISTANCE} frames apart,
+     * with its sequencer and the recording MIDI handler.
+     */
+    private static class Fixture {
+        /**
+         * The synthesizer (it takes the silencing of the channels; the events of the song are recorded).
+         */
+        private final Synthesizer synthesizer = new Synthesizer(new NullSink(), 16, 1, 1, false);
+
+        /**
+         * The handler recording the events of the song.
+         */
+        private final RecordingHandler handler = new RecordingHandler(synthesizer);
+
+        /**
+         * The tested sequencer.
+         */
+        private final Sequencer sequencer = new Sequencer(synthesizer, handler);
+
+        /**
+         * Creates the song and loads it into the sequencer.
+         * @throws InvalidMidiDataException If a message cannot be created.
+         */
+        private Fixture() throws InvalidMidiDataException {
+            long[] frames = new long[EVENT_COUNT];
+            ShortMessage[] messages = new ShortMessage[EVENT_COUNT];
+            for (int i = 0; i < EVENT_COUNT; i++) {
+                frames[i] = (long) i * EVENT_DISTANCE;
+                messages[i] = new ShortMessage(ShortMessage.NOTE_ON, 0, i, 100);
+            }
+            sequencer.setSong(new Song(frames, messages, new long[]{0}, new double[]{120}));
+            synthesizer.setEventSource(sequencer);
+        }
+
+        /**
+         * Creates buffers (the sequencer sends the events of every buffer before it's created).
+         * @param buffers The number of buffers.
+         */
+        private void render(int buffers) {
+            for (int i = 0; i < buffers; i++) {
+                handler.bufferFrame = synthesizer.getFramePosition();
+                synthesizer.renderBuffer(BUFFER_SIZE);
+            }
+        }
+
+        /**
+         * Returns the position of the synthesizer.
+         * @return The position (in frames) of the first frame of the next buffer.
+         */
+        private long framePosition() {
+            return synthesizer.getFramePosition();
+        }
+    }
+
+    /**
+     * A MIDI handler recording the note-ons of the song: the number of the event (its key) and its frame.
+     */
+    private static class RecordingHandler extends MidiHandler {
+        /**
+         * The numbers and the frames of the received events.
+         */
+        private final List<long[]> received = new ArrayList<>();
+
+        /**
+         * The first frames of the buffers in which the events have been received.
+         */
+        private final List<Long> bufferFrames = new ArrayList<>();
+
+        /**
+         * The first frame of the buffer being created.
+         */
+        private long bufferFrame;
+
+        /**
+         * Tells if the messages should be rejected, as if the event queue was full.
+         */
+        private boolean full = false;
+
+        /**
+         * Constructor.
+         * @param synthesizer The synthesizer.
+         */
+        private RecordingHandler(Synthesizer synthesizer) {
+            super(synthesizer);
+        }
+
+        @Override
+        public boolean sendAtFrame(MidiMessage message, long frame) {
+            if (full) {
+                return false;
+            }
+            received.add(new long[]{((ShortMessage) message).getData1(), frame});
+            bufferFrames.add(bufferFrame);
+            return true;
+        }
+    }
+}
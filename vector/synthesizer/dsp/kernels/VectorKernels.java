@@ -0,0 +1,229 @@
+package synthesizer.dsp.kernels;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The implementation of the {@link SampleKernels} that processes several samples per instruction
+ * with the Vector API (as many as fit into the widest vector register of the processor).
+ * The samples that don't fill a whole vector at the end of a buffer are processed one by one.
+ *
+ * Every lane of a waveform keeps the phase of its own sample and all the lanes move forward by the increment
+ * of a whole vector, so the lanes don't depend on each other. The result differs from the scalar
+ * implementation only by the rounding errors of the phase.
+ *
+ * This class has to be compiled and run with the jdk.incubator.vector module:
+ * javac --add-modules jdk.incubator.vector, java --add-modules jdk.incubator.vector.
+ *
+ * @author Marek Bobrowski
+ */
+public class VectorKernels extends SampleKernels {
+    /**
+     * The preferred (widest) vector shape of the processor.
+     */
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    /**
+     * The number of samples processed by one vector.
+     */
+    private static final int LANES = SPECIES.length();
+
+    /**
+     * The sample numbers of the lanes of one vector (0, 1, 2, ...).
+     */
+    private static final DoubleVector LANE_NUMBERS = DoubleVector.fromArray(SPECIES, createLaneNumbers(), 0);
+
+    /**
+     * A vector of ones.
+     */
+    private static final DoubleVector ONE = DoubleVector.broadcast(SPECIES, 1);
+
+    /**
+     * A vector of minus ones.
+     */
+    private static final DoubleVector MINUS_ONE = DoubleVector.broadcast(SPECIES, -1);
+
+    /**
+     * A vector of halves.
+     */
+    private static final DoubleVector HALF = DoubleVector.broadcast(SPECIES, 0.5);
+
+    /**
+     * Empty constructor.
+     */
+    public VectorKernels() {
+    }
+
+    @Override
+    public String getName() {
+        return "vector (" + LANES + " lanes)";
+    }
+
+    @Override
+    public double generateWaveform(int waveform, double phase, double increment, double[] output, int length) {
+        // The phase is calculated in cycles, within [0, 1). Every lane keeps the phase of its own sample
+        // and all of them move by the phase increment of a whole vector, so one subtraction wraps them.
+        double start = phase / (2 * Math.PI);
+        double step = increment / (2 * Math.PI);
+        double vectorStep = LANES * step;
+        vectorStep -= Math.floor(vectorStep);
+        int vectorLength = SPECIES.loopBound(length);
+        switch (waveform) {
+            case 1 -> generateTriangle(start, step, vectorStep, output, vectorLength);
+            case 2 -> generateSawtooth(start, step, vectorStep, output, vectorLength);
+            case 3 -> generateSquare(start, step, vectorStep, output, vectorLength);
+            default -> generateSine(start, step, vectorStep, output, vectorLength);
+        }
+        for (int i = vectorLength; i < length; i++) {
+            double cycles = start + i * step;
+            double t = cycles - Math.floor(cycles);
+            output[i] = switch (waveform) {
+                case 1 -> t < 0.5 ? 4 * t - 1 : 3 - 4 * t;
+                case 2 -> 1 - 2 * t;
+                case 3 -> t < 0.5 ? 1 : -1;
+                default -> Math.sin(2 * Math.PI * t);
+            };
+        }
+        double end = start + length * step;
+        return (end - Math.floor(end)) * (2 * Math.PI);
+    }
+
+    /**
+     * Fills whole vectors of the output with a sinusoidal signal.
+     * @param start The phase of the first sample (in cycles).
+     * @param step The increase of the phase per sample (in cycles).
+     * @param vectorStep The increase of the phase per vector (in cycles, wrapped into [0, 1)).
+     * @param output The array that the samples will be written into.
+     * @param length The number of samples (a multiple of the number of lanes).
+     */
+    private static void generateSine(double start, double step, double vectorStep, double[] output, int length) {
+        DoubleVector t = LANE_NUMBERS.mul(step).add(start);
+        VectorMask<Double> wrapped;
+        while ((wrapped = t.compare(VectorOperators.GE, ONE)).anyTrue()) {
+            t = t.sub(ONE, wrapped);
+        }
+        for (int i = 0; i < length; i += LANES) {
+            t.mul(2 * Math.PI).lanewise(VectorOperators.SIN).intoArray(output, i);
+            t = t.add(vectorStep);
+            t = t.sub(ONE, t.compare(VectorOperators.GE, ONE));
+        }
+    }
+
+    /**
+     * Fills whole vectors of the output with a triangle signal.
+     * @param start The phase of the first sample (in cycles).
+     * @param step The increase of the phase per sample (in cycles).
+     * @param vectorStep The increase of the phase per vector (in cycles, wrapped into [0, 1)).
+     * @param output The array that the samples will be written into.
+     * @param length The number of samples (a multiple of the number of lanes).
+     */
+    private static void generateTriangle(double start, double step, double vectorStep, double[] output, int length) {
+        DoubleVector t = LANE_NUMBERS.mul(step).add(start);
+        VectorMask<Double> wrapped;
+        while ((wrapped = t.compare(VectorOperators.GE, ONE)).anyTrue()) {
+            t = t.sub(ONE, wrapped);
+        }
+        for (int i = 0; i < length; i += LANES) {
+            VectorMask<Double> firstHalf = t.compare(VectorOperators.LT, HALF);
+            t.mul(-4).add(3).blend(t.mul(4).sub(1), firstHalf).intoArray(output, i);
+            t = t.add(vectorStep);
+            t = t.sub(ONE, t.compare(VectorOperators.GE, ONE));
+        }
+    }
+
+    /**
+     * Fills whole vectors of the output with a sawtooth signal.
+     * @param start The phase of the first sample (in cycles).
+     * @param step The increase of the phase per sample (in cycles).
+     * @param vectorStep The increase of the phase per vector (in cycles, wrapped into [0, 1)).
+     * @param output The array that the samples will be written into.
+     * @param length The number of samples (a multiple of the number of lanes).
+     */
+    private static void generateSawtooth(double start, double step, double vectorStep, double[] output, int length) {
+        DoubleVector t = LANE_NUMBERS.mul(step).add(start);
+        VectorMask<Double> wrapped;
+        while ((wrapped = t.compare(VectorOperators.GE, ONE)).anyTrue()) {
+            t = t.sub(ONE, wrapped);
+        }
+        for (int i = 0; i < length; i += LANES) {
+            t.mul(-2).add(1).intoArray(output, i);
+            t = t.add(vectorStep);
+            t = t.sub(ONE, t.compare(VectorOperators.GE, ONE));
+        }
+    }
+
+    /**
+     * Fills whole vectors of the output with a square signal.
+     * @param start The phase of the first sample (in cycles).
+     * @param step The increase of the phase per sample (in cycles).
+     * @param vectorStep The increase of the phase per vector (in cycles, wrapped into [0, 1)).
+     * @param output The array that the samples will be written into.
+     * @param length The number of samples (a multiple of the number of lanes).
+     */
+    private static void generateSquare(double start, double step, double vectorStep, double[] output, int length) {
+        DoubleVector t = LANE_NUMBERS.mul(step).add(start);
+        VectorMask<Double> wrapped;
+        while ((wrapped = t.compare(VectorOperators.GE, ONE)).anyTrue()) {
+            t = t.sub(ONE, wrapped);
+        }
+        for (int i = 0; i < length; i += LANES) {
+            MINUS_ONE.blend(ONE, t.compare(VectorOperators.LT, HALF)).intoArray(output, i);
+            t = t.add(vectorStep);
+            t = t.sub(ONE, t.compare(VectorOperators.GE, ONE));
+        }
+    }
+
+    @Override
+    public void mixInto(double[] output, int offset, double[] input, double gain, int length) {
+        int vectorLength = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < vectorLength; i += LANES) {
+            DoubleVector.fromArray(SPECIES, input, i).mul(gain)
+                    .add(DoubleVector.fromArray(SPECIES, output, offset + i))
+                    .intoArray(output, offset + i);
+        }
+        for (; i < length; i++) {
+            output[offset + i] += input[i] * gain;
+        }
+    }
+
+    @Override
+    public void scale(double[] buffer, double gain, int length) {
+        int vectorLength = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < vectorLength; i += LANES) {
+            DoubleVector.fromArray(SPECIES, buffer, i).mul(gain).intoArray(buffer, i);
+        }
+        for (; i < length; i++) {
+            buffer[i] *= gain;
+        }
+    }
+
+    @Override
+    public void crossfade(double[] first, double[] second, double mix, int length) {
+        int vectorLength = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < vectorLength; i += LANES) {
+            DoubleVector.fromArray(SPECIES, first, i).mul(1 - mix)
+                    .add(DoubleVector.fromArray(SPECIES, second, i).mul(mix))
+                    .intoArray(first, i);
+        }
+        for (; i < length; i++) {
+            first[i] = first[i] * (1 - mix) + second[i] * mix;
+        }
+    }
+
+    /**
+     * Creates the sample numbers of the lanes of one vector.
+     * @return The numbers 0, 1, 2, ... (one per lane).
+     */
+    private static double[] createLaneNumbers() {
+        double[] numbers = new double[LANES];
+        for (int i = 0; i < LANES; i++) {
+            numbers[i] = i;
+        }
+        return numbers;
+    }
+}